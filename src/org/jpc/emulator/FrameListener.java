@@ -0,0 +1,50 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator;
+
+/**
+ * Receives each frame a VGA card publishes.
+ */
+public interface FrameListener {
+    /**
+     * Called on the rendering thread each time a frame is published. The pixels stay unchanged until
+     * this method returns, and must neither be modified nor kept afterwards.
+     * @param pixels published 0RGB raster, <code>width</code> pixels per row
+     * @param width raster width
+     * @param height raster height
+     * @param x left edge of the region changed since the previous frame
+     * @param y top edge of the changed region
+     * @param w changed region width
+     * @param h changed region height
+     * @param time emulated time in nanoseconds at which the frame was snapshotted
+     */
+    void frameRendered(int[] pixels, int width, int height, int x, int y, int w, int h, long time);
+}
@@ -82,6 +82,7 @@ import org.jpc.emulator.pci.PCIBus;
 import org.jpc.emulator.pci.PCIHostBridge;
 import org.jpc.emulator.pci.PCIISABridge;
 import org.jpc.emulator.pci.VGACard;
+import org.jpc.emulator.pci.peripheral.CirrusVGACard;
 import org.jpc.emulator.pci.peripheral.DefaultVGACard;
 import org.jpc.emulator.pci.peripheral.EthernetCard;
 import org.jpc.emulator.pci.peripheral.PIIX3IDEInterface;
@@ -193,7 +194,10 @@ public class PC {
         parts.add(new PIIX3IDEInterface());
         if (Option.ethernet.isSet())
             parts.add(ethernet = new EthernetCard());
-        parts.add(new DefaultVGACard());
+        if ("cirrus".equals(Option.vga.value()))
+            parts.add(new CirrusVGACard());
+        else
+            parts.add(new DefaultVGACard());
 
         parts.add(new SerialPort(0));
         parts.add(new SerialPort(1));
@@ -680,6 +684,10 @@ public class PC {
     }
 
     public void destroy() {
+        for (HardwareComponent hwc : parts) {
+            if (hwc instanceof PIIX3IDEInterface)
+                ((PIIX3IDEInterface)hwc).close();
+        }
         for (HardwareComponent hwc : parts) {
             if (hwc instanceof DriveSet)
                 ((DriveSet)hwc).close();
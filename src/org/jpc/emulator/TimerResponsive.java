@@ -38,6 +38,16 @@ package org.jpc.emulator;
  * @author Chris Dennis
  */
 public interface TimerResponsive {
+    /**
+     * Type of the timer that copies the VGA card's frame for rendering at each display refresh.
+     */
+    int TYPE_VGA_FRAME = 6;
+
+    /**
+     * Type of the timer signalling completion of an IDE transfer performed on the I/O worker.
+     */
+    int TYPE_IDE_TRANSFER = 7;
+
     /**
      * Called after a timer registered to this object has expired.
      */
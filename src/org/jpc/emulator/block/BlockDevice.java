@@ -81,6 +81,28 @@ public interface BlockDevice {
      */
     int write(long sectorNumber, byte[] buffer, int size);
 
+    /**
+     * Reads <code>size</code> sectors starting at <code>sectorNumber</code> into the given array at
+     * <code>offset</code>. Returns a negative value on failure.
+     * @param sectorNumber offset of the first sector to read
+     * @param buffer array to write data into
+     * @param offset start offset in <code>buffer</code>
+     * @param size number of sectors to read
+     * @return negative on failure
+     */
+    int read(long sectorNumber, byte[] buffer, int offset, int size);
+
+    /**
+     * Writes <code>size</code> sectors starting at <code>sectorNumber</code> from the given array at
+     * <code>offset</code>. Returns a negative value on failure.
+     * @param sectorNumber offset of the first sector to write
+     * @param buffer array to read data from
+     * @param offset start offset in <code>buffer</code>
+     * @param size number of sectors to write
+     * @return negative on failure
+     */
+    int write(long sectorNumber, byte[] buffer, int offset, int size);
+
     /**
      * Returns <code>true</code> if something is 'inserted' in this device. This only has meaning for
      * CD-ROM and floppy drives which return <code>true</code> if a disk in inserted.
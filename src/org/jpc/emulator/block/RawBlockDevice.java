@@ -37,6 +37,7 @@ import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.jpc.emulator.block.backing.PositionalIODevice;
 import org.jpc.emulator.block.backing.SeekableIODevice;
 
 /**
@@ -59,20 +60,29 @@ public abstract class RawBlockDevice implements BlockDevice {
 
     @Override
     public int read(long sectorNumber, byte[] buffer, int size) {
-        Integer t;
+        return read(sectorNumber, buffer, 0, size);
+    }
+
+    @Override
+    public int read(long sectorNumber, byte[] buffer, int offset, int size) {
+        long position = sectorNumber * SECTOR_SIZE;
+        int toRead = Math.min(buffer.length - offset, SECTOR_SIZE * size);
         try {
+            if (data instanceof PositionalIODevice) {
+                int read = ((PositionalIODevice)data).read(position, buffer, offset, toRead);
+                return Math.max(read, 0);
+            }
 
-            data.seek(sectorNumber * SECTOR_SIZE);
-            int pos = 0;
-            int toRead = Math.min(buffer.length, SECTOR_SIZE * size);
-            while (true) {
-                if (pos >= toRead)
-                    return pos;
-                int read = data.read(buffer, pos, toRead - pos);
-                if (read < 0)
-                    return pos;
-
-                pos += read;
+            synchronized (data) {
+                data.seek(position);
+                int pos = 0;
+                while (pos < toRead) {
+                    int read = data.read(buffer, offset + pos, toRead - pos);
+                    if (read < 0)
+                        break;
+                    pos += read;
+                }
+                return pos;
             }
         } catch (IOException e) {
             LOGGING.log(Level.WARNING, "error reading sector " + sectorNumber + ", size = " + size, e);
@@ -82,11 +92,22 @@ public abstract class RawBlockDevice implements BlockDevice {
 
     @Override
     public int write(long sectorNumber, byte[] buffer, int size) {
+        return write(sectorNumber, buffer, 0, size);
+    }
+
+    @Override
+    public int write(long sectorNumber, byte[] buffer, int offset, int size) {
+        long position = sectorNumber * SECTOR_SIZE;
         try {
-            data.seek(sectorNumber * SECTOR_SIZE);
-            data.write(buffer, 0, size * SECTOR_SIZE);
+            if (data instanceof PositionalIODevice)
+                ((PositionalIODevice)data).write(position, buffer, offset, size * SECTOR_SIZE);
+            else
+                synchronized (data) {
+                    data.seek(position);
+                    data.write(buffer, offset, size * SECTOR_SIZE);
+                }
         } catch (IOException e) {
-            LOGGING.log(Level.WARNING, "error waiting", e);
+            LOGGING.log(Level.WARNING, "error writing sector " + sectorNumber + ", size = " + size, e);
             return -1;
         }
         return 0;
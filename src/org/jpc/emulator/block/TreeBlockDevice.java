@@ -40,23 +40,32 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Presents a directory on the local machine as a FAT32 volume within the guest.
+ * <p>
+ * The whole host tree is listed once when the device is configured, so that every file and directory
+ * has its clusters laid out in the FAT before the guest first reads it; guests cache the FAT and scan
+ * it for free space, so clusters cannot safely be handed out later. Mounting therefore still costs one
+ * directory listing and a size lookup per host file. Only the directory entry sectors themselves are
+ * generated lazily, the first time the guest reads a directory.
  * @author Ian Preston
  * @author Chris Dennis
  */
@@ -107,7 +116,8 @@ public class TreeBlockDevice implements BlockDevice {
     private static final int FAT_FSINFO_TRAIL_SIGNATURE = 0x1fc;
 
     private static final int FAT_COPIES = 2;
-    private static final int MAX_FILE_LIMIT = 5000;
+    private static final int MAX_DIRECTORY_ENTRIES = 65536;
+    private static final int OPEN_FILES = 64;
     private static final String OEM_LABEL = "MSWIN4.1";
     private static final int SECTORS_PER_CLUSTER = 8;
 
@@ -132,9 +142,7 @@ public class TreeBlockDevice implements BlockDevice {
     private long driveLength;
     private int fatSize;
 
-    private int numberOfOpenFiles = 0;
-
-    private Map<Long, FatEntry> sectorToFatEntry = new HashMap<Long, FatEntry>();
+    private ExtentMap<FatEntry> sectorToFatEntry = new ExtentMap<FatEntry>();
     private Map<Long, byte[]> bufferedWrites = new HashMap<Long, byte[]>();
     private Set<Long> unmappedClusters = new HashSet<Long>();
     private OpenFilesCache fileCache;
@@ -189,9 +197,9 @@ public class TreeBlockDevice implements BlockDevice {
 
     private void configure(File directory, boolean buffer) throws IOException {
         bufferWrites = buffer;
-        fileCache = new OpenFilesCache(10);
+        fileCache = new OpenFilesCache(OPEN_FILES);
 
-        //read in directory structure
+        //walk the host tree to lay out the FAT, directory entries are built later on first read
         DirectoryEntry root = new DirectoryEntry(directory, 2, null);
 
         Map<Long, FatEntry> fat = new HashMap<Long, FatEntry>();
@@ -203,6 +211,8 @@ public class TreeBlockDevice implements BlockDevice {
         long volumeLength = dataSize * SECTORS_PER_CLUSTER + FAT_COPIES * fatSize + RESERVED_SECTORS;
         long suggestedLength = volumeLength + HIDDEN_SECTORS;
         driveLength = getLba(getCylinder(suggestedLength), HEADS_PER_CYLINDER, SECTORS_PER_TRACK);
+        if (driveLength > 0xffffffffL)
+            throw new IOException("Directory is too large for a FAT32 volume: " + directory);
 
         //revise numbers for Microsoft formulation
         long temp1 = driveLength - HEADER_SECTION_LENGTH;
@@ -303,9 +313,9 @@ public class TreeBlockDevice implements BlockDevice {
 
     private int followFatChainLink(int cluster) {
         int fatOffset = cluster * 4;
-        if (fatOffset < fatImage.length)
+        if ((cluster >= 0) && (fatOffset < fatImage.length))
             return (fatImage[fatOffset] & 0xFF) + ((fatImage[fatOffset + 1] & 0xFF) << 8) + ((fatImage[fatOffset + 2] & 0xFF) << 16)
-                + ((fatImage[fatOffset + 3] & 0xFF) << 24);
+                + ((fatImage[fatOffset + 3] & 0x0F) << 24);
         else
             return 0;
     }
@@ -318,50 +328,89 @@ public class TreeBlockDevice implements BlockDevice {
         fileCache.close();
     }
 
-    //READ up to 16 sectors at a time
     @Override
     public int read(long sectorNumber, byte[] buffer, int size) {
-        if (size != 1)
-            LOGGING.log(Level.WARNING, "Request to do multiple sector read.");
+        return read(sectorNumber, buffer, 0, size);
+    }
 
-        if (sectorNumber >= driveLength)
-            return -1;
+    @Override
+    public int read(long sectorNumber, byte[] buffer, int offset, int size) {
+        for (int i = 0; i < size;) {
+            long sector = sectorNumber + i;
+            int pos = offset + i * SECTOR_SIZE;
+            if (sector >= driveLength)
+                return -1;
 
-        //check map of writes to see if sector has been written to
-        byte[] entry = bufferedWrites.get(Long.valueOf(sectorNumber));
-        if (entry != null)
-            System.arraycopy(entry, 0, buffer, 0, SECTOR_SIZE);
-        else if (sectorNumber < HEADER_SECTION_LENGTH) // Initial sectors
-            System.arraycopy(start, (int)sectorNumber * SECTOR_SIZE, buffer, 0, size * SECTOR_SIZE);
-        else if (sectorNumber < dataSectionStart) // fatImage sectors
-            System.arraycopy(fatImage, (int)((sectorNumber - HEADER_SECTION_LENGTH) % fatSize) * SECTOR_SIZE, buffer, 0,
-                size * SECTOR_SIZE);
-        else
-            return readFromFileSystem(sectorNumber, buffer);
+            //check map of writes to see if sector has been written to
+            byte[] entry = bufferedWrites.isEmpty() ? null : bufferedWrites.get(Long.valueOf(sector));
+            if (entry != null)
+                System.arraycopy(entry, 0, buffer, pos, SECTOR_SIZE);
+            else if (sector < HEADER_SECTION_LENGTH) // Initial sectors
+                System.arraycopy(start, (int)sector * SECTOR_SIZE, buffer, pos, SECTOR_SIZE);
+            else if (sector < dataSectionStart) // fatImage sectors
+                System.arraycopy(fatImage, (int)((sector - HEADER_SECTION_LENGTH) % fatSize) * SECTOR_SIZE, buffer, pos, SECTOR_SIZE);
+            else {
+                int read = readFromFileSystem(sector, buffer, pos, size - i);
+                if (read < 0)
+                    return -1;
+                i += read;
+                continue;
+            }
+            i++;
+        }
         return 0;
     }
 
-    private int readFromFileSystem(long sectorNumber, byte[] buffer) {
-        FatEntry entry = sectorToFatEntry.get(Long.valueOf(sectorNumber));
-        if (entry != null)
-            try {
-                entry.read(sectorNumber, buffer);
-            } catch (IOException e) {
-                LOGGING.log(Level.WARNING, "exception reading FAT filesystem", e);
-                return -1;
-            }
-        else {
-            System.arraycopy(EMPTY, 0, buffer, 0, SECTOR_SIZE);
+    /**
+     * Reads the run of sectors starting at <code>sectorNumber</code> that lie consecutively in the same
+     * host file, up to <code>maxSectors</code>.
+     * @return number of sectors read, or -1 on error
+     */
+    private int readFromFileSystem(long sectorNumber, byte[] buffer, int offset, int maxSectors) {
+        FatEntry entry = sectorToFatEntry.get(sectorNumber);
+        if (entry == null) {
+            System.arraycopy(EMPTY, 0, buffer, offset, SECTOR_SIZE);
             LOGGING.log(Level.FINE, "Read empty sector number {0,number,integer}", Long.valueOf(sectorNumber));
+            return 1;
         }
-        return 0;
+
+        int count = 1;
+        long position = entry.getByteOffset(sectorNumber);
+        if (position >= 0)
+            while (count < maxSectors && sectorToFatEntry.get(sectorNumber + count) == entry
+                && entry.getByteOffset(sectorNumber + count) == position + count * SECTOR_SIZE
+                && (bufferedWrites.isEmpty() || !bufferedWrites.containsKey(Long.valueOf(sectorNumber + count))))
+                count++;
+
+        try {
+            entry.read(sectorNumber, buffer, offset, count);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "exception reading FAT filesystem", e);
+            return -1;
+        }
+        return count;
     }
 
     @Override
     public int write(long sectorNumber, byte[] buffer, int size) {
-        if (size != 1)
-            LOGGING.log(Level.WARNING, "Request to do multiple sector write.");
+        return write(sectorNumber, buffer, 0, size);
+    }
+
+    @Override
+    public int write(long sectorNumber, byte[] buffer, int offset, int size) {
+        if (offset == 0 && size == 1)
+            return writeSector(sectorNumber, buffer);
+
+        byte[] sector = new byte[SECTOR_SIZE];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(buffer, offset + i * SECTOR_SIZE, sector, 0, SECTOR_SIZE);
+            if (writeSector(sectorNumber + i, sector) < 0)
+                return -1;
+        }
+        return 0;
+    }
 
+    private int writeSector(long sectorNumber, byte[] buffer) {
         if (sectorNumber >= driveLength)
             return -1;
 
@@ -399,14 +448,13 @@ public class TreeBlockDevice implements BlockDevice {
             if (entryChanged)
                 if (followFatChainLink(minCluster + (entryOffset >>> 2)) == 0) {
                     //a fatImage entry has been set to zero so we need to delete a file or dir
-                    FatEntry entry = sectorToFatEntry.get(Long.valueOf(getSectorNumber(entryOffset + minCluster)));
+                    FatEntry entry = sectorToFatEntry.get(getSectorNumber(entryOffset + minCluster));
                     if (entry != null) {
+                        fileCache.release(entry.getFile());
                         entry.getFile().delete();
 
                         //remove all references to the file from the data Map
-                        long startingSector = getSectorNumber(entry.getStartCluster());
-                        for (int k = 0; k < SECTORS_PER_CLUSTER; k++)
-                            sectorToFatEntry.remove(Long.valueOf(startingSector + k));
+                        sectorToFatEntry.remove(getSectorNumber(entry.getStartCluster()), SECTORS_PER_CLUSTER);
                     }
                 }
         }
@@ -418,13 +466,13 @@ public class TreeBlockDevice implements BlockDevice {
             //see if anything has been allocated with thisCluster value in fatImage
             for (long cluster = minCluster; cluster < minCluster + (SECTOR_SIZE >> 2); cluster++)
                 if (followFatChainLink((int)cluster) == thisCluster) {
-                    FatEntry entry = sectorToFatEntry.get(Long.valueOf(getSectorNumber(cluster)));
+                    FatEntry entry = sectorToFatEntry.get(getSectorNumber(cluster));
                     if (entry != null) {
                         for (int j = 0; j < SECTORS_PER_CLUSTER; j++) {
                             Long key = getSectorNumber(thisCluster) + j;
                             byte[] array = bufferedWrites.remove(key);
                             if (array != null)
-                                write(key.longValue(), buffer, 1);
+                                writeSector(key.longValue(), array);
                         }
                         itt.remove();
                     }
@@ -433,7 +481,7 @@ public class TreeBlockDevice implements BlockDevice {
     }
 
     private int writeToFileSystem(long sectorNumber, byte[] buffer) {
-        FatEntry entry = sectorToFatEntry.get(Long.valueOf(sectorNumber));
+        FatEntry entry = sectorToFatEntry.get(sectorNumber);
         if (entry != null)
             try {
                 entry.write(sectorNumber, buffer);
@@ -443,14 +491,16 @@ public class TreeBlockDevice implements BlockDevice {
         else {
             //cluster is not allocated
             // try apepnding to previous sector if it is non empty
-            if (sectorToFatEntry.containsKey(Long.valueOf(sectorNumber - 1))) {
-                entry = sectorToFatEntry.get(Long.valueOf(sectorNumber - 1));
+            entry = sectorToFatEntry.get(sectorNumber - 1);
+            boolean appended = false;
+            if (entry != null)
                 try {
                     entry.write(sectorNumber, buffer);
+                    appended = true;
                 } catch (IOException e) {
-                    return -1;
+                    LOGGING.log(Level.FINE, "cannot append to previous sector", e);
                 }
-            } else {
+            if (!appended) {
                 byte[] temp = new byte[SECTOR_SIZE];
                 System.arraycopy(buffer, 0, temp, 0, SECTOR_SIZE);
                 bufferedWrites.put(sectorNumber, temp);
@@ -565,14 +615,12 @@ public class TreeBlockDevice implements BlockDevice {
     }
 
     //convert FATmap to data map
-    private Map<Long, FatEntry> createDataMap(Map<Long, FatEntry> fat) {
-        Map<Long, FatEntry> dataMap = new HashMap<Long, FatEntry>();
+    private ExtentMap<FatEntry> createDataMap(Map<Long, FatEntry> fat) {
+        ExtentMap<FatEntry> dataMap = new ExtentMap<FatEntry>();
 
         for (Map.Entry<Long, FatEntry> entry : fat.entrySet()) {
             FatEntry fatEntry = entry.getValue();
-            long startSector = getSectorNumber(entry.getKey().longValue());
-            for (long i = 0; i < fatEntry.getSizeSectors(); i++)
-                dataMap.put(startSector + i, fatEntry);
+            dataMap.put(getSectorNumber(entry.getKey().longValue()), fatEntry.getSizeSectors(), fatEntry);
         }
 
         return dataMap;
@@ -735,7 +783,9 @@ public class TreeBlockDevice implements BlockDevice {
         private String shortName;
         private long startCluster, sizeSectors, sizeClusters;
         private File file;
-        public Map<Long, Long> clusterList = new HashMap<Long, Long>(); // list of clusters in object
+        // clusters are laid out contiguously from startCluster when the tree is mapped, later additions are listed here
+        private long contiguousClusters;
+        private Map<Long, Long> addedClusters;
 
         private DirectoryEntry parent;
 
@@ -752,7 +802,11 @@ public class TreeBlockDevice implements BlockDevice {
             return shortName;
         }
 
-        public abstract void read(long sectorNumber, byte[] buffer) throws IOException;
+        /**
+         * Reads <code>sectors</code> sectors starting at <code>sectorNumber</code> into
+         * <code>buffer</code> at <code>offset</code>. All the sectors belong to this entry.
+         */
+        public abstract void read(long sectorNumber, byte[] buffer, int offset, int sectors) throws IOException;
 
         public abstract void write(long sectorNumber, byte[] buffer) throws IOException;
 
@@ -809,13 +863,60 @@ public class TreeBlockDevice implements BlockDevice {
         }
 
         protected void makeClusterList() {
-            for (long counter = 0, cluster = getStartCluster(); counter < getSizeInClusters(); counter++, cluster++)
-                clusterList.put(cluster, counter);
+            contiguousClusters = getSizeInClusters();
+        }
+
+        /**
+         * Returns the position of <code>cluster</code> within this entry's data, or -1 if the cluster
+         * does not belong to it.
+         */
+        protected long getClusterIndex(long cluster) {
+            if (addedClusters != null) {
+                Long index = addedClusters.get(Long.valueOf(cluster));
+                if (index != null)
+                    return index.longValue();
+            }
+            if (cluster >= startCluster && cluster < startCluster + contiguousClusters)
+                return cluster - startCluster;
+            return -1;
+        }
+
+        protected void setClusterIndex(long cluster, long index) {
+            if (cluster - startCluster == index && index < contiguousClusters && addedClusters == null)
+                return;
+            if (addedClusters == null)
+                addedClusters = new HashMap<Long, Long>();
+            addedClusters.put(Long.valueOf(cluster), Long.valueOf(index));
+        }
+
+        /**
+         * Returns the byte offset within this entry's data of the given sector, or -1 if the sector
+         * does not belong to it.
+         */
+        protected long getByteOffset(long sectorNumber) {
+            long index = getClusterIndex(getClusterNumber(sectorNumber));
+            if (index < 0)
+                return -1;
+            return (index * SECTORS_PER_CLUSTER + getClusterOffset(sectorNumber)) * SECTOR_SIZE;
+        }
+
+        /**
+         * Returns the position of the given cluster in this entry's fat chain, or -1 if the chain
+         * does not reach it.
+         */
+        protected int getChainPosition(long cluster) {
+            int position = 0;
+            for (int next = (int)getStartCluster(); next != cluster; position++) {
+                if ((next < 2) || (next >= 0x0FFFFFF8) || (position > (fatImage.length >>> 2)))
+                    return -1;
+                next = followFatChainLink(next);
+            }
+            return position;
         }
 
         protected void updateClusterList(long sectorNumber) {
-            if (!clusterList.containsKey(Long.valueOf(getClusterNumber(sectorNumber)))) {
-                clusterList.put(getClusterNumber(sectorNumber), getSizeInClusters() + 1);
+            if (getClusterIndex(getClusterNumber(sectorNumber)) < 0) {
+                setClusterIndex(getClusterNumber(sectorNumber), getSizeInClusters() + 1);
                 setSizeClusters(getSizeInClusters() + 1);
             }
         }
@@ -884,36 +985,29 @@ public class TreeBlockDevice implements BlockDevice {
     //File Class
     private class FileEntry extends FatEntry {
         private long fileSize;
-        private WeakReference<RandomAccessFile> backingFile;
 
         FileEntry(File file, long start, DirectoryEntry parent) throws IOException {
             super(file, start, parent);
-            //check if too many files have been loaded
-            if (++numberOfOpenFiles > MAX_FILE_LIMIT)
-                throw new IndexOutOfBoundsException("Too many files loaded: try a directory with fewer files.");
-
             fileSize = getFile().length();
             setSizeSectors((fileSize - 1) / SECTOR_SIZE + 1);
         }
 
         @Override
-        public void read(long sectorNumber, byte[] buffer) throws IOException {
-            long oddsectors = getClusterOffset(sectorNumber);
-            long offset = clusterList.get(Long.valueOf(getClusterNumber(sectorNumber))).longValue() * SECTORS_PER_CLUSTER * SECTOR_SIZE;
-            offset = offset + oddsectors * SECTOR_SIZE;
-
-            //see if file is already open
-            RandomAccessFile backing = null;
-            if (backingFile != null)
-                backing = backingFile.get();
-
-            if (backing == null || !backing.getFD().valid()) {
-                backing = fileCache.getBackingFor(getFile());
-                backingFile = new WeakReference(backing);
+        public void read(long sectorNumber, byte[] buffer, int offset, int sectors) throws IOException {
+            int length = sectors * SECTOR_SIZE;
+            long position = getByteOffset(sectorNumber);
+            int read = 0;
+            if (position >= 0) {
+                FileChannel backing = fileCache.getBackingFor(getFile(), false).getChannel();
+                ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+                while (dst.hasRemaining()) {
+                    int n = backing.read(dst, position + read);
+                    if (n < 0)
+                        break;
+                    read += n;
+                }
             }
-            backing.seek(offset);
-            int len = Math.min(SECTOR_SIZE, (int)(backing.length() - offset));
-            backing.readFully(buffer, 0, len);
+            Arrays.fill(buffer, offset + read, offset + length, (byte)0);
         }
 
         @Override
@@ -925,28 +1019,22 @@ public class TreeBlockDevice implements BlockDevice {
 
             //cluster is allocated
             //check if it is allocated to a file or a directory
-            int clusterCount = 0;
-            for (int nextCluster = (int)getStartCluster(); nextCluster != cluster; clusterCount++)
-                nextCluster = followFatChainLink(nextCluster);
-
-            RandomAccessFile out = new RandomAccessFile(getFile(), "rw");
+            int clusterCount = getChainPosition(cluster);
+            if (clusterCount < 0)
+                throw new IOException("Cluster " + cluster + " is not linked to " + getFile());
+
+            RandomAccessFile out = fileCache.getBackingFor(getFile(), true);
+            out.seek((clusterCount * SECTORS_PER_CLUSTER + offset) * SECTOR_SIZE);
+            int len = SECTOR_SIZE;
+            if ((clusterCount * SECTORS_PER_CLUSTER + offset + 1) * SECTOR_SIZE > getFileSize())
+                len = (int)(SECTOR_SIZE + getFileSize() - (clusterCount * SECTORS_PER_CLUSTER + offset + 1) * SECTOR_SIZE);
+            if (len < 0)
+                len = SECTOR_SIZE;
             try {
-                out.seek((clusterCount * SECTORS_PER_CLUSTER + offset) * SECTOR_SIZE);
-                int len = SECTOR_SIZE;
-                if ((clusterCount * SECTORS_PER_CLUSTER + offset + 1) * SECTOR_SIZE > getFileSize())
-                    len = (int)(SECTOR_SIZE + getFileSize() - (clusterCount * SECTORS_PER_CLUSTER + offset + 1) * SECTOR_SIZE);
-                if (len < 0)
-                    len = SECTOR_SIZE;
-                try {
-                    out.write(buffer, 0, len); //need to clip zeros here at end of file somehow
-                } catch (IndexOutOfBoundsException e) {
-                    e.printStackTrace();
-                    System.err.println("Writing error to file: " + getFile());
-                    System.err.println("length of write is: " + len);
-                    System.err.println("offset: " + offset + ", clusterCount: " + clusterCount + ", fileSize: " + getFileSize());
-                }
-            } finally {
-                out.close();
+                out.write(buffer, 0, len); //need to clip zeros here at end of file somehow
+            } catch (IndexOutOfBoundsException e) {
+                LOGGING.log(Level.WARNING, "error writing " + len + " bytes to " + getFile() + " at sector " + offset + " of cluster "
+                    + clusterCount + ", file size " + getFileSize(), e);
             }
             //update file's clusterlist
             updateClusterList(sectorNumber);
@@ -1001,6 +1089,7 @@ public class TreeBlockDevice implements BlockDevice {
         private Set<String> shortNames = new HashSet<String>();
         private byte[] dirEntry = {};
         private int size;
+        private boolean mapped = true;
 
         public DirectoryEntry(File path, long startCluster, DirectoryEntry parent) {
             super(path, startCluster, parent);
@@ -1071,16 +1160,29 @@ public class TreeBlockDevice implements BlockDevice {
 
         //get set of directory entries for this directory
         @Override
-        public void read(long sectorNumber, byte[] buffer) throws IOException {
-            long oddsectors = getClusterOffset(sectorNumber);
-            long offset = clusterList.get(Long.valueOf(getClusterNumber(sectorNumber))).longValue() * SECTORS_PER_CLUSTER * SECTOR_SIZE;
-            offset = offset + oddsectors * SECTOR_SIZE;
-
-            int length = Math.min(dirEntry.length - (int)offset, SECTOR_SIZE);
-            length = Math.max(0, length);
-            System.arraycopy(dirEntry, (int)offset, buffer, 0, length);
-            for (int i = length; i < SECTOR_SIZE; i++)
-                buffer[i] = 0x00;
+        public void read(long sectorNumber, byte[] buffer, int offset, int sectors) throws IOException {
+            ensureMapped();
+            for (int i = 0; i < sectors; i++) {
+                long position = getByteOffset(sectorNumber + i);
+                int length = position < 0 ? 0 : (int)Math.max(0, Math.min(dirEntry.length - position, SECTOR_SIZE));
+                if (length > 0)
+                    System.arraycopy(dirEntry, (int)position, buffer, offset + i * SECTOR_SIZE, length);
+                Arrays.fill(buffer, offset + i * SECTOR_SIZE + length, offset + (i + 1) * SECTOR_SIZE, (byte)0);
+            }
+        }
+
+        /**
+         * Builds the directory entries of this directory if they have not been built yet. Entries
+         * are built on first access, parents first so that short names are always assigned in the
+         * same order.
+         */
+        private void ensureMapped() {
+            if (mapped)
+                return;
+            if (getParent() != null)
+                getParent().ensureMapped();
+            buildDirectoryEntry();
+            mapped = true;
         }
 
         @Override
@@ -1092,10 +1194,13 @@ public class TreeBlockDevice implements BlockDevice {
 
             //cluster is allocated
             //check if it is allocated to a file or a directory
-            int clusterCount = 0;
-            for (int nextCluster = (int)getStartCluster(); nextCluster != cluster; clusterCount++)
-                nextCluster = followFatChainLink(nextCluster);
+            int clusterCount = getChainPosition(cluster);
+            if (clusterCount < 0) {
+                LOGGING.log(Level.WARNING, "Cluster {0,number,integer} is not linked to {1}", new Object[]{Long.valueOf(cluster), getFile()});
+                return;
+            }
 
+            ensureMapped();
             byte[] oldDirSector = new byte[SECTOR_SIZE];
             //it is a directory, compare with old directory entry and act accordingly
             TreeBlockDevice.this.read(sectorNumber, oldDirSector, 1);
@@ -1107,15 +1212,15 @@ public class TreeBlockDevice implements BlockDevice {
                 int newStartCluster = (buffer[32 * i + 26] & 0xFF) + ((buffer[32 * i + 27] & 0xFF) << 8)
                     + ((buffer[32 * i + 20] & 0xFF) << 16) + ((buffer[32 * i + 21] & 0xFF) << 24);
                 if ((buffer[32 * i] & 0xFF) == 0xE5 && followFatChainLink(newStartCluster) == 0) {
-                    FatEntry entry = sectorToFatEntry.get(Long.valueOf(getSectorNumber(newStartCluster)));
+                    FatEntry entry = sectorToFatEntry.get(getSectorNumber(newStartCluster));
 
                     if (entry != null) {
+                        fileCache.release(entry.getFile());
                         entry.getFile().delete();
 
                         //remove all entries for file in sectorToFatEntry
                         for (int n = 0, next = newStartCluster; n < clusterCount + 1; n++, next = followFatChainLink(next))
-                            for (int s = 0; s < SECTORS_PER_CLUSTER; s++)
-                                sectorToFatEntry.remove(Long.valueOf(getSectorNumber(next) + s));
+                            sectorToFatEntry.remove(getSectorNumber(next), SECTORS_PER_CLUSTER);
                     }
                 } else if ((buffer[32 * i + 11] & 0xFF) == 0xF) {
                 } else if ((buffer[32 * i] & 0xFF) == 0xE5)
@@ -1135,7 +1240,7 @@ public class TreeBlockDevice implements BlockDevice {
                     long newStartSector = getSectorNumber(newStartCluster);
                     boolean isDirectory = (buffer[32 * i + 11] & 0x10) == 0x10;
                     //add in other attributes here like readonly, hidden etc.
-                    if (sectorToFatEntry.get(Long.valueOf(newStartSector)) == null) {
+                    if (sectorToFatEntry.get(newStartSector) == null) {
                         //new dir entry was created and we need to create a new File
 
                         File newFile;
@@ -1150,8 +1255,7 @@ public class TreeBlockDevice implements BlockDevice {
                             for (int c = 0; c < zero.length; c++)
                                 zero[c] = 0;
                             newEntry.writeDirectoryEntry(zero, 0, newStartSector); //need to think about whether this is necessary
-                            for (int d = 0; d < SECTORS_PER_CLUSTER; d++)
-                                sectorToFatEntry.put(newStartSector + d, newEntry);
+                            sectorToFatEntry.put(newStartSector, SECTORS_PER_CLUSTER, newEntry);
                         } else {
                             long fileSize = (buffer[32 * i + 28] & 0xFF) + ((buffer[32 * i + 29] & 0xFF) << 8)
                                 + ((buffer[32 * i + 30] & 0xFF) << 16) + ((buffer[32 * i + 31] & 0xFF) << 24);
@@ -1163,7 +1267,9 @@ public class TreeBlockDevice implements BlockDevice {
                                 FileEntry newEntry = new FileEntry(newFile, newStartCluster, this);
                                 newEntry.setSizeClusters(-1);
                                 newEntry.setFileSize(fileSize);
-                                sectorToFatEntry.put(newStartSector, newEntry);
+                                //an empty file has no cluster until it is first written
+                                if (newStartCluster >= 2)
+                                    sectorToFatEntry.put(newStartSector, newEntry);
                             } catch (IOException e) {
                                 LOGGING.log(Level.WARNING, "cannot create new file", e);
                             } catch (SecurityException e) {
@@ -1171,16 +1277,31 @@ public class TreeBlockDevice implements BlockDevice {
                             }
                         }
                         //check if the new object created corresponds to data which was written to an unallocated cluster
-                        for (int k = 0; k < SECTORS_PER_CLUSTER; k++) {
-                            byte[] array = bufferedWrites.remove(Long.valueOf(newStartSector + k));
-                            if (array != null)
-                                TreeBlockDevice.this.write(newStartSector + k, array, 1);
-                            unmappedClusters.remove(Long.valueOf(newStartCluster));
+                        //the fat chain is often written before the directory entry, so follow it past the first cluster
+                        FatEntry created = sectorToFatEntry.get(newStartSector);
+                        for (int link = newStartCluster, n = 0; created != null && link >= 2 && link < 0x0FFFFFF8
+                            && n < (fatImage.length >>> 2); link = followFatChainLink(link), n++) {
+                            if (!unmappedClusters.remove(Long.valueOf(link)))
+                                continue;
+                            long clusterStart = getSectorNumber(link);
+                            for (int k = 0; k < SECTORS_PER_CLUSTER; k++) {
+                                byte[] array = bufferedWrites.remove(Long.valueOf(clusterStart + k));
+                                if (array != null)
+                                    try {
+                                        created.write(clusterStart + k, array);
+                                    } catch (IOException e) {
+                                        LOGGING.log(Level.WARNING, "cannot commit buffered write", e);
+                                    }
+                            }
                         }
                     } else {
                         //it has changed the properties of a file which is already allocated and we need to update, possibly rename it
-                        FatEntry changedFile = sectorToFatEntry.get(Long.valueOf(newStartSector));
+                        FatEntry changedFile = sectorToFatEntry.get(newStartSector);
                         File oldFile = changedFile.getFile();
+                        if (isDirectory)
+                            fileCache.close();
+                        else
+                            fileCache.release(oldFile);
                         File path = oldFile.getParentFile();
                         File newFile;
                         if (isDirectory)
@@ -1200,6 +1321,9 @@ public class TreeBlockDevice implements BlockDevice {
                 throw new IllegalStateException("Directory for virtual FAT32 drive doesn't exist! " + getFile().getName());
             File[] contents = getFile().listFiles();
 
+            if (contents == null)
+                throw new IOException("Cannot list directory " + getFile());
+
             //figure out size of directory entry
             size = 2; // 2 for the . and .. entries
             for (File f : contents) {
@@ -1211,6 +1335,9 @@ public class TreeBlockDevice implements BlockDevice {
                     size += 1;
             }
 
+            if (size > MAX_DIRECTORY_ENTRIES)
+                throw new IOException("Too many entries for a FAT32 directory: " + getFile());
+
             //set cluster size of this directory
             setSizeSectors((long)(size * 32 - 1) / SECTOR_SIZE + 1);
 
@@ -1230,7 +1357,8 @@ public class TreeBlockDevice implements BlockDevice {
 
             dirSubClusters += subClusters;
 
-            buildDirectoryEntry();
+            //directory entries are built when the directory is first read
+            mapped = false;
 
             //generate cluster list
             makeClusterList();
@@ -1248,6 +1376,7 @@ public class TreeBlockDevice implements BlockDevice {
         }
 
         private void changePathOfTree(File path) {
+            ensureMapped();
             //loop over sectors of dirEntry
             for (int i = 0; i < dirEntry.length / 32; i++) {
                 int newStartCluster = (dirEntry[32 * i + 26] & 0xFF) + ((dirEntry[32 * i + 27] & 0xFF) << 8)
@@ -1263,7 +1392,7 @@ public class TreeBlockDevice implements BlockDevice {
 
                 long newStartSector = getSectorNumber(newStartCluster);
                 boolean isDirectory = (dirEntry[32 * i + 11] & 0x10) == 0x10;
-                FatEntry myfile = sectorToFatEntry.get(Long.valueOf(newStartSector));
+                FatEntry myfile = sectorToFatEntry.get(newStartSector);
                 if (!isDirectory)
                     myfile.setFile(new File(path, name + "." + ext));
                 else
@@ -1281,7 +1410,7 @@ public class TreeBlockDevice implements BlockDevice {
 
         public void writeDirectoryEntry(byte[] buffer, long sectorOffset, long sectorNumber) {
             //update clusterlist
-            clusterList.put(getClusterNumber(sectorNumber), sectorOffset / SECTORS_PER_CLUSTER);
+            setClusterIndex(getClusterNumber(sectorNumber), sectorOffset / SECTORS_PER_CLUSTER);
 
             if (dirEntry.length < SECTOR_SIZE + sectorOffset * SECTOR_SIZE) {
                 byte[] temp = new byte[(int)(sectorOffset + 1) * SECTOR_SIZE];
@@ -1362,35 +1491,130 @@ public class TreeBlockDevice implements BlockDevice {
         }
     }
 
+    /**
+     * Least recently used cache of open host files, so that repeated access to the same files reuses
+     * their handles.
+     */
     private static class OpenFilesCache {
-        private final LinkedList<RandomAccessFile> backing;
-        private final int maxSize;
+        private final Map<File, RandomAccessFile> backing;
+        private final Set<File> writable = new HashSet<File>();
+
+        public OpenFilesCache(final int size) {
+            backing = new LinkedHashMap<File, RandomAccessFile>(size + 1, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, RandomAccessFile> eldest) {
+                    if (size() <= size)
+                        return false;
+                    writable.remove(eldest.getKey());
+                    close(eldest.getValue());
+                    return true;
+                }
+            };
+        }
 
-        public OpenFilesCache(int size) {
-            maxSize = size;
-            backing = new LinkedList<RandomAccessFile>();
+        public RandomAccessFile getBackingFor(File f, boolean write) throws FileNotFoundException {
+            RandomAccessFile result = backing.get(f);
+            if (result != null && (!write || writable.contains(f)))
+                return result;
+
+            if (result != null)
+                release(f);
+            result = new RandomAccessFile(f, write ? "rw" : "r");
+            if (write)
+                writable.add(f);
+            backing.put(f, result);
+            return result;
         }
 
-        public RandomAccessFile getBackingFor(File f) throws FileNotFoundException {
-            while (backing.size() >= maxSize)
-                try {
-                    backing.removeLast().close();
-                } catch (IOException e) {
-                    LOGGING.log(Level.INFO, "IOException on RandomAccessFile close", e);
-                }
+        /**
+         * Closes the handle for the given file if it is open, for example before it is deleted or
+         * renamed.
+         * @param f host file
+         */
+        public void release(File f) {
+            writable.remove(f);
+            RandomAccessFile file = backing.remove(f);
+            if (file != null)
+                close(file);
+        }
 
-            RandomAccessFile result = new RandomAccessFile(f, "r");
-            backing.addFirst(result);
-            return result;
+        private static void close(RandomAccessFile f) {
+            try {
+                f.close();
+            } catch (IOException e) {
+                LOGGING.log(Level.INFO, "IOException on RandomAccessFile close", e);
+            }
         }
 
         public void close() {
-            for (RandomAccessFile f : backing) {
-                try {
-                    f.close();
-                } catch (IOException e) {
-                    LOGGING.log(Level.INFO, "IOException on RandomAccessFile close", e);
-                }
+            for (RandomAccessFile f : backing.values())
+                close(f);
+            backing.clear();
+            writable.clear();
+        }
+    }
+
+    /**
+     * Maps sector numbers to values by storing contiguous runs of sectors with the same value as a
+     * single extent.
+     */
+    private static class ExtentMap<T> {
+        private final TreeMap<Long, Extent<T>> extents = new TreeMap<Long, Extent<T>>();
+
+        private static class Extent<T> {
+            final long end;
+            final T value;
+
+            Extent(long end, T value) {
+                this.end = end;
+                this.value = value;
+            }
+        }
+
+        public T get(long sector) {
+            Map.Entry<Long, Extent<T>> e = extents.floorEntry(Long.valueOf(sector));
+            if (e == null || sector >= e.getValue().end)
+                return null;
+            return e.getValue().value;
+        }
+
+        public void put(long sector, T value) {
+            put(sector, 1, value);
+        }
+
+        public void put(long start, long count, T value) {
+            if (count <= 0)
+                return;
+            remove(start, count);
+            long end = start + count;
+
+            Extent<T> after = extents.get(Long.valueOf(end));
+            if (after != null && after.value == value) {
+                extents.remove(Long.valueOf(end));
+                end = after.end;
+            }
+            Map.Entry<Long, Extent<T>> before = extents.lowerEntry(Long.valueOf(start));
+            if (before != null && before.getValue().end == start && before.getValue().value == value) {
+                extents.remove(before.getKey());
+                start = before.getKey().longValue();
+            }
+            extents.put(Long.valueOf(start), new Extent<T>(end, value));
+        }
+
+        public void remove(long start, long count) {
+            long end = start + count;
+            Map.Entry<Long, Extent<T>> e = extents.lowerEntry(Long.valueOf(end));
+            while (e != null && e.getValue().end > start) {
+                long eStart = e.getKey().longValue();
+                Extent<T> extent = e.getValue();
+                extents.remove(e.getKey());
+                if (eStart < start)
+                    extents.put(Long.valueOf(eStart), new Extent<T>(start, extent.value));
+                if (extent.end > end)
+                    extents.put(Long.valueOf(end), new Extent<T>(extent.end, extent.value));
+                e = extents.lowerEntry(Long.valueOf(eStart));
             }
         }
     }
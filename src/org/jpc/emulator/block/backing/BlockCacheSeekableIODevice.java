@@ -0,0 +1,437 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read cache with sequential read-ahead in front of another <code>SeekableIODevice</code>.
+ * <p>
+ * The parent is cached in blocks of <code>BLOCK_SIZE</code> bytes up to a fixed byte budget, with
+ * blocks evicted by the clock (second chance) algorithm. Misses on consecutive blocks are filled by a
+ * single read of the parent. Reads that continue where the previous one ended double the read-ahead
+ * window, up to <code>MAX_READ_AHEAD</code> blocks, and any other read resets it. When the parent
+ * supports positional access the read-ahead runs on a background thread, otherwise it is done before
+ * the read returns.
+ * <p>
+ * Writes go straight through to the parent and update any cached copy.
+ */
+public class BlockCacheSeekableIODevice implements PositionalIODevice {
+    private static final Logger LOGGING = Logger.getLogger(BlockCacheSeekableIODevice.class.getName());
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final int MAX_READ_AHEAD = 16;
+
+    private final SeekableIODevice parent;
+    private final Block[] slots;
+    private final Map<Long, Block> blocks = new HashMap<Long, Block>();
+    private ThreadPoolExecutor prefetcher;
+    private int hand;
+
+    private long sequentialEnd = -1;
+    private int window;
+    private long position;
+
+    private long hits, misses, prefetched, prefetchHits;
+
+    /**
+     * Constructs a cache of <code>budget</code> bytes in front of <code>parent</code>.
+     * @param parent device to cache
+     * @param budget cache size in bytes
+     */
+    public BlockCacheSeekableIODevice(SeekableIODevice parent, long budget) {
+        this.parent = parent;
+        slots = new Block[(int)Math.max(4 * MAX_READ_AHEAD, Math.min(budget / BLOCK_SIZE, Integer.MAX_VALUE))];
+    }
+
+    private static class Block {
+        final long index;
+        byte[] data;
+        int length;
+        boolean referenced;
+        boolean loading;
+        boolean failed;
+        boolean prefetched;
+        int slot;
+
+        Block(long index) {
+            this.index = index;
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] data, int offset, int length) throws IOException {
+        long size = parent.length();
+        if (position >= size)
+            return -1;
+        length = (int)Math.min(length, size - position);
+
+        long first = position / BLOCK_SIZE;
+        long last = (position + length - 1) / BLOCK_SIZE;
+        long filled = first;
+        for (long index = first; index <= last;) {
+            Block block = lookup(index, index >= filled);
+            if (block == null) {
+                long end = index + 1;
+                while (end <= last && end - index < MAX_READ_AHEAD && !isCached(end))
+                    end++;
+                fill(index, end, false);
+                filled = end;
+                continue;
+            }
+
+            int start = (int)Math.max(0, position - index * BLOCK_SIZE);
+            int copied = (int)Math.min(block.length - start, position + length - index * BLOCK_SIZE - start);
+            if (copied <= 0 || !copy(block, start, data, offset + (int)(index * BLOCK_SIZE + start - position), copied))
+                return readParent(position, data, offset, length);
+            index++;
+        }
+
+        readAhead(position, length, last + 1);
+        return length;
+    }
+
+    private synchronized boolean isCached(long index) {
+        return blocks.containsKey(Long.valueOf(index));
+    }
+
+    /**
+     * Returns the cached block at <code>index</code> once it has finished loading, or <code>null</code>
+     * if it is not cached.
+     */
+    private synchronized Block lookup(long index, boolean count) {
+        Block block = blocks.get(Long.valueOf(index));
+        if (block == null)
+            return null;
+        boolean wasLoading = block.loading;
+        while (block.loading)
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        if (block.failed)
+            return null;
+        if (count)
+            hits++;
+        if (block.prefetched || wasLoading) {
+            prefetchHits++;
+            block.prefetched = false;
+        }
+        block.referenced = true;
+        return block;
+    }
+
+    private synchronized boolean copy(Block block, int start, byte[] data, int offset, int length) {
+        if (block.data == null)
+            return false;
+        System.arraycopy(block.data, start, data, offset, length);
+        return true;
+    }
+
+    /**
+     * Loads blocks <code>first</code> to <code>end - 1</code> with one read of the parent. Blocks that
+     * are already present are left alone.
+     */
+    private void fill(long first, long end, boolean prefetch) throws IOException {
+        load(first, reserve(first, end, prefetch), prefetch);
+    }
+
+    /**
+     * Inserts placeholders for the blocks from <code>first</code> to <code>end - 1</code> that are not
+     * present, so that readers wait for them rather than fetching them again.
+     */
+    private synchronized Block[] reserve(long first, long end, boolean prefetch) {
+        Block[] loading = new Block[(int)(end - first)];
+        for (int i = 0; i < loading.length; i++) {
+            Long key = Long.valueOf(first + i);
+            if (blocks.containsKey(key))
+                continue;
+            Block block = new Block(first + i);
+            block.loading = true;
+            block.referenced = true;
+            block.prefetched = prefetch;
+            insert(block);
+            loading[i] = block;
+        }
+        return loading;
+    }
+
+    private void load(long first, Block[] loading, boolean prefetch) throws IOException {
+        byte[] buffer = new byte[loading.length * BLOCK_SIZE];
+        int read = 0;
+        IOException error = null;
+        try {
+            read = Math.max(0, readParent(first * BLOCK_SIZE, buffer, 0, buffer.length));
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < loading.length; i++) {
+                Block block = loading[i];
+                if (block == null)
+                    continue;
+                block.loading = false;
+                if (error != null || blocks.get(Long.valueOf(block.index)) != block) {
+                    block.failed = true;
+                    remove(block);
+                    continue;
+                }
+                block.length = Math.max(0, Math.min(BLOCK_SIZE, read - i * BLOCK_SIZE));
+                block.data = new byte[BLOCK_SIZE];
+                System.arraycopy(buffer, i * BLOCK_SIZE, block.data, 0, block.length);
+                if (prefetch)
+                    prefetched++;
+                else
+                    misses++;
+            }
+            notifyAll();
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void insert(Block block) {
+        while (true) {
+            Block victim = slots[hand];
+            if (victim == null || !victim.loading && !victim.referenced) {
+                if (victim != null)
+                    blocks.remove(Long.valueOf(victim.index));
+                block.slot = hand;
+                slots[hand] = block;
+                blocks.put(Long.valueOf(block.index), block);
+                hand = (hand + 1) % slots.length;
+                return;
+            }
+            victim.referenced = false;
+            hand = (hand + 1) % slots.length;
+        }
+    }
+
+    private void remove(Block block) {
+        if (blocks.get(Long.valueOf(block.index)) == block)
+            blocks.remove(Long.valueOf(block.index));
+        if (slots[block.slot] == block)
+            slots[block.slot] = null;
+    }
+
+    private int readParent(long position, byte[] data, int offset, int length) throws IOException {
+        int done = 0;
+        if (parent instanceof PositionalIODevice)
+            while (done < length) {
+                int read = ((PositionalIODevice)parent).read(position + done, data, offset + done, length - done);
+                if (read <= 0)
+                    break;
+                done += read;
+            }
+        else
+            synchronized (parent) {
+                parent.seek(position);
+                while (done < length) {
+                    int read = parent.read(data, offset + done, length - done);
+                    if (read <= 0)
+                        break;
+                    done += read;
+                }
+            }
+        return done;
+    }
+
+    /**
+     * Tracks sequential reads and fetches the blocks following a sequential run.
+     * @param position start of the read just served
+     * @param length length of the read just served
+     * @param next first block after the read
+     */
+    private void readAhead(long position, int length, long next) throws IOException {
+        long first, end;
+        synchronized (this) {
+            if (position == sequentialEnd)
+                window = window == 0 ? 1 : Math.min(2 * window, MAX_READ_AHEAD);
+            else
+                window = 0;
+            sequentialEnd = position + length;
+            if (window == 0)
+                return;
+
+            end = Math.min(next + window, (parent.length() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            first = next;
+            while (first < end && blocks.containsKey(Long.valueOf(first)))
+                first++;
+            if (first >= end)
+                return;
+        }
+
+        final long start = first;
+        final Block[] loading = reserve(first, end, true);
+        if (parent instanceof PositionalIODevice)
+            try {
+                getPrefetcher().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            load(start, loading, true);
+                        } catch (IOException e) {
+                            LOGGING.log(Level.FINE, "read-ahead failed", e);
+                        }
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+            }
+        load(start, loading, true);
+    }
+
+    private synchronized ThreadPoolExecutor getPrefetcher() {
+        if (prefetcher == null)
+            prefetcher = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Block Cache Read-Ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return prefetcher;
+    }
+
+    @Override
+    public int write(long position, byte[] data, int offset, int length) throws IOException {
+        if (parent instanceof PositionalIODevice)
+            ((PositionalIODevice)parent).write(position, data, offset, length);
+        else
+            synchronized (parent) {
+                parent.seek(position);
+                parent.write(data, offset, length);
+            }
+
+        synchronized (this) {
+            long first = position / BLOCK_SIZE;
+            long last = (position + length - 1) / BLOCK_SIZE;
+            for (long index = first; index <= last; index++) {
+                Block block = blocks.get(Long.valueOf(index));
+                if (block == null)
+                    continue;
+                if (block.loading) {
+                    // a read-ahead may have fetched the old contents
+                    remove(block);
+                    continue;
+                }
+                int start = (int)Math.max(0, position - index * BLOCK_SIZE);
+                int end = (int)Math.min(BLOCK_SIZE, position + length - index * BLOCK_SIZE);
+                System.arraycopy(data, offset + (int)(index * BLOCK_SIZE + start - position), block.data, start, end - start);
+                block.length = Math.max(block.length, end);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the fraction of block lookups that were served from the cache.
+     * @return hit rate between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     * Returns a summary of the cache counters.
+     * @return statistics string
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d blocks read ahead, %d read-ahead hits", hits, misses,
+            100 * getHitRate(), prefetched, prefetchHits);
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if (offset < 0)
+            throw new IOException("Negative seek offset");
+        position = offset;
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int offset, int length) throws IOException {
+        int read = read(position, data, offset, length);
+        if (read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized int write(byte[] data, int offset, int length) throws IOException {
+        int written = write(position, data, offset, length);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long length() {
+        return parent.length();
+    }
+
+    @Override
+    public boolean readOnly() {
+        return parent.readOnly();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (prefetcher != null)
+                prefetcher.shutdown();
+            LOGGING.log(Level.INFO, "block cache for {0}: {1}", new Object[] { parent, getStatistics() });
+        }
+        parent.close();
+    }
+
+    @Override
+    public void configure(String opts) throws IOException, IllegalArgumentException {
+        parent.configure(opts);
+    }
+
+    @Override
+    public String toString() {
+        return parent.toString();
+    }
+}
@@ -33,127 +33,24 @@
 
 package org.jpc.emulator.block.backing;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import org.jpc.emulator.block.BlockDevice;
-import org.jpc.emulator.block.RawBlockDevice;
 
 /**
  * IO device used for caching writes.
+ * <p>
+ * Writes are held in a temporary copy-on-write overlay file which is deleted when the device is closed,
+ * so the parent device is never modified.
  * @author Ian Preston
  */
-public class CachingSeekableIODevice implements SeekableIODevice {
-
-    private static final Logger LOGGING = Logger.getLogger(RawBlockDevice.class.getName());
+public class CachingSeekableIODevice extends OverlaySeekableIODevice {
     private SeekableIODevice parent;
-    private long byteOffset;
-    private HashMap<Long, byte[]> sectors = new HashMap<Long, byte[]>();
+    private File overlay;
 
     public CachingSeekableIODevice(SeekableIODevice parent) {
         this.parent = parent;
     }
 
-    @Override
-    public void seek(long offset) throws IOException {
-        byteOffset = offset;
-    }
-
-    @Override
-    public int write(byte[] data, int offset, int length) throws IOException {
-        if (byteOffset % BlockDevice.SECTOR_SIZE != 0) {
-            LOGGING.log(Level.WARNING, "Trying to write off a sector boundary.");
-            return 0;
-        }
-        long sector = byteOffset / BlockDevice.SECTOR_SIZE;
-        int numsectors = length / BlockDevice.SECTOR_SIZE;
-        for (int i = 0; i < numsectors; i++) {
-            byte[] newSector = new byte[BlockDevice.SECTOR_SIZE];
-            System.arraycopy(data, offset + i * BlockDevice.SECTOR_SIZE, newSector, 0, BlockDevice.SECTOR_SIZE);
-            sectors.put(sector + i, newSector);
-        }
-        return length;
-    }
-
-    private void readFully(byte[] data, int dataOffset, int readOffset, int length) throws IOException {
-        int pos = 0;
-        if (readOffset > 0)
-            parent.seek(byteOffset + readOffset);
-        while (true) {
-            if (pos >= length)
-                break;
-            int read = parent.read(data, dataOffset + pos, length - pos);
-            if (read < 0)
-                break;
-            pos += read;
-            if (read == 0)
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(CachingSeekableIODevice.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            parent.seek(byteOffset + pos + readOffset);
-        }
-    }
-
-    @Override
-    public int read(byte[] data, int offset, int length) throws IOException {
-        if (byteOffset % BlockDevice.SECTOR_SIZE != 0) {
-            System.out.println("Trying to read off a sector boundary.");
-            return 0;
-        }
-        long startSector = byteOffset / BlockDevice.SECTOR_SIZE;
-        int numSectors = length / BlockDevice.SECTOR_SIZE;
-        //check if any of the sectors have been written to
-        int firstWritten = -1;
-        for (int i = 0; i < numSectors; i++)
-            if (sectors.containsKey(startSector + i))
-                if (firstWritten < 0)
-                    firstWritten = i;
-
-        if (firstWritten < 0) {
-            parent.seek(byteOffset);
-            readFully(data, offset, 0, length);
-            return length;
-        } else {
-            // read up until the first sector written to, then work sector by sector
-            parent.seek(byteOffset);
-            readFully(data, offset, 0, firstWritten * BlockDevice.SECTOR_SIZE);
-
-            for (int i = firstWritten; i < numSectors; i++)
-                if (sectors.containsKey(startSector + i)) {
-                    byte[] out = sectors.get(startSector + i);
-                    System.arraycopy(out, 0, data, offset + i * BlockDevice.SECTOR_SIZE, BlockDevice.SECTOR_SIZE);
-                } else
-                    readFully(data, offset + i * BlockDevice.SECTOR_SIZE, i * BlockDevice.SECTOR_SIZE, BlockDevice.SECTOR_SIZE);
-            int lastReadSize = length % BlockDevice.SECTOR_SIZE;
-            if (lastReadSize > 0)
-                //hopefully never get here because we read entire sectors at a time
-                if (sectors.containsKey(startSector + numSectors)) {
-                    byte[] out = sectors.get(startSector + numSectors);
-                    System.arraycopy(out, 0, data, offset + length - lastReadSize, lastReadSize);
-                } else {
-                    parent.seek(byteOffset + length - lastReadSize);
-                    int pos = 0;
-                    int toRead = lastReadSize;
-                    while (true) {
-                        int read = parent.read(data, offset + length - lastReadSize + pos, toRead - pos);
-                        if (read < 0 || pos >= toRead)
-                            break;
-                        pos += read;
-                    }
-                }
-            return length;
-        }
-    }
-
-    @Override
-    public long length() {
-        return parent.length();
-    }
-
     @Override
     public boolean readOnly() {
         return parent.readOnly();
@@ -161,12 +58,21 @@ public class CachingSeekableIODevice implements SeekableIODevice {
 
     @Override
     public void close() throws IOException {
-        parent.close();
+        try {
+            super.close();
+        } finally {
+            if (overlay != null)
+                overlay.delete();
+        }
     }
 
     @Override
     public void configure(String opts) throws IOException, IllegalArgumentException {
         parent.configure(opts);
+        overlay = File.createTempFile("jpc-caching", ".ovl");
+        overlay.deleteOnExit();
+        create(overlay, parent, null, DEFAULT_CLUSTER_BITS);
+        setTemporary();
     }
 
     @Override
@@ -0,0 +1,388 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only <code>PositionalIODevice</code> backed by a compressed image file.
+ * <p>
+ * The image is split into chunks of <code>2^chunkBits</code> bytes that are deflated independently,
+ * so any chunk can be read without touching the others. The file starts with a 64 byte header:
+ * <pre>
+ *   0  magic "JPCCMPRS"
+ *   8  int version (1)
+ *  12  int chunk size as a power of two
+ *  16  long uncompressed length
+ *  24  long offset of the chunk index
+ * </pre>
+ * The index holds one more long than there are chunks; chunk <code>i</code> is stored between
+ * entries <code>i</code> and <code>i + 1</code>. A chunk stored in zero bytes is all zeros, one stored
+ * in its full length is uncompressed, and anything else is zlib compressed. Recently decompressed
+ * chunks are held in an LRU cache.
+ * <p>
+ * Images are created with {@link #create(SeekableIODevice, File, int)}, and can be made writable by
+ * using them as the base of an <code>OverlaySeekableIODevice</code>.
+ */
+public class CompressedSeekableIODevice implements PositionalIODevice {
+    static final byte[] MAGIC = "JPCCMPRS".getBytes(Charset.forName("US-ASCII"));
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 64;
+    public static final int DEFAULT_CHUNK_BITS = 16;
+    public static final int DEFAULT_CACHE_CHUNKS = 64;
+
+    private String fileName;
+    private RandomAccessFile image;
+    private FileChannel channel;
+
+    private int chunkBits;
+    private int chunkSize;
+    private long size;
+    private long[] index;
+
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[0];
+    private ChunkCache cache = new ChunkCache(DEFAULT_CACHE_CHUNKS);
+    private long hits, misses;
+    private long position;
+
+    /**
+     * Constructs an unconfigured instance.
+     * <p>
+     * This must be configured by calling <code>configure</code> before first use.
+     */
+    public CompressedSeekableIODevice() {
+    }
+
+    /**
+     * Opens the given compressed image.
+     * @param file image path
+     * @throws java.io.IOException if the image cannot be opened or is not a compressed image
+     */
+    public CompressedSeekableIODevice(String file) throws IOException {
+        open(file);
+    }
+
+    /**
+     * Configures this instance to use the compressed image identified as its backing.
+     * @param spec image path
+     * @throws java.io.IOException if the image cannot be opened or is not a compressed image
+     */
+    @Override
+    public void configure(String spec) throws IOException {
+        open(spec);
+    }
+
+    private void open(String file) throws IOException {
+        fileName = file;
+        position = 0;
+        image = new RandomAccessFile(file, "r");
+        channel = image.getChannel();
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(header, 0);
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a compressed image");
+            if (header.getInt(8) != VERSION)
+                throw new IOException("Unsupported compressed image version " + header.getInt(8));
+            chunkBits = header.getInt(12);
+            if (chunkBits < 9 || chunkBits > 24)
+                throw new IOException("Invalid compressed image chunk size 2^" + chunkBits);
+            chunkSize = 1 << chunkBits;
+            size = header.getLong(16);
+            long chunks = (size + chunkSize - 1) >>> chunkBits;
+            if (size < 0 || chunks >= Integer.MAX_VALUE / 8)
+                throw new IOException("Invalid compressed image length " + size);
+
+            ByteBuffer table = ByteBuffer.allocate((int)(chunks + 1) * 8);
+            readFully(table, header.getLong(24));
+            table.flip();
+            index = new long[(int)chunks + 1];
+            table.asLongBuffer().get(index);
+            for (int i = 0; i < chunks; i++)
+                if (index[i + 1] < index[i] || index[i + 1] - index[i] > chunkSize)
+                    throw new IOException("Corrupt index entry for chunk " + i + " of " + file);
+        } catch (IOException e) {
+            image.close();
+            throw e;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0)
+                throw new IOException("Unexpected end of compressed image " + fileName);
+            pos += read;
+        }
+    }
+
+    /**
+     * Writes the contents of <code>source</code> to <code>file</code> as a compressed image.
+     * @param source device to read the image from
+     * @param file image file to create, which is overwritten
+     * @param chunkBits chunk size as a power of two
+     * @return the length of the created file in bytes
+     * @throws java.io.IOException if the source cannot be read or the image cannot be written
+     */
+    public static long create(SeekableIODevice source, File file, int chunkBits) throws IOException {
+        int chunkSize = 1 << chunkBits;
+        long length = source.length();
+        int chunks = (int)((length + chunkSize - 1) >>> chunkBits);
+        long[] offsets = new long[chunks + 1];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            raf.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(chunkBits);
+            header.putLong(length);
+            header.putLong(HEADER_LENGTH);
+            raf.write(header.array());
+
+            long pos = HEADER_LENGTH + offsets.length * 8L;
+            raf.seek(pos);
+            byte[] chunk = new byte[chunkSize];
+            byte[] packed = new byte[chunkSize];
+            source.seek(0);
+            for (int i = 0; i < chunks; i++) {
+                int len = (int)Math.min(chunkSize, length - ((long)i << chunkBits));
+                for (int read = 0; read < len;) {
+                    int n = source.read(chunk, read, len - read);
+                    if (n <= 0)
+                        throw new IOException("Unexpected end of source image at chunk " + i);
+                    read += n;
+                }
+
+                offsets[i] = pos;
+                if (isZero(chunk, len))
+                    continue;
+
+                deflater.reset();
+                deflater.setInput(chunk, 0, len);
+                deflater.finish();
+                int packedLength = 0;
+                while (!deflater.finished() && packedLength < len)
+                    packedLength += deflater.deflate(packed, packedLength, len - packedLength);
+
+                if (deflater.finished() && packedLength < len) {
+                    raf.write(packed, 0, packedLength);
+                    pos += packedLength;
+                } else {
+                    raf.write(chunk, 0, len);
+                    pos += len;
+                }
+            }
+            offsets[chunks] = pos;
+
+            ByteBuffer table = ByteBuffer.allocate(offsets.length * 8);
+            table.asLongBuffer().put(offsets);
+            raf.seek(HEADER_LENGTH);
+            raf.write(table.array());
+            return pos;
+        } finally {
+            deflater.end();
+            raf.close();
+        }
+    }
+
+    private static boolean isZero(byte[] data, int length) {
+        for (int i = 0; i < length; i++)
+            if (data[i] != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Sets the number of decompressed chunks held in memory.
+     * @param chunks cache capacity in chunks
+     */
+    public synchronized void setCacheSize(int chunks) {
+        ChunkCache c = new ChunkCache(Math.max(1, chunks));
+        c.putAll(cache);
+        cache = c;
+    }
+
+    /**
+     * Returns the fraction of chunk reads served from the cache.
+     * @return cache hit rate between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     * Returns the size of the compressed image relative to the data it holds.
+     * @return compressed file length divided by uncompressed length
+     */
+    public double getCompressionRatio() {
+        return size == 0 ? 1 : (double)index[index.length - 1] / size;
+    }
+
+    private byte[] getChunk(int chunk) throws IOException {
+        byte[] data = cache.get(Integer.valueOf(chunk));
+        if (data != null) {
+            hits++;
+            return data;
+        }
+        misses++;
+
+        int len = (int)Math.min(chunkSize, size - ((long)chunk << chunkBits));
+        int stored = (int)(index[chunk + 1] - index[chunk]);
+        data = new byte[len];
+        if (stored == len)
+            readFully(ByteBuffer.wrap(data), index[chunk]);
+        else {
+            if (compressed.length < stored)
+                compressed = new byte[chunkSize];
+            readFully(ByteBuffer.wrap(compressed, 0, stored), index[chunk]);
+            inflater.reset();
+            inflater.setInput(compressed, 0, stored);
+            try {
+                int inflated = 0;
+                while (inflated < len && !inflater.finished()) {
+                    int n = inflater.inflate(data, inflated, len - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    inflated += n;
+                }
+                if (inflated != len)
+                    throw new IOException("Chunk " + chunk + " of " + fileName + " is truncated");
+            } catch (DataFormatException e) {
+                throw new IOException("Chunk " + chunk + " of " + fileName + " is corrupt: " + e.getMessage());
+            }
+        }
+        cache.put(Integer.valueOf(chunk), data);
+        return data;
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] data, int offset, int length) throws IOException {
+        if (position >= size)
+            return -1;
+        length = (int)Math.min(length, size - position);
+
+        int done = 0;
+        while (done < length) {
+            long pos = position + done;
+            int chunk = (int)(pos >>> chunkBits);
+            int within = (int)(pos & (chunkSize - 1));
+            int count = Math.min(length - done, (int)Math.min(chunkSize, size - ((long)chunk << chunkBits)) - within);
+
+            if (index[chunk + 1] == index[chunk])
+                Arrays.fill(data, offset + done, offset + done + count, (byte)0);
+            else
+                System.arraycopy(getChunk(chunk), within, data, offset + done, count);
+            done += count;
+        }
+        return done;
+    }
+
+    @Override
+    public int write(long position, byte[] data, int offset, int length) throws IOException {
+        throw new IOException(fileName + " is a read-only compressed image");
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if (offset < 0)
+            throw new IOException("Negative seek offset");
+        position = offset;
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int offset, int length) throws IOException {
+        int read = read(position, data, offset, length);
+        if (read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException {
+        return write(position, data, offset, length);
+    }
+
+    @Override
+    public long length() {
+        return size;
+    }
+
+    @Override
+    public boolean readOnly() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        image.close();
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+
+    private static class ChunkCache extends LinkedHashMap<Integer, byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        ChunkCache(int capacity) {
+            super(capacity + 1, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A <code>PositionalIODevice</code> backed by a file on local disk.
+ * <p>
+ * All access goes through positional reads and writes on the file's <code>FileChannel</code>, so a
+ * multi-sector transfer is a single system call and callers on different threads do not disturb each
+ * other. The stateful <code>SeekableIODevice</code> methods are layered on top using a private offset.
+ */
+public class FileChannelSeekableIODevice implements PositionalIODevice {
+    private static final Logger LOGGING = Logger.getLogger(FileChannelSeekableIODevice.class.getName());
+
+    private String fileName;
+    private RandomAccessFile image;
+    private FileChannel channel;
+    private boolean readOnly;
+    private long position;
+
+    /**
+     * Constructs an unconfigured instance.
+     * <p>
+     * This must be configured by calling <code>configure</code> before first use.
+     */
+    public FileChannelSeekableIODevice() {
+    }
+
+    /**
+     * Constructs an instance using the specified file as backing.
+     * @param file file path
+     * @throws java.io.IOException if the file cannot be opened
+     */
+    public FileChannelSeekableIODevice(String file) throws IOException {
+        configure(file);
+    }
+
+    /**
+     * Constructs an instance using the specified file as backing, optionally forcing read-only access.
+     * <p>
+     * Opening read-only allows a single image to be shared as the base of several overlays.
+     * @param file file path
+     * @param readOnly <code>true</code> to open the file read-only
+     * @throws java.io.IOException if the file cannot be opened
+     */
+    public FileChannelSeekableIODevice(String file, boolean readOnly) throws IOException {
+        if (readOnly) {
+            fileName = file;
+            image = new RandomAccessFile(fileName, "r");
+            this.readOnly = true;
+            channel = image.getChannel();
+        } else
+            configure(file);
+    }
+
+    /**
+     * Configures this instance to use the file identified as its backing.
+     * @param spec file path
+     * @throws java.io.IOException if the file cannot be opened
+     */
+    @Override
+    public void configure(String spec) throws IOException {
+        fileName = spec;
+        position = 0;
+
+        try {
+            image = new RandomAccessFile(fileName, "rw");
+            readOnly = false;
+        } catch (IOException e) {
+            try {
+                image = new RandomAccessFile(fileName, "r");
+                readOnly = true;
+                LOGGING.log(Level.INFO, "opened {0} as read-only", fileName);
+            } catch (IOException f) {
+                LOGGING.log(Level.WARNING, "failed to open file", f);
+                throw f;
+            }
+        }
+        channel = image.getChannel();
+    }
+
+    /**
+     * Returns the channel used to access the backing file.
+     * @return file channel
+     */
+    protected FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public int read(long position, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        long end = position + length;
+        for (long pos = position; pos < end;) {
+            int read = channel.read(buffer, pos);
+            if (read < 0)
+                return pos == position ? -1 : (int)(pos - position);
+            pos += read;
+        }
+        return length;
+    }
+
+    @Override
+    public int write(long position, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        for (long pos = position; buffer.hasRemaining();)
+            pos += channel.write(buffer, pos);
+        return length;
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if (offset < 0)
+            throw new IOException("Negative seek offset");
+        position = offset;
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int offset, int length) throws IOException {
+        int read = read(position, data, offset, length);
+        if (read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized int write(byte[] data, int offset, int length) throws IOException {
+        int written = write(position, data, offset, length);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        image.close();
+    }
+
+    @Override
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file backed <code>PositionalIODevice</code> that memory maps its image.
+ * <p>
+ * Reads and writes within the mapped region are plain memory copies. The image is mapped in
+ * segments of <code>SEGMENT_SIZE</code> bytes up to <code>MAX_MAPPED_LENGTH</code>; any part of the
+ * file beyond that (or beyond the end of the file at configuration time) is accessed through the
+ * file channel instead.
+ */
+public class MappedFileSeekableIODevice extends FileChannelSeekableIODevice {
+    private static final Logger LOGGING = Logger.getLogger(MappedFileSeekableIODevice.class.getName());
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    public static final long MAX_MAPPED_LENGTH = 4 * SEGMENT_SIZE;
+
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long mappedLength;
+
+    /**
+     * Constructs an unconfigured instance.
+     * <p>
+     * This must be configured by calling <code>configure</code> before first use.
+     */
+    public MappedFileSeekableIODevice() {
+    }
+
+    /**
+     * Constructs an instance mapping the specified file.
+     * @param file file path
+     * @throws java.io.IOException if the file cannot be opened or mapped
+     */
+    public MappedFileSeekableIODevice(String file) throws IOException {
+        configure(file);
+    }
+
+    @Override
+    public void configure(String spec) throws IOException {
+        super.configure(spec);
+
+        FileChannel channel = getChannel();
+        long length = channel.size();
+        if (length > MAX_MAPPED_LENGTH)
+            LOGGING.log(Level.INFO, "only mapping the first {0,number,integer} bytes of {1}", new Object[] {
+                Long.valueOf(MAX_MAPPED_LENGTH), spec });
+        mappedLength = Math.min(length, MAX_MAPPED_LENGTH);
+
+        FileChannel.MapMode mode = readOnly() ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        segments = new MappedByteBuffer[(int)((mappedLength + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long)i << SEGMENT_SHIFT;
+            segments[i] = channel.map(mode, start, Math.min(SEGMENT_SIZE, mappedLength - start));
+        }
+    }
+
+    @Override
+    public int read(long position, byte[] data, int offset, int length) throws IOException {
+        if (position + length > mappedLength)
+            return super.read(position, data, offset, length);
+
+        for (int done = 0; done < length;) {
+            long pos = position + done;
+            ByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)].duplicate();
+            segment.position((int)(pos & SEGMENT_MASK));
+            int chunk = Math.min(length - done, segment.remaining());
+            segment.get(data, offset + done, chunk);
+            done += chunk;
+        }
+        return length;
+    }
+
+    @Override
+    public int write(long position, byte[] data, int offset, int length) throws IOException {
+        if (readOnly() || position + length > mappedLength)
+            return super.write(position, data, offset, length);
+
+        for (int done = 0; done < length;) {
+            long pos = position + done;
+            ByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)].duplicate();
+            segment.position((int)(pos & SEGMENT_MASK));
+            int chunk = Math.min(length - done, segment.remaining());
+            segment.put(data, offset + done, chunk);
+            done += chunk;
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!readOnly())
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+        segments = new MappedByteBuffer[0];
+        mappedLength = 0;
+        super.close();
+    }
+}
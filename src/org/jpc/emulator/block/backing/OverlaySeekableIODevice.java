@@ -0,0 +1,482 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A copy-on-write overlay on top of a read-only base device.
+ * <p>
+ * Writes are stored in a sparse delta file and never reach the base, so one base image can be shared
+ * by many machines each with their own overlay. The delta file holds a fixed header, a cluster table
+ * and the data clusters themselves:
+ * <pre>
+ *   0x000  magic "JPCOVRLY"
+ *   0x008  int   format version (1)
+ *   0x00c  int   cluster size as a power of two
+ *   0x010  long  virtual device length in bytes
+ *   0x018  short length of the base image name, followed by the UTF-8 name
+ *   0x200  int[] cluster table, one entry per virtual cluster
+ *   ...    data clusters, starting at the first cluster aligned offset after the table
+ * </pre>
+ * A table entry of zero means the cluster is untouched and is read from the base; any other value
+ * <i>n</i> locates the cluster at data cluster <i>n - 1</i> in the delta file. The first write to a
+ * cluster copies it out of the base before the new data is merged in.
+ * <p>
+ * The base may itself be an overlay, so overlays can be chained to take snapshots of a disk, and
+ * discarding an overlay only resets its table. A compressed image can also be used as the base.
+ */
+public class OverlaySeekableIODevice implements PositionalIODevice {
+    private static final Logger LOGGING = Logger.getLogger(OverlaySeekableIODevice.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] MAGIC = "JPCOVRLY".getBytes(Charset.forName("US-ASCII"));
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 0x200;
+    private static final int BASE_NAME_OFFSET = 0x18;
+    public static final int DEFAULT_CLUSTER_BITS = 16;
+
+    private String fileName;
+    private String baseName;
+    private SeekableIODevice base;
+    private RandomAccessFile delta;
+    private FileChannel channel;
+    private boolean readOnly;
+    private boolean temporary;
+    private int clusterBits;
+    private int clusterSize;
+    private long length;
+    private long dataStart;
+    private int[] table;
+    private int allocated;
+    private long position;
+    private byte[] clusterBuffer;
+
+    /**
+     * Constructs an unconfigured instance.
+     * <p>
+     * This must be configured by calling <code>configure</code> before first use.
+     */
+    public OverlaySeekableIODevice() {
+    }
+
+    /**
+     * Opens an existing overlay, or creates one on <code>baseName</code> if it does not exist.
+     * @param file overlay file path
+     * @param baseName path of the base image, may be <code>null</code> when opening an existing overlay
+     * @throws java.io.IOException if the overlay or its base cannot be opened
+     */
+    public OverlaySeekableIODevice(String file, String baseName) throws IOException {
+        open(file, baseName);
+    }
+
+    /**
+     * Configures this instance from a specification string.
+     * <p>
+     * The string is either "&lt;overlay&gt;", which opens an existing overlay file and the base image
+     * recorded in it, or "&lt;overlay&gt;,&lt;base&gt;", which also creates the overlay on the given base
+     * if it does not exist yet.
+     * @param spec specification string
+     * @throws java.io.IOException if the overlay or its base cannot be opened
+     */
+    @Override
+    public void configure(String spec) throws IOException {
+        int comma = spec.indexOf(',');
+        if (comma < 0)
+            open(spec, null);
+        else
+            open(spec.substring(0, comma), spec.substring(comma + 1));
+    }
+
+    private void open(String file, String baseImage) throws IOException {
+        File f = new File(file);
+        if (f.exists() && f.length() > 0) {
+            attach(f, null, DEFAULT_CLUSTER_BITS);
+            if (baseImage != null && !new File(baseImage).getCanonicalFile().equals(resolve(f, baseName).getCanonicalFile()))
+                LOGGING.log(Level.WARNING, "overlay {0} was created on {1}, not {2}", new Object[] { file, baseName, baseImage });
+        } else if (baseImage == null)
+            throw new IOException("Overlay " + file + " does not exist and no base image was given");
+        else
+            attach(f, baseImage, DEFAULT_CLUSTER_BITS);
+    }
+
+    /**
+     * Creates a new overlay in <code>file</code> on an already opened base device. The overlay records
+     * <code>baseImage</code> (which may be <code>null</code> for an anonymous base) as its base name.
+     * @param file overlay file, which is truncated
+     * @param base base device
+     * @param baseImage name of the base image to record
+     * @param clusterBits cluster size as a power of two
+     * @throws java.io.IOException if the overlay cannot be written
+     */
+    protected void create(File file, SeekableIODevice base, String baseImage, int clusterBits) throws IOException {
+        this.base = base;
+        fileName = file.getPath();
+        baseName = baseImage == null ? "" : baseImage;
+        length = base.length();
+        setClusterBits(clusterBits);
+
+        delta = new RandomAccessFile(file, "rw");
+        channel = delta.getChannel();
+        channel.truncate(0);
+
+        byte[] name = baseName.getBytes(UTF_8);
+        if (BASE_NAME_OFFSET + 2 + name.length > HEADER_SIZE)
+            throw new IOException("Base image name is too long: " + baseName);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(clusterBits);
+        header.putLong(length);
+        header.putShort((short)name.length);
+        header.put(name);
+        header.clear();
+        writeFully(header, 0);
+        channel.truncate(dataStart);
+        writeFully(ByteBuffer.allocate((int)(dataStart - HEADER_SIZE)), HEADER_SIZE);
+    }
+
+    private void attach(File file, String baseImage, int clusterBits) throws IOException {
+        if (baseImage != null) {
+            create(file, openBase(resolve(file, baseImage)), baseImage, clusterBits);
+            return;
+        }
+
+        fileName = file.getPath();
+        try {
+            delta = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        } catch (IOException e) {
+            if (readOnly)
+                throw e;
+            throw new IOException("Overlay " + file + " must be writable", e);
+        }
+        channel = delta.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(file + " is not an overlay image");
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported overlay version " + version);
+        int bits = header.getInt();
+        length = header.getLong();
+        byte[] name = new byte[header.getShort() & 0xffff];
+        header.get(name);
+        baseName = new String(name, UTF_8);
+        setClusterBits(bits);
+
+        ByteBuffer entries = ByteBuffer.allocate(table.length * 4);
+        readFully(entries, HEADER_SIZE);
+        entries.flip();
+        entries.asIntBuffer().get(table);
+        for (int entry : table)
+            allocated = Math.max(allocated, entry);
+
+        base = openBase(resolve(file, baseName));
+        if (base.length() < length)
+            LOGGING.log(Level.WARNING, "base image {0} is shorter than overlay {1}", new Object[] { baseName, fileName });
+    }
+
+    private void setClusterBits(int bits) throws IOException {
+        if (bits < 9 || bits > 24)
+            throw new IOException("Invalid overlay cluster size 2^" + bits);
+        clusterBits = bits;
+        clusterSize = 1 << bits;
+        long clusters = (length + clusterSize - 1) >>> bits;
+        if (clusters > Integer.MAX_VALUE / 4)
+            throw new IOException("Device too large for overlay cluster size");
+        table = new int[(int)clusters];
+        allocated = 0;
+        dataStart = (HEADER_SIZE + 4 * clusters + clusterSize - 1) & ~(long)(clusterSize - 1);
+    }
+
+    private static File resolve(File overlay, String name) {
+        File f = new File(name);
+        if (f.isAbsolute() || overlay.getAbsoluteFile().getParentFile() == null)
+            return f;
+        return new File(overlay.getAbsoluteFile().getParentFile(), name);
+    }
+
+    /**
+     * Opens a base image read-only, as an overlay if it is one.
+     * @param file base image
+     * @return opened base device
+     * @throws java.io.IOException if the base cannot be opened
+     */
+    private static SeekableIODevice openBase(File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < MAGIC.length)
+                Arrays.fill(magic, (byte)0);
+            else
+                raf.readFully(magic);
+        } finally {
+            raf.close();
+        }
+        if (Arrays.equals(magic, MAGIC)) {
+            OverlaySeekableIODevice overlay = new OverlaySeekableIODevice();
+            overlay.readOnly = true;
+            overlay.attach(file, null, DEFAULT_CLUSTER_BITS);
+            return overlay;
+        }
+        if (Arrays.equals(magic, CompressedSeekableIODevice.MAGIC))
+            return new CompressedSeekableIODevice(file.getPath());
+        return new FileChannelSeekableIODevice(file.getPath(), true);
+    }
+
+    private void readFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0)
+                throw new IOException("Unexpected end of overlay " + fileName);
+            pos += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining())
+            pos += channel.write(buffer, pos);
+    }
+
+    private int readBase(long pos, byte[] data, int offset, int len) throws IOException {
+        int done = 0;
+        if (base instanceof PositionalIODevice) {
+            while (done < len) {
+                int read = ((PositionalIODevice)base).read(pos + done, data, offset + done, len - done);
+                if (read <= 0)
+                    break;
+                done += read;
+            }
+        } else
+            synchronized (base) {
+                base.seek(pos);
+                while (done < len) {
+                    int read = base.read(data, offset + done, len - done);
+                    if (read <= 0)
+                        break;
+                    done += read;
+                }
+            }
+        // anything past the end of the base reads as zeros
+        Arrays.fill(data, offset + done, offset + len, (byte)0);
+        return len;
+    }
+
+    private long clusterOffset(int entry) {
+        return dataStart + ((long)(entry - 1) << clusterBits);
+    }
+
+    @Override
+    public int read(long position, byte[] data, int offset, int len) throws IOException {
+        if (position >= length)
+            return -1;
+        len = (int)Math.min(len, length - position);
+        if (allocated == 0)
+            return readBase(position, data, offset, len);
+
+        int done = 0;
+        while (done < len) {
+            long pos = position + done;
+            int cluster = (int)(pos >>> clusterBits);
+            int within = (int)(pos & (clusterSize - 1));
+            int entry = table[cluster];
+
+            // extend the run over following clusters of the same kind
+            int run = clusterSize - within;
+            while (done + run < len && cluster + 1 < table.length) {
+                int next = table[cluster + 1];
+                if (entry == 0 ? next != 0 : next != table[cluster] + 1)
+                    break;
+                cluster++;
+                run += clusterSize;
+            }
+            run = Math.min(run, len - done);
+
+            if (entry == 0)
+                readBase(pos, data, offset + done, run);
+            else
+                readFully(ByteBuffer.wrap(data, offset + done, run), clusterOffset(entry) + within);
+            done += run;
+        }
+        return len;
+    }
+
+    @Override
+    public int write(long position, byte[] data, int offset, int len) throws IOException {
+        if (readOnly)
+            throw new IOException("Overlay " + fileName + " is open read-only as a base image");
+        if (position + len > length)
+            throw new IOException("Write beyond end of overlay " + fileName);
+
+        int done = 0;
+        while (done < len) {
+            long pos = position + done;
+            int cluster = (int)(pos >>> clusterBits);
+            int within = (int)(pos & (clusterSize - 1));
+            int chunk = Math.min(clusterSize - within, len - done);
+
+            int entry = table[cluster];
+            if (entry == 0)
+                allocate(cluster, data, offset + done, within, chunk);
+            else
+                writeFully(ByteBuffer.wrap(data, offset + done, chunk), clusterOffset(entry) + within);
+            done += chunk;
+        }
+        return len;
+    }
+
+    private synchronized void allocate(int cluster, byte[] data, int offset, int within, int chunk) throws IOException {
+        if (table[cluster] != 0) {
+            writeFully(ByteBuffer.wrap(data, offset, chunk), clusterOffset(table[cluster]) + within);
+            return;
+        }
+
+        if (clusterBuffer == null || clusterBuffer.length != clusterSize)
+            clusterBuffer = new byte[clusterSize];
+        byte[] contents = clusterBuffer;
+        // only the parts of the cluster this write does not cover are copied from the base
+        long start = (long)cluster << clusterBits;
+        int size = (int)Math.min(clusterSize, length - start);
+        if (within > 0)
+            readBase(start, contents, 0, within);
+        if (within + chunk < size)
+            readBase(start + within + chunk, contents, within + chunk, size - within - chunk);
+        Arrays.fill(contents, size, clusterSize, (byte)0);
+        System.arraycopy(data, offset, contents, within, chunk);
+
+        int entry = allocated + 1;
+        // data reaches the disk before the table entry that refers to it, unless the file is thrown away on close
+        writeFully(ByteBuffer.wrap(contents), clusterOffset(entry));
+        if (!temporary)
+            channel.force(false);
+        ByteBuffer e = ByteBuffer.allocate(4);
+        e.putInt(0, entry);
+        writeFully(e, HEADER_SIZE + 4L * cluster);
+        table[cluster] = entry;
+        allocated = entry;
+    }
+
+    /**
+     * Marks this overlay as a scratch file that is deleted when the device is closed, so new clusters
+     * are not forced to disk before the table entries that refer to them.
+     */
+    protected void setTemporary() {
+        temporary = true;
+    }
+
+    /**
+     * Throws away every change held in this overlay, so the device reads as its base again.
+     * @throws java.io.IOException if the overlay cannot be reset
+     */
+    public synchronized void discard() throws IOException {
+        if (readOnly)
+            throw new IOException("Overlay " + fileName + " is open read-only as a base image");
+        Arrays.fill(table, 0);
+        allocated = 0;
+        writeFully(ByteBuffer.allocate((int)(dataStart - HEADER_SIZE)), HEADER_SIZE);
+        channel.truncate(dataStart);
+    }
+
+    /**
+     * Returns the number of clusters that have been copied into this overlay.
+     * @return allocated cluster count
+     */
+    public int getAllocatedClusters() {
+        return allocated;
+    }
+
+    /**
+     * Returns the device this overlay is layered on.
+     * @return base device
+     */
+    public SeekableIODevice getBase() {
+        return base;
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if (offset < 0)
+            throw new IOException("Negative seek offset");
+        position = offset;
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int offset, int len) throws IOException {
+        int read = read(position, data, offset, len);
+        if (read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized int write(byte[] data, int offset, int len) throws IOException {
+        int written = write(position, data, offset, len);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delta.close();
+        } finally {
+            base.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (overlay on " + (baseName.length() == 0 ? base.toString() : baseName) + ")";
+    }
+}
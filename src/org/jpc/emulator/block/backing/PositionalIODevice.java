@@ -0,0 +1,65 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.IOException;
+
+/**
+ * A <code>SeekableIODevice</code> that can also be accessed at explicit offsets.
+ * <p>
+ * The positional methods neither use nor move the offset set by <code>seek</code>, so they may be
+ * called concurrently from several threads, for example by an I/O worker while a snapshot is being
+ * taken.
+ */
+public interface PositionalIODevice extends SeekableIODevice {
+    /**
+     * Writes <code>length</code> bytes from <code>data</code> into the device at <code>position</code>.
+     * @param position byte offset from the start of the device
+     * @param data buffer to read data from
+     * @param offset start offset in <code>data</code>
+     * @param length number of bytes to write
+     * @return number of bytes written
+     * @throws java.io.IOException on I/O error
+     */
+    int write(long position, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Reads up to <code>length</code> bytes from the device at <code>position</code> into
+     * <code>data</code>. Fewer bytes are only returned at the end of the device.
+     * @param position byte offset from the start of the device
+     * @param data buffer to write data into
+     * @param offset start offset in <code>data</code>
+     * @param length number of bytes to read
+     * @return number of bytes read, or -1 if <code>position</code> is at or beyond the end
+     * @throws java.io.IOException on I/O error
+     */
+    int read(long position, byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,742 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.block.backing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A <code>PositionalIODevice</code> backed by a sparse qcow2 image file (format versions 2 and 3).
+ * <p>
+ * Guest clusters are located through the image's two level L1/L2 tables; recently used L2 tables are
+ * held in an LRU cache so most lookups never touch the host file. Runs of clusters that are
+ * contiguous in the image, and runs of unallocated clusters, are transferred with a single read.
+ * Unallocated clusters read as zeros or from the backing file if the image has one.
+ * <p>
+ * Writes allocate new clusters at the end of the image and keep the reference counts up to date, so
+ * images stay valid for other qcow2 tools. Compressed clusters are readable and are rewritten
+ * uncompressed when written to. An image left marked dirty, as one written with lazy refcounts can be
+ * after a crash, has its reference counts rebuilt from its tables before it is opened for writing.
+ * Images with internal snapshots, encryption or the newer incompatible
+ * features (external data files, extended L2 entries, non-deflate compression) are not writable or
+ * not supported.
+ */
+public class Qcow2SeekableIODevice implements PositionalIODevice {
+    private static final Logger LOGGING = Logger.getLogger(Qcow2SeekableIODevice.class.getName());
+
+    private static final int MAGIC = 0x514649fb; // "QFI\xfb"
+    private static final int V3_HEADER_LENGTH = 104;
+    private static final long OFFSET_MASK = 0x00fffffffffffe00L;
+    private static final long COPIED = 1L << 63;
+    private static final long COMPRESSED = 1L << 62;
+    private static final long ZERO = 1L;
+    private static final long INCOMPATIBLE_DIRTY = 1L;
+    private static final long INCOMPATIBLE_CORRUPT = 1L << 1;
+    private static final int REFCOUNT_ORDER = 4;
+    public static final int DEFAULT_CLUSTER_BITS = 16;
+    public static final int DEFAULT_L2_CACHE_TABLES = 16;
+
+    private String fileName;
+    private RandomAccessFile image;
+    private FileChannel channel;
+    private boolean readOnly;
+    private SeekableIODevice backing;
+
+    private int version;
+    private int clusterBits;
+    private int clusterSize;
+    private int l2Bits;
+    private long size;
+    private long l1Offset;
+    private long[] l1;
+    private long refTableOffset;
+    private long[] refTable;
+    private long fileEnd;
+
+    private L2Cache l2Cache = new L2Cache(DEFAULT_L2_CACHE_TABLES);
+    private long l2Hits, l2Misses;
+    private long position;
+
+    /**
+     * Constructs an unconfigured instance.
+     * <p>
+     * This must be configured by calling <code>configure</code> before first use.
+     */
+    public Qcow2SeekableIODevice() {
+    }
+
+    /**
+     * Opens the given qcow2 image, optionally forcing read-only access.
+     * @param file image path
+     * @param readOnly <code>true</code> to open the image read-only
+     * @throws java.io.IOException if the image cannot be opened or is not supported
+     */
+    public Qcow2SeekableIODevice(String file, boolean readOnly) throws IOException {
+        open(file, readOnly);
+    }
+
+    /**
+     * Configures this instance to use the qcow2 image identified as its backing.
+     * @param spec image path
+     * @throws java.io.IOException if the image cannot be opened or is not supported
+     */
+    @Override
+    public void configure(String spec) throws IOException {
+        open(spec, false);
+    }
+
+    private void open(String file, boolean forceReadOnly) throws IOException {
+        fileName = file;
+        position = 0;
+        readOnly = forceReadOnly;
+        if (!readOnly)
+            try {
+                image = new RandomAccessFile(file, "rw");
+            } catch (IOException e) {
+                readOnly = true;
+                LOGGING.log(Level.INFO, "opened {0} as read-only", file);
+            }
+        if (readOnly)
+            image = new RandomAccessFile(file, "r");
+        channel = image.getChannel();
+
+        try {
+            readHeader();
+        } catch (IOException e) {
+            image.close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(V3_HEADER_LENGTH);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt(0) != MAGIC)
+            throw new IOException(fileName + " is not a qcow2 image");
+        version = header.getInt(4);
+        if (version != 2 && version != 3)
+            throw new IOException("Unsupported qcow2 version " + version);
+        long backingOffset = header.getLong(8);
+        int backingLength = header.getInt(16);
+        clusterBits = header.getInt(20);
+        if (clusterBits < 9 || clusterBits > 21)
+            throw new IOException("Invalid qcow2 cluster size 2^" + clusterBits);
+        clusterSize = 1 << clusterBits;
+        l2Bits = clusterBits - 3;
+        size = header.getLong(24);
+        if (header.getInt(32) != 0)
+            throw new IOException("Encrypted qcow2 images are not supported");
+        int l1Size = header.getInt(36);
+        l1Offset = header.getLong(40);
+        refTableOffset = header.getLong(48);
+        int refTableClusters = header.getInt(56);
+        int snapshots = header.getInt(60);
+
+        long incompatible = 0;
+        if (version >= 3) {
+            incompatible = header.getLong(72);
+            if ((incompatible & ~(INCOMPATIBLE_DIRTY | INCOMPATIBLE_CORRUPT)) != 0)
+                throw new IOException("Unsupported qcow2 features 0x" + Long.toHexString(incompatible));
+            if ((incompatible & INCOMPATIBLE_CORRUPT) != 0 && !readOnly) {
+                LOGGING.log(Level.WARNING, "{0} is marked corrupt, opening read-only", fileName);
+                readOnly = true;
+            }
+            if (header.getInt(96) != REFCOUNT_ORDER && !readOnly) {
+                LOGGING.log(Level.WARNING, "{0} uses an unsupported refcount width, opening read-only", fileName);
+                readOnly = true;
+            }
+        }
+        if (snapshots != 0 && !readOnly) {
+            LOGGING.log(Level.WARNING, "{0} has internal snapshots, opening read-only", fileName);
+            readOnly = true;
+        }
+
+        l1 = readTable(l1Offset, l1Size);
+        refTable = readTable(refTableOffset, refTableClusters << (clusterBits - 3));
+        fileEnd = (channel.size() + clusterSize - 1) & ~(long)(clusterSize - 1);
+
+        if (backingOffset != 0) {
+            ByteBuffer name = ByteBuffer.allocate(backingLength);
+            readFully(name, backingOffset);
+            backing = openBacking(new String(name.array(), Charset.forName("UTF-8")));
+        }
+
+        if ((incompatible & INCOMPATIBLE_DIRTY) != 0 && !readOnly) {
+            LOGGING.log(Level.INFO, "{0} was not closed cleanly, rebuilding its refcounts", fileName);
+            repairRefcounts();
+            writeLong(72, incompatible & ~INCOMPATIBLE_DIRTY);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Recounts the references to every cluster from the header, the L1, L2 and refcount tables and
+     * rewrites the refcount blocks to match, so that leaked clusters are freed and clusters in use are
+     * never handed out twice. Clusters without a refcount block get a new one at the end of the image.
+     */
+    private void repairRefcounts() throws IOException {
+        int[] counts = new int[(int)(fileEnd >>> clusterBits)];
+        counts = reference(counts, 0, clusterSize);
+        counts = reference(counts, l1Offset, 8L * l1.length);
+        counts = reference(counts, refTableOffset, 8L * refTable.length);
+        for (long block : refTable)
+            if ((block & ~(long)(clusterSize - 1)) != 0)
+                counts = reference(counts, block & ~(long)(clusterSize - 1), clusterSize);
+        for (long l1Entry : l1) {
+            long l2Offset = l1Entry & OFFSET_MASK;
+            if (l2Offset == 0)
+                continue;
+            counts = reference(counts, l2Offset, clusterSize);
+            for (long entry : readTable(l2Offset, 1 << l2Bits)) {
+                if ((entry & COMPRESSED) != 0) {
+                    int shift = compressedShift();
+                    long host = entry & ((1L << shift) - 1);
+                    int sectors = (int)((entry & ~(COPIED | COMPRESSED)) >>> shift) + 1;
+                    counts = reference(counts, host, (host & ~511L) + sectors * 512L - host);
+                } else if ((entry & OFFSET_MASK) != 0)
+                    counts = reference(counts, entry & OFFSET_MASK, clusterSize);
+            }
+        }
+
+        int blockBits = clusterBits - 1; // 16 bit refcounts
+        for (int index = 0; (long)index << blockBits < counts.length; index++) {
+            if (index < refTable.length && (refTable[index] & ~(long)(clusterSize - 1)) != 0)
+                continue;
+            int first = index << blockBits;
+            int last = (int)Math.min(counts.length, (long)(index + 1) << blockBits);
+            boolean used = false;
+            for (int c = first; c < last && !used; c++)
+                used = counts[c] != 0;
+            if (!used)
+                continue;
+            if (index >= refTable.length) {
+                LOGGING.log(Level.WARNING, "refcount table of {0} is too small to repair, opening read-only", fileName);
+                readOnly = true;
+                return;
+            }
+            long block = fileEnd;
+            fileEnd += clusterSize;
+            counts = reference(counts, block, clusterSize);
+            refTable[index] = block;
+            writeLong(refTableOffset + 8L * index, block);
+        }
+
+        int changed = 0;
+        for (int index = 0; index < refTable.length; index++) {
+            long block = refTable[index] & ~(long)(clusterSize - 1);
+            if (block == 0)
+                continue;
+            ByteBuffer buffer = ByteBuffer.allocate(clusterSize);
+            readFully(buffer, block);
+            for (int i = 0; i < clusterSize / 2; i++) {
+                long c = ((long)index << blockBits) + i;
+                int count = c < counts.length ? Math.min(counts[(int)c], 0xffff) : 0;
+                if ((buffer.getShort(2 * i) & 0xffff) != count) {
+                    buffer.putShort(2 * i, (short)count);
+                    changed++;
+                }
+            }
+            buffer.clear();
+            writeFully(buffer, block);
+        }
+        if (changed != 0)
+            LOGGING.log(Level.WARNING, "corrected {0} refcounts in {1}", new Object[] { changed, fileName });
+    }
+
+    /**
+     * Counts one reference to each cluster overlapping the given byte range, growing the count array
+     * (and the end of the image) to cover references beyond it.
+     */
+    private int[] reference(int[] counts, long offset, long length) {
+        if (length <= 0)
+            return counts;
+        long first = offset >>> clusterBits;
+        long last = (offset + length - 1) >>> clusterBits;
+        if (last >= counts.length) {
+            counts = Arrays.copyOf(counts, (int)last + 1);
+            fileEnd = Math.max(fileEnd, (last + 1) << clusterBits);
+        }
+        for (long c = first; c <= last; c++)
+            counts[(int)c]++;
+        return counts;
+    }
+
+    private SeekableIODevice openBacking(String name) throws IOException {
+        File f = new File(name);
+        if (!f.isAbsolute() && new File(fileName).getAbsoluteFile().getParentFile() != null)
+            f = new File(new File(fileName).getAbsoluteFile().getParentFile(), name);
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        int magic;
+        try {
+            magic = raf.length() < 4 ? 0 : raf.readInt();
+        } finally {
+            raf.close();
+        }
+        if (magic == MAGIC)
+            return new Qcow2SeekableIODevice(f.getPath(), true);
+        return new FileChannelSeekableIODevice(f.getPath(), true);
+    }
+
+    private long[] readTable(long offset, int entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entries * 8);
+        readFully(buffer, offset);
+        buffer.flip();
+        long[] table = new long[entries];
+        buffer.asLongBuffer().get(table);
+        return table;
+    }
+
+    private void readFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0)
+                break;
+            pos += read;
+        }
+        // a truncated image reads as zeros
+        while (buffer.hasRemaining())
+            buffer.put((byte)0);
+    }
+
+    private void writeFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining())
+            pos += channel.write(buffer, pos);
+    }
+
+    private void writeLong(long pos, long value) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putLong(0, value);
+        writeFully(b, pos);
+    }
+
+    /**
+     * Creates an empty qcow2 version 3 image of the given size, laid out as <code>qemu-img</code> does.
+     * @param file image file to create, which is overwritten
+     * @param size virtual size in bytes
+     * @param clusterBits cluster size as a power of two
+     * @throws java.io.IOException if the image cannot be written
+     */
+    public static void create(File file, long size, int clusterBits) throws IOException {
+        int clusterSize = 1 << clusterBits;
+        long l2Coverage = (long)clusterSize << (clusterBits - 3);
+        int l1Size = (int)((size + l2Coverage - 1) / l2Coverage);
+        int l1Clusters = Math.max(1, (l1Size * 8 + clusterSize - 1) >>> clusterBits);
+        int clusters = 3 + l1Clusters;
+
+        ByteBuffer meta = ByteBuffer.allocate(clusters * clusterSize);
+        meta.putInt(0, MAGIC);
+        meta.putInt(4, 3);
+        meta.putInt(20, clusterBits);
+        meta.putLong(24, size);
+        meta.putInt(36, l1Size);
+        meta.putLong(40, 3L * clusterSize);
+        meta.putLong(48, clusterSize);
+        meta.putInt(56, 1);
+        meta.putInt(96, REFCOUNT_ORDER);
+        meta.putInt(100, V3_HEADER_LENGTH);
+        // refcount table entry 0 points at the refcount block in cluster 2
+        meta.putLong(clusterSize, 2L * clusterSize);
+        for (int i = 0; i < clusters; i++)
+            meta.putShort(2 * clusterSize + 2 * i, (short)1);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(meta.array());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Sets the number of L2 tables held in memory.
+     * @param tables cache capacity in tables
+     */
+    public synchronized void setL2CacheSize(int tables) {
+        L2Cache cache = new L2Cache(Math.max(1, tables));
+        cache.putAll(l2Cache);
+        l2Cache = cache;
+    }
+
+    /**
+     * Returns the fraction of L2 table lookups served from the cache.
+     * @return cache hit rate between 0 and 1
+     */
+    public synchronized double getL2HitRate() {
+        long total = l2Hits + l2Misses;
+        return total == 0 ? 0 : (double)l2Hits / total;
+    }
+
+    private long[] getL2Table(long offset) throws IOException {
+        long[] table = l2Cache.get(Long.valueOf(offset));
+        if (table != null) {
+            l2Hits++;
+            return table;
+        }
+        l2Misses++;
+        table = readTable(offset, 1 << l2Bits);
+        l2Cache.put(Long.valueOf(offset), table);
+        return table;
+    }
+
+    private long getL2Entry(long cluster) throws IOException {
+        long l1Index = cluster >>> l2Bits;
+        if (l1Index >= l1.length)
+            return 0;
+        long l2Offset = l1[(int)l1Index] & OFFSET_MASK;
+        if (l2Offset == 0)
+            return 0;
+        return getL2Table(l2Offset)[(int)(cluster & ((1 << l2Bits) - 1))];
+    }
+
+    private boolean isZero(long entry) {
+        return version >= 3 && (entry & COMPRESSED) == 0 && (entry & ZERO) != 0;
+    }
+
+    private boolean isUnallocated(long entry) {
+        return (entry & (COMPRESSED | OFFSET_MASK)) == 0 && !isZero(entry);
+    }
+
+    private boolean isData(long entry) {
+        return (entry & COMPRESSED) == 0 && (entry & OFFSET_MASK) != 0 && !isZero(entry);
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] data, int offset, int length) throws IOException {
+        if (position >= size)
+            return -1;
+        length = (int)Math.min(length, size - position);
+
+        int done = 0;
+        while (done < length) {
+            long pos = position + done;
+            long cluster = pos >>> clusterBits;
+            int within = (int)(pos & (clusterSize - 1));
+            long entry = getL2Entry(cluster);
+            int run = Math.min(clusterSize - within, length - done);
+
+            if ((entry & COMPRESSED) != 0) {
+                byte[] contents = readCompressed(entry);
+                System.arraycopy(contents, within, data, offset + done, run);
+            } else if (isData(entry)) {
+                long host = (entry & OFFSET_MASK) + within;
+                while (done + run < length) {
+                    long next = getL2Entry(++cluster);
+                    if (!isData(next) || (next & OFFSET_MASK) != host + run)
+                        break;
+                    run = Math.min(run + clusterSize, length - done);
+                }
+                readFully(ByteBuffer.wrap(data, offset + done, run), host);
+            } else {
+                boolean unallocated = isUnallocated(entry);
+                while (done + run < length) {
+                    long next = getL2Entry(++cluster);
+                    if (isUnallocated(next) != unallocated || !(unallocated || isZero(next)))
+                        break;
+                    run = Math.min(run + clusterSize, length - done);
+                }
+                if (unallocated && backing != null)
+                    readBacking(pos, data, offset + done, run);
+                else
+                    Arrays.fill(data, offset + done, offset + done + run, (byte)0);
+            }
+            done += run;
+        }
+        return length;
+    }
+
+    private void readBacking(long pos, byte[] data, int offset, int length) throws IOException {
+        int done = 0;
+        if (backing instanceof PositionalIODevice)
+            while (done < length) {
+                int read = ((PositionalIODevice)backing).read(pos + done, data, offset + done, length - done);
+                if (read <= 0)
+                    break;
+                done += read;
+            }
+        else {
+            backing.seek(pos);
+            while (done < length) {
+                int read = backing.read(data, offset + done, length - done);
+                if (read <= 0)
+                    break;
+                done += read;
+            }
+        }
+        Arrays.fill(data, offset + done, offset + length, (byte)0);
+    }
+
+    private int compressedShift() {
+        return 62 - (clusterBits - 8);
+    }
+
+    private byte[] readCompressed(long entry) throws IOException {
+        int shift = compressedShift();
+        long host = entry & ((1L << shift) - 1);
+        int sectors = (int)((entry & ~(COPIED | COMPRESSED)) >>> shift) + 1;
+        int length = sectors * 512 - (int)(host & 511);
+
+        ByteBuffer compressed = ByteBuffer.allocate(length);
+        readFully(compressed, host);
+        byte[] contents = new byte[clusterSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed.array());
+            inflater.inflate(contents);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed cluster at " + host + " in " + fileName, e);
+        } finally {
+            inflater.end();
+        }
+        return contents;
+    }
+
+    @Override
+    public synchronized int write(long position, byte[] data, int offset, int length) throws IOException {
+        if (readOnly)
+            throw new IOException(fileName + " is read-only");
+        if (position + length > size)
+            throw new IOException("Write beyond end of " + fileName);
+
+        int done = 0;
+        while (done < length) {
+            long pos = position + done;
+            int within = (int)(pos & (clusterSize - 1));
+            int chunk = Math.min(clusterSize - within, length - done);
+            writeCluster(pos >>> clusterBits, within, data, offset + done, chunk);
+            done += chunk;
+        }
+        return length;
+    }
+
+    private void writeCluster(long cluster, int within, byte[] data, int offset, int length) throws IOException {
+        long entry = getL2Entry(cluster);
+        if (isData(entry)) {
+            writeFully(ByteBuffer.wrap(data, offset, length), (entry & OFFSET_MASK) + within);
+            return;
+        }
+
+        ByteBuffer contents;
+        if (length == clusterSize)
+            contents = ByteBuffer.wrap(data, offset, length);
+        else {
+            byte[] merged;
+            if ((entry & COMPRESSED) != 0)
+                merged = readCompressed(entry);
+            else {
+                merged = new byte[clusterSize];
+                if (isUnallocated(entry) && backing != null) {
+                    long start = cluster << clusterBits;
+                    readBacking(start, merged, 0, (int)Math.min(clusterSize, size - start));
+                }
+            }
+            System.arraycopy(data, offset, merged, within, length);
+            contents = ByteBuffer.wrap(merged);
+        }
+
+        long host = entry & OFFSET_MASK;
+        if ((entry & COMPRESSED) != 0 || host == 0)
+            host = allocateCluster();
+        // the data goes out before the L2 entry that refers to it
+        writeFully(contents, host);
+        setL2Entry(cluster, host | COPIED);
+        if ((entry & COMPRESSED) != 0)
+            releaseCompressed(entry);
+    }
+
+    private void setL2Entry(long cluster, long value) throws IOException {
+        int l1Index = (int)(cluster >>> l2Bits);
+        long l2Offset = l1[l1Index] & OFFSET_MASK;
+        if (l2Offset == 0) {
+            l2Offset = allocateCluster();
+            writeFully(ByteBuffer.allocate(clusterSize), l2Offset);
+            l1[l1Index] = l2Offset | COPIED;
+            writeLong(l1Offset + 8L * l1Index, l1[l1Index]);
+            l2Cache.put(Long.valueOf(l2Offset), new long[1 << l2Bits]);
+        }
+        int l2Index = (int)(cluster & ((1 << l2Bits) - 1));
+        getL2Table(l2Offset)[l2Index] = value;
+        writeLong(l2Offset + 8L * l2Index, value);
+    }
+
+    private long allocateCluster() throws IOException {
+        long offset = fileEnd;
+        fileEnd += clusterSize;
+        adjustRefcount(offset, 1);
+        return offset;
+    }
+
+    private void releaseCompressed(long entry) throws IOException {
+        int shift = compressedShift();
+        long host = entry & ((1L << shift) - 1);
+        int sectors = (int)((entry & ~(COPIED | COMPRESSED)) >>> shift) + 1;
+        long end = (host & ~511L) + sectors * 512L;
+        for (long c = host & ~(long)(clusterSize - 1); c < end; c += clusterSize)
+            adjustRefcount(c, -1);
+    }
+
+    private void adjustRefcount(long hostOffset, int delta) throws IOException {
+        long cluster = hostOffset >>> clusterBits;
+        int blockBits = clusterBits - 1; // 16 bit refcounts
+        long tableIndex = cluster >>> blockBits;
+        if (tableIndex >= refTable.length)
+            growRefTable(tableIndex);
+
+        long block = refTable[(int)tableIndex] & ~(long)(clusterSize - 1);
+        if (block == 0) {
+            block = fileEnd;
+            fileEnd += clusterSize;
+            writeFully(ByteBuffer.allocate(clusterSize), block);
+            refTable[(int)tableIndex] = block;
+            writeLong(refTableOffset + 8 * tableIndex, block);
+            adjustRefcount(block, 1);
+        }
+
+        long entryOffset = block + 2 * (cluster & ((1 << blockBits) - 1));
+        ByteBuffer count = ByteBuffer.allocate(2);
+        readFully(count, entryOffset);
+        int value = Math.max(0, (count.getShort(0) & 0xffff) + delta);
+        count.putShort(0, (short)value);
+        count.clear();
+        writeFully(count, entryOffset);
+    }
+
+    /**
+     * Moves the refcount table to a larger copy at the end of the image, doubling it until it has an
+     * entry for <code>tableIndex</code> and for the clusters of the new table itself. The header is
+     * switched to the new table once it is written; the old table's clusters are then freed.
+     */
+    private void growRefTable(long tableIndex) throws IOException {
+        int blockBits = clusterBits - 1; // 16 bit refcounts
+        int oldClusters = refTable.length >>> (clusterBits - 3);
+        int clusters = oldClusters;
+        long last;
+        do {
+            clusters *= 2;
+            last = (fileEnd + ((long)clusters << clusterBits) - 1) >>> clusterBits;
+        } while ((long)clusters << (clusterBits - 3) <= Math.max(tableIndex, last >>> blockBits));
+
+        long oldOffset = refTableOffset;
+        long offset = fileEnd;
+        fileEnd += (long)clusters << clusterBits;
+        long[] table = Arrays.copyOf(refTable, clusters << (clusterBits - 3));
+        ByteBuffer buffer = ByteBuffer.allocate(table.length * 8);
+        buffer.asLongBuffer().put(table);
+        writeFully(buffer, offset);
+
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putLong(0, offset);
+        header.putInt(8, clusters);
+        writeFully(header, 48);
+        refTable = table;
+        refTableOffset = offset;
+
+        for (int i = 0; i < clusters; i++)
+            adjustRefcount(offset + ((long)i << clusterBits), 1);
+        for (int i = 0; i < oldClusters; i++)
+            adjustRefcount(oldOffset + ((long)i << clusterBits), -1);
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if (offset < 0)
+            throw new IOException("Negative seek offset");
+        position = offset;
+    }
+
+    @Override
+    public synchronized int read(byte[] data, int offset, int length) throws IOException {
+        int read = read(position, data, offset, length);
+        if (read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized int write(byte[] data, int offset, int length) throws IOException {
+        int written = write(position, data, offset, length);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long length() {
+        return size;
+    }
+
+    @Override
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            image.close();
+        } finally {
+            if (backing != null)
+                backing.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+
+    private static class L2Cache extends LinkedHashMap<Long, long[]> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        L2Cache(int capacity) {
+            super(capacity + 1, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > capacity;
+        }
+    }
+}
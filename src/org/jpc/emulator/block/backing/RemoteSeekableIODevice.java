@@ -30,40 +30,78 @@
 
     End of licence header
 */
-
 package org.jpc.emulator.block.backing;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.j2se.Option;
+
+/**
+ * A disk image read over HTTP with range requests.
+ * <p>
+ * The image is cached in chunks of <code>chunkSize</code> bytes. A read that continues where the
+ * previous one ended doubles the read-ahead window, up to <code>MAX_FETCH_CHUNKS</code> chunks, and
+ * any other read resets it to a single chunk. Missing chunks in the window are fetched in the
+ * background as up to <code>FETCH_THREADS</code> concurrent range requests, and a read only waits for
+ * the chunks it actually covers.
+ * <p>
+ * When the server identifies the image with an <code>ETag</code> or <code>Last-Modified</code> header,
+ * fetched chunks are also kept in a sparse file in the directory given by <code>-net-cache</code> (the
+ * temporary directory by default), keyed by the URL, that validator and the length, so later runs
+ * only fetch what they have not seen before.
+ * <p>
+ * Writes are kept in memory and never sent to the server.
+ */
 public class RemoteSeekableIODevice implements SeekableIODevice {
-    public static final int DEFAULT_SECTOR_SIZE = 4 * 1024;
+    private static final Logger LOGGING = Logger.getLogger(RemoteSeekableIODevice.class.getName());
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
     public static final int DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
     public static final int NETWORK_TIMEOUT = 10000;
+    public static final int MAX_FETCH_CHUNKS = 32;
+    public static final int FETCH_THREADS = 4;
 
     private URI drive;
-    private int sectorSize, cacheSectors;
+    private int chunkSize, cacheChunks;
     private long length, position;
-    private HashMap writtenSectors;
-    private LinkedHashMap sectorIndex;
+    private Map<Long, byte[]> writtenChunks;
+    private LinkedHashMap<Long, Chunk> chunks;
+    private DiskCache diskCache;
+    private ThreadPoolExecutor fetcher;
+
+    private long sequentialEnd = -1;
+    private int window = 1;
+    private long fetched, diskHits;
 
     public RemoteSeekableIODevice() throws IOException {
         this(null);
     }
 
     public RemoteSeekableIODevice(URI drive) throws IOException {
-        this(drive, DEFAULT_SECTOR_SIZE, DEFAULT_CACHE_SIZE);
+        this(drive, DEFAULT_CHUNK_SIZE, DEFAULT_CACHE_SIZE);
     }
 
-    public RemoteSeekableIODevice(URI drive, int sectorSize, int cacheSize) throws IOException {
-        this.sectorSize = sectorSize;
-        this.cacheSectors = Math.max(1, cacheSize / sectorSize);
+    public RemoteSeekableIODevice(URI drive, int chunkSize, int cacheSize) throws IOException {
+        this.chunkSize = chunkSize;
+        this.cacheChunks = Math.max(MAX_FETCH_CHUNKS * 2, cacheSize / chunkSize);
         // Don't use URL caching - the plugin cache does not interpret HTTP 1.1 Ranges so you'll always just get the start of the data
         this.drive = drive;
         position = 0;
@@ -82,6 +120,7 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
     }
 
     public synchronized void setImageLocation(URI drive) throws IOException {
+        closeCache();
         position = 0;
         this.drive = drive;
 
@@ -103,8 +142,47 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
         if (length <= 0)
             throw new IOException("Invalid length for remote HDD (" + length + ")");
 
-        sectorIndex = new LinkedHashMap(cacheSectors, 1.0f, true);
-        writtenSectors = new HashMap();
+        chunks = new LinkedHashMap<Long, Chunk>(cacheChunks, 0.75f, true);
+        writtenChunks = new HashMap<Long, byte[]>();
+        sequentialEnd = -1;
+        window = 1;
+
+        String validator = conn.getHeaderField("ETag");
+        if (validator == null)
+            validator = conn.getHeaderField("Last-Modified");
+        diskCache = openDiskCache(drive, validator, length);
+    }
+
+    private DiskCache openDiskCache(URI drive, String validator, long length) {
+        if (validator == null) {
+            LOGGING.log(Level.INFO, "{0} has no ETag or Last-Modified header, not caching it on disk", drive);
+            return null;
+        }
+
+        try {
+            File directory;
+            if (Option.netCache.isSet())
+                directory = new File(Option.netCache.value());
+            else
+                directory = new File(System.getProperty("java.io.tmpdir"), "jpc-net-cache");
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Cannot create " + directory);
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((drive + "\n" + validator + "\n" + length).getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(String.format("%02x", b & 0xff));
+
+            return new DiskCache(new File(directory, key + ".img"), new File(directory, key + ".map"), (length + chunkSize - 1) / chunkSize);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "cannot open disk cache for " + drive, e);
+        } catch (SecurityException e) {
+            LOGGING.log(Level.INFO, "not allowed to cache {0} on disk", drive);
+        } catch (NoSuchAlgorithmException e) {
+            LOGGING.log(Level.WARNING, "cannot open disk cache for " + drive, e);
+        }
+        return null;
     }
 
     @Override
@@ -119,8 +197,29 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
 
     @Override
     public synchronized void close() {
+        if (length >= 0)
+            LOGGING.log(Level.FINE, "{0}: {1}", new Object[] { drive, getStatistics() });
+        if (fetcher != null)
+            fetcher.shutdown();
+        fetcher = null;
+        closeCache();
         drive = null;
         length = -1;
+        notifyAll();
+    }
+
+    private void closeCache() {
+        if (diskCache != null)
+            diskCache.close();
+        diskCache = null;
+    }
+
+    /**
+     * Returns a summary of how many chunks were fetched over the network and read from the disk cache.
+     * @return statistics string
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d chunks fetched, %d chunks read from disk cache", fetched, diskHits);
     }
 
     @Override
@@ -134,52 +233,203 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
         this.position = offset;
     }
 
-    private synchronized byte[] getSector(int index) throws IOException {
-        Integer key = index;
-        byte[] result = (byte[])sectorIndex.get(key);
-        if (result != null)
-            return result;
+    private void request(long first, long last) {
+        long run = -1;
+        for (long index = first; index <= last; index++) {
+            boolean missing = !writtenChunks.containsKey(Long.valueOf(index)) && !chunks.containsKey(Long.valueOf(index))
+                && !loadFromDisk(index);
+            if (missing && (run < 0))
+                run = index;
+            else if (!missing && (run >= 0)) {
+                fetch(run, index);
+                run = -1;
+            }
+        }
+        if (run >= 0)
+            fetch(run, last + 1);
+    }
 
-        for (int tries = 0; tries < 10; tries++) {
-            try {
-                HttpURLConnection hconn = (HttpURLConnection)drive.toURL().openConnection();
-                hconn.setUseCaches(false);
-                hconn.setConnectTimeout(NETWORK_TIMEOUT);
-                hconn.setReadTimeout(NETWORK_TIMEOUT);
-                long start = index * sectorSize;
-                long end = Math.min(length, start + sectorSize);
-                hconn.setRequestProperty("Range", "bytes=" + start + "-" + end);
-
-                InputStream input = hconn.getInputStream();
-                result = new byte[(int)(end - start)];
-                int pos = 0;
-                while (true) {
-                    int read = input.read(result, pos, result.length - pos);
-                    if (read <= 0)
-                        throw new IOException("Failed to read remote device bytes");
-                    pos += read;
-                    if (pos >= result.length)
+    private boolean loadFromDisk(long index) {
+        if ((diskCache == null) || !diskCache.contains(index))
+            return false;
+
+        try {
+            byte[] data = new byte[chunkLength(index)];
+            diskCache.read(index * chunkSize, data);
+            Chunk c = new Chunk();
+            c.data = data;
+            insert(index, c);
+            diskHits++;
+            return true;
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "disk cache read failed", e);
+            return false;
+        }
+    }
+
+    private void fetch(long first, long end) {
+        int pieces = (int)Math.min(FETCH_THREADS, end - first);
+        long step = (end - first + pieces - 1) / pieces;
+        for (long start = first; start < end; start += step) {
+            final long from = start;
+            final long to = Math.min(end, start + step);
+            for (long index = from; index < to; index++)
+                insert(index, new Chunk());
+            getFetcher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(from, to);
+                }
+            });
+        }
+    }
+
+    private void insert(long index, Chunk c) {
+        chunks.put(Long.valueOf(index), c);
+        Iterator<Chunk> itt = chunks.values().iterator();
+        while ((chunks.size() > cacheChunks) && itt.hasNext())
+            if (itt.next().data != null)
+                itt.remove();
+    }
+
+    private int chunkLength(long index) {
+        return (int)Math.min(chunkSize, length - index * chunkSize);
+    }
+
+    private ThreadPoolExecutor getFetcher() {
+        if (fetcher == null) {
+            fetcher = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Remote Image Fetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            fetcher.allowCoreThreadTimeOut(true);
+        }
+        return fetcher;
+    }
+
+    private void load(long first, long end) {
+        URI source;
+        long start, stop;
+        synchronized (this) {
+            source = drive;
+            start = first * chunkSize;
+            stop = Math.min(length, end * chunkSize);
+        }
+
+        byte[] data = null;
+        IOException failure = null;
+        if (source != null)
+            for (int tries = 0; tries < 10; tries++) {
+                try {
+                    data = download(source, start, stop);
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ee) {
                         break;
+                    }
                 }
-                input.close();
+            }
 
-                if (sectorIndex.size() >= cacheSectors) {
-                    Iterator itt = sectorIndex.keySet().iterator();
-                    itt.next();
-                    itt.remove();
+        synchronized (this) {
+            for (long index = first; index < end; index++) {
+                Chunk c = chunks.get(Long.valueOf(index));
+                if ((c == null) || (c.data != null))
+                    continue;
+                if (data == null) {
+                    c.error = failure != null ? failure : new IOException("Remote device closed");
+                    chunks.remove(Long.valueOf(index));
+                    continue;
                 }
-                sectorIndex.put(key, result);
 
-                return result;
-            } catch (Exception e) {
-                try {
-                    Thread.sleep(1000);
-                } catch (Exception ee) {
+                c.data = new byte[chunkLength(index)];
+                System.arraycopy(data, (int)((index - first) * chunkSize), c.data, 0, c.data.length);
+                fetched++;
+                if (diskCache != null)
+                    try {
+                        diskCache.write(index, index * chunkSize, c.data);
+                    } catch (IOException e) {
+                        LOGGING.log(Level.WARNING, "disk cache write failed, no longer caching " + drive, e);
+                        closeCache();
+                    }
+            }
+            notifyAll();
+        }
+    }
+
+    private static byte[] download(URI source, long start, long end) throws IOException {
+        HttpURLConnection hconn = (HttpURLConnection)source.toURL().openConnection();
+        hconn.setUseCaches(false);
+        hconn.setConnectTimeout(NETWORK_TIMEOUT);
+        hconn.setReadTimeout(NETWORK_TIMEOUT);
+        hconn.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+
+        InputStream input = hconn.getInputStream();
+        try {
+            if (hconn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+                for (long skipped = 0; skipped < start;) {
+                    long n = input.skip(start - skipped);
+                    if (n <= 0)
+                        throw new IOException("Server ignored range request and the response ended early");
+                    skipped += n;
                 }
+
+            byte[] result = new byte[(int)(end - start)];
+            int pos = 0;
+            while (pos < result.length) {
+                int read = input.read(result, pos, result.length - pos);
+                if (read <= 0)
+                    throw new IOException("Failed to read remote device bytes");
+                pos += read;
+            }
+            return result;
+        } finally {
+            input.close();
+        }
+    }
+
+    private byte[] getChunk(long index) throws IOException {
+        Long key = Long.valueOf(index);
+        byte[] written = writtenChunks.get(key);
+        if (written != null)
+            return written;
+
+        while (true) {
+            if (length < 0)
+                throw new IOException("Remote device closed");
+
+            Chunk c = chunks.get(key);
+            if (c == null) {
+                request(index, index);
+                c = chunks.get(key);
             }
+            if (c.data != null)
+                return c.data;
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for remote device");
+            }
+            if (c.error != null)
+                throw new IOException("Could not contact remote disk server: " + c.error.getMessage());
         }
+    }
 
-        throw new IOException("Could not contact remote disk server");
+    private void readAhead(long first, long last) {
+        if (position == sequentialEnd)
+            window = Math.min(MAX_FETCH_CHUNKS, window * 2);
+        else
+            window = 1;
+        long end = Math.min((length - 1) / chunkSize, last + window);
+        request(first, end);
     }
 
     @Override
@@ -190,18 +440,16 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
         int toRead = Math.min(data.length - offset, length);
         if (this.length - position < toRead)
             toRead = (int)(this.length - position);
+        if (toRead <= 0)
+            return 0;
+        readAhead(position / chunkSize, (position + toRead - 1) / chunkSize);
+
         int read = 0;
         int pos = offset;
-
-        while (true) {
-            if (toRead <= 0)
-                return read;
-
-            Integer index = (int)(position / sectorSize);
-            int off = (int)(position % sectorSize);
-            byte[] s = (byte[])writtenSectors.get(index);
-            if (s == null)
-                s = getSector(index.intValue());
+        while (toRead > 0) {
+            long index = position / chunkSize;
+            int off = (int)(position % chunkSize);
+            byte[] s = getChunk(index);
 
             int r = Math.min(s.length - off, toRead);
             System.arraycopy(s, off, data, pos, r);
@@ -210,6 +458,8 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
             toRead -= r;
             read += r;
         }
+        sequentialEnd = position;
+        return read;
     }
 
     @Override
@@ -227,14 +477,14 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
             if (toWrite <= 0)
                 return written;
 
-            Integer index = (int)(position / sectorSize);
-            int off = (int)(position % sectorSize);
+            Long index = Long.valueOf(position / chunkSize);
+            int off = (int)(position % chunkSize);
 
-            byte[] s = (byte[])writtenSectors.get(index);
+            byte[] s = writtenChunks.get(index);
             if (s == null) {
-                s = getSector(index.intValue());
-                sectorIndex.remove(index);
-                writtenSectors.put(index, s);
+                s = getChunk(index.longValue()).clone();
+                chunks.remove(index);
+                writtenChunks.put(index, s);
             }
 
             int w = Math.min(s.length - off, toWrite);
@@ -245,4 +495,55 @@ public class RemoteSeekableIODevice implements SeekableIODevice {
             written += w;
         }
     }
+
+    private static final class Chunk {
+        byte[] data;
+        IOException error;
+    }
+
+    /**
+     * Chunks already fetched, kept in a sparse file laid out like the image with a bitmap of the
+     * chunks it holds beside it. The bitmap is only updated after a chunk's data is written.
+     */
+    private static final class DiskCache {
+        private final RandomAccessFile data;
+        private final RandomAccessFile map;
+        private final byte[] present;
+
+        DiskCache(File dataFile, File mapFile, long chunkCount) throws IOException {
+            data = new RandomAccessFile(dataFile, "rw");
+            map = new RandomAccessFile(mapFile, "rw");
+            present = new byte[(int)((chunkCount + 7) >>> 3)];
+            map.readFully(present, 0, (int)Math.min(present.length, map.length()));
+        }
+
+        boolean contains(long index) {
+            int b = (int)(index >>> 3);
+            return (b < present.length) && ((present[b] & (1 << (index & 7))) != 0);
+        }
+
+        void read(long offset, byte[] buffer) throws IOException {
+            data.seek(offset);
+            data.readFully(buffer);
+        }
+
+        void write(long index, long offset, byte[] buffer) throws IOException {
+            data.seek(offset);
+            data.write(buffer);
+
+            int b = (int)(index >>> 3);
+            present[b] |= 1 << (index & 7);
+            map.seek(b);
+            map.write(present[b]);
+        }
+
+        void close() {
+            try {
+                data.close();
+                map.close();
+            } catch (IOException e) {
+                LOGGING.log(Level.INFO, "exception closing disk cache", e);
+            }
+        }
+    }
 }
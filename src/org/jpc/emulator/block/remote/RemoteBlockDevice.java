@@ -33,214 +33,657 @@
 
 package org.jpc.emulator.block.remote;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.jpc.emulator.block.BlockDevice;
 
 /**
+ * Client side of the remote block device protocol.
+ * <p>
+ * The connection opens with a <code>HELLO</code> exchange that negotiates protocol version 2. Every
+ * request after that carries a tag which the server echoes in its reply, so any number of requests
+ * can be outstanding at once. Multi-sector transfers are split into requests of at most
+ * <code>MAX_REQUEST_SECTORS</code> that are all sent before the first reply is awaited, and sector
+ * payloads may be deflated when both ends agree to it.
+ * <p>
+ * With read-ahead negotiated, reads that continue where the previous read ended send a
+ * <code>PREFETCH</code> hint and the server pushes the following sectors unrequested. Pushed data is
+ * held in a small cache that serves later reads without a round trip. A push is dropped if it was
+ * produced before the server saw the latest write, and writes invalidate any overlapping cached data.
  * @author Ian Preston
  */
 public class RemoteBlockDevice implements BlockDevice {
+    private static final Logger LOGGING = Logger.getLogger(RemoteBlockDevice.class.getName());
+
     enum Protocol {
-        READ, WRITE, TOTAL_SECTORS, CYLINDERS, HEADS, SECTORS, TYPE, INSERTED, LOCKED, READ_ONLY, SET_LOCKED, CLOSE;
+        READ, WRITE, TOTAL_SECTORS, CYLINDERS, HEADS, SECTORS, TYPE, INSERTED, LOCKED, READ_ONLY, SET_LOCKED, CLOSE, HELLO, PREFETCH;
     }
 
+    static final int VERSION = 2;
+    public static final int FLAG_COMPRESSION = 1;
+    public static final int FLAG_READ_AHEAD = 2;
+
+    static final int MAX_REQUEST_SECTORS = 128;
+    static final int REPLY = 0;
+    static final int PUSH = 1;
+
+    private static final int ENCODING_RAW = 0;
+    private static final int ENCODING_DEFLATE = 1;
+
+    private static final int PUSH_CACHE_SECTORS = 4096;
+    private static final int PREFETCH_SECTORS = 512;
+
     private DataInputStream in;
     private DataOutputStream out;
-
+    private Socket socket;
+    private int flags;
+
+    private final Map<Integer, Request> pending = new HashMap<Integer, Request>();
+    private int nextTag = 1;
+    private IOException failure;
+    private volatile boolean closed;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] deflated = new byte[0];
+
+    private final TreeMap<Long, byte[]> pushed = new TreeMap<Long, byte[]>();
+    private int pushedSectors;
+    private int lastWriteTag;
+    private long sequentialEnd = -1;
+    private long prefetchEnd = -1;
+
+    private long requests, pushHits, pushesDropped;
+
+    /**
+     * Configures this device from a spec of the form <code>server[:port][,compress][,noreadahead]</code>.
+     * @param spec server address and options
+     * @throws IOException if the connection or negotiation fails
+     */
     @Override
     public void configure(String spec) throws IOException {
-        String server = spec;
+        int requested = FLAG_READ_AHEAD;
+        String[] parts = spec.split(",");
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals("compress"))
+                requested |= FLAG_COMPRESSION;
+            else if (parts[i].equals("noreadahead"))
+                requested &= ~FLAG_READ_AHEAD;
+            else
+                throw new IllegalArgumentException("Unknown remote block device option " + parts[i]);
+        }
+
+        String server = parts[0];
         int port = 6666;
-        int colon = spec.indexOf(':');
+        int colon = server.indexOf(':');
         if (colon >= 0) {
-            port = Integer.parseInt(spec.substring(colon + 1));
-            server = spec.substring(0, colon);
+            port = Integer.parseInt(server.substring(colon + 1));
+            server = server.substring(0, colon);
         }
 
-        Socket sock = new Socket(server, port);
-        this.in = new DataInputStream(sock.getInputStream());
-        this.out = new DataOutputStream(sock.getOutputStream());
-
+        socket = new Socket(server, port);
+        socket.setTcpNoDelay(true);
+        connect(socket.getInputStream(), socket.getOutputStream(), requested);
     }
 
     public RemoteBlockDevice() {
     }
 
-    public RemoteBlockDevice(InputStream in, OutputStream out) {
-        this.in = new DataInputStream(in);
-        this.out = new DataOutputStream(out);
+    public RemoteBlockDevice(InputStream in, OutputStream out) throws IOException {
+        this(in, out, FLAG_READ_AHEAD);
+    }
+
+    /**
+     * Connects over an existing pair of streams, asking the server for the given protocol flags.
+     * @param in stream from the server
+     * @param out stream to the server
+     * @param requested combination of <code>FLAG_COMPRESSION</code> and <code>FLAG_READ_AHEAD</code>
+     * @throws IOException if negotiation fails
+     */
+    public RemoteBlockDevice(InputStream in, OutputStream out, int requested) throws IOException {
+        connect(in, out, requested);
+    }
+
+    private void connect(InputStream input, OutputStream output, int requested) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+
+        out.write(Protocol.HELLO.ordinal());
+        out.writeInt(VERSION);
+        out.writeInt(requested);
+        out.flush();
+
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported remote block device protocol version " + version);
+        flags = in.readInt();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "Remote Block Device Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns the protocol flags agreed with the server.
+     * @return negotiated flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Returns a summary of the request and push cache counters.
+     * @return statistics string
+     */
+    public String getStatistics() {
+        return String.format("%d requests, %d sectors served from pushed data, %d pushes dropped", requests, pushHits,
+            pushesDropped);
     }
 
     @Override
-    public synchronized void close() {
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
         try {
-            out.write(Protocol.CLOSE.ordinal());
-            out.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
+            query(Protocol.CLOSE);
+        } catch (IOException e) {
+            LOGGING.log(Level.INFO, "remote block device did not acknowledge close", e);
         }
+        try {
+            if (socket != null)
+                socket.close();
+            else
+                out.close();
+        } catch (IOException e) {
+            LOGGING.log(Level.INFO, "exception closing remote block device", e);
+        }
+        LOGGING.log(Level.FINE, "remote block device: {0}", getStatistics());
     }
 
     @Override
-    public synchronized int read(long sectorNumber, byte[] buffer, int size) {
-        try {
-            out.write(Protocol.READ.ordinal());
-            out.writeLong(sectorNumber);
-            out.writeInt(size);
-            out.flush();
-
-            if (in.read() != 0)
-                throw new IOException("Read failed");
-
-            int result = in.readInt();
-            int toRead = in.readInt();
-            in.read(buffer, 0, toRead);
+    public int read(long sectorNumber, byte[] buffer, int size) {
+        return read(sectorNumber, buffer, 0, size);
+    }
 
+    @Override
+    public int read(long sectorNumber, byte[] buffer, int offset, int size) {
+        try {
+            List<Request> issued = new ArrayList<Request>();
+            for (int done = 0; done < size;) {
+                int cached = readPushed(sectorNumber + done, buffer, offset + done * 512, size - done);
+                done += cached;
+                if (done >= size)
+                    break;
+
+                int run = 1;
+                while ((done + run < size) && (run < MAX_REQUEST_SECTORS) && !isPushed(sectorNumber + done + run))
+                    run++;
+
+                Request r = new Request(Protocol.READ, buffer, offset + done * 512);
+                synchronized (out) {
+                    int tag = register(r);
+                    out.write(Protocol.READ.ordinal());
+                    out.writeInt(tag);
+                    out.writeLong(sectorNumber + done);
+                    out.writeInt(run);
+                }
+                issued.add(r);
+                done += run;
+            }
+            prefetch(sectorNumber, size);
+            flush();
+
+            int result = 0;
+            for (Request r : issued)
+                if (r.await() < 0)
+                    result = -1;
             return result;
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote read failed", e);
+            return -1;
         }
-        return -1;
     }
 
     @Override
-    public synchronized int write(long sectorNumber, byte[] buffer, int size) {
-        try {
-            out.write(Protocol.WRITE.ordinal());
-            out.writeLong(sectorNumber);
-            out.writeInt(size * 512);
-            out.write(buffer, 0, size * 512);
-            out.flush();
-
-            if (in.read() != 0)
-                throw new IOException("Write failed");
+    public int write(long sectorNumber, byte[] buffer, int size) {
+        return write(sectorNumber, buffer, 0, size);
+    }
 
-            return in.readInt();
-        } catch (Exception e) {
-            e.printStackTrace();
+    @Override
+    public int write(long sectorNumber, byte[] buffer, int offset, int size) {
+        try {
+            invalidate(sectorNumber, size);
+            List<Request> issued = new ArrayList<Request>();
+            int lastTag = 0;
+            for (int done = 0; done < size;) {
+                int run = Math.min(size - done, MAX_REQUEST_SECTORS);
+                Request r = new Request(Protocol.WRITE, null, 0);
+                synchronized (out) {
+                    lastTag = register(r);
+                    out.write(Protocol.WRITE.ordinal());
+                    out.writeInt(lastTag);
+                    out.writeLong(sectorNumber + done);
+                    out.writeInt(run);
+                    deflated = writePayload(out, buffer, offset + done * 512, run * 512,
+                        (flags & FLAG_COMPRESSION) != 0 ? deflater : null, deflated);
+                }
+                issued.add(r);
+                done += run;
+            }
+            flush();
+
+            synchronized (this) {
+                lastWriteTag = lastTag;
+            }
+            invalidate(sectorNumber, size);
+
+            int result = 0;
+            for (Request r : issued)
+                if (r.await() < 0)
+                    result = -1;
+            return result;
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote write failed", e);
+            return -1;
         }
-        return -1;
     }
 
     @Override
-    public synchronized boolean isInserted() {
+    public boolean isInserted() {
         try {
-            out.write(Protocol.INSERTED.ordinal());
-            out.flush();
-
-            return in.readBoolean();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return query(Protocol.INSERTED) != 0;
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return false;
     }
 
     @Override
-    public synchronized boolean isLocked() {
+    public boolean isLocked() {
         try {
-            out.write(Protocol.LOCKED.ordinal());
-            out.flush();
-
-            return in.readBoolean();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return query(Protocol.LOCKED) != 0;
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return false;
     }
 
     @Override
-    public synchronized boolean isReadOnly() {
+    public boolean isReadOnly() {
         try {
-            out.write(Protocol.READ_ONLY.ordinal());
-            out.flush();
-
-            return in.readBoolean();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return query(Protocol.READ_ONLY) != 0;
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return false;
     }
 
     @Override
-    public synchronized void setLock(boolean locked) {
+    public void setLock(boolean locked) {
         try {
-            out.write(Protocol.SET_LOCKED.ordinal());
-            out.writeBoolean(locked);
-            out.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
+            Request r = new Request(Protocol.SET_LOCKED, null, 0);
+            synchronized (out) {
+                int tag = register(r);
+                out.write(Protocol.SET_LOCKED.ordinal());
+                out.writeInt(tag);
+                out.writeBoolean(locked);
+            }
+            flush();
+            r.await();
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote lock failed", e);
         }
     }
 
     @Override
-    public synchronized long getTotalSectors() {
+    public long getTotalSectors() {
         try {
-            out.write(Protocol.TOTAL_SECTORS.ordinal());
-            out.flush();
-
-            return in.readLong();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return query(Protocol.TOTAL_SECTORS);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return -1;
     }
 
     @Override
-    public synchronized int getCylinders() {
+    public int getCylinders() {
         try {
-            out.write(Protocol.CYLINDERS.ordinal());
-            out.flush();
-
-            return in.readInt();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return (int)query(Protocol.CYLINDERS);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return -1;
     }
 
     @Override
-    public synchronized int getHeads() {
+    public int getHeads() {
         try {
-            out.write(Protocol.HEADS.ordinal());
-            out.flush();
-
-            return in.readInt();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return (int)query(Protocol.HEADS);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return -1;
     }
 
     @Override
-    public synchronized int getSectors() {
+    public int getSectors() {
         try {
-            out.write(Protocol.SECTORS.ordinal());
-            out.flush();
-
-            return in.readInt();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return (int)query(Protocol.SECTORS);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
         }
         return -1;
     }
 
     @Override
-    public synchronized Type getType() {
+    public Type getType() {
         try {
-            out.write(Protocol.TYPE.ordinal());
+            return Type.values()[(int)query(Protocol.TYPE)];
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote query failed", e);
+        }
+        return null;
+    }
+
+    private long query(Protocol type) throws IOException {
+        Request r = new Request(type, null, 0);
+        synchronized (out) {
+            int tag = register(r);
+            out.write(type.ordinal());
+            out.writeInt(tag);
+        }
+        flush();
+        r.await();
+        return r.value;
+    }
+
+    private int register(Request r) throws IOException {
+        synchronized (pending) {
+            if (failure != null)
+                throw failure;
+            int tag = nextTag++;
+            pending.put(Integer.valueOf(tag), r);
+            requests++;
+            return tag;
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (out) {
             out.flush();
+        }
+    }
 
-            int result = in.readInt();
-            return Type.values()[result];
-        } catch (Exception e) {
-            e.printStackTrace();
+    private void receive() {
+        Inflater inflater = new Inflater();
+        byte[] scratch = new byte[0];
+        try {
+            while (true) {
+                int kind = in.read();
+                if (kind < 0)
+                    throw new EOFException("Remote block device connection closed");
+
+                if (kind == PUSH) {
+                    int tag = in.readInt();
+                    long sector = in.readLong();
+                    int count = in.readInt();
+                    byte[] data = new byte[count * 512];
+                    scratch = readPayload(in, data, 0, data.length, inflater, scratch);
+                    addPushed(tag, sector, data);
+                    continue;
+                }
+
+                int tag = in.readInt();
+                Request r;
+                synchronized (pending) {
+                    r = pending.remove(Integer.valueOf(tag));
+                }
+                if (r == null)
+                    throw new IOException("Reply for unknown request tag " + tag);
+
+                switch (r.type) {
+                case READ:
+                    r.value = in.readInt();
+                    if (r.value >= 0) {
+                        int length = in.readInt() * 512;
+                        scratch = readPayload(in, r.buffer, r.offset, length, inflater, scratch);
+                    }
+                    break;
+                case WRITE:
+                case CYLINDERS:
+                case HEADS:
+                case SECTORS:
+                case TYPE:
+                    r.value = in.readInt();
+                    break;
+                case TOTAL_SECTORS:
+                    r.value = in.readLong();
+                    break;
+                case INSERTED:
+                case LOCKED:
+                case READ_ONLY:
+                    r.value = in.readBoolean() ? 1 : 0;
+                    break;
+                default:
+                    break;
+                }
+                r.complete();
+            }
+        } catch (IOException e) {
+            if (!closed)
+                LOGGING.log(Level.WARNING, "remote block device connection failed", e);
+            List<Request> abandoned;
+            synchronized (pending) {
+                failure = e;
+                abandoned = new ArrayList<Request>(pending.values());
+                pending.clear();
+            }
+            for (Request r : abandoned)
+                r.fail();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void prefetch(long sectorNumber, int size) throws IOException {
+        if ((flags & FLAG_READ_AHEAD) == 0)
+            return;
+
+        long end = sectorNumber + size;
+        long start, limit;
+        synchronized (this) {
+            boolean sequential = sectorNumber == sequentialEnd;
+            sequentialEnd = end;
+            if (!sequential) {
+                prefetchEnd = -1;
+                return;
+            }
+            if (prefetchEnd - end >= PREFETCH_SECTORS / 2)
+                return;
+
+            start = Math.max(prefetchEnd, end);
+            limit = end + PREFETCH_SECTORS;
+            prefetchEnd = limit;
+        }
+        synchronized (out) {
+            int tag;
+            synchronized (pending) {
+                if (failure != null)
+                    throw failure;
+                tag = nextTag++;
+            }
+            out.write(Protocol.PREFETCH.ordinal());
+            out.writeInt(tag);
+            out.writeLong(start);
+            out.writeInt((int)(limit - start));
+        }
+    }
+
+    private synchronized boolean isPushed(long sector) {
+        Map.Entry<Long, byte[]> e = pushed.floorEntry(Long.valueOf(sector));
+        return (e != null) && (sector < e.getKey().longValue() + e.getValue().length / 512);
+    }
+
+    private synchronized int readPushed(long sector, byte[] buffer, int offset, int max) {
+        Map.Entry<Long, byte[]> e = pushed.floorEntry(Long.valueOf(sector));
+        if (e == null)
+            return 0;
+        long start = e.getKey().longValue();
+        byte[] data = e.getValue();
+        int available = (int)(start + data.length / 512 - sector);
+        if (available <= 0)
+            return 0;
+
+        int count = Math.min(available, max);
+        System.arraycopy(data, (int)(sector - start) * 512, buffer, offset, count * 512);
+        pushHits += count;
+        return count;
+    }
+
+    private synchronized void addPushed(int tag, long sector, byte[] data) {
+        if (tag < lastWriteTag) {
+            pushesDropped++;
+            return;
+        }
+
+        invalidate(sector, data.length / 512);
+        pushed.put(Long.valueOf(sector), data);
+        pushedSectors += data.length / 512;
+        while (pushedSectors > PUSH_CACHE_SECTORS)
+            pushedSectors -= pushed.remove(pushed.firstKey()).length / 512;
+    }
+
+    private synchronized void invalidate(long sector, int count) {
+        long end = sector + count;
+        Map.Entry<Long, byte[]> e = pushed.lowerEntry(Long.valueOf(end));
+        while (e != null) {
+            long start = e.getKey().longValue();
+            if (start + e.getValue().length / 512 <= sector)
+                break;
+            pushed.remove(e.getKey());
+            pushedSectors -= e.getValue().length / 512;
+            e = pushed.lowerEntry(e.getKey());
+        }
+    }
+
+    static byte[] writePayload(DataOutputStream out, byte[] data, int offset, int length, Deflater deflater, byte[] scratch)
+        throws IOException {
+        if (deflater != null) {
+            if (scratch.length < length)
+                scratch = new byte[length];
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int compressed = 0;
+            while (!deflater.finished() && (compressed < length))
+                compressed += deflater.deflate(scratch, compressed, length - compressed);
+
+            if (deflater.finished() && (compressed < length - length / 8)) {
+                out.write(ENCODING_DEFLATE);
+                out.writeInt(compressed);
+                out.write(scratch, 0, compressed);
+                return scratch;
+            }
+        }
+        out.write(ENCODING_RAW);
+        out.writeInt(length);
+        out.write(data, offset, length);
+        return scratch;
+    }
+
+    static byte[] readPayload(DataInputStream in, byte[] data, int offset, int length, Inflater inflater, byte[] scratch)
+        throws IOException {
+        int encoding = in.read();
+        int encodedLength = in.readInt();
+        if (encoding == ENCODING_RAW) {
+            if (encodedLength != length)
+                throw new IOException("Payload length " + encodedLength + " does not match " + length);
+            in.readFully(data, offset, length);
+            return scratch;
+        } else if (encoding != ENCODING_DEFLATE)
+            throw new IOException("Unknown payload encoding " + encoding);
+
+        if (scratch.length < encodedLength)
+            scratch = new byte[encodedLength];
+        in.readFully(scratch, 0, encodedLength);
+        inflater.reset();
+        inflater.setInput(scratch, 0, encodedLength);
+        try {
+            int inflated = 0;
+            while ((inflated < length) && !inflater.finished()) {
+                int n = inflater.inflate(data, offset + inflated, length - inflated);
+                if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+            if (inflated != length)
+                throw new IOException("Compressed payload inflated to " + inflated + " bytes, expected " + length);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload: " + e.getMessage());
+        }
+        return scratch;
+    }
+
+    private static final class Request {
+        final Protocol type;
+        final byte[] buffer;
+        final int offset;
+        long value;
+        private boolean done, failed;
+
+        Request(Protocol type, byte[] buffer, int offset) {
+            this.type = type;
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        synchronized void complete() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            value = -1;
+            complete();
+        }
+
+        synchronized long await() throws IOException {
+            boolean interrupted = false;
+            while (!done)
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (failed)
+                throw new IOException("Remote block device connection lost");
+            return value;
         }
-        return null;
     }
 }
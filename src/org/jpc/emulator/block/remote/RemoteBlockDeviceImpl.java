@@ -33,17 +33,30 @@
 
 package org.jpc.emulator.block.remote;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.jpc.emulator.block.BlockDevice;
 import org.jpc.emulator.block.remote.RemoteBlockDevice.Protocol;
 
 /**
+ * Serves one remote block device connection.
+ * <p>
+ * Connections that open with <code>HELLO</code> use the tagged version 2 protocol, anything else is
+ * handled with the original one request at a time protocol. Version 2 replies are batched and only
+ * flushed once no further requests are waiting, and <code>PREFETCH</code> ranges are read and pushed
+ * to the client only while it has nothing else outstanding.
  * @author Ian Preston
  */
 public class RemoteBlockDeviceImpl implements Runnable {
@@ -54,21 +67,57 @@ public class RemoteBlockDeviceImpl implements Runnable {
 
     private byte[] buffer;
 
+    private int flags;
+    private int lastTag;
+    private final LinkedList<long[]> prefetches = new LinkedList<long[]>();
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] scratch = new byte[0];
+
     public RemoteBlockDeviceImpl(InputStream in, OutputStream out, BlockDevice target) {
         this.target = target;
-        this.in = new DataInputStream(in);
-        this.out = new DataOutputStream(out);
-        buffer = new byte[1024];
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        buffer = new byte[RemoteBlockDevice.MAX_REQUEST_SECTORS * 512];
 
-        new Thread(this).start();
+        new Thread(this, "Remote Block Device Session").start();
     }
 
     @Override
     public void run() {
-        while (true) {
+        try {
+            int methodType = in.read();
+            if (methodType == Protocol.HELLO.ordinal())
+                serveTagged();
+            else
+                serveLegacy(methodType);
+        } catch (EOFException e) {
+            LOGGING.log(Level.INFO, "remote block device client disconnected");
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "remote block device session failed", e);
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            if (inflater != null)
+                inflater.end();
             try {
-                int methodType = in.read();
+                out.close();
+            } catch (IOException e) {
+                LOGGING.log(Level.FINE, "exception closing remote block device session", e);
+            }
+        }
+    }
 
+    private void serveLegacy(int methodType) throws IOException {
+        while (true) {
+            if (methodType < 0)
+                throw new EOFException();
+            if (methodType >= Protocol.HELLO.ordinal()) {
+                LOGGING.log(Level.WARNING, "socket closed due to protocol error");
+                return;
+            }
+
+            synchronized (target) {
                 switch (Protocol.values()[methodType]) {
                 case READ:
                     long sectorNumber = in.readLong();
@@ -83,8 +132,8 @@ public class RemoteBlockDeviceImpl implements Runnable {
                 case WRITE:
                     long writesectorNumber = in.readLong();
                     int toWrite = Math.min(in.readInt(), buffer.length);
-                    in.read(buffer, 0, toWrite);
-                    int writeresult = target.write(writesectorNumber, buffer, toWrite);
+                    in.readFully(buffer, 0, toWrite);
+                    int writeresult = target.write(writesectorNumber, buffer, toWrite / 512);
 
                     out.writeByte(0);
                     out.writeInt(writeresult);
@@ -132,13 +181,154 @@ public class RemoteBlockDeviceImpl implements Runnable {
                     LOGGING.log(Level.WARNING, "socket closed due to protocol error");
                     return;
                 }
+            }
 
+            out.flush();
+            methodType = in.read();
+        }
+    }
+
+    private void serveTagged() throws IOException {
+        int version = in.readInt();
+        int requested = in.readInt();
+        flags = requested & (RemoteBlockDevice.FLAG_COMPRESSION | RemoteBlockDevice.FLAG_READ_AHEAD);
+        if ((flags & RemoteBlockDevice.FLAG_COMPRESSION) != 0)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        inflater = new Inflater();
+
+        out.writeInt(RemoteBlockDevice.VERSION);
+        out.writeInt(flags);
+        out.flush();
+        if (version != RemoteBlockDevice.VERSION) {
+            LOGGING.log(Level.WARNING, "client asked for unsupported protocol version {0,number,integer}", Integer.valueOf(version));
+            return;
+        }
+
+        while (true) {
+            while ((in.available() == 0) && !prefetches.isEmpty()) {
+                out.flush();
+                pushNext();
+            }
+            if (in.available() == 0)
                 out.flush();
-            } catch (Exception e) {
-                e.printStackTrace();
 
-                System.exit(0);
+            int methodType = in.read();
+            if (methodType < 0)
+                throw new EOFException();
+            if (methodType >= Protocol.values().length)
+                throw new IOException("Unknown remote block device request " + methodType);
+
+            Protocol request = Protocol.values()[methodType];
+            int tag = in.readInt();
+            synchronized (target) {
+                lastTag = tag;
+                if (!serve(request, tag))
+                    break;
+            }
+        }
+        out.flush();
+    }
+
+    private boolean serve(Protocol request, int tag) throws IOException {
+        switch (request) {
+        case READ: {
+            long sectorNumber = in.readLong();
+            int count = Math.min(in.readInt(), RemoteBlockDevice.MAX_REQUEST_SECTORS);
+            int result = target.read(sectorNumber, buffer, count);
+            out.write(RemoteBlockDevice.REPLY);
+            out.writeInt(tag);
+            out.writeInt(result);
+            if (result >= 0) {
+                out.writeInt(count);
+                scratch = RemoteBlockDevice.writePayload(out, buffer, 0, count * 512, deflater, scratch);
+            }
+            return true;
+        }
+        case WRITE: {
+            long sectorNumber = in.readLong();
+            int count = in.readInt();
+            if ((count < 0) || (count > RemoteBlockDevice.MAX_REQUEST_SECTORS))
+                throw new IOException("Write of " + count + " sectors exceeds the request limit");
+            scratch = RemoteBlockDevice.readPayload(in, buffer, 0, count * 512, inflater, scratch);
+            int result = target.write(sectorNumber, buffer, count);
+            out.write(RemoteBlockDevice.REPLY);
+            out.writeInt(tag);
+            out.writeInt(result);
+            return true;
+        }
+        case PREFETCH: {
+            long sectorNumber = in.readLong();
+            int count = in.readInt();
+            if ((flags & RemoteBlockDevice.FLAG_READ_AHEAD) != 0) {
+                long end = Math.min(sectorNumber + count, target.getTotalSectors());
+                if (end > sectorNumber)
+                    prefetches.add(new long[] { sectorNumber, end });
             }
+            return true;
         }
+        case SET_LOCKED:
+            target.setLock(in.readBoolean());
+            out.write(RemoteBlockDevice.REPLY);
+            out.writeInt(tag);
+            return true;
+        case CLOSE:
+            out.write(RemoteBlockDevice.REPLY);
+            out.writeInt(tag);
+            return false;
+        default:
+            break;
+        }
+
+        out.write(RemoteBlockDevice.REPLY);
+        out.writeInt(tag);
+        switch (request) {
+        case TOTAL_SECTORS:
+            out.writeLong(target.getTotalSectors());
+            break;
+        case CYLINDERS:
+            out.writeInt(target.getCylinders());
+            break;
+        case HEADS:
+            out.writeInt(target.getHeads());
+            break;
+        case SECTORS:
+            out.writeInt(target.getSectors());
+            break;
+        case TYPE:
+            out.writeInt(target.getType().ordinal());
+            break;
+        case INSERTED:
+            out.writeBoolean(target.isInserted());
+            break;
+        case LOCKED:
+            out.writeBoolean(target.isLocked());
+            break;
+        case READ_ONLY:
+            out.writeBoolean(target.isReadOnly());
+            break;
+        default:
+            throw new IOException("Unexpected remote block device request " + request);
+        }
+        return true;
+    }
+
+    private void pushNext() throws IOException {
+        long[] range = prefetches.getFirst();
+        int count = (int)Math.min(range[1] - range[0], RemoteBlockDevice.MAX_REQUEST_SECTORS);
+        int result;
+        synchronized (target) {
+            result = target.read(range[0], buffer, count);
+        }
+        if (result >= 0) {
+            out.write(RemoteBlockDevice.PUSH);
+            out.writeInt(lastTag);
+            out.writeLong(range[0]);
+            out.writeInt(count);
+            scratch = RemoteBlockDevice.writePayload(out, buffer, 0, count * 512, deflater, scratch);
+        }
+
+        range[0] += count;
+        if ((result < 0) || (range[0] >= range[1]))
+            prefetches.removeFirst();
     }
 }
@@ -40,10 +40,13 @@ import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.jpc.emulator.block.BlockDevice;
 import org.jpc.support.ArgProcessor;
 import org.jpc.support.DriveSet;
 
 /**
+ * Serves the boot device of a drive set to any number of remote block device clients, one session
+ * thread per connection.
  * @author Ian Preston
  */
 public class RemoteBlockDeviceServer {
@@ -58,16 +61,27 @@ public class RemoteBlockDeviceServer {
         } catch (NumberFormatException e) {
         }
 
+        final BlockDevice device = set.getBootDevice();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                device.close();
+            }
+        });
+
         ServerSocket inputsock = new ServerSocket(port);
-        Socket ss = inputsock.accept();
-        InputStream in = ss.getInputStream();
+        while (true) {
+            Socket ss = inputsock.accept();
+            ss.setTcpNoDelay(true);
+            InputStream in = ss.getInputStream();
 
-        OutputStream out = ss.getOutputStream();
+            OutputStream out = ss.getOutputStream();
 
-        RemoteBlockDeviceImpl impl = new RemoteBlockDeviceImpl(in, out, set.getBootDevice());
+            new RemoteBlockDeviceImpl(in, out, device);
 
-        LOGGING.log(Level.INFO, "Server accepted connection to {0} on port {1,number,integer}",
-            new Object[] { set.getBootDevice(), Integer.valueOf(port) });
+            LOGGING.log(Level.INFO, "Server accepted connection from {0} to {1} on port {2,number,integer}",
+                new Object[] { ss.getRemoteSocketAddress(), device, Integer.valueOf(port) });
+        }
     }
 
     private RemoteBlockDeviceServer() {
@@ -31,6 +31,7 @@ import static org.jpc.emulator.execution.Executable.OSZAPC;
 import static org.jpc.emulator.execution.Executable.OSZP;
 import static org.jpc.emulator.execution.Executable.SZP;
 
+import org.jpc.emulator.motherboard.IOPortHandler;
 import org.jpc.emulator.processor.Processor;
 import org.jpc.emulator.processor.ProcessorException;
 import org.jpc.emulator.processor.ProtectedModeSegment;
@@ -1365,6 +1366,35 @@ public class StaticOpcodes {
         }
     }
 
+    private static final int STRING_IO_BLOCK = IOPortHandler.STRING_BUFFER_SIZE;
+
+    /**
+     * Returns how many elements of a forward rep ins/outs can be moved as a single block, or 0 if the
+     * next element has to go through the single element path. A block never leaves the page of its
+     * first element, so any page fault is raised by the first access before a port is touched, and
+     * never passes the segment limit or a 16-bit address wrap.
+     */
+    private static int stringIOBlockCount(Segment seg, int addr, int count, int size, boolean addr16, boolean write) {
+        try {
+            int linear = write ? seg.translateAddressWrite(addr) : seg.translateAddressRead(addr);
+            long bytes = STRING_IO_BLOCK - (linear & (STRING_IO_BLOCK - 1));
+            if (addr16)
+                bytes = Math.min(bytes, 0x10000 - addr);
+            bytes = Math.min(bytes, (0xffffffffL & count) * size);
+            bytes -= bytes % size;
+            if (bytes <= size)
+                return 0;
+            int last = addr + (int)bytes - 1;
+            if (write)
+                seg.translateAddressWrite(last);
+            else
+                seg.translateAddressRead(last);
+            return (int)bytes / size;
+        } catch (ProcessorException e) {
+            return 0;
+        }
+    }
+
     public static void rep_insw_a16(Processor cpu, Segment seg) {
         int port = cpu.r_dx.get16() & 0xffff;
         int count = cpu.r_ecx.get16() & 0xffff;
@@ -1380,7 +1410,18 @@ public class StaticOpcodes {
                     addr -= 2;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr & 0xffff, count, 2, true, true);
+                    if (n != 0) {
+                        seg.setWord(addr & 0xffff, (short)0); // test memory writable
+                        cpu.ioports.ioPortReadBlock16(port, block, 0, n);
+                        for (int i = 0, a = addr & 0xffff; i < 2 * n; i += 2, a += 2)
+                            seg.setWord(a, (short)(0xff & block[i] | (0xff & block[i + 1]) << 8));
+                        count -= n;
+                        addr += 2 * n;
+                        continue;
+                    }
                     //check hardware interrupts
                     seg.setWord(addr & 0xffff, (short)0); // test memory writable
                     seg.setWord(addr & 0xffff, (short)cpu.ioports.ioPortRead16(port));
@@ -1409,7 +1450,18 @@ public class StaticOpcodes {
                     addr -= 2;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr, count, 2, false, true);
+                    if (n != 0) {
+                        seg.setWord(addr, (short)0); // test memory writable
+                        cpu.ioports.ioPortReadBlock16(port, block, 0, n);
+                        for (int i = 0, a = addr; i < 2 * n; i += 2, a += 2)
+                            seg.setWord(a, (short)(0xff & block[i] | (0xff & block[i + 1]) << 8));
+                        count -= n;
+                        addr += 2 * n;
+                        continue;
+                    }
                     //check hardware interrupts
                     seg.setWord(addr, (short)0); // test memory writable
                     seg.setWord(addr, (short)cpu.ioports.ioPortRead16(port));
@@ -1438,7 +1490,19 @@ public class StaticOpcodes {
                     addr -= 4;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr & 0xffff, count, 4, true, true);
+                    if (n != 0) {
+                        seg.setDoubleWord(addr & 0xffff, 0); // test memory writable
+                        cpu.ioports.ioPortReadBlock32(port, block, 0, n);
+                        for (int i = 0, a = addr & 0xffff; i < 4 * n; i += 4, a += 4)
+                            seg.setDoubleWord(a, 0xff & block[i] | (0xff & block[i + 1]) << 8 | (0xff & block[i + 2]) << 16
+                                | (0xff & block[i + 3]) << 24);
+                        count -= n;
+                        addr += 4 * n;
+                        continue;
+                    }
                     //check hardware interrupts
                     seg.setDoubleWord(addr & 0xffff, 0); // test memory writable
                     seg.setDoubleWord(addr & 0xffff, cpu.ioports.ioPortRead32(port));
@@ -1467,7 +1531,19 @@ public class StaticOpcodes {
                     addr -= 4;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr, count, 4, false, true);
+                    if (n != 0) {
+                        seg.setDoubleWord(addr, 0); // test memory writable
+                        cpu.ioports.ioPortReadBlock32(port, block, 0, n);
+                        for (int i = 0, a = addr; i < 4 * n; i += 4, a += 4)
+                            seg.setDoubleWord(a, 0xff & block[i] | (0xff & block[i + 1]) << 8 | (0xff & block[i + 2]) << 16
+                                | (0xff & block[i + 3]) << 24);
+                        count -= n;
+                        addr += 4 * n;
+                        continue;
+                    }
                     //check hardware interrupts
                     seg.setDoubleWord(addr, 0); // test memory writable
                     seg.setDoubleWord(addr, cpu.ioports.ioPortRead32(port));
@@ -1609,7 +1685,20 @@ public class StaticOpcodes {
                     addr -= 2;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr & 0xffff, count, 2, true, false);
+                    if (n != 0) {
+                        for (int i = 0, a = addr & 0xffff; i < 2 * n; a += 2) {
+                            short data = seg.getWord(a);
+                            block[i++] = (byte)data;
+                            block[i++] = (byte)(data >> 8);
+                        }
+                        cpu.ioports.ioPortWriteBlock16(port, block, 0, n);
+                        count -= n;
+                        addr += 2 * n;
+                        continue;
+                    }
                     cpu.ioports.ioPortWrite16(port, 0xffff & seg.getWord(addr & 0xffff));
                     count--;
                     addr += 2;
@@ -1634,7 +1723,20 @@ public class StaticOpcodes {
                     addr -= 2;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr, count, 2, false, false);
+                    if (n != 0) {
+                        for (int i = 0, a = addr; i < 2 * n; a += 2) {
+                            short data = seg.getWord(a);
+                            block[i++] = (byte)data;
+                            block[i++] = (byte)(data >> 8);
+                        }
+                        cpu.ioports.ioPortWriteBlock16(port, block, 0, n);
+                        count -= n;
+                        addr += 2 * n;
+                        continue;
+                    }
                     cpu.ioports.ioPortWrite16(port, 0xffff & seg.getWord(addr));
                     count--;
                     addr += 2;
@@ -1659,7 +1761,22 @@ public class StaticOpcodes {
                     addr -= 4;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr & 0xffff, count, 4, true, false);
+                    if (n != 0) {
+                        for (int i = 0, a = addr & 0xffff; i < 4 * n; a += 4) {
+                            int data = seg.getDoubleWord(a);
+                            block[i++] = (byte)data;
+                            block[i++] = (byte)(data >> 8);
+                            block[i++] = (byte)(data >> 16);
+                            block[i++] = (byte)(data >> 24);
+                        }
+                        cpu.ioports.ioPortWriteBlock32(port, block, 0, n);
+                        count -= n;
+                        addr += 4 * n;
+                        continue;
+                    }
                     cpu.ioports.ioPortWrite32(port, seg.getDoubleWord(addr & 0xffff));
                     count--;
                     addr += 4;
@@ -1684,7 +1801,22 @@ public class StaticOpcodes {
                     addr -= 4;
                 }
             } else {
+                byte[] block = cpu.ioports.getStringBuffer();
                 while (count != 0) {
+                    int n = stringIOBlockCount(seg, addr, count, 4, false, false);
+                    if (n != 0) {
+                        for (int i = 0, a = addr; i < 4 * n; a += 4) {
+                            int data = seg.getDoubleWord(a);
+                            block[i++] = (byte)data;
+                            block[i++] = (byte)(data >> 8);
+                            block[i++] = (byte)(data >> 16);
+                            block[i++] = (byte)(data >> 24);
+                        }
+                        cpu.ioports.ioPortWriteBlock32(port, block, 0, n);
+                        count -= n;
+                        addr += 4 * n;
+                        continue;
+                    }
                     cpu.ioports.ioPortWrite32(port, seg.getDoubleWord(addr));
                     count--;
                     addr += 4;
@@ -0,0 +1,46 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.memory;
+
+/**
+ * A memory that supplies its own <code>Memory</code> object for each block when it is mapped into a
+ * <code>PhysicalAddressSpace</code>, instead of being reached through a wrapper that forwards every
+ * access with an offset added.
+ */
+public interface BlockMappedMemory extends Memory {
+    /**
+     * Returns the memory to map for the block starting at <code>offset</code>. It must be
+     * <code>AddressSpace.BLOCK_SIZE</code> long and address from zero.
+     * @param offset block aligned offset into this memory
+     * @return memory of one block
+     */
+    Memory getBlock(int offset);
+}
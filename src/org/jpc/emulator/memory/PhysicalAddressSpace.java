@@ -690,7 +690,11 @@ public final class PhysicalAddressSpace extends AddressSpace implements Hardware
 
         long s = 0xFFFFFFFFL & start;
         for (long i = s; i < s + length; i += BLOCK_SIZE) {
-            Memory w = new MapWrapper(underlying, (int)(i - s));
+            Memory w;
+            if (underlying instanceof BlockMappedMemory)
+                w = ((BlockMappedMemory)underlying).getBlock((int)(i - s));
+            else
+                w = new MapWrapper(underlying, (int)(i - s));
             setMemoryBlockAt((int)i, w);
         }
     }
@@ -0,0 +1,48 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.motherboard;
+
+/**
+ * An <code>IODevice</code> that can supply specialised handlers for
+ * individual ports and access widths.
+ */
+public interface BindableIODevice extends IODevice {
+
+    /**
+     * Returns the handler to bind for the given port and width, or
+     * <code>null</code> to have the access go through the plain
+     * <code>IODevice</code> methods.
+     * @param address ioport address
+     * @param width access width in bits, one of 8, 16 or 32
+     * @return specialised handler or <code>null</code>
+     */
+    IOPort getIOPort(int address, int width);
+}
@@ -0,0 +1,51 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.motherboard;
+
+/**
+ * An <code>IODevice</code> that can move a run of string I/O (<code>rep insw</code>,
+ * <code>rep outsd</code> and the like) in one call.
+ * <p>
+ * Data is little endian in the buffer. Each method returns the number of
+ * elements it actually transferred, which may be fewer than requested (for
+ * example at the end of a transfer); the remainder is then carried out one
+ * element at a time through the normal port accessors.
+ */
+public interface BlockIODevice extends IODevice {
+
+    int ioPortReadBlock16(int address, byte[] buffer, int offset, int count);
+
+    int ioPortReadBlock32(int address, byte[] buffer, int offset, int count);
+
+    int ioPortWriteBlock16(int address, byte[] buffer, int offset, int count);
+
+    int ioPortWriteBlock32(int address, byte[] buffer, int offset, int count);
+}
@@ -0,0 +1,46 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.motherboard;
+
+/**
+ * A handler for one access width on one or more ioports.
+ * <p>
+ * Devices that implement <code>BindableIODevice</code> hand these out so that
+ * the <code>IOPortHandler</code> can dispatch straight to the code for a given
+ * port and width, rather than through the device's generic
+ * <code>IODevice</code> methods which then switch on the port again.
+ */
+public abstract class IOPort {
+
+    public abstract int read(int address);
+
+    public abstract void write(int address, int data);
+}
@@ -39,51 +39,162 @@ import org.jpc.emulator.AbstractHardwareComponent;
  * This class holds the map between ioport addresses and <code>IODevice</code> objects. Unmapped
  * ports are redirected to an unconnected inner class instance whose data lines float high, and on
  * which writes fail silently.
+ * <p>
+ * Accesses are dispatched through a table of <code>IOPort</code> handlers per access width. Devices
+ * implementing <code>BindableIODevice</code> can supply their own handler for individual ports and
+ * widths, all other ports get a handler that forwards to the device's <code>IODevice</code> methods.
  * @author Chris Dennis
  */
 public class IOPortHandler extends AbstractHardwareComponent implements IODevice {
     private static final int MAX_IOPORTS = 65536;
+    /** Size of the buffer handed out by <code>getStringBuffer</code>, one page. */
+    public static final int STRING_BUFFER_SIZE = 0x1000;
     private static final IODevice defaultDevice = new UnconnectedIOPort();
+    private static final IOPort defaultPort8 = new DeviceIOPort8(defaultDevice);
+    private static final IOPort defaultPort16 = new DeviceIOPort16(defaultDevice);
+    private static final IOPort defaultPort32 = new DeviceIOPort32(defaultDevice);
     private IODevice[] ioPortDevice;
+    private IOPort[] ioPort8, ioPort16, ioPort32;
+    private final byte[] stringBuffer = new byte[STRING_BUFFER_SIZE];
 
     /**
      * Constructs a new <code>IOPortHandler</code> with an initially empty ioport mapping. All ioports
      * map to the unconnected instance.
      */
     public IOPortHandler() {
+        clearMappings();
+    }
+
+    private void clearMappings() {
         ioPortDevice = new IODevice[MAX_IOPORTS];
-        for (int i = 0; i < ioPortDevice.length; i++)
-            ioPortDevice[i] = defaultDevice;
+        ioPort8 = new IOPort[MAX_IOPORTS];
+        ioPort16 = new IOPort[MAX_IOPORTS];
+        ioPort32 = new IOPort[MAX_IOPORTS];
+        for (int i = 0; i < MAX_IOPORTS; i++)
+            unmap(i);
+    }
+
+    private void unmap(int port) {
+        ioPortDevice[port] = defaultDevice;
+        ioPort8[port] = defaultPort8;
+        ioPort16[port] = defaultPort16;
+        ioPort32[port] = defaultPort32;
     }
 
     @Override
     public int ioPortRead8(int address) {
-        return ioPortDevice[address].ioPortRead8(address);
+        return ioPort8[address].read(address);
     }
 
     @Override
     public int ioPortRead16(int address) {
-        return ioPortDevice[address].ioPortRead16(address);
+        return ioPort16[address].read(address);
     }
 
     @Override
     public int ioPortRead32(int address) {
-        return ioPortDevice[address].ioPortRead32(address);
+        return ioPort32[address].read(address);
     }
 
     @Override
     public void ioPortWrite8(int address, int data) {
-        ioPortDevice[address].ioPortWrite8(address, data);
+        ioPort8[address].write(address, data);
     }
 
     @Override
     public void ioPortWrite16(int address, int data) {
-        ioPortDevice[address].ioPortWrite16(address, data);
+        ioPort16[address].write(address, data);
     }
 
     @Override
     public void ioPortWrite32(int address, int data) {
-        ioPortDevice[address].ioPortWrite32(address, data);
+        ioPort32[address].write(address, data);
+    }
+
+    /**
+     * Returns the scratch buffer that repeated string ioport instructions stage their data in. The
+     * processor runs one instruction at a time, so a single buffer per handler is enough.
+     * @return buffer of <code>STRING_BUFFER_SIZE</code> bytes
+     */
+    public byte[] getStringBuffer() {
+        return stringBuffer;
+    }
+
+    /**
+     * Reads <code>count</code> words from an ioport into <code>buffer</code> in little endian order.
+     * @param address ioport address
+     * @param buffer destination
+     * @param offset first byte written in buffer
+     * @param count number of words to read
+     */
+    public void ioPortReadBlock16(int address, byte[] buffer, int offset, int count) {
+        IODevice device = ioPortDevice[address];
+        int done = 0;
+        if (device instanceof BlockIODevice)
+            done = ((BlockIODevice)device).ioPortReadBlock16(address, buffer, offset, count);
+        IOPort port = ioPort16[address];
+        for (int i = offset + 2 * done; done < count; done++) {
+            int data = port.read(address);
+            buffer[i++] = (byte)data;
+            buffer[i++] = (byte)(data >>> 8);
+        }
+    }
+
+    /**
+     * Reads <code>count</code> double words from an ioport into <code>buffer</code> in little endian order.
+     * @param address ioport address
+     * @param buffer destination
+     * @param offset first byte written in buffer
+     * @param count number of double words to read
+     */
+    public void ioPortReadBlock32(int address, byte[] buffer, int offset, int count) {
+        IODevice device = ioPortDevice[address];
+        int done = 0;
+        if (device instanceof BlockIODevice)
+            done = ((BlockIODevice)device).ioPortReadBlock32(address, buffer, offset, count);
+        IOPort port = ioPort32[address];
+        for (int i = offset + 4 * done; done < count; done++) {
+            int data = port.read(address);
+            buffer[i++] = (byte)data;
+            buffer[i++] = (byte)(data >>> 8);
+            buffer[i++] = (byte)(data >>> 16);
+            buffer[i++] = (byte)(data >>> 24);
+        }
+    }
+
+    /**
+     * Writes <code>count</code> little endian words from <code>buffer</code> to an ioport.
+     * @param address ioport address
+     * @param buffer source
+     * @param offset first byte read from buffer
+     * @param count number of words to write
+     */
+    public void ioPortWriteBlock16(int address, byte[] buffer, int offset, int count) {
+        IODevice device = ioPortDevice[address];
+        int done = 0;
+        if (device instanceof BlockIODevice)
+            done = ((BlockIODevice)device).ioPortWriteBlock16(address, buffer, offset, count);
+        IOPort port = ioPort16[address];
+        for (int i = offset + 2 * done; done < count; done++, i += 2)
+            port.write(address, 0xff & buffer[i] | (0xff & buffer[i + 1]) << 8);
+    }
+
+    /**
+     * Writes <code>count</code> little endian double words from <code>buffer</code> to an ioport.
+     * @param address ioport address
+     * @param buffer source
+     * @param offset first byte read from buffer
+     * @param count number of double words to write
+     */
+    public void ioPortWriteBlock32(int address, byte[] buffer, int offset, int count) {
+        IODevice device = ioPortDevice[address];
+        int done = 0;
+        if (device instanceof BlockIODevice)
+            done = ((BlockIODevice)device).ioPortWriteBlock32(address, buffer, offset, count);
+        IOPort port = ioPort32[address];
+        for (int i = offset + 4 * done; done < count; done++, i += 4)
+            port.write(address, 0xff & buffer[i] | (0xff & buffer[i + 1]) << 8 | (0xff & buffer[i + 2]) << 16
+                | (0xff & buffer[i + 3]) << 24);
     }
 
     @Override
@@ -95,19 +206,36 @@ public class IOPortHandler extends AbstractHardwareComponent implements IODevice
      * Map an <code>IODevice</code> device into this handler.
      * <p>
      * The range of ioports requested by this device are registered with the handler. Each individual
-     * port is registered only if that port is currently unconnected.
+     * port is registered only if that port is currently unconnected. If the device is a
+     * <code>BindableIODevice</code> its specialised handlers are bound for each port and width it
+     * supplies.
      * @param device object to be mapped.
      */
     public void registerIOPortCapable(IODevice device) {
         int[] portArray = device.ioPortsRequested();
         if (portArray == null)
             return;
+        IOPort port8 = new DeviceIOPort8(device);
+        IOPort port16 = new DeviceIOPort16(device);
+        IOPort port32 = new DeviceIOPort32(device);
+        BindableIODevice bindable = device instanceof BindableIODevice ? (BindableIODevice)device : null;
         for (int port : portArray) {
-            if (ioPortDevice[port] == defaultDevice)
-                ioPortDevice[port] = device;
+            if (ioPortDevice[port] != defaultDevice)
+                continue;
+            ioPortDevice[port] = device;
+            ioPort8[port] = bind(bindable, port, 8, port8);
+            ioPort16[port] = bind(bindable, port, 16, port16);
+            ioPort32[port] = bind(bindable, port, 32, port32);
         }
     }
 
+    private static IOPort bind(BindableIODevice device, int address, int width, IOPort generic) {
+        if (device == null)
+            return generic;
+        IOPort specific = device.getIOPort(address, width);
+        return specific == null ? generic : specific;
+    }
+
     /**
      * Unmap an <code>IODevice</code> device from this handler.
      * <p>
@@ -119,15 +247,13 @@ public class IOPortHandler extends AbstractHardwareComponent implements IODevice
         int[] portArray = device.ioPortsRequested();
         for (int port : portArray) {
             if (ioPortDevice[port] == device)
-                ioPortDevice[port] = defaultDevice;
+                unmap(port);
         }
     }
 
     @Override
     public void reset() {
-        ioPortDevice = new IODevice[MAX_IOPORTS];
-        for (int i = 0; i < ioPortDevice.length; i++)
-            ioPortDevice[i] = defaultDevice;
+        clearMappings();
     }
 
     @Override
@@ -135,6 +261,60 @@ public class IOPortHandler extends AbstractHardwareComponent implements IODevice
         return "IOPort Bus";
     }
 
+    private static class DeviceIOPort8 extends IOPort {
+        private final IODevice device;
+
+        DeviceIOPort8(IODevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public int read(int address) {
+            return device.ioPortRead8(address);
+        }
+
+        @Override
+        public void write(int address, int data) {
+            device.ioPortWrite8(address, data);
+        }
+    }
+
+    private static class DeviceIOPort16 extends IOPort {
+        private final IODevice device;
+
+        DeviceIOPort16(IODevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public int read(int address) {
+            return device.ioPortRead16(address);
+        }
+
+        @Override
+        public void write(int address, int data) {
+            device.ioPortWrite16(address, data);
+        }
+    }
+
+    private static class DeviceIOPort32 extends IOPort {
+        private final IODevice device;
+
+        DeviceIOPort32(IODevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public int read(int address) {
+            return device.ioPortRead32(address);
+        }
+
+        @Override
+        public void write(int address, int data) {
+            device.ioPortWrite32(address, data);
+        }
+    }
+
     private static class UnconnectedIOPort implements IODevice {
 
         @Override
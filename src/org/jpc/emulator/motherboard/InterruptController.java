@@ -59,6 +59,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
     private InterruptControllerElement slave;
 
     private Processor connectedCPU;
+    private int pendingIRQ = -1; //master line delivered next, kept in step with irr, imr and isr
 
     /**
      * Constructs a <code>InterruptController</code> which will attach itself to a
@@ -81,6 +82,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
         ioportRegistered = false;
         master.loadState(input);
         slave.loadState(input);
+        updatePendingIRQ();
     }
 
     public int getIRQ0Vector() {
@@ -108,18 +110,20 @@ public class InterruptController extends AbstractHardwareComponent implements IO
         return master.interruptRequestRegister;
     }
 
+    private void updatePendingIRQ() {
+        pendingIRQ = master.getIRQ();
+    }
+
     private void updateIRQ() {
-        int slaveIRQ, masterIRQ;
         /* first look at slave irq */
-        slaveIRQ = slave.getIRQ();
-        if (slaveIRQ >= 0) {
+        if (slave.getIRQ() >= 0) {
             /* if irq request by slave pic, signal Master PIC */
             master.setIRQ(2, 1);
             master.setIRQ(2, 0);
         }
         /* look at requested IRQ */
-        masterIRQ = master.getIRQ();
-        if (masterIRQ >= 0) {
+        updatePendingIRQ();
+        if (pendingIRQ >= 0) {
             connectedCPU.raiseInterrupt();
         }
     }
@@ -154,7 +158,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
 
         /* read the irq from the PIC */
 
-        masterIRQ = master.getIRQ();
+        masterIRQ = pendingIRQ;
         if (masterIRQ >= 0) {
             master.intAck(masterIRQ);
             if (masterIRQ == 2) {
@@ -184,6 +188,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
         private int interruptRequestRegister;
         private int interruptMaskRegister;
         private int interruptServiceRegister;
+        private int pendingRequests; //requested and not masked, kept in step with irr and imr
 
         private int priorityAdd; // highest IRQ priority
         private int irqBase;
@@ -241,6 +246,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
             interruptRequestRegister = input.readInt();
             interruptMaskRegister = input.readInt();
             interruptServiceRegister = input.readInt();
+            updatePendingRequests();
             priorityAdd = input.readInt();
             irqBase = input.readInt();
             readRegisterSelect = input.readBoolean();
@@ -348,6 +354,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
                 case 0:
                     /* normal mode */
                     interruptMaskRegister = data;
+                    updatePendingRequests();
                     return true;
                 case 1:
                     irqBase = data & 0xf8;
@@ -387,8 +394,11 @@ public class InterruptController extends AbstractHardwareComponent implements IO
             }
             interruptRequestRegister &= ~(1 << ret);
             interruptServiceRegister &= ~(1 << ret);
+            updatePendingRequests();
             if (0 != address >>> 7 || ret != 2)
                 InterruptController.this.updateIRQ();
+            else
+                InterruptController.this.updatePendingIRQ();
             return ret;
         }
 
@@ -416,27 +426,30 @@ public class InterruptController extends AbstractHardwareComponent implements IO
                     lastInterruptRequestRegister &= ~mask;
                 }
             }
+            updatePendingRequests();
+        }
+
+        private void updatePendingRequests() {
+            pendingRequests = interruptRequestRegister & ~interruptMaskRegister & 0xff;
         }
 
         private int getPriority(int mask) {
-            if ((0xff & mask) == 0) {
+            mask &= 0xff;
+            if (mask == 0) {
                 return 8;
             }
-            int priority = 0;
-            while ((mask & 1 << (priority + priorityAdd & 7)) == 0) {
-                priority++;
-            }
-            return priority;
+            /* rotate so that the highest priority line lands on bit 0 */
+            int rotated = (mask >>> priorityAdd | mask << (8 - priorityAdd)) & 0xff;
+            return Integer.numberOfTrailingZeros(rotated);
         }
 
         public int getIRQ() {
             int mask, currentPriority, priority;
 
-            mask = interruptRequestRegister & ~interruptMaskRegister;
-            priority = this.getPriority(mask);
-            if (priority == 8) {
+            if (pendingRequests == 0) {
                 return -1;
             }
+            priority = this.getPriority(pendingRequests);
             /* compute current priority. If special fully nested mode on
             the master, the IRQ coming from the slave is not taken into
             account for the priority computation. */
@@ -462,8 +475,10 @@ public class InterruptController extends AbstractHardwareComponent implements IO
                 interruptServiceRegister |= 1 << irqNumber;
             }
             /* We don't clear a level sensitive interrupt here */
-            if (0 == (elcr & 1 << irqNumber))
+            if (0 == (elcr & 1 << irqNumber)) {
                 interruptRequestRegister &= ~(1 << irqNumber);
+                updatePendingRequests();
+            }
         }
 
         private boolean isMaster() {
@@ -476,6 +491,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
             interruptRequestRegister = 0x0;
             interruptMaskRegister = 0x0;
             interruptServiceRegister = 0x0;
+            pendingRequests = 0x0;
 
             priorityAdd = 0;
             irqBase = 0x0;
@@ -551,6 +567,8 @@ public class InterruptController extends AbstractHardwareComponent implements IO
         case 0x21:
             if (master.ioPortWrite(address, (byte)data))
                 this.updateIRQ();
+            else
+                this.updatePendingIRQ();
             break;
         case 0xa0:
         case 0xa1:
@@ -584,6 +602,8 @@ public class InterruptController extends AbstractHardwareComponent implements IO
     private void masterPollCode() {
         master.interruptServiceRegister &= ~(1 << 2);
         master.interruptRequestRegister &= ~(1 << 2);
+        master.updatePendingRequests();
+        updatePendingIRQ();
     }
 
     private boolean ioportRegistered;
@@ -592,6 +612,7 @@ public class InterruptController extends AbstractHardwareComponent implements IO
     public void reset() {
         master.reset();
         slave.reset();
+        pendingIRQ = -1;
 
         ioportRegistered = false;
         connectedCPU = null;
@@ -3,11 +3,16 @@ package org.jpc.emulator.pci;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 
+import org.jpc.emulator.FrameListener;
 import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.Monitor;
 import org.jpc.emulator.motherboard.IODevice;
 
 public interface VGACard extends HardwareComponent, IODevice, PCIDevice {
+    void addFrameListener(FrameListener listener);
+
+    void removeFrameListener(FrameListener listener);
+
     int[] getDisplayBuffer();
 
     Dimension getDisplaySize();
@@ -16,13 +21,11 @@ public interface VGACard extends HardwareComponent, IODevice, PCIDevice {
 
     void paintOnMonitor(Graphics2D g);
 
-    void prepareUpdate();
+    boolean renderFrame(long timeout) throws InterruptedException;
 
     void resizeDisplay(int width, int height);
 
     void setMonitor(Monitor monitor);
 
     void setOriginalDisplaySize();
-
-    void updateDisplay();
 }
@@ -50,6 +50,8 @@ class BMDMAIORegion implements IOPortIORegion, Hibernatable {
     private static final int BM_STATUS_INT = 0x04;
     private static final int BM_CMD_START = 0x01;
     private static final int BM_CMD_READ = 0x08;
+    /* the descriptor table may not cross a 64K boundary */
+    private static final int MAX_PRD_ENTRIES = 0x10000 / 8;
 
     private int baseAddress;
     private long size;
@@ -99,6 +101,91 @@ class BMDMAIORegion implements IOPortIORegion, Hibernatable {
         physicalMemory.copyArrayIntoContents(address, buffer, offset, length);
     }
 
+    /**
+     * Returns the byte count of a physical region descriptor. A region may not cross a 64K boundary,
+     * so a malformed entry is clipped at the boundary rather than let run on into the next block.
+     */
+    private static int regionLength(int prdAddress, int prdSize) {
+        int length = prdSize & 0xfffe;
+        if (length == 0)
+            length = 0x10000;
+        return Math.min(length, 0x10000 - (prdAddress & 0xffff));
+    }
+
+    /**
+     * Steps to the next descriptor. The table may not cross a 64K boundary either, and the descriptor
+     * pointer wraps within its block as the controller's does.
+     */
+    private static int nextEntry(int currentAddress) {
+        return currentAddress & ~0xffff | currentAddress + 8 & 0xffff;
+    }
+
+    /**
+     * Reads the physical region descriptor table of the current transfer, up to and including the
+     * entry marked end of table.
+     * @return address and byte count of each region, in pairs
+     */
+    int[] getPhysicalRegions() {
+        int[] regions = new int[16];
+        int count = 0;
+        int currentAddress = this.address;
+        for (int i = 0; i < MAX_PRD_ENTRIES; i++) {
+            int prdAddress = physicalMemory.getDoubleWord(currentAddress);
+            int prdSize = physicalMemory.getDoubleWord(currentAddress + 4);
+            int length = regionLength(prdAddress, prdSize);
+            if (count == regions.length) {
+                int[] temp = new int[2 * count];
+                System.arraycopy(regions, 0, temp, 0, count);
+                regions = temp;
+            }
+            regions[count++] = prdAddress;
+            regions[count++] = length;
+            if ((prdSize & 0x80000000) != 0)
+                break;
+            currentAddress = nextEntry(currentAddress);
+        }
+        int[] result = new int[count];
+        System.arraycopy(regions, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Copies the first <code>length</code> bytes of <code>buffer</code> to the given physical regions
+     * in turn, with one block copy per region.
+     * @param regions address and byte count pairs
+     * @param buffer source
+     * @param length number of bytes to copy
+     */
+    void scatter(int[] regions, byte[] buffer, int length) {
+        for (int i = 0, offset = 0; i < regions.length && offset < length; i += 2) {
+            int n = Math.min(regions[i + 1], length - offset);
+            physicalMemory.copyArrayIntoContents(regions[i], buffer, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Fills the first <code>length</code> bytes of <code>buffer</code> from the given physical
+     * regions in turn, with one block copy per region.
+     * @param regions address and byte count pairs
+     * @param buffer destination
+     * @param length number of bytes to copy
+     */
+    void gather(int[] regions, byte[] buffer, int length) {
+        for (int i = 0, offset = 0; i < regions.length && offset < length; i += 2) {
+            int n = Math.min(regions[i + 1], length - offset);
+            physicalMemory.copyContentsIntoArray(regions[i], buffer, offset, n);
+            offset += n;
+        }
+    }
+
+    static int getByteCount(int[] regions) {
+        int total = 0;
+        for (int i = 1; i < regions.length; i += 2)
+            total += regions[i];
+        return total;
+    }
+
     void setIDEDevice(IDEChannel.IDEState device) {
         this.ideDevice = device;
     }
@@ -262,22 +349,21 @@ class BMDMAIORegion implements IOPortIORegion, Hibernatable {
     }
 
     void ideDMALoop() {
+        if (ideDMAFunction == IDEChannel.IDEState.IDF_READ_DMA_CB || ideDMAFunction == IDEChannel.IDEState.IDF_WRITE_DMA_CB) {
+            /* hard disk transfers move the whole table at once, and end the transfer themselves */
+            ideDevice.sectorDMA(ideDMAFunction == IDEChannel.IDEState.IDF_WRITE_DMA_CB, getPhysicalRegions());
+            return;
+        }
         int currentAddress = this.address;
-        /* at most one page to avoid hanging if erroneous parameters */
-        for (int i = 0; i < 512; i++) {
+        for (int i = 0; i < MAX_PRD_ENTRIES; i++) {
             int prdAddress = physicalMemory.getDoubleWord(currentAddress);
             int prdSize = physicalMemory.getDoubleWord(currentAddress + 4);
-            int length = prdSize & 0xfffe;
-            if (length == 0)
-                length = 0x10000;
+            int length = regionLength(prdAddress, prdSize);
             while (length > 0) {
                 int lengthOne = this.ideDevice.dmaCallback(ideDMAFunction, prdAddress, length);
                 if (lengthOne == 0) {
                     /* end of transfer */
-                    this.status &= ~BM_STATUS_DMAING;
-                    this.status |= BM_STATUS_INT;
-                    this.ideDMAFunction = IDEChannel.IDEState.IDF_NONE;
-                    this.ideDevice = null;
+                    endTransfer();
                     return;
                 }
                 prdAddress += lengthOne;
@@ -286,9 +372,15 @@ class BMDMAIORegion implements IOPortIORegion, Hibernatable {
             /* end of transfer */
             if ((prdSize & 0x80000000) != 0)
                 break;
-            currentAddress += 8;
+            currentAddress = nextEntry(currentAddress);
         }
-        /* end of transfer */
+        endTransfer();
+    }
+
+    /**
+     * Stops the bus master at the end of a transfer and flags its interrupt.
+     */
+    void endTransfer() {
         this.status &= ~BM_STATUS_DMAING;
         this.status |= BM_STATUS_INT;
         this.ideDMAFunction = IDEChannel.IDEState.IDF_NONE;
@@ -0,0 +1,1526 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.pci.peripheral;
+
+import java.awt.Dimension;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.HardwareComponent;
+import org.jpc.emulator.memory.Memory;
+import org.jpc.emulator.memory.PhysicalAddressSpace;
+import org.jpc.emulator.pci.IORegion;
+import org.jpc.emulator.pci.MemoryMappedIORegion;
+import org.jpc.emulator.processor.Processor;
+
+/**
+ * Cirrus Logic CL-GD5446 compatible SVGA card.
+ * <p>
+ * The standard VGA and Bochs VBE behaviour is inherited from <code>DefaultVGACard</code>; this class
+ * adds the Cirrus extension registers, banked and linear access to 4MB of video memory, the hardware
+ * cursor and the 2D BitBLT engine. Blits are run as whole-scanline operations on the video RAM
+ * array with the dirty pages of each destination scanline marked once.
+ */
+public class CirrusVGACard extends DefaultVGACard {
+    private static final Logger LOGGING = Logger.getLogger(CirrusVGACard.class.getName());
+
+    private static final int CIRRUS_VENDOR_ID = 0x1013;
+    private static final int CIRRUS_ID_CLGD5446 = 0x00b8;
+
+    private static final int VRAM_SIZE = 4 * 1024 * 1024;
+    private static final int VRAM_MASK = VRAM_SIZE - 1;
+    private static final int LINEAR_SIZE = 32 * 1024 * 1024;
+    private static final int LINEAR_BITBLT_START = 16 * 1024 * 1024;
+    private static final int LINEAR_MMIO_MASK = VRAM_SIZE - 256;
+    private static final int MMIO_SIZE = 4096;
+    private static final int BLT_BUFFER_SIZE = 8192;
+    private static final int CURSOR_BASE = VRAM_SIZE - 16384;
+    private static final int VBE_LFB_ADDRESS = 0xe0000000;
+
+    private static final int BLT_BUSY = 0x01;
+    private static final int BLT_START = 0x02;
+    private static final int BLT_RESET = 0x04;
+    private static final int BLT_FIFOUSED = 0x10;
+    private static final int BLT_AUTOSTART = 0x80;
+
+    private static final int BLTMODE_BACKWARDS = 0x01;
+    private static final int BLTMODE_MEMSYSDEST = 0x02;
+    private static final int BLTMODE_MEMSYSSRC = 0x04;
+    private static final int BLTMODE_TRANSPARENTCOMP = 0x08;
+    private static final int BLTMODE_PIXELWIDTHMASK = 0x30;
+    private static final int BLTMODE_PATTERNCOPY = 0x40;
+    private static final int BLTMODE_COLOREXPAND = 0x80;
+
+    private static final int BLTMODEEXT_DWORDGRANULARITY = 0x01;
+    private static final int BLTMODEEXT_COLOREXPINV = 0x02;
+    private static final int BLTMODEEXT_SOLIDFILL = 0x04;
+
+    private static final int ROP_0 = 0x00;
+    private static final int ROP_SRC_AND_DST = 0x05;
+    private static final int ROP_NOP = 0x06;
+    private static final int ROP_SRC_AND_NOTDST = 0x09;
+    private static final int ROP_NOTDST = 0x0b;
+    private static final int ROP_SRC = 0x0d;
+    private static final int ROP_1 = 0x0e;
+    private static final int ROP_NOTSRC_AND_DST = 0x50;
+    private static final int ROP_SRC_XOR_DST = 0x59;
+    private static final int ROP_SRC_OR_DST = 0x6d;
+    private static final int ROP_NOTSRC_OR_NOTDST = 0x90;
+    private static final int ROP_SRC_NOTXOR_DST = 0x95;
+    private static final int ROP_SRC_OR_NOTDST = 0xad;
+    private static final int ROP_NOTSRC = 0xd0;
+    private static final int ROP_NOTSRC_OR_DST = 0xd6;
+    private static final int ROP_NOTSRC_AND_NOTDST = 0xda;
+
+    private static final int SR_INDEX_EXTENDED_MODE = 0x07;
+    private static final int SR_INDEX_CURSOR_ATTRIBUTES = 0x12;
+    private static final int SR_INDEX_CURSOR_PATTERN = 0x13;
+    private static final int SR_INDEX_CONFIGURATION = 0x17;
+    private static final int GR_INDEX_EXTENSIONS = 0x0b;
+
+    /* graphics register behind each byte of the memory mapped BitBLT register block */
+    private static final int[] mmioToGraphicsRegister = new int[256];
+    static {
+        Arrays.fill(mmioToGraphicsRegister, -1);
+        int[] map = {
+            0x00, 0x00, 0x01, 0x10, 0x02, 0x12, 0x03, 0x14, // background colour
+            0x04, 0x01, 0x05, 0x11, 0x06, 0x13, 0x07, 0x15, // foreground colour
+            0x08, 0x20, 0x09, 0x21, 0x0a, 0x22, 0x0b, 0x23, // width, height
+            0x0c, 0x24, 0x0d, 0x25, 0x0e, 0x26, 0x0f, 0x27, // destination and source pitch
+            0x10, 0x28, 0x11, 0x29, 0x12, 0x2a, // destination address
+            0x14, 0x2c, 0x15, 0x2d, 0x16, 0x2e, // source address
+            0x17, 0x2f, 0x18, 0x30, 0x1a, 0x32, 0x1b, 0x33, // write mask, mode, rop, mode extensions
+            0x1c, 0x34, 0x1d, 0x35, 0x20, 0x38, 0x21, 0x39, // transparent colour and mask
+            0x40, 0x31 }; // status and start
+        for (int i = 0; i < map.length; i += 2)
+            mmioToGraphicsRegister[map[i]] = map[i + 1];
+    }
+
+    private int sequencerIndex, graphicsIndex, crtIndex;
+    private int[] extSequencer, extGraphics, extCRT;
+    private int shadowGR0, shadowGR1, graphicsMode;
+    private int hiddenDacLockIndex, hiddenDacData;
+    private int hiddenWriteIndex, hiddenSubIndex;
+    private int[] hiddenPalette;
+    private int cursorX, cursorY;
+    private int lastCursorY, lastCursorSize;
+    private int[] bankBase, bankLimit;
+
+    private int bltWidth, bltHeight, bltDstPitch, bltSrcPitch, bltDstAddr, bltSrcAddr;
+    private int bltMode, bltModeExt, bltRop, bltPixelWidth, bltFgColor, bltBgColor;
+    private boolean bltCpuSource;
+    private int bltBufferPos, bltBufferEnd, bltSourceCounter;
+    private byte[] bltBuffer;
+    private byte[] rowBuffer, overlapBuffer;
+
+    private CirrusLowMemoryRegion lowRegion;
+    private CirrusLinearRegion linearRegion;
+    private CirrusMMIORegion mmioRegion;
+
+    public CirrusVGACard() {
+        this(false);
+    }
+
+    /**
+     * Creates a card, or a render copy whose video RAM is only allocated as far as it is used.
+     * @param renderCopy <code>true</code> for a card that only renders snapshots of another
+     */
+    protected CirrusVGACard(boolean renderCopy) {
+        super(renderCopy);
+        lowRegion = new CirrusLowMemoryRegion();
+        linearRegion = new CirrusLinearRegion();
+        mmioRegion = new CirrusMMIORegion();
+        bltBuffer = new byte[BLT_BUFFER_SIZE];
+        rowBuffer = new byte[256];
+        overlapBuffer = new byte[256];
+
+        putCirrusConfig();
+        cirrusReset();
+    }
+
+    private void putCirrusConfig() {
+        putConfigWord(PCI_CONFIG_VENDOR_ID, (short)CIRRUS_VENDOR_ID);
+        putConfigWord(PCI_CONFIG_DEVICE_ID, (short)CIRRUS_ID_CLGD5446);
+        putConfigWord(PCI_CONFIG_CLASS_DEVICE, (short)0x0300); // VGA Controller
+        putConfigByte(PCI_CONFIG_HEADER, (byte)0x00); // header_type
+    }
+
+    private void cirrusReset() {
+        sequencerIndex = graphicsIndex = crtIndex = 0;
+        extSequencer = new int[0x20];
+        extGraphics = new int[0x40];
+        extCRT = new int[0x40];
+        shadowGR0 = shadowGR1 = graphicsMode = 0;
+        hiddenDacLockIndex = hiddenDacData = 0;
+        hiddenWriteIndex = hiddenSubIndex = 0;
+        hiddenPalette = new int[48];
+        cursorX = cursorY = 0;
+        lastCursorY = lastCursorSize = 0;
+        bankBase = new int[2];
+        bankLimit = new int[2];
+
+        extSequencer[0x06] = 0x0f; // extensions locked
+        extSequencer[0x0f] = 0x98; // 4MB, 64 bit memory bus
+        extSequencer[0x15] = 0x04; // memory size in MB
+        extSequencer[SR_INDEX_CONFIGURATION] = 0x20; // PCI bus
+        extSequencer[0x1f] = 0x2d; // memory clock
+        extGraphics[0x18] = 0x0f; // fastest memory timing
+        extCRT[0x27] = CIRRUS_ID_CLGD5446;
+
+        updateBanks();
+        bltReset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        putCirrusConfig();
+        cirrusReset();
+    }
+
+    @Override
+    public void saveState(DataOutput output) throws IOException {
+        super.saveState(output);
+        output.writeInt(sequencerIndex);
+        output.writeInt(graphicsIndex);
+        output.writeInt(crtIndex);
+        writeArray(output, extSequencer);
+        writeArray(output, extGraphics);
+        writeArray(output, extCRT);
+        output.writeInt(shadowGR0);
+        output.writeInt(shadowGR1);
+        output.writeInt(graphicsMode);
+        output.writeInt(hiddenDacLockIndex);
+        output.writeInt(hiddenDacData);
+        output.writeInt(hiddenWriteIndex);
+        output.writeInt(hiddenSubIndex);
+        writeArray(output, hiddenPalette);
+        output.writeInt(cursorX);
+        output.writeInt(cursorY);
+        output.writeInt(bltWidth);
+        output.writeInt(bltHeight);
+        output.writeInt(bltDstPitch);
+        output.writeInt(bltSrcPitch);
+        output.writeInt(bltDstAddr);
+        output.writeInt(bltSrcAddr);
+        output.writeInt(bltMode);
+        output.writeInt(bltModeExt);
+        output.writeInt(bltRop);
+        output.writeInt(bltPixelWidth);
+        output.writeInt(bltFgColor);
+        output.writeInt(bltBgColor);
+        output.writeBoolean(bltCpuSource);
+        output.writeInt(bltBufferPos);
+        output.writeInt(bltBufferEnd);
+        output.writeInt(bltSourceCounter);
+        output.write(bltBuffer);
+        output.writeInt(linearRegion.getAddress());
+        output.writeInt(mmioRegion.getAddress());
+    }
+
+    @Override
+    public void loadState(DataInput input) throws IOException {
+        super.loadState(input);
+        sequencerIndex = input.readInt();
+        graphicsIndex = input.readInt();
+        crtIndex = input.readInt();
+        extSequencer = readArray(input);
+        extGraphics = readArray(input);
+        extCRT = readArray(input);
+        shadowGR0 = input.readInt();
+        shadowGR1 = input.readInt();
+        graphicsMode = input.readInt();
+        hiddenDacLockIndex = input.readInt();
+        hiddenDacData = input.readInt();
+        hiddenWriteIndex = input.readInt();
+        hiddenSubIndex = input.readInt();
+        hiddenPalette = readArray(input);
+        cursorX = input.readInt();
+        cursorY = input.readInt();
+        bltWidth = input.readInt();
+        bltHeight = input.readInt();
+        bltDstPitch = input.readInt();
+        bltSrcPitch = input.readInt();
+        bltDstAddr = input.readInt();
+        bltSrcAddr = input.readInt();
+        bltMode = input.readInt();
+        bltModeExt = input.readInt();
+        bltRop = input.readInt();
+        bltPixelWidth = input.readInt();
+        bltFgColor = input.readInt();
+        bltBgColor = input.readInt();
+        bltCpuSource = input.readBoolean();
+        bltBufferPos = input.readInt();
+        bltBufferEnd = input.readInt();
+        bltSourceCounter = input.readInt();
+        input.readFully(bltBuffer);
+        linearRegion.setAddress(input.readInt());
+        mmioRegion.setAddress(input.readInt());
+        updateBanks();
+    }
+
+    private static void writeArray(DataOutput output, int[] array) throws IOException {
+        output.writeInt(array.length);
+        for (int element : array)
+            output.writeInt(element);
+    }
+
+    private static int[] readArray(DataInput input) throws IOException {
+        int[] array = new int[input.readInt()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = input.readInt();
+        return array;
+    }
+
+    //PCIDevice Methods
+    @Override
+    public IORegion[] getIORegions() {
+        return new IORegion[] { linearRegion, mmioRegion };
+    }
+
+    @Override
+    public IORegion getIORegion(int index) {
+        switch (index) {
+        case 0:
+            return linearRegion;
+        case 1:
+            return mmioRegion;
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public void acceptComponent(HardwareComponent component) {
+        super.acceptComponent(component);
+        if (component instanceof PhysicalAddressSpace && component.initialised())
+            mapVBEFrameBuffer((PhysicalAddressSpace)component);
+    }
+
+    @Override
+    public void updateComponent(HardwareComponent component) {
+        super.updateComponent(component);
+        if (component instanceof PhysicalAddressSpace && component.updated())
+            mapVBEFrameBuffer((PhysicalAddressSpace)component);
+    }
+
+    /**
+     * The Bochs VGA BIOS reports its VBE linear frame buffer at a fixed address, while the PCI BIOS
+     * places BAR 0 elsewhere, so the frame buffer is also visible where the VBE modes expect it.
+     */
+    private void mapVBEFrameBuffer(PhysicalAddressSpace memory) {
+        memory.mapMemoryRegion(linearRegion, VBE_LFB_ADDRESS, LINEAR_BITBLT_START);
+    }
+
+    @Override
+    protected Memory getLowMemoryRegion() {
+        return lowRegion;
+    }
+
+    //IODevice Methods
+    @Override
+    public void ioPortWrite8(int address, int data) {
+        markDisplayChanged();
+        switch (address) {
+        case 0x3c4:
+            sequencerIndex = data;
+            super.ioPortWrite8(address, data);
+            return;
+        case 0x3c5:
+            if (sequencerIndex < 5)
+                super.ioPortWrite8(address, data);
+            else
+                writeSequencer(data);
+            return;
+        case 0x3c6:
+            if (hiddenDacLockIndex == 4)
+                hiddenDacData = data;
+            hiddenDacLockIndex = 0;
+            return;
+        case 0x3c7:
+            hiddenDacLockIndex = 0;
+            break;
+        case 0x3c8:
+            hiddenDacLockIndex = 0;
+            hiddenWriteIndex = data;
+            hiddenSubIndex = 0;
+            break;
+        case 0x3c9:
+            hiddenDacLockIndex = 0;
+            if ((extSequencer[SR_INDEX_CURSOR_ATTRIBUTES] & 0x02) != 0) {
+                hiddenPalette[(hiddenWriteIndex & 0x0f) * 3 + hiddenSubIndex] = data;
+                if (++hiddenSubIndex == 3) {
+                    hiddenSubIndex = 0;
+                    hiddenWriteIndex++;
+                }
+                return;
+            }
+            break;
+        case 0x3ce:
+            graphicsIndex = data & 0x3f;
+            break;
+        case 0x3cf:
+            if (graphicsIndex >= 9) {
+                writeGraphics(graphicsIndex, data);
+                return;
+            }
+            if (graphicsIndex == 0)
+                shadowGR0 = data;
+            else if (graphicsIndex == 1)
+                shadowGR1 = data;
+            else if (graphicsIndex == 5)
+                graphicsMode = data & 0x7f;
+            break;
+        case 0x3b4:
+        case 0x3d4:
+            crtIndex = data;
+            break;
+        case 0x3b5:
+        case 0x3d5:
+            if (crtIndex > 0x18) {
+                writeCRT(data);
+                return;
+            }
+            break;
+        }
+        super.ioPortWrite8(address, data);
+    }
+
+    @Override
+    public int ioPortRead8(int address) {
+        switch (address) {
+        case 0x3c4:
+            return sequencerIndex;
+        case 0x3c5:
+            if (sequencerIndex < 5)
+                return super.ioPortRead8(address);
+            return readSequencer();
+        case 0x3c6:
+            if (hiddenDacLockIndex == 4) {
+                hiddenDacLockIndex = 0;
+                return hiddenDacData;
+            }
+            hiddenDacLockIndex++;
+            return 0xff;
+        case 0x3c7:
+        case 0x3c8:
+        case 0x3c9:
+            hiddenDacLockIndex = 0;
+            return super.ioPortRead8(address);
+        case 0x3ce:
+            return graphicsIndex;
+        case 0x3cf:
+            return readGraphics(graphicsIndex);
+        case 0x3b5:
+        case 0x3d5:
+            if (crtIndex > 0x18)
+                return readCRT();
+            return super.ioPortRead8(address);
+        default:
+            return super.ioPortRead8(address);
+        }
+    }
+
+    private void writeSequencer(int data) {
+        switch (sequencerIndex) {
+        case 0x06:
+            extSequencer[0x06] = (data & 0x17) == 0x12 ? 0x12 : 0x0f;
+            break;
+        case 0x10:
+        case 0x30:
+        case 0x50:
+        case 0x70:
+        case 0x90:
+        case 0xb0:
+        case 0xd0:
+        case 0xf0:
+            extSequencer[0x10] = data;
+            cursorX = data << 3 | sequencerIndex >>> 5;
+            break;
+        case 0x11:
+        case 0x31:
+        case 0x51:
+        case 0x71:
+        case 0x91:
+        case 0xb1:
+        case 0xd1:
+        case 0xf1:
+            extSequencer[0x11] = data;
+            cursorY = data << 3 | sequencerIndex >>> 5;
+            break;
+        case SR_INDEX_CONFIGURATION:
+            extSequencer[SR_INDEX_CONFIGURATION] = extSequencer[SR_INDEX_CONFIGURATION] & 0x38 | data & 0xc7;
+            break;
+        default:
+            if (sequencerIndex < extSequencer.length)
+                extSequencer[sequencerIndex] = data;
+            else
+                LOGGING.log(Level.FINE, "write to unknown sequencer register 0x{0}", Integer.toHexString(sequencerIndex));
+            break;
+        }
+    }
+
+    private int readSequencer() {
+        if ((sequencerIndex & 0x1f) == 0x10 || (sequencerIndex & 0x1f) == 0x11)
+            return extSequencer[sequencerIndex & 0x1f];
+        if (sequencerIndex < extSequencer.length)
+            return extSequencer[sequencerIndex];
+        return 0xff;
+    }
+
+    private void writeGraphics(int index, int data) {
+        switch (index) {
+        case 0x00:
+            shadowGR0 = data;
+            break;
+        case 0x01:
+            shadowGR1 = data;
+            break;
+        case 0x09:
+        case 0x0a:
+        case GR_INDEX_EXTENSIONS:
+            extGraphics[index] = data;
+            updateBanks();
+            break;
+        case 0x21:
+        case 0x23:
+        case 0x25:
+        case 0x27:
+            extGraphics[index] = data & 0x1f;
+            break;
+        case 0x2a:
+            extGraphics[index] = data & 0x3f;
+            if ((extGraphics[0x31] & BLT_AUTOSTART) != 0)
+                bltStart();
+            break;
+        case 0x2e:
+            extGraphics[index] = data & 0x3f;
+            break;
+        case 0x31:
+            writeBltStatus(data);
+            break;
+        default:
+            if (index < extGraphics.length)
+                extGraphics[index] = data;
+            break;
+        }
+    }
+
+    private int readGraphics(int index) {
+        switch (index) {
+        case 0x00:
+            return shadowGR0;
+        case 0x01:
+            return shadowGR1;
+        default:
+            if (index < 9)
+                return getGraphicsRegister(index);
+            return extGraphics[index];
+        }
+    }
+
+    private void writeCRT(int data) {
+        switch (crtIndex) {
+        case 0x19: // interlace end
+        case 0x1a: // miscellaneous control
+        case 0x1b: // extended display control
+        case 0x1c: // sync adjust and genlock
+        case 0x1d: // overlay extended control
+            extCRT[crtIndex] = data;
+            break;
+        default:
+            // 0x22 and 0x24 to 0x27 are read only
+            break;
+        }
+    }
+
+    private int readCRT() {
+        switch (crtIndex) {
+        case 0x27:
+            return CIRRUS_ID_CLGD5446;
+        default:
+            if (crtIndex < extCRT.length)
+                return extCRT[crtIndex];
+            return 0xff;
+        }
+    }
+
+    private boolean extendedMode() {
+        return (extSequencer[SR_INDEX_EXTENDED_MODE] & 0x01) != 0;
+    }
+
+    private void updateBanks() {
+        for (int bank = 0; bank < 2; bank++) {
+            int offset;
+            if ((extGraphics[GR_INDEX_EXTENSIONS] & 0x01) != 0) // dual bank
+                offset = extGraphics[0x09 + bank];
+            else
+                offset = extGraphics[0x09];
+            if ((extGraphics[GR_INDEX_EXTENSIONS] & 0x20) != 0)
+                offset <<= 14;
+            else
+                offset <<= 12;
+
+            int limit = VRAM_SIZE <= offset ? 0 : VRAM_SIZE - offset;
+            if ((extGraphics[GR_INDEX_EXTENSIONS] & 0x01) == 0 && bank != 0) {
+                if (limit > 0x8000) {
+                    offset += 0x8000;
+                    limit -= 0x8000;
+                } else
+                    limit = 0;
+            }
+            bankBase[bank] = limit > 0 ? offset : 0;
+            bankLimit[bank] = limit;
+        }
+    }
+
+    private int bankAddress(int offset) {
+        int bank = offset >>> 15;
+        int bankOffset = offset & 0x7fff;
+        if (bankOffset >= bankLimit[bank])
+            return -1;
+        return scaleAddress(bankOffset + bankBase[bank]);
+    }
+
+    private int scaleAddress(int address) {
+        if ((extGraphics[GR_INDEX_EXTENSIONS] & 0x14) == 0x14)
+            address <<= 4;
+        else if ((extGraphics[GR_INDEX_EXTENSIONS] & 0x02) != 0)
+            address <<= 3;
+        return address & VRAM_MASK;
+    }
+
+    private void writeVideoMemory(int address, int data) {
+        int mode = graphicsMode & 7;
+        VGARAMIORegion vram = getVideoRAM();
+        if (mode < 4 || mode > 5 || (extGraphics[GR_INDEX_EXTENSIONS] & 0x04) == 0) {
+            vram.setByte(address, (byte)data);
+            return;
+        }
+
+        /* write modes 4 and 5: expand the written bits into foreground (and background) pixels */
+        byte[] buffer = vram.getBuffer(VRAM_SIZE);
+        boolean wide = (extGraphics[GR_INDEX_EXTENSIONS] & 0x14) == 0x14;
+        int length = wide ? 16 : 8;
+        address &= VRAM_MASK & ~(length - 1);
+        for (int x = 0; x < 8; x++, data <<= 1) {
+            if ((data & 0x80) != 0) {
+                if (wide) {
+                    buffer[address + 2 * x] = (byte)shadowGR1;
+                    buffer[address + 2 * x + 1] = (byte)extGraphics[0x11];
+                } else
+                    buffer[address + x] = (byte)shadowGR1;
+            } else if (mode == 5) {
+                if (wide) {
+                    buffer[address + 2 * x] = (byte)shadowGR0;
+                    buffer[address + 2 * x + 1] = (byte)extGraphics[0x10];
+                } else
+                    buffer[address + x] = (byte)shadowGR0;
+            }
+        }
+        vram.markDirty(address, length);
+    }
+
+    private int mmioRead(int address) {
+        if (address < 0 || address >= mmioToGraphicsRegister.length || mmioToGraphicsRegister[address] < 0)
+            return 0xff;
+        return readGraphics(mmioToGraphicsRegister[address]);
+    }
+
+    private void mmioWrite(int address, int data) {
+        if (address < 0 || address >= mmioToGraphicsRegister.length || mmioToGraphicsRegister[address] < 0)
+            return;
+        writeGraphics(mmioToGraphicsRegister[address], data);
+    }
+
+    //BitBLT engine
+    private void writeBltStatus(int value) {
+        int old = extGraphics[0x31];
+        extGraphics[0x31] = value;
+        if ((old & BLT_RESET) != 0 && (value & BLT_RESET) == 0)
+            bltReset();
+        else if ((old & BLT_START) == 0 && (value & BLT_START) != 0)
+            bltStart();
+    }
+
+    private void bltReset() {
+        extGraphics[0x31] &= ~(BLT_START | BLT_BUSY | BLT_FIFOUSED);
+        bltCpuSource = false;
+        bltBufferPos = bltBufferEnd = 0;
+        bltSourceCounter = 0;
+    }
+
+    private int bltColor(int low, int index) {
+        return low | extGraphics[index] << 8 | extGraphics[index + 2] << 16 | extGraphics[index + 4] << 24;
+    }
+
+    private void bltStart() {
+        extGraphics[0x31] |= BLT_BUSY;
+
+        bltWidth = (extGraphics[0x20] | extGraphics[0x21] << 8) + 1;
+        bltHeight = (extGraphics[0x22] | extGraphics[0x23] << 8) + 1;
+        bltDstPitch = extGraphics[0x24] | extGraphics[0x25] << 8;
+        bltSrcPitch = extGraphics[0x26] | extGraphics[0x27] << 8;
+        bltDstAddr = (extGraphics[0x28] | extGraphics[0x29] << 8 | extGraphics[0x2a] << 16) & VRAM_MASK;
+        bltSrcAddr = (extGraphics[0x2c] | extGraphics[0x2d] << 8 | extGraphics[0x2e] << 16) & VRAM_MASK;
+        bltMode = extGraphics[0x30];
+        bltModeExt = extGraphics[0x33];
+        bltRop = extGraphics[0x32];
+        bltFgColor = bltColor(shadowGR1, 0x11);
+        bltBgColor = bltColor(shadowGR0, 0x10);
+
+        switch (bltMode & BLTMODE_PIXELWIDTHMASK) {
+        case 0x00:
+            bltPixelWidth = 1;
+            break;
+        case 0x10:
+            bltPixelWidth = 2;
+            break;
+        case 0x20:
+            bltPixelWidth = 3;
+            break;
+        default:
+            bltPixelWidth = 4;
+            break;
+        }
+        bltMode &= ~BLTMODE_PIXELWIDTHMASK;
+
+        boolean done;
+        if ((bltMode & (BLTMODE_MEMSYSSRC | BLTMODE_MEMSYSDEST)) == (BLTMODE_MEMSYSSRC | BLTMODE_MEMSYSDEST))
+            done = false;
+        else if ((bltModeExt & BLTMODEEXT_SOLIDFILL) != 0
+            && (bltMode & (BLTMODE_MEMSYSDEST | BLTMODE_TRANSPARENTCOMP | BLTMODE_PATTERNCOPY | BLTMODE_COLOREXPAND))
+                == (BLTMODE_PATTERNCOPY | BLTMODE_COLOREXPAND))
+            done = solidFill(bltDstAddr, bltHeight);
+        else if ((bltMode & (BLTMODE_PATTERNCOPY | BLTMODE_COLOREXPAND | BLTMODE_TRANSPARENTCOMP)) == BLTMODE_TRANSPARENTCOMP
+            && bltPixelWidth > 2)
+            done = false;
+        else if ((bltMode & BLTMODE_MEMSYSSRC) != 0) {
+            if (startCpuToVideo())
+                return;
+            done = false;
+        } else if ((bltMode & BLTMODE_MEMSYSDEST) != 0) {
+            LOGGING.log(Level.FINE, "video to system memory blits are not supported");
+            done = false;
+        } else
+            done = videoToVideo();
+
+        if (!done)
+            LOGGING.log(Level.FINE, "ignored blit mode 0x{0}", Integer.toHexString(bltMode));
+        bltReset();
+    }
+
+    private boolean videoToVideo() {
+        byte[] vram = getVideoRAM().getBuffer(VRAM_SIZE);
+        if ((bltMode & BLTMODE_PATTERNCOPY) != 0) {
+            int patternSize = patternLength();
+            int address = bltSrcAddr & ~(patternSize - 1);
+            if (address + patternSize > VRAM_SIZE)
+                return false;
+            return pattern(vram, address, bltDstAddr, bltHeight);
+        }
+        if ((bltMode & BLTMODE_COLOREXPAND) != 0)
+            return colorExpand(vram, bltSrcAddr, bltDstAddr, bltHeight);
+        return copy(vram, bltSrcAddr, bltSrcPitch, bltDstAddr, bltHeight);
+    }
+
+    private int patternPitch() {
+        return bltPixelWidth == 3 ? 32 : 8 * bltPixelWidth;
+    }
+
+    private int patternLength() {
+        if ((bltMode & BLTMODE_COLOREXPAND) != 0)
+            return 8;
+        return 8 * patternPitch();
+    }
+
+    private boolean startCpuToVideo() {
+        bltMode &= ~(BLTMODE_MEMSYSSRC | BLTMODE_BACKWARDS);
+        if ((bltMode & BLTMODE_PATTERNCOPY) != 0) {
+            bltSrcPitch = patternLength();
+            bltSourceCounter = bltSrcPitch;
+        } else {
+            if ((bltMode & BLTMODE_COLOREXPAND) != 0) {
+                int w = bltWidth / bltPixelWidth;
+                if ((bltModeExt & BLTMODEEXT_DWORDGRANULARITY) != 0)
+                    bltSrcPitch = w + 31 >>> 5 << 2;
+                else
+                    bltSrcPitch = w + 7 >>> 3;
+            } else {
+                /* input scanlines are always padded to 32 bits */
+                bltSrcPitch = bltWidth + 3 & ~3;
+            }
+            bltSourceCounter = bltSrcPitch * bltHeight;
+        }
+        if (bltSrcPitch > BLT_BUFFER_SIZE)
+            return false;
+        bltBufferPos = 0;
+        bltBufferEnd = bltSrcPitch;
+        bltCpuSource = true;
+        return true;
+    }
+
+    private void bltWrite(int data) {
+        bltBuffer[bltBufferPos++] = (byte)data;
+        if (bltBufferPos < bltBufferEnd)
+            return;
+
+        if ((bltMode & BLTMODE_PATTERNCOPY) != 0) {
+            pattern(bltBuffer, 0, bltDstAddr, bltHeight);
+            bltReset();
+            return;
+        }
+
+        boolean valid;
+        if ((bltMode & BLTMODE_COLOREXPAND) != 0)
+            valid = colorExpand(bltBuffer, 0, bltDstAddr, 1);
+        else
+            valid = copy(bltBuffer, 0, 0, bltDstAddr, 1);
+        bltDstAddr += bltDstPitch;
+        bltSourceCounter -= bltSrcPitch;
+        if (!valid || bltSourceCounter <= 0)
+            bltReset();
+        else
+            bltBufferPos = 0;
+    }
+
+    private static boolean rowsFit(int first, int pitch, int length, int rows, int limit) {
+        int last = first + (rows - 1) * pitch;
+        return Math.min(first, last) >= 0 && Math.max(first, last) + length <= limit;
+    }
+
+    private byte[] rowBuffer(int length) {
+        if (rowBuffer.length < length)
+            rowBuffer = new byte[length];
+        return rowBuffer;
+    }
+
+    private static void putPixel(byte[] row, int offset, int color, int bytes) {
+        for (int i = 0; i < bytes; i++)
+            row[offset + i] = (byte)(color >>> 8 * i);
+    }
+
+    private boolean solidFill(int dstAddr, int rows) {
+        int width = bltWidth;
+        if (!rowsFit(dstAddr, bltDstPitch, width, rows, VRAM_SIZE))
+            return false;
+
+        byte[] row = rowBuffer(width + 4);
+        if (bltPixelWidth == 1)
+            Arrays.fill(row, 0, width, (byte)bltFgColor);
+        else
+            for (int x = 0; x < width; x += bltPixelWidth)
+                putPixel(row, x, bltFgColor, bltPixelWidth);
+
+        VGARAMIORegion vram = getVideoRAM();
+        byte[] buffer = vram.getBuffer(VRAM_SIZE);
+        for (int y = 0; y < rows; y++, dstAddr += bltDstPitch) {
+            ropRow(bltRop, row, 0, buffer, dstAddr, width);
+            vram.markDirty(dstAddr, width);
+        }
+        return true;
+    }
+
+    private boolean copy(byte[] src, int srcAddr, int srcPitch, int dstAddr, int rows) {
+        int width = bltWidth;
+        int dstPitch = bltDstPitch;
+        if ((bltMode & BLTMODE_BACKWARDS) != 0) {
+            /* backwards blits address the last byte of the first row and run up the screen */
+            dstAddr -= width - 1;
+            srcAddr -= width - 1;
+            dstPitch = -dstPitch;
+            srcPitch = -srcPitch;
+        }
+        if (!rowsFit(dstAddr, dstPitch, width, rows, VRAM_SIZE) || !rowsFit(srcAddr, srcPitch, width, rows, src.length))
+            return false;
+
+        VGARAMIORegion vram = getVideoRAM();
+        byte[] buffer = vram.getBuffer(VRAM_SIZE);
+        if ((bltMode & BLTMODE_TRANSPARENTCOMP) != 0) {
+            for (int y = 0; y < rows; y++, dstAddr += dstPitch, srcAddr += srcPitch) {
+                transparentRow(src, srcAddr, buffer, dstAddr, width);
+                vram.markDirty(dstAddr, width);
+            }
+        } else if (bltRop == ROP_SRC && rows > 1 && dstPitch == width && srcPitch == width) {
+            /* contiguous rectangle, e.g. a scroll of the whole screen */
+            int start = Math.min(dstAddr, dstAddr + (rows - 1) * dstPitch);
+            System.arraycopy(src, Math.min(srcAddr, srcAddr + (rows - 1) * srcPitch), buffer, start, width * rows);
+            vram.markDirty(start, width * rows);
+        } else {
+            for (int y = 0; y < rows; y++, dstAddr += dstPitch, srcAddr += srcPitch) {
+                ropRow(bltRop, src, srcAddr, buffer, dstAddr, width);
+                vram.markDirty(dstAddr, width);
+            }
+        }
+        return true;
+    }
+
+    private void transparentRow(byte[] src, int srcAddr, byte[] dst, int dstAddr, int width) {
+        int key0 = extGraphics[0x34];
+        int key1 = extGraphics[0x35];
+        if (bltPixelWidth == 1) {
+            for (int x = 0; x < width; x++) {
+                int p = rop(bltRop, src[srcAddr + x], dst[dstAddr + x]) & 0xff;
+                if (p != key0)
+                    dst[dstAddr + x] = (byte)p;
+            }
+        } else {
+            for (int x = 0; x + 1 < width; x += 2) {
+                int p0 = rop(bltRop, src[srcAddr + x], dst[dstAddr + x]) & 0xff;
+                int p1 = rop(bltRop, src[srcAddr + x + 1], dst[dstAddr + x + 1]) & 0xff;
+                if (p0 != key0 || p1 != key1) {
+                    dst[dstAddr + x] = (byte)p0;
+                    dst[dstAddr + x + 1] = (byte)p1;
+                }
+            }
+        }
+    }
+
+    private boolean colorExpand(byte[] src, int srcAddr, int dstAddr, int rows) {
+        int width = bltWidth;
+        int bytes = bltPixelWidth;
+        int skip = extGraphics[0x2f] & 7;
+        int pixels = (width - 1) / bytes + 1;
+        int rowBytes = (pixels - 1 >>> 3) + 1;
+        if (skip * bytes >= width || !rowsFit(dstAddr, bltDstPitch, width, rows, VRAM_SIZE)
+            || srcAddr + rows * rowBytes > src.length)
+            return false;
+
+        VGARAMIORegion vram = getVideoRAM();
+        byte[] buffer = vram.getBuffer(VRAM_SIZE);
+        if ((bltMode & BLTMODE_TRANSPARENTCOMP) != 0) {
+            boolean inverse = (bltModeExt & BLTMODEEXT_COLOREXPINV) != 0;
+            int color = inverse ? bltBgColor : bltFgColor;
+            int flip = inverse ? 0xff : 0;
+            for (int y = 0; y < rows; y++, srcAddr += rowBytes, dstAddr += bltDstPitch) {
+                for (int x = skip; x < pixels; x++) {
+                    if (((src[srcAddr + (x >>> 3)] ^ flip) >>> 7 - (x & 7) & 1) != 0)
+                        ropPixel(color, buffer, dstAddr + x * bytes, Math.min(bytes, width - x * bytes));
+                }
+                vram.markDirty(dstAddr, width);
+            }
+        } else {
+            byte[] row = rowBuffer(pixels * bytes);
+            for (int y = 0; y < rows; y++, srcAddr += rowBytes, dstAddr += bltDstPitch) {
+                for (int x = skip; x < pixels; x++) {
+                    int bit = src[srcAddr + (x >>> 3)] >>> 7 - (x & 7) & 1;
+                    putPixel(row, x * bytes, bit != 0 ? bltFgColor : bltBgColor, bytes);
+                }
+                ropRow(bltRop, row, skip * bytes, buffer, dstAddr + skip * bytes, width - skip * bytes);
+                vram.markDirty(dstAddr, width);
+            }
+        }
+        return true;
+    }
+
+    private boolean pattern(byte[] src, int srcAddr, int dstAddr, int rows) {
+        int width = bltWidth;
+        int bytes = bltPixelWidth;
+        int skip = extGraphics[0x2f] & 7;
+        int pixels = (width - 1) / bytes + 1;
+        int rowLength = pixels * bytes;
+        int patternY = extGraphics[0x2c] & 7;
+        if (skip * bytes >= width || !rowsFit(dstAddr, bltDstPitch, width, rows, VRAM_SIZE))
+            return false;
+
+        VGARAMIORegion vram = getVideoRAM();
+        byte[] buffer = vram.getBuffer(VRAM_SIZE);
+        boolean expand = (bltMode & BLTMODE_COLOREXPAND) != 0;
+        if (expand && (bltMode & BLTMODE_TRANSPARENTCOMP) != 0) {
+            boolean inverse = (bltModeExt & BLTMODEEXT_COLOREXPINV) != 0;
+            int color = inverse ? bltBgColor : bltFgColor;
+            int flip = inverse ? 0xff : 0;
+            for (int y = 0; y < rows; y++, dstAddr += bltDstPitch) {
+                int bits = src[srcAddr + (patternY + y & 7)] ^ flip;
+                for (int x = skip; x < pixels; x++)
+                    if ((bits >>> 7 - (x & 7) & 1) != 0)
+                        ropPixel(color, buffer, dstAddr + x * bytes, Math.min(bytes, width - x * bytes));
+                vram.markDirty(dstAddr, width);
+            }
+            return true;
+        }
+
+        /* expand the 8x8 pattern into eight full scanlines once, then blit those */
+        byte[] rows8 = rowBuffer(8 * rowLength);
+        int pitch = patternPitch();
+        for (int py = 0; py < 8; py++) {
+            int base = py * rowLength;
+            if (expand) {
+                int bits = src[srcAddr + py];
+                for (int x = 0; x < 8 && x < pixels; x++)
+                    putPixel(rows8, base + x * bytes, (bits >>> 7 - x & 1) != 0 ? bltFgColor : bltBgColor, bytes);
+            } else {
+                for (int x = 0; x < 8 && x < pixels; x++)
+                    System.arraycopy(src, srcAddr + py * pitch + x * bytes, rows8, base + x * bytes, bytes);
+            }
+            for (int filled = 8 * bytes; filled < rowLength; filled <<= 1)
+                System.arraycopy(rows8, base, rows8, base + filled, Math.min(filled, rowLength - filled));
+        }
+
+        int offset = skip * bytes;
+        for (int y = 0; y < rows; y++, dstAddr += bltDstPitch) {
+            ropRow(bltRop, rows8, (patternY + y & 7) * rowLength + offset, buffer, dstAddr + offset, width - offset);
+            vram.markDirty(dstAddr, width);
+        }
+        return true;
+    }
+
+    private void ropPixel(int color, byte[] dst, int dstAddr, int bytes) {
+        for (int i = 0; i < bytes; i++)
+            dst[dstAddr + i] = (byte)rop(bltRop, color >>> 8 * i, dst[dstAddr + i]);
+    }
+
+    private static int rop(int rop, int s, int d) {
+        switch (rop) {
+        case ROP_0:
+            return 0;
+        case ROP_SRC_AND_DST:
+            return s & d;
+        case ROP_NOP:
+            return d;
+        case ROP_SRC_AND_NOTDST:
+            return s & ~d;
+        case ROP_NOTDST:
+            return ~d;
+        case ROP_SRC:
+            return s;
+        case ROP_1:
+            return 0xff;
+        case ROP_NOTSRC_AND_DST:
+            return ~s & d;
+        case ROP_SRC_XOR_DST:
+            return s ^ d;
+        case ROP_SRC_OR_DST:
+            return s | d;
+        case ROP_NOTSRC_OR_NOTDST:
+            return ~s | ~d;
+        case ROP_SRC_NOTXOR_DST:
+            return ~(s ^ d);
+        case ROP_SRC_OR_NOTDST:
+            return s | ~d;
+        case ROP_NOTSRC:
+            return ~s;
+        case ROP_NOTSRC_OR_DST:
+            return ~s | d;
+        case ROP_NOTSRC_AND_NOTDST:
+            return ~s & ~d;
+        default:
+            return d;
+        }
+    }
+
+    /**
+     * Combines <code>length</code> source bytes into the destination with the given raster
+     * operation, using bulk array operations for the common cases.
+     */
+    private void ropRow(int rop, byte[] src, int srcAddr, byte[] dst, int dstAddr, int length) {
+        switch (rop) {
+        case ROP_SRC:
+            System.arraycopy(src, srcAddr, dst, dstAddr, length);
+            return;
+        case ROP_0:
+            Arrays.fill(dst, dstAddr, dstAddr + length, (byte)0);
+            return;
+        case ROP_1:
+            Arrays.fill(dst, dstAddr, dstAddr + length, (byte)0xff);
+            return;
+        case ROP_NOP:
+            return;
+        case ROP_NOTDST:
+            for (int i = dstAddr; i < dstAddr + length; i++)
+                dst[i] = (byte)~dst[i];
+            return;
+        }
+
+        if (src == dst && srcAddr < dstAddr + length && dstAddr < srcAddr + length) {
+            if (overlapBuffer.length < length)
+                overlapBuffer = new byte[length];
+            System.arraycopy(src, srcAddr, overlapBuffer, 0, length);
+            src = overlapBuffer;
+            srcAddr = 0;
+        }
+
+        switch (rop) {
+        case ROP_SRC_AND_DST:
+            for (int i = 0; i < length; i++)
+                dst[dstAddr + i] &= src[srcAddr + i];
+            break;
+        case ROP_SRC_OR_DST:
+            for (int i = 0; i < length; i++)
+                dst[dstAddr + i] |= src[srcAddr + i];
+            break;
+        case ROP_SRC_XOR_DST:
+            for (int i = 0; i < length; i++)
+                dst[dstAddr + i] ^= src[srcAddr + i];
+            break;
+        case ROP_NOTSRC:
+            for (int i = 0; i < length; i++)
+                dst[dstAddr + i] = (byte)~src[srcAddr + i];
+            break;
+        default:
+            for (int i = 0; i < length; i++)
+                dst[dstAddr + i] = (byte)rop(rop, src[srcAddr + i], dst[dstAddr + i]);
+            break;
+        }
+    }
+
+    //Hardware cursor
+    private boolean cursorVisible() {
+        return extendedMode() && (extSequencer[SR_INDEX_CURSOR_ATTRIBUTES] & 0x01) != 0;
+    }
+
+    private int cursorSize() {
+        return (extSequencer[SR_INDEX_CURSOR_ATTRIBUTES] & 0x04) != 0 ? 64 : 32;
+    }
+
+    private void invalidateLines(int y, int count) {
+        int lineOffset = getLineOffset();
+        int start = 4 * getStartAddress() + Math.max(y, 0) * lineOffset;
+        int end = Math.min(start + count * lineOffset, VRAM_SIZE);
+        if (start < end)
+            getVideoRAM().markDirty(start, end - start);
+    }
+
+    @Override
+    protected DefaultVGACard createRenderer() {
+        return new CirrusVGACard(true);
+    }
+
+    @Override
+    protected void copyDisplayState(DefaultVGACard target, boolean all) {
+        super.copyDisplayState(target, all);
+        CirrusVGACard copy = (CirrusVGACard)target;
+        System.arraycopy(extSequencer, 0, copy.extSequencer, 0, extSequencer.length);
+        System.arraycopy(extGraphics, 0, copy.extGraphics, 0, extGraphics.length);
+        System.arraycopy(extCRT, 0, copy.extCRT, 0, extCRT.length);
+        System.arraycopy(hiddenPalette, 0, copy.hiddenPalette, 0, hiddenPalette.length);
+        copy.cursorX = cursorX;
+        copy.cursorY = cursorY;
+    }
+
+    @Override
+    protected void updateDisplay() {
+        /* the cursor is drawn over the converted scanlines, so the lines under it are always redrawn */
+        boolean visible = cursorVisible();
+        if (lastCursorSize != 0)
+            invalidateLines(lastCursorY, lastCursorSize);
+        if (visible)
+            invalidateLines(cursorY, cursorSize());
+
+        super.updateDisplay();
+
+        lastCursorSize = 0;
+        if (visible && getDisplayBuffer() != null) {
+            drawCursor();
+            lastCursorY = cursorY;
+            lastCursorSize = cursorSize();
+        }
+    }
+
+    private int hiddenColor(int index) {
+        return rgbToPixel(c6to8(hiddenPalette[index]), c6to8(hiddenPalette[index + 1]), c6to8(hiddenPalette[index + 2]));
+    }
+
+    private static int c6to8(int v) {
+        v &= 0x3f;
+        int b = v & 1;
+        return v << 2 | b << 1 | b;
+    }
+
+    private void drawCursor() {
+        int[] dest = getDisplayBuffer();
+        Dimension size = getDisplaySize();
+        int cursor = cursorSize();
+        int base, rowBytes, planeOffset;
+        if (cursor == 64) {
+            base = CURSOR_BASE + (extSequencer[SR_INDEX_CURSOR_PATTERN] & 0x3c) * 256;
+            rowBytes = 16;
+            planeOffset = 8;
+        } else {
+            base = CURSOR_BASE + (extSequencer[SR_INDEX_CURSOR_PATTERN] & 0x3f) * 256;
+            rowBytes = 4;
+            planeOffset = 128;
+        }
+        byte[] vram = getVideoRAM().getBuffer(VRAM_SIZE);
+        int background = hiddenColor(0);
+        int foreground = hiddenColor(15 * 3);
+
+        int width = Math.min(cursor, size.width - cursorX);
+        int height = Math.min(cursor, size.height - cursorY);
+        if (width <= 0 || height <= 0)
+            return;
+        for (int y = 0; y < height; y++) {
+            int row = base + y * rowBytes;
+            int index = (cursorY + y) * size.width + cursorX;
+            for (int x = 0; x < width; x++, index++) {
+                int shift = 7 - (x & 7);
+                int p = vram[row + (x >>> 3)] >>> shift & 1 | (vram[row + planeOffset + (x >>> 3)] >>> shift & 1) << 1;
+                switch (p) {
+                case 1:
+                    dest[index] ^= 0xffffff;
+                    break;
+                case 2:
+                    dest[index] = background;
+                    break;
+                case 3:
+                    dest[index] = foreground;
+                    break;
+                }
+            }
+        }
+        dirtyDisplayRegion(cursorX, cursorY, width, height);
+    }
+
+    //Display parameters
+    @Override
+    protected int getLineOffset() {
+        if (!extendedMode())
+            return super.getLineOffset();
+        return (getCRTRegister(0x13) | (extCRT[0x1b] & 0x10) << 4) << 3;
+    }
+
+    @Override
+    protected int getStartAddress() {
+        if (!extendedMode())
+            return super.getStartAddress();
+        return getCRTRegister(0x0d) | getCRTRegister(0x0c) << 8 | (extCRT[0x1b] & 0x01) << 16 | (extCRT[0x1b] & 0x0c) << 15
+            | (extCRT[0x1d] & 0x80) << 12;
+    }
+
+    @Override
+    protected int getBitsPerPixel() {
+        if (!extendedMode())
+            return super.getBitsPerPixel();
+        switch (extSequencer[SR_INDEX_EXTENDED_MODE] & 0x0e) {
+        case 0x00:
+            return 8;
+        case 0x02:
+        case 0x06:
+            return (hiddenDacData & 0x0f) == 1 ? 16 : 15;
+        case 0x04:
+            return 24;
+        case 0x08:
+            return 32;
+        default:
+            return 8;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Cirrus CL-GD5446 " + super.toString();
+    }
+
+    class CirrusLowMemoryRegion extends VGALowMemoryRegion {
+        @Override
+        public byte getByte(int offset) {
+            if (!extendedMode())
+                return super.getByte(offset);
+
+            offset &= 0x1ffff;
+            if (offset < 0x10000) {
+                int address = bankAddress(offset);
+                return address < 0 ? (byte)0xff : getVideoRAM().getByte(address);
+            }
+            if (offset >= 0x18000 && offset < 0x18100 && (extSequencer[SR_INDEX_CONFIGURATION] & 0x44) == 0x04)
+                return (byte)mmioRead(offset & 0xff);
+            return (byte)0xff;
+        }
+
+        @Override
+        public void setByte(int offset, byte data) {
+            if (!extendedMode()) {
+                super.setByte(offset, data);
+                return;
+            }
+
+            offset &= 0x1ffff;
+            if (offset < 0x10000) {
+                if (bltCpuSource) {
+                    bltWrite(0xff & data);
+                    return;
+                }
+                int address = bankAddress(offset);
+                if (address >= 0)
+                    writeVideoMemory(address, 0xff & data);
+            } else if (offset >= 0x18000 && offset < 0x18100 && (extSequencer[SR_INDEX_CONFIGURATION] & 0x44) == 0x04)
+                mmioWrite(offset & 0xff, 0xff & data);
+        }
+
+        /* wide accesses only take the compiled VGA path outside the extended modes */
+        @Override
+        public short getWord(int offset) {
+            if (!extendedMode())
+                return super.getWord(offset);
+            return (short)(0xff & getByte(offset) | getByte(offset + 1) << 8);
+        }
+
+        @Override
+        public int getDoubleWord(int offset) {
+            if (!extendedMode())
+                return super.getDoubleWord(offset);
+            return 0xffff & getWord(offset) | getWord(offset + 2) << 16;
+        }
+
+        @Override
+        public void setWord(int offset, short data) {
+            if (!extendedMode()) {
+                super.setWord(offset, data);
+                return;
+            }
+            setByte(offset, (byte)data);
+            setByte(offset + 1, (byte)(data >>> 8));
+        }
+
+        @Override
+        public void setDoubleWord(int offset, int data) {
+            if (!extendedMode()) {
+                super.setDoubleWord(offset, data);
+                return;
+            }
+            setWord(offset, (short)data);
+            setWord(offset + 2, (short)(data >>> 16));
+        }
+    }
+
+    class CirrusLinearRegion extends MemoryMappedIORegion {
+        private int startAddress = -1;
+
+        /**
+         * Whether a <code>length</code> byte access at <code>offset</code> can go straight to video RAM.
+         */
+        private boolean direct(int offset, int length) {
+            if (bltCpuSource || offset > LINEAR_BITBLT_START - length)
+                return false;
+            if (!extendedMode())
+                return true;
+            return (extGraphics[GR_INDEX_EXTENSIONS] & 0x16) == 0 && (extSequencer[SR_INDEX_CONFIGURATION] & 0x44) != 0x44
+                && offset <= VRAM_SIZE - length;
+        }
+
+        @Override
+        public byte getByte(int offset) {
+            if (offset >= LINEAR_BITBLT_START)
+                return (byte)0xff;
+            if (!extendedMode())
+                return getVideoRAM().getByte(offset);
+            if ((extSequencer[SR_INDEX_CONFIGURATION] & 0x44) == 0x44 && (offset & LINEAR_MMIO_MASK) == LINEAR_MMIO_MASK)
+                return (byte)mmioRead(offset & 0xff);
+            return getVideoRAM().getByte(scaleAddress(offset & VRAM_MASK));
+        }
+
+        @Override
+        public void setByte(int offset, byte data) {
+            if (offset >= LINEAR_BITBLT_START) {
+                if (bltCpuSource)
+                    bltWrite(0xff & data);
+                return;
+            }
+            if (extendedMode() && (extSequencer[SR_INDEX_CONFIGURATION] & 0x44) == 0x44
+                && (offset & LINEAR_MMIO_MASK) == LINEAR_MMIO_MASK) {
+                mmioWrite(offset & 0xff, 0xff & data);
+                return;
+            }
+            if (bltCpuSource) {
+                bltWrite(0xff & data);
+                return;
+            }
+            if (!extendedMode()) {
+                getVideoRAM().setByte(offset, data);
+                return;
+            }
+            writeVideoMemory(scaleAddress(offset & VRAM_MASK), 0xff & data);
+        }
+
+        @Override
+        public short getWord(int offset) {
+            if (direct(offset, 2))
+                return getVideoRAM().getWord(offset);
+            return super.getWord(offset);
+        }
+
+        @Override
+        public int getDoubleWord(int offset) {
+            if (direct(offset, 4))
+                return getVideoRAM().getDoubleWord(offset);
+            return super.getDoubleWord(offset);
+        }
+
+        @Override
+        public void setWord(int offset, short data) {
+            if (direct(offset, 2))
+                getVideoRAM().setWord(offset, data);
+            else
+                super.setWord(offset, data);
+        }
+
+        @Override
+        public void setDoubleWord(int offset, int data) {
+            if (direct(offset, 4))
+                getVideoRAM().setDoubleWord(offset, data);
+            else
+                super.setDoubleWord(offset, data);
+        }
+
+        @Override
+        public long getSize() {
+            return LINEAR_SIZE;
+        }
+
+        @Override
+        public int getAddress() {
+            return startAddress;
+        }
+
+        @Override
+        public void setAddress(int address) {
+            startAddress = address;
+        }
+
+        @Override
+        public int getType() {
+            return PCI_ADDRESS_SPACE_MEM_PREFETCH;
+        }
+
+        @Override
+        public int getRegionNumber() {
+            return 0;
+        }
+
+        @Override
+        public boolean isAllocated() {
+            return true;
+        }
+
+        @Override
+        public int executeReal(Processor cpu, int offset) {
+            throw new IllegalStateException("Invalid Operation");
+        }
+
+        @Override
+        public int executeProtected(Processor cpu, int offset) {
+            throw new IllegalStateException("Invalid Operation");
+        }
+
+        @Override
+        public int executeVirtual8086(Processor cpu, int offset) {
+            throw new IllegalStateException("Invalid Operation");
+        }
+
+        @Override
+        public void loadInitialContents(int address, byte[] buf, int off, int len) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String toString() {
+            return "Cirrus Linear Frame Buffer[" + getSize() + "]";
+        }
+    }
+
+    class CirrusMMIORegion extends MemoryMappedIORegion {
+        private int startAddress = -1;
+
+        @Override
+        public byte getByte(int offset) {
+            if (offset >= 0x100)
+                return (byte)mmioRead(offset - 0x100);
+            return (byte)ioPortRead8(0x3c0 + offset);
+        }
+
+        @Override
+        public void setByte(int offset, byte data) {
+            if (offset >= 0x100)
+                mmioWrite(offset - 0x100, 0xff & data);
+            else
+                ioPortWrite8(0x3c0 + offset, 0xff & data);
+        }
+
+        @Override
+        public long getSize() {
+            return MMIO_SIZE;
+        }
+
+        @Override
+        public int getAddress() {
+            return startAddress;
+        }
+
+        @Override
+        public void setAddress(int address) {
+            startAddress = address;
+        }
+
+        @Override
+        public int getType() {
+            return PCI_ADDRESS_SPACE_MEM;
+        }
+
+        @Override
+        public int getRegionNumber() {
+            return 1;
+        }
+
+        @Override
+        public boolean isAllocated() {
+            return false;
+        }
+
+        @Override
+        public int executeReal(Processor cpu, int offset) {
+            throw new IllegalStateException("Invalid Operation");
+        }
+
+        @Override
+        public int executeProtected(Processor cpu, int offset) {
+            throw new IllegalStateException("Invalid Operation");
+        }
+
+        @Override
+        public int executeVirtual8086(Processor cpu, int offset) {
+            throw new IllegalStateException("Invalid Operation");
+        }
+
+        @Override
+        public void loadInitialContents(int address, byte[] buf, int off, int len) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public String toString() {
+            return "Cirrus BitBLT MMIO[" + getSize() + "]";
+        }
+    }
+}
@@ -35,21 +35,30 @@ package org.jpc.emulator.pci.peripheral;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
 
+import org.jpc.emulator.FrameListener;
 import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.Monitor;
+import org.jpc.emulator.Timer;
+import org.jpc.emulator.TimerResponsive;
 import org.jpc.emulator.execution.codeblock.SpanningCodeBlock;
+import org.jpc.emulator.memory.AbstractMemory;
+import org.jpc.emulator.memory.BlockMappedMemory;
 import org.jpc.emulator.memory.Memory;
 import org.jpc.emulator.memory.PhysicalAddressSpace;
 import org.jpc.emulator.motherboard.IOPortHandler;
@@ -59,6 +68,7 @@ import org.jpc.emulator.pci.MemoryMappedIORegion;
 import org.jpc.emulator.pci.PCIBus;
 import org.jpc.emulator.pci.VGACard;
 import org.jpc.emulator.processor.Processor;
+import org.jpc.support.Clock;
 
 /**
  * @author Chris Dennis
@@ -71,7 +81,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     //VGA_RAM_SIZE must be a power of two
     private static final int VGA_RAM_SIZE = 16 * 1024 * 1024;
     private static final int INIT_VGA_RAM_SIZE = 64 * 1024;
+    /* a render copy starts with the four standard VGA planes and grows to what it is sent and drawn from */
+    private static final int RENDER_VGA_RAM_SIZE = 256 * 1024;
     private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
 
     private static final int[] expand4 = new int[256];
     static {
@@ -82,6 +95,18 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             expand4[i] = v;
         }
     }
+    /* expand4 shifted into place for planes 1 to 3, so that four lookups OR straight into eight nibbles */
+    private static final int[] expand4Plane1 = new int[256];
+    private static final int[] expand4Plane2 = new int[256];
+    private static final int[] expand4Plane3 = new int[256];
+    private static final int[] EXPAND_NONE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            expand4Plane1[i] = expand4[i] << 1;
+            expand4Plane2[i] = expand4[i] << 2;
+            expand4Plane3[i] = expand4[i] << 3;
+        }
+    }
     private static final int[] expand2 = new int[256];
     static {
         for (int i = 0; i < expand2.length; i++) {
@@ -137,6 +162,13 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private static final int GMODE_BLANK = 2;
 
     private static final int CH_ATTR_SIZE = 160 * 100;
+    /* 25.175MHz and 28.322MHz, the dot clocks selected by miscellaneous output bits 2-3 */
+    private static final long[] DOT_CLOCKS = { 25175000, 28322000 };
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    /* text blink phases, in frames: the cursor toggles every 8 and blinking characters every 16 */
+    private static final int CURSOR_BLINK_MASK = 0x08;
+    private static final int CHAR_BLINK_MASK = 0x10;
+    private static final int MAX_CACHED_GLYPHS = 4096;
     private static final int VGA_MAX_HEIGHT = 1024;
 
     private static final int GR_INDEX_SETRESET = 0x00;
@@ -163,6 +195,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private static final int AR_INDEX_HORIZ_PIXEL_PANNING = 0x13;
     private static final int AR_INDEX_COLOR_SELECT = 0x14;
 
+    private static final int CR_INDEX_HORZ_TOTAL = 0x00;
     private static final int CR_INDEX_HORZ_DISPLAY_END = 0x01;
     private static final int CR_INDEX_VERT_TOTAL = 0x06;
     private static final int CR_INDEX_OVERFLOW = 0x07;
@@ -173,6 +206,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private static final int CR_INDEX_START_ADDR_LOW = 0x0d;
     private static final int CR_INDEX_CURSOR_LOC_HIGH = 0x0e;
     private static final int CR_INDEX_CURSOR_LOC_LOW = 0x0f;
+    private static final int CR_INDEX_VERT_RETRACE_START = 0x10;
     private static final int CR_INDEX_VERT_RETRACE_END = 0x11;
     private static final int CR_INDEX_VERT_DISPLAY_END = 0x12;
     private static final int CR_INDEX_OFFSET = 0x13;
@@ -247,40 +281,6 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
     private static final int[] dmask4 = { 0x00000000, 0xffff0000, 0x0000ffff, 0xffffffff };
 
-    private static final int[] cursorGlyph = {
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff,
-        0xffffffff };
-
     private final GraphicsUpdater VGA_DRAW_LINE2;
     private final GraphicsUpdater VGA_DRAW_LINE2D2;
     private final GraphicsUpdater VGA_DRAW_LINE4;
@@ -323,25 +323,65 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     private int lastScreenWidth, lastScreenHeight;
     private int cursorStart, cursorEnd;
     private int cursorOffset;
+    private boolean cursorVisible;
+    private int lastLineGraphics;
     private final int[] lastPalette;
     private int[] lastChar;
+    private int[][] glyphCache;
+    private int glyphCount;
+    private int frameCount;
+    private long frameTime;
 
     private boolean ioportRegistered;
     private boolean pciRegistered;
     private boolean memoryRegistered;
 
-    private boolean updatingScreen;
-
     private VGARAMIORegion ioRegion;
 
     private VGALowMemoryRegion lowIORegion;
 
-    private int[] rawImageData;
-    private int xmin, xmax, ymin, ymax, width, height;
-    private BufferedImage buffer;
-    private Monitor monitor;
+    /* legacy window decoding and plane access compiled from the current GR/SR settings */
+    private int windowStart, windowSize, windowBase;
+    private PlaneWriter planeWriter;
+    private PlaneReader planeReader;
+    /* one handler of each kind, reconfigured in place so register writes do not allocate */
+    private final ChainFourWriter chainFourWriter = new ChainFourWriter();
+    private final OddEvenWriter oddEvenWriter = new OddEvenWriter();
+    private final PlanarCopyWriter planarCopyWriter = new PlanarCopyWriter();
+    private final LatchCopyWriter latchCopyWriter = new LatchCopyWriter();
+    private final LatchedWriter latchedWriter = new LatchedWriter();
+    private final ChainFourReader chainFourReader = new ChainFourReader();
+    private final OddEvenReader oddEvenReader = new OddEvenReader();
+    private final LatchedReader latchedReader = new LatchedReader();
+    private final ColorCompareReader colorCompareReader = new ColorCompareReader();
+
+    private DisplayBuffers display;
+
+    /* frames are snapshotted into the render copy on the emulation thread and drawn on the monitor's thread */
+    private volatile DefaultVGACard renderer;
+    private volatile boolean framePending;
+    private boolean snapshotAll;
+    private final boolean renderCopy;
+    private final Semaphore frameReady;
+    private boolean displayChanged;
+    private Clock timeSource;
+    private Timer frameTimer;
+
+    /* beam timing of the current frame, the frame timer fires as vertical retrace starts */
+    private long frameOrigin, framePeriod;
+    private int totalLines, displayLines, retraceStart, retraceEnd;
+    private int totalChars, displayChars;
 
     public DefaultVGACard() {
+        this(false);
+    }
+
+    /**
+     * Creates a card, or a render copy whose video RAM is only allocated as far as it is used.
+     * @param renderCopy <code>true</code> for a card that only renders snapshots of another
+     */
+    protected DefaultVGACard(boolean renderCopy) {
+        this.renderCopy = renderCopy;
         ioportRegistered = false;
         memoryRegistered = false;
         pciRegistered = false;
@@ -365,10 +405,12 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         putConfigWord(PCI_CONFIG_CLASS_DEVICE, (short)0x0300); // VGA Controller
         putConfigByte(PCI_CONFIG_HEADER, (byte)0x00); // header_type
 
-        ioRegion = new VGARAMIORegion();
+        ioRegion = new VGARAMIORegion(renderCopy ? RENDER_VGA_RAM_SIZE : VGA_RAM_SIZE);
         lowIORegion = new VGALowMemoryRegion();
 
         lastPalette = new int[256];
+        display = new DisplayBuffers();
+        frameReady = new Semaphore(0);
 
         this.internalReset();
 
@@ -383,6 +425,8 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
     @Override
     public String getText() {
+        DefaultVGACard source = renderer;
+        int[] lastChar = source == null ? this.lastChar : source.lastChar;
         StringBuilder b = new StringBuilder();
         for (int i = 0; i < lastChar.length / 80; i++) {
             StringBuilder row = new StringBuilder();
@@ -453,8 +497,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         output.writeInt(lastCH);
         output.writeInt(lastWidth);
         output.writeInt(lastHeight);
-        output.writeInt(lastScreenWidth);
-        output.writeInt(lastScreenHeight);
+        /* the mode is tracked by the render copy, so record the size actually on display */
+        Dimension shown = display.getSize();
+        output.writeInt(shown.width);
+        output.writeInt(shown.height);
         output.writeInt(cursorStart);
         output.writeInt(cursorEnd);
         output.writeInt(cursorOffset);
@@ -464,7 +510,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         output.writeInt(lastChar.length);
         for (int element : lastChar)
             output.writeInt(element);
-        output.writeBoolean(updatingScreen);
+        output.writeBoolean(false);
         //dump ioregion
         ioRegion.dumpState(output);
     }
@@ -553,18 +599,35 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         lastChar = new int[len];
         for (int i = 0; i < lastChar.length; i++)
             lastChar[i] = input.readInt();
-        updatingScreen = input.readBoolean();
+        input.readBoolean();
         //load ioregion
         ioRegion.loadState(input);
+
+        if (lastScreenWidth > 0 && lastScreenHeight > 0)
+            display.resize(lastScreenWidth, lastScreenHeight);
+        snapshotAll = true;
+        updateMemoryAccess();
     }
 
+    /**
+     * Writes the displayed frame to <code>Screenshot.png</code>. Only the copy of the frame is taken on
+     * the calling thread, the image is encoded and written on a thread of its own.
+     */
     public void saveScreenshot() {
-        File out = new File("Screenshot.png");
-        try {
-            ImageIO.write(buffer, "png", out);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        BufferedImage front = display.getFrontImage();
+        if (front == null)
+            return;
+        final BufferedImage image = new BufferedImage(front.getColorModel(), front.copyData(null), false, null);
+        new Thread("Screenshot Writer") {
+            @Override
+            public void run() {
+                try {
+                    ImageIO.write(image, "png", new File("Screenshot.png"));
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "Exception saving screenshot", e);
+                }
+            }
+        }.start();
     }
 
     /**
@@ -584,7 +647,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
      */
     @Override
     public int[] getDisplayBuffer() {
-        return rawImageData;
+        return display.getBackBuffer();
     }
 
     /**
@@ -595,10 +658,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
      * @param h region height
      */
     protected void dirtyDisplayRegion(int x, int y, int w, int h) {
-        xmin = Math.min(x, xmin);
-        xmax = Math.max(x + w, xmax);
-        ymin = Math.min(y, ymin);
-        ymax = Math.max(y + h, ymax);
+        display.dirty(x, y, w, h);
     }
 
     /**
@@ -610,14 +670,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     public void resizeDisplay(int width, int height) {
         if (width == 0 || height == 0)
             return;
-        this.width = width;
-        this.height = height;
-
-        buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        buffer.setAccelerationPriority(1);
-        DataBufferInt buf = (DataBufferInt)buffer.getRaster().getDataBuffer();
-        rawImageData = buf.getData();
-        monitor.resizeDisplay(width, height);
+        display.resize(width, height);
     }
 
     /**
@@ -625,7 +678,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
      */
     @Override
     public Dimension getDisplaySize() {
-        return new Dimension(width, height);
+        return display.getSize();
     }
 
     public void dirtyScreen() {
@@ -635,7 +688,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
     @Override
     public void setOriginalDisplaySize() {
-        resizeDisplay(lastScreenWidth, lastScreenHeight);
+        Dimension size = display.getSize();
+        Monitor monitor = display.getMonitor();
+        if (monitor != null && size.width > 0 && size.height > 0)
+            monitor.resizeDisplay(size.width, size.height);
     }
 
     //PCIDevice Methods
@@ -656,6 +712,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     @Override
     public void ioPortWrite8(int address, int data) {
         //all byte accesses are vgaIOPort ones
+        displayChanged = true;
         vgaIOPortWriteByte(address, data);
     }
 
@@ -824,6 +881,8 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             break;
         case 0x3c5:
             sequencerRegister[sequencerRegisterIndex] = data & sequencerRegisterMask[sequencerRegisterIndex];
+            if (sequencerRegisterIndex == SR_INDEX_MAP_MASK || sequencerRegisterIndex == SR_INDEX_SEQ_MEMORY_MODE)
+                updateMemoryAccess();
             break;
         case 0x3c7:
             dacReadIndex = data;
@@ -849,6 +908,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             break;
         case 0x3cf:
             graphicsRegister[graphicsRegisterIndex] = data & graphicsRegisterMask[graphicsRegisterIndex];
+            updateMemoryAccess();
             break;
         }
     }
@@ -906,12 +966,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         case 0x3ba:
         case 0x3da:
             attributeRegisterFlipFlop = false;
-            if (updatingScreen) {
-                st01 &= ~ST01_V_RETRACE; //claim we are not in vertical retrace (in the process of screen refresh)
-                st01 &= ~ST01_DISP_ENABLE; //is set when in h/v retrace (i.e. if e-beam is off, but we claim always on)
-            } else {
-                st01 ^= ST01_V_RETRACE | ST01_DISP_ENABLE; //if not updating toggle to fool polling in some vga code
-            }
+            st01 = st01 & ~(ST01_V_RETRACE | ST01_DISP_ENABLE) | beamStatus();
             return st01;
         default:
             return 0x00;
@@ -923,6 +978,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     }
 
     private final void vbeIOPortWriteData(int data) {
+        displayChanged = true;
         if (vbeIndex <= VBE_DISPI_INDEX_NB) {
             switch (vbeIndex) {
             case VBE_DISPI_INDEX_ID:
@@ -948,6 +1004,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
                 data &= vbeBankMask;
                 vbeRegs[vbeIndex] = data;
                 bankOffset = data << 16;
+                updateMemoryAccess();
                 break;
             case VBE_DISPI_INDEX_ENABLE:
                 if ((data & VBE_DISPI_ENABLED) != 0) {
@@ -1003,6 +1060,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
                     bankOffset = 0;
                 }
                 vbeRegs[vbeIndex] = data;
+                updateMemoryAccess();
                 break;
             case VBE_DISPI_INDEX_VIRT_WIDTH: {
                 if (data < vbeRegs[VBE_DISPI_INDEX_XRES])
@@ -1090,6 +1148,78 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         crtRegister = new int[256];
 
         graphicMode = -1;
+        updateMemoryAccess();
+    }
+
+    /**
+     * Recompiles the legacy memory window and the plane read and write handlers. Must be called
+     * whenever the memory map, the bank, or any register used by the read or write modes changes.
+     */
+    private final void updateMemoryAccess() {
+        switch (graphicsRegister[GR_INDEX_MISC] >>> 2 & 3) {
+        case 0:
+            windowStart = 0;
+            windowSize = 0x20000;
+            windowBase = 0;
+            break;
+        case 1:
+            windowStart = 0;
+            windowSize = 0x10000;
+            windowBase = bankOffset;
+            break;
+        case 2:
+            windowStart = 0x10000;
+            windowSize = 0x8000;
+            windowBase = 0;
+            break;
+        default:
+        case 3:
+            windowStart = 0x18000;
+            windowSize = 0x8000;
+            windowBase = 0;
+            break;
+        }
+
+        int mapMask = sequencerRegister[SR_INDEX_MAP_MASK] & 0xf;
+        if ((sequencerRegister[SR_INDEX_SEQ_MEMORY_MODE] & 0x08) != 0) {
+            chainFourWriter.mapMask = mapMask;
+            planeWriter = chainFourWriter;
+            planeReader = chainFourReader;
+            return;
+        }
+        if ((graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 0x10) != 0) {
+            int planeSelect = graphicsRegister[GR_INDEX_READ_MAP_SELECT] & 2;
+            oddEvenWriter.mapMask = mapMask;
+            oddEvenWriter.planeSelect = planeSelect;
+            oddEvenReader.planeSelect = planeSelect;
+            planeWriter = oddEvenWriter;
+            planeReader = oddEvenReader;
+            return;
+        }
+
+        if ((graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 0x08) == 0) {
+            latchedReader.shift = graphicsRegister[GR_INDEX_READ_MAP_SELECT] * 8;
+            planeReader = latchedReader;
+        } else {
+            colorCompareReader.compare = mask16[graphicsRegister[GR_INDEX_COLOR_COMPARE]];
+            colorCompareReader.dontCare = mask16[graphicsRegister[GR_INDEX_COLOR_DONT_CARE]];
+            planeReader = colorCompareReader;
+        }
+
+        int writeMode = graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 3;
+        int rotate = graphicsRegister[GR_INDEX_DATA_ROTATE] & 7;
+        int function = graphicsRegister[GR_INDEX_DATA_ROTATE] >>> 3 & 3;
+        int setResetEnable = graphicsRegister[GR_INDEX_ENABLE_SETRESET] & 0xf;
+        if (writeMode == 1) {
+            latchCopyWriter.mapMask = mapMask;
+            planeWriter = latchCopyWriter;
+        } else if (writeMode == 0 && rotate == 0 && function == 0 && setResetEnable == 0 && graphicsRegister[GR_INDEX_BITMASK] == 0xff) {
+            planarCopyWriter.mapMask = mapMask;
+            planeWriter = planarCopyWriter;
+        } else {
+            latchedWriter.configure(mapMask, writeMode, rotate, function, setResetEnable);
+            planeWriter = latchedWriter;
+        }
     }
 
     public class VGALowMemoryRegion implements Memory {
@@ -1129,69 +1259,32 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         public byte getByte(int offset) {
-            /* convert to VGA memory offset */
-            int memoryMapMode = graphicsRegister[GR_INDEX_MISC] >>> 2 & 3;
-            offset &= 0x1ffff;
-            switch (memoryMapMode) {
-            case 0:
-                break;
-            case 1:
-                if (offset >= 0x10000)
-                    return (byte)0xff;
-                offset += bankOffset;
-                break;
-            case 2:
-                offset -= 0x10000;
-                if (offset >= 0x8000 || offset < 0)
-                    return (byte)0xff;
-                break;
-            default:
-            case 3:
-                offset -= 0x18000;
-                if (offset < 0)
-                    return (byte)0xff;
-                break;
-            }
-
-            if ((sequencerRegister[SR_INDEX_SEQ_MEMORY_MODE] & 0x08) != 0) {
-                /* chain 4 mode : simplest access */
-                return ioRegion.getByte(offset);
-            } else if ((graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 0x10) != 0) {
-                /* odd/even mode (aka text mode mapping) */
-                int plane = graphicsRegister[GR_INDEX_READ_MAP_SELECT] & 2 | offset & 1;
-                return ioRegion.getByte((offset & ~1) << 1 | plane);
-            } else {
-                /* standard VGA latched access */
-                latch = ioRegion.getDoubleWord(4 * offset);
-
-                if ((graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 0x08) == 0) {
-                    /* read mode 0 */
-                    return (byte)(latch >>> graphicsRegister[GR_INDEX_READ_MAP_SELECT] * 8);
-                } else {
-                    /* read mode 1 */
-                    int ret = (latch ^ mask16[graphicsRegister[GR_INDEX_COLOR_COMPARE]])
-                        & mask16[graphicsRegister[GR_INDEX_COLOR_DONT_CARE]];
-                    ret |= ret >>> 16;
-                    ret |= ret >>> 8;
-                    return (byte)~ret;
-                }
-            }
+            offset = (offset & 0x1ffff) - windowStart;
+            if (offset < 0 || offset >= windowSize)
+                return (byte)0xff;
+            return (byte)planeReader.read(offset + windowBase);
         }
 
         @Override
         public short getWord(int offset) {
-            int v = 0xFF & getByte(offset);
-            v |= getByte(offset + 1) << 8;
-            return (short)v;
+            int address = (offset & 0x1ffff) - windowStart;
+            if (address < 0 || address > windowSize - 2) {
+                int v = 0xFF & getByte(offset);
+                v |= getByte(offset + 1) << 8;
+                return (short)v;
+            }
+            return (short)planeReader.readWord(address + windowBase);
         }
 
         @Override
         public int getDoubleWord(int offset) {
-            int v = 0xFF & getByte(offset);
-            v |= (0xFF & getByte(offset + 1)) << 8;
-            v |= (0xFF & getByte(offset + 2)) << 16;
-            v |= (0xFF & getByte(offset + 3)) << 24;
-            return v;
+            int address = (offset & 0x1ffff) - windowStart;
+            if (address < 0 || address > windowSize - 4) {
+                int v = 0xFFFF & getWord(offset);
+                v |= getWord(offset + 2) << 16;
+                return v;
+            }
+            return planeReader.readDoubleWord(address + windowBase);
         }
 
         @Override
@@ -1219,142 +1312,32 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         public void setByte(int offset, byte data) {
-            /* convert to VGA memory offset */
-            int memoryMapMode = graphicsRegister[GR_INDEX_MISC] >>> 2 & 3;
-            offset &= 0x1ffff;
-            switch (memoryMapMode) {
-            case 0:
-                break;
-            case 1:
-                if (offset >= 0x10000)
-                    return;
-                offset += bankOffset;
-                break;
-            case 2:
-                offset -= 0x10000;
-                if (offset >= 0x8000 || offset < 0)
-                    return;
-                break;
-            default:
-            case 3:
-                offset -= 0x18000;
-                //should be (offset >= 0x8000) but anding above "offset &= 0x1ffff" means <=> the below
-                if (offset < 0)
-                    return;
-                break;
-            }
-
-            if ((sequencerRegister[SR_INDEX_SEQ_MEMORY_MODE] & 0x08) != 0) {
-                /* chain 4 mode : simplest access */
-                int plane = offset & 3;
-                int mask = 1 << plane;
-                if ((sequencerRegister[SR_INDEX_MAP_MASK] & mask) != 0) {
-                    ioRegion.setByte(offset, data);
-                    planeUpdated |= mask; // only used to detect font change
-                    //cpu_physical_memory_set_dirty
-                }
-            } else if ((graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 0x10) != 0) {
-                /* odd/even mode (aka text mode mapping) */
-                int plane = graphicsRegister[GR_INDEX_READ_MAP_SELECT] & 2 | offset & 1;
-                int mask = 1 << plane;
-                if ((sequencerRegister[SR_INDEX_MAP_MASK] & mask) != 0) {
-                    ioRegion.setByte((offset & ~1) << 1 | plane, data);
-                    planeUpdated |= mask; // only used to detect font change
-                    //cpu_physical_memory_set_dirty
-                }
-            } else {
-                /* standard VGA latched access */
-                int bitMask = 0;
-                int writeMode = graphicsRegister[GR_INDEX_GRAPHICS_MODE] & 3;
-                int intData = 0xff & data;
-                switch (writeMode) {
-                default:
-                case 0:
-                    /* rotate */
-                    int b = graphicsRegister[GR_INDEX_DATA_ROTATE] & 7;
-                    intData |= intData << 8;
-                    intData |= intData << 16;
-                    intData = intData >>> b | intData << -b;
-
-                    /* apply set/reset mask */
-                    int setMask = mask16[graphicsRegister[GR_INDEX_ENABLE_SETRESET]];
-                    intData = intData & ~setMask | mask16[graphicsRegister[GR_INDEX_SETRESET]] & setMask;
-                    bitMask = graphicsRegister[GR_INDEX_BITMASK];
-                    break;
-                case 1:
-                    intData = latch;
-                    int mask = sequencerRegister[SR_INDEX_MAP_MASK];
-                    planeUpdated |= mask; // only used to detect font change
-                    int writeMask = mask16[mask];
-                    //check address being used here
-                    offset <<= 2;
-                    ioRegion.setDoubleWord(offset, ioRegion.getDoubleWord(offset) & ~writeMask | intData & writeMask);
-                    return;
-                case 2:
-                    intData = mask16[intData & 0x0f];
-                    bitMask = graphicsRegister[GR_INDEX_BITMASK];
-                    break;
-                case 3:
-                    /* rotate */
-                    b = graphicsRegister[GR_INDEX_DATA_ROTATE] & 7;
-                    intData = intData >>> b | intData << 8 - b;
-                    bitMask = graphicsRegister[GR_INDEX_BITMASK] & intData;
-                    intData = mask16[graphicsRegister[GR_INDEX_SETRESET]];
-                    break;
-                }
-
-                /* apply logical operation */
-                int funcSelect = graphicsRegister[GR_INDEX_DATA_ROTATE] >>> 3;
-                switch (funcSelect) {
-                default:
-                case 0:
-                    /* nothing to do */
-                    break;
-                case 1:
-                    /* and */
-                    intData &= latch;
-                    break;
-                case 2:
-                    /* or */
-                    intData |= latch;
-                    break;
-                case 3:
-                    /* xor */
-                    intData ^= latch;
-                    break;
-                }
-
-                /* apply bit mask */
-                bitMask |= bitMask << 8;
-                bitMask |= bitMask << 16;
-                intData = intData & bitMask | latch & ~bitMask;
-
-                /* mask data according to sequencerRegister[SR_INDEX_MAP_MASK] */
-                int mask = sequencerRegister[SR_INDEX_MAP_MASK];
-                planeUpdated |= mask; // only used to detect font change
-                int writeMask = mask16[mask];
-                offset <<= 2;
-                //check address being used here
-                ioRegion.setDoubleWord(offset, ioRegion.getDoubleWord(offset) & ~writeMask | intData & writeMask);
-            }
+            offset = (offset & 0x1ffff) - windowStart;
+            if (offset < 0 || offset >= windowSize)
+                return;
+            planeWriter.write(offset + windowBase, 0xff & data);
         }
 
         @Override
         public void setWord(int offset, short data) {
-            setByte(offset++, (byte)data);
-            data >>>= 8;
-            setByte(offset, (byte)data);
+            int address = (offset & 0x1ffff) - windowStart;
+            if (address < 0 || address > windowSize - 2) {
+                setByte(offset, (byte)data);
+                setByte(offset + 1, (byte)(data >>> 8));
+                return;
+            }
+            planeWriter.writeWord(address + windowBase, 0xffff & data);
         }
 
         @Override
         public void setDoubleWord(int offset, int data) {
-            setByte(offset++, (byte)data);
-            data >>>= 8;
-            setByte(offset++, (byte)data);
-            data >>>= 8;
-            setByte(offset++, (byte)data);
-            data >>>= 8;
-            setByte(offset, (byte)data);
+            int address = (offset & 0x1ffff) - windowStart;
+            if (address < 0 || address > windowSize - 4) {
+                setWord(offset, (short)data);
+                setWord(offset + 2, (short)(data >>> 16));
+                return;
+            }
+            planeWriter.writeDoubleWord(address + windowBase, data);
         }
 
         @Override
@@ -1407,24 +1390,273 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
     }
 
-    public static class VGARAMIORegion extends MemoryMappedIORegion {
+    /**
+     * Stores CPU writes into video RAM for one fixed register configuration. Addresses are offsets
+     * into video RAM after the legacy window has been decoded.
+     */
+    abstract class PlaneWriter {
+        int mapMask;
+
+        abstract void write(int address, int data);
+
+        void writeWord(int address, int data) {
+            write(address, data & 0xff);
+            write(address + 1, data >>> 8);
+        }
+
+        void writeDoubleWord(int address, int data) {
+            writeWord(address, data & 0xffff);
+            writeWord(address + 2, data >>> 16);
+        }
+
+        /**
+         * Merges a four plane value into the planes enabled by the map mask.
+         */
+        final void storePlanes(int address, int value) {
+            planeUpdated |= mapMask; // only used to detect font change
+            address <<= 2;
+            if (mapMask == 0xf) {
+                ioRegion.setDoubleWord(address, value);
+            } else {
+                int writeMask = mask16[mapMask];
+                ioRegion.setDoubleWord(address, ioRegion.getDoubleWord(address) & ~writeMask | value & writeMask);
+            }
+        }
+    }
+
+    /**
+     * Chain 4: the two low address bits select the plane, so video RAM is linear.
+     */
+    class ChainFourWriter extends PlaneWriter {
+        @Override
+        void write(int address, int data) {
+            int mask = 1 << (address & 3);
+            if ((mapMask & mask) != 0) {
+                ioRegion.setByte(address, (byte)data);
+                planeUpdated |= mask; // only used to detect font change
+            }
+        }
+
+        @Override
+        void writeWord(int address, int data) {
+            if (mapMask != 0xf) {
+                super.writeWord(address, data);
+                return;
+            }
+            ioRegion.setWord(address, (short)data);
+            planeUpdated |= 1 << (address & 3) | 1 << (address + 1 & 3);
+        }
+
+        @Override
+        void writeDoubleWord(int address, int data) {
+            if (mapMask != 0xf) {
+                super.writeDoubleWord(address, data);
+                return;
+            }
+            ioRegion.setDoubleWord(address, data);
+            planeUpdated |= 0xf;
+        }
+    }
+
+    /**
+     * Odd/even (text mode) mapping: the low address bit selects between a pair of planes.
+     */
+    class OddEvenWriter extends PlaneWriter {
+        int planeSelect;
+
+        @Override
+        void write(int address, int data) {
+            int plane = planeSelect | address & 1;
+            int mask = 1 << plane;
+            if ((mapMask & mask) != 0) {
+                ioRegion.setByte((address & ~1) << 1 | plane, (byte)data);
+                planeUpdated |= mask; // only used to detect font change
+            }
+        }
+    }
+
+    /**
+     * Write mode 0 without rotation, set/reset, logical operation or bit mask: the byte is simply
+     * replicated into every enabled plane.
+     */
+    class PlanarCopyWriter extends PlaneWriter {
+        @Override
+        void write(int address, int data) {
+            storePlanes(address, data * 0x01010101);
+        }
+    }
+
+    /**
+     * Write mode 1: the latches are stored unchanged, as used for screen to screen copies.
+     */
+    class LatchCopyWriter extends PlaneWriter {
+        @Override
+        void write(int address, int data) {
+            storePlanes(address, latch);
+        }
+    }
+
+    /**
+     * Write modes 0, 2 and 3 in full generality, with every register derived value precomputed.
+     */
+    class LatchedWriter extends PlaneWriter {
+        private int writeMode, rotate, function;
+        private int setResetMask, setResetValue, bitMask;
+
+        void configure(int mapMask, int writeMode, int rotate, int function, int setResetEnable) {
+            this.mapMask = mapMask;
+            this.writeMode = writeMode;
+            this.rotate = rotate;
+            this.function = function;
+            setResetMask = mask16[setResetEnable];
+            setResetValue = mask16[graphicsRegister[GR_INDEX_SETRESET]];
+            bitMask = graphicsRegister[GR_INDEX_BITMASK];
+        }
+
+        @Override
+        void write(int address, int data) {
+            int value, mask;
+            switch (writeMode) {
+            default:
+            case 0:
+                value = data * 0x01010101;
+                value = value >>> rotate | value << -rotate;
+                value = value & ~setResetMask | setResetValue & setResetMask;
+                mask = bitMask;
+                break;
+            case 2:
+                value = mask16[data & 0x0f];
+                mask = bitMask;
+                break;
+            case 3:
+                data = data >>> rotate | data << 8 - rotate;
+                mask = bitMask & data;
+                value = setResetValue;
+                break;
+            }
+
+            switch (function) {
+            default:
+            case 0:
+                break;
+            case 1:
+                value &= latch;
+                break;
+            case 2:
+                value |= latch;
+                break;
+            case 3:
+                value ^= latch;
+                break;
+            }
+
+            mask = (mask & 0xff) * 0x01010101;
+            storePlanes(address, value & mask | latch & ~mask);
+        }
+    }
+
+    /**
+     * Reads video RAM for one fixed register configuration.
+     */
+    abstract class PlaneReader {
+        abstract int read(int address);
+
+        int readWord(int address) {
+            return read(address) | read(address + 1) << 8;
+        }
+
+        int readDoubleWord(int address) {
+            return readWord(address) | readWord(address + 2) << 16;
+        }
+    }
+
+    class ChainFourReader extends PlaneReader {
+        @Override
+        int read(int address) {
+            return 0xff & ioRegion.getByte(address);
+        }
+
+        @Override
+        int readWord(int address) {
+            return 0xffff & ioRegion.getWord(address);
+        }
+
+        @Override
+        int readDoubleWord(int address) {
+            return ioRegion.getDoubleWord(address);
+        }
+    }
+
+    class OddEvenReader extends PlaneReader {
+        int planeSelect;
+
+        @Override
+        int read(int address) {
+            return 0xff & ioRegion.getByte((address & ~1) << 1 | planeSelect | address & 1);
+        }
+    }
+
+    /**
+     * Read mode 0: loads the latches and returns the selected plane.
+     */
+    class LatchedReader extends PlaneReader {
+        int shift;
+
+        @Override
+        int read(int address) {
+            latch = ioRegion.getDoubleWord(address << 2);
+            return latch >>> shift & 0xff;
+        }
+    }
+
+    /**
+     * Read mode 1: loads the latches and returns which pixels match the colour compare register.
+     */
+    class ColorCompareReader extends PlaneReader {
+        int compare, dontCare;
+
+        @Override
+        int read(int address) {
+            latch = ioRegion.getDoubleWord(address << 2);
+            int ret = (latch ^ compare) & dontCare;
+            ret |= ret >>> 16;
+            ret |= ret >>> 8;
+            return ~ret & 0xff;
+        }
+    }
+
+    /**
+     * Video RAM. A card's is allocated at its full size up front, and mapped into the physical address
+     * space (as the VBE linear framebuffer) one <code>Page</code> per block, so that a guest store
+     * reaches the array without forwarding and only marks its own page dirty. A render copy's starts
+     * smaller and grows as pages are copied into it or drawn from; everything past its end reads as zero.
+     */
+    public static class VGARAMIORegion extends MemoryMappedIORegion implements BlockMappedMemory {
         private byte[] buffer;
         private int startAddress;
-        private boolean[] dirtyPages;
+        private final boolean[] dirtyPages;
+        private final Page[] pages;
 
         public VGARAMIORegion() {
-            buffer = new byte[INIT_VGA_RAM_SIZE];
+            this(VGA_RAM_SIZE);
+        }
+
+        VGARAMIORegion(int size) {
+            buffer = new byte[size];
             dirtyPages = new boolean[(VGA_RAM_SIZE >>> PAGE_SHIFT) + 1];
-            for (int i = 0; i < dirtyPages.length; i++)
-                dirtyPages[i] = false;
+            pages = new Page[VGA_RAM_SIZE >>> PAGE_SHIFT];
 
             startAddress = -1;
         }
 
         public void dumpState(DataOutput output) throws IOException {
+            /* trailing pages never written are left out, as they were before video RAM was preallocated */
+            int length = buffer.length;
+            while (length > INIT_VGA_RAM_SIZE && isClear(length - PAGE_SIZE))
+                length -= PAGE_SIZE;
             output.writeInt(startAddress);
-            output.writeInt(buffer.length);
-            output.write(buffer);
+            output.writeInt(length);
+            output.write(buffer, 0, length);
             output.writeInt(dirtyPages.length);
             for (boolean dirtyPage : dirtyPages)
                 output.writeBoolean(dirtyPage);
@@ -1433,28 +1665,32 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         public void loadState(DataInput input) throws IOException {
             startAddress = input.readInt();
             int len = input.readInt();
-            buffer = new byte[len];
+            if (len > VGA_RAM_SIZE)
+                throw new IOException("Video RAM state larger than video RAM");
+            ensureLength(len);
             input.readFully(buffer, 0, len);
+            Arrays.fill(buffer, len, buffer.length, (byte)0);
             len = input.readInt();
-            dirtyPages = new boolean[len];
-            for (int i = 0; i < len; i++)
-                dirtyPages[i] = input.readBoolean();
+            for (int i = 0; i < len; i++) {
+                boolean dirty = input.readBoolean();
+                if (i < dirtyPages.length)
+                    dirtyPages[i] = dirty;
+            }
         }
 
-        private void increaseVGARAMSize(int offset) {
-            if (offset < 0 || offset >= VGA_RAM_SIZE)
-                throw new ArrayIndexOutOfBoundsException("tried to access outside of memory bounds");
-
-            int newSize = buffer.length;
-            while (newSize <= offset)
-                newSize = newSize << 1;
-
-            if (newSize > VGA_RAM_SIZE)
-                newSize = VGA_RAM_SIZE;
+        private boolean isClear(int start) {
+            for (int i = start; i < start + PAGE_SIZE; i++)
+                if (buffer[i] != 0)
+                    return false;
+            return true;
+        }
 
-            byte[] newBuf = new byte[newSize];
-            System.arraycopy(buffer, 0, newBuf, 0, buffer.length);
-            buffer = newBuf;
+        @Override
+        public Memory getBlock(int offset) {
+            int page = offset >>> PAGE_SHIFT;
+            if (pages[page] == null)
+                pages[page] = new Page(page);
+            return pages[page];
         }
 
         @Override
@@ -1465,15 +1701,13 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         @Override
         public void copyArrayIntoContents(int address, byte[] buf, int off, int len) {
             System.arraycopy(buf, off, buffer, address, len);
+            markDirty(address, len);
         }
 
         @Override
         public void clear() {
-            for (int i = 0; i < buffer.length; i++)
-                buffer[i] = 0;
-
-            for (int i = 0; i < dirtyPages.length; i++)
-                dirtyPages[i] = false;
+            Arrays.fill(buffer, (byte)0);
+            Arrays.fill(dirtyPages, false);
         }
 
         @Override
@@ -1481,18 +1715,68 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             int limit = start + length;
             if (limit > getSize())
                 throw new ArrayIndexOutOfBoundsException("Attempt to clear outside of memory bounds");
-            try {
-                for (int i = start; i < limit; i++)
-                    buffer[i] = 0;
-            } catch (ArrayIndexOutOfBoundsException e) {
+            Arrays.fill(buffer, start, limit, (byte)0);
+            markDirty(start, length);
+        }
+
+        /**
+         * Returns the backing array, grown to at least <code>size</code> bytes first if this is a render
+         * copy. Callers writing to the array directly must mark what they change with
+         * <code>markDirty</code>.
+         * @param size minimum length required
+         * @return backing array
+         */
+        public byte[] getBuffer(int size) {
+            if (size > VGA_RAM_SIZE)
+                throw new ArrayIndexOutOfBoundsException("Attempt to access outside of video RAM");
+            ensureLength(size);
+            return buffer;
+        }
+
+        private void ensureLength(int length) {
+            if (length <= buffer.length)
+                return;
+            int size = buffer.length;
+            while (size < length)
+                size <<= 1;
+            buffer = Arrays.copyOf(buffer, Math.min(size, VGA_RAM_SIZE));
+        }
+
+        /**
+         * Copies the dirty pages, or all pages, into <code>target</code> and moves their dirty marks there.
+         * @param target video RAM of a render copy
+         * @param all <code>true</code> to copy every page
+         */
+        public void copyPages(VGARAMIORegion target, boolean all) {
+            for (int i = 0; i < pages.length; i++) {
+                if (!all && !dirtyPages[i])
+                    continue;
+                int start = i << PAGE_SHIFT;
+                dirtyPages[i] = false;
+                target.dirtyPages[i] = true;
+                /* a clear page past the end of the target already reads as zero there */
+                if (start >= target.buffer.length && isClear(start))
+                    continue;
+                target.ensureLength(start + PAGE_SIZE);
+                System.arraycopy(buffer, start, target.buffer, start, PAGE_SIZE);
             }
+        }
 
-            int pageStart = start >>> PAGE_SHIFT;
-            int pageLimit = limit - 1 >>> PAGE_SHIFT;
-            for (int i = pageStart; i <= pageLimit; i++)
+        public void markDirty(int start, int length) {
+            if (length <= 0)
+                return;
+            int pageLimit = start + length - 1 >>> PAGE_SHIFT;
+            for (int i = start >>> PAGE_SHIFT; i <= pageLimit; i++)
                 dirtyPages[i] = true;
         }
 
+        public boolean hasDirtyPages() {
+            for (int i = 0; i < pages.length; i++)
+                if (dirtyPages[i])
+                    return true;
+            return false;
+        }
+
         public boolean pageIsDirty(int i) {
             return dirtyPages[i];
         }
@@ -1529,88 +1813,43 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         @Override
         public void setByte(int offset, byte data) {
-            try {
-                dirtyPages[offset >>> PAGE_SHIFT] = true;
-                buffer[offset] = data;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                increaseVGARAMSize(offset);
-                setByte(offset, data);
-            }
+            buffer[offset] = data;
+            dirtyPages[offset >>> PAGE_SHIFT] = true;
         }
 
         @Override
         public byte getByte(int offset) {
-            try {
-                return buffer[offset];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                increaseVGARAMSize(offset);
-                return getByte(offset);
-            }
+            return buffer[offset];
         }
 
         @Override
         public void setWord(int offset, short data) {
-            try {
-                buffer[offset] = (byte)data;
-                dirtyPages[offset >>> PAGE_SHIFT] = true;
-                offset++;
-                buffer[offset] = (byte)(data >> 8);
-                dirtyPages[offset >>> PAGE_SHIFT] = true;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                increaseVGARAMSize(offset);
-                setWord(offset, data);
-            }
+            buffer[offset] = (byte)data;
+            buffer[offset + 1] = (byte)(data >> 8);
+            dirtyPages[offset >>> PAGE_SHIFT] = true;
+            dirtyPages[offset + 1 >>> PAGE_SHIFT] = true;
         }
 
         @Override
         public short getWord(int offset) {
-            try {
-                int result = 0xFF & buffer[offset];
-                offset++;
-                result |= buffer[offset] << 8;
-                return (short)result;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                increaseVGARAMSize(offset);
-                return getWord(offset);
-            }
+            int result = 0xFF & buffer[offset];
+            result |= buffer[offset + 1] << 8;
+            return (short)result;
         }
 
         @Override
         public void setDoubleWord(int offset, int data) {
-            try {
-                dirtyPages[offset >>> PAGE_SHIFT] = true;
-                buffer[offset] = (byte)data;
-                offset++;
-                data >>= 8;
-                buffer[offset] = (byte)data;
-                offset++;
-                data >>= 8;
-                buffer[offset] = (byte)data;
-                offset++;
-                data >>= 8;
-                buffer[offset] = (byte)data;
-                dirtyPages[offset >>> PAGE_SHIFT] = true;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                increaseVGARAMSize(offset);
-                setDoubleWord(offset, data);
-            }
+            buffer[offset] = (byte)data;
+            buffer[offset + 1] = (byte)(data >> 8);
+            buffer[offset + 2] = (byte)(data >> 16);
+            buffer[offset + 3] = (byte)(data >> 24);
+            dirtyPages[offset >>> PAGE_SHIFT] = true;
+            dirtyPages[offset + 3 >>> PAGE_SHIFT] = true;
         }
 
         @Override
         public int getDoubleWord(int offset) {
-            try {
-                int result = 0xFF & buffer[offset];
-                offset++;
-                result |= (0xFF & buffer[offset]) << 8;
-                offset++;
-                result |= (0xFF & buffer[offset]) << 16;
-                offset++;
-                result |= buffer[offset] << 24;
-                return result;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                increaseVGARAMSize(offset);
-                return getDoubleWord(offset);
-            }
+            return doubleWord(buffer, offset);
         }
 
         @Override
@@ -1643,24 +1882,316 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             throw new UnsupportedOperationException("Not supported yet.");
         }
 
-    }
+        /**
+         * One block of video RAM as mapped into the address space. Accesses that would run past the
+         * end of the block go through the whole region, so that both pages are marked.
+         */
+        private final class Page extends AbstractMemory {
+            private final int base;
+            private final int index;
 
-    //Public Methods Used By Output Device
-    @Override
-    public final void updateDisplay() {
-        // note this causes NON-deterministic execution because of thread scheduling
-        updatingScreen = true;
+            Page(int index) {
+                this.index = index;
+                base = index << PAGE_SHIFT;
+            }
 
-        boolean fullUpdate = false;
-        int detGraphicMode;
-        if ((attributeRegisterIndex & 0x20) == 0)
-            detGraphicMode = GMODE_BLANK;
-        else
-            detGraphicMode = graphicsRegister[GR_INDEX_MISC] & 1;
+            @Override
+            public long getSize() {
+                return PAGE_SIZE;
+            }
 
-        if (detGraphicMode != this.graphicMode) {
-            this.graphicMode = detGraphicMode;
-            fullUpdate = true;
+            @Override
+            public boolean isAllocated() {
+                return true;
+            }
+
+            @Override
+            public byte getByte(int offset) {
+                return buffer[base + offset];
+            }
+
+            @Override
+            public void setByte(int offset, byte data) {
+                buffer[base + offset] = data;
+                dirtyPages[index] = true;
+            }
+
+            @Override
+            public short getWord(int offset) {
+                if (offset > PAGE_SIZE - 2)
+                    return VGARAMIORegion.this.getWord(base + offset);
+                int address = base + offset;
+                return (short)(0xFF & buffer[address] | buffer[address + 1] << 8);
+            }
+
+            @Override
+            public void setWord(int offset, short data) {
+                if (offset > PAGE_SIZE - 2) {
+                    VGARAMIORegion.this.setWord(base + offset, data);
+                    return;
+                }
+                int address = base + offset;
+                buffer[address] = (byte)data;
+                buffer[address + 1] = (byte)(data >> 8);
+                dirtyPages[index] = true;
+            }
+
+            @Override
+            public int getDoubleWord(int offset) {
+                if (offset > PAGE_SIZE - 4)
+                    return VGARAMIORegion.this.getDoubleWord(base + offset);
+                return doubleWord(buffer, base + offset);
+            }
+
+            @Override
+            public void setDoubleWord(int offset, int data) {
+                if (offset > PAGE_SIZE - 4) {
+                    VGARAMIORegion.this.setDoubleWord(base + offset, data);
+                    return;
+                }
+                int address = base + offset;
+                buffer[address] = (byte)data;
+                buffer[address + 1] = (byte)(data >> 8);
+                buffer[address + 2] = (byte)(data >> 16);
+                buffer[address + 3] = (byte)(data >> 24);
+                dirtyPages[index] = true;
+            }
+
+            @Override
+            public long getQuadWord(int offset) {
+                return 0xFFFFFFFFL & getDoubleWord(offset) | (long)VGARAMIORegion.this.getDoubleWord(base + offset + 4) << 32;
+            }
+
+            @Override
+            public void setQuadWord(int offset, long data) {
+                setDoubleWord(offset, (int)data);
+                VGARAMIORegion.this.setDoubleWord(base + offset + 4, (int)(data >>> 32));
+            }
+
+            @Override
+            public void copyContentsIntoArray(int address, byte[] buf, int off, int len) {
+                VGARAMIORegion.this.copyContentsIntoArray(base + address, buf, off, len);
+            }
+
+            @Override
+            public void copyArrayIntoContents(int address, byte[] buf, int off, int len) {
+                VGARAMIORegion.this.copyArrayIntoContents(base + address, buf, off, len);
+            }
+
+            @Override
+            public void clear() {
+                VGARAMIORegion.this.clear(base, PAGE_SIZE);
+            }
+
+            @Override
+            public int executeReal(Processor cpu, int offset) {
+                throw new IllegalStateException("Invalid Operation");
+            }
+
+            @Override
+            public int executeProtected(Processor cpu, int offset) {
+                throw new IllegalStateException("Invalid Operation");
+            }
+
+            @Override
+            public int executeVirtual8086(Processor cpu, int offset) {
+                throw new IllegalStateException("Invalid Operation");
+            }
+
+            @Override
+            public void loadInitialContents(int address, byte[] buf, int off, int len) {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+
+            @Override
+            public String toString() {
+                return "VGA RAM Page[" + index + "]";
+            }
+        }
+    }
+
+    //Public Methods Used By Output Device
+    @Override
+    public boolean renderFrame(long timeout) throws InterruptedException {
+        if (!frameReady.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+            return false;
+        try {
+            display.beginFrame();
+            renderer.updateDisplay();
+            return display.publish(renderer.frameTime);
+        } finally {
+            framePending = false;
+        }
+    }
+
+    /**
+     * Called on the emulation thread as vertical retrace starts in virtual time. If anything that is
+     * displayed may have changed and the render thread has finished with the previous frame, the
+     * display state is copied into the render copy and handed over. Otherwise nothing is done and the
+     * dirty state keeps accumulating here until a later retrace.
+     */
+    private void snapshotFrame() {
+        long retrace = frameTimer.getExpiry();
+        updateCrtTiming();
+        long next = retrace + framePeriod;
+        long now = timeSource.getEmulatedNanos();
+        if (next <= now)
+            next = now + framePeriod;
+        frameOrigin = next - framePeriod - framePeriod * retraceStart / totalLines;
+        frameTimer.setExpiry(next);
+        frameCount++;
+
+        DefaultVGACard target = renderer;
+        if (target == null || framePending)
+            return;
+        /* text mode blink phases change every eight frames */
+        boolean blink = (attributeRegisterIndex & 0x20) != 0 && (graphicsRegister[GR_INDEX_MISC] & 1) == 0
+            && (frameCount & CURSOR_BLINK_MASK - 1) == 0;
+        if (!snapshotAll && !displayChanged && !blink && !ioRegion.hasDirtyPages())
+            return;
+        copyDisplayState(target, snapshotAll);
+        snapshotAll = false;
+        displayChanged = false;
+        framePending = true;
+        frameReady.release();
+    }
+
+    /**
+     * Notes a register write that may change what is displayed, for registers written without going
+     * through this class.
+     */
+    protected void markDisplayChanged() {
+        displayChanged = true;
+    }
+
+    /**
+     * Derives the frame period and the line structure of a frame from the CRT controller registers and
+     * the selected dot clock. Extended clocks, and rates outside what a monitor would sync to, run at
+     * <code>DEFAULT_REFRESH_RATE</code>.
+     */
+    private void updateCrtTiming() {
+        int overflow = crtRegister[CR_INDEX_OVERFLOW];
+        totalLines = (crtRegister[CR_INDEX_VERT_TOTAL] | (overflow & 0x01) << 8 | (overflow & 0x20) << 4) + 2;
+        displayLines = (crtRegister[CR_INDEX_VERT_DISPLAY_END] | (overflow & 0x02) << 7 | (overflow & 0x40) << 3) + 1;
+        retraceStart = crtRegister[CR_INDEX_VERT_RETRACE_START] | (overflow & 0x04) << 6 | (overflow & 0x80) << 2;
+        /* retrace ends when the low four bits of the line counter match */
+        int retraceLength = (crtRegister[CR_INDEX_VERT_RETRACE_END] - retraceStart - 1 & 0x0f) + 1;
+        retraceEnd = retraceStart + retraceLength;
+        totalChars = crtRegister[CR_INDEX_HORZ_TOTAL] + 5;
+        displayChars = crtRegister[CR_INDEX_HORZ_DISPLAY_END] + 1;
+
+        long tickRate = timeSource.getTickRate();
+        long period = 0;
+        int clock = miscellaneousOutputRegister >>> 2 & 3;
+        boolean vbe = (vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0;
+        if (clock < DOT_CLOCKS.length && !vbe) {
+            int clocking = sequencerRegister[SR_INDEX_CLOCKING_MODE];
+            long dotsPerFrame = (long)totalChars * ((clocking & 0x01) != 0 ? 8 : 9) * totalLines;
+            if ((clocking & 0x08) != 0)
+                dotsPerFrame *= 2;
+            period = tickRate * dotsPerFrame / DOT_CLOCKS[clock];
+        }
+        if (vbe || displayLines >= totalLines || retraceEnd > totalLines || displayChars >= totalChars) {
+            /* no mode set yet, or one the registers cannot describe: assume the proportions of 640x480 */
+            int lines = vbe && vbeRegs[VBE_DISPI_INDEX_YRES] > 0 ? vbeRegs[VBE_DISPI_INDEX_YRES] : 480;
+            displayLines = lines;
+            totalLines = lines * 35 / 32;
+            retraceStart = lines + lines / 48;
+            retraceEnd = retraceStart + 2;
+            displayChars = 80;
+            totalChars = 100;
+        }
+        if (period < tickRate / 120 || period > tickRate / 40)
+            period = tickRate / DEFAULT_REFRESH_RATE;
+        framePeriod = period;
+    }
+
+    /**
+     * Returns the vertical retrace and display disabled bits of input status register 1 for the beam
+     * position at the current virtual time.
+     */
+    private int beamStatus() {
+        if (frameTimer == null) //toggle to fool polling in some vga code
+            return ~st01 & (ST01_V_RETRACE | ST01_DISP_ENABLE);
+        long position = (timeSource.getEmulatedNanos() - frameOrigin) % framePeriod;
+        if (position < 0)
+            position += framePeriod;
+        long lines = position * totalLines;
+        int line = (int)(lines / framePeriod);
+        if (line >= retraceStart && line < retraceEnd)
+            return ST01_V_RETRACE | ST01_DISP_ENABLE;
+        if (line >= displayLines || lines % framePeriod * totalChars >= displayChars * framePeriod)
+            return ST01_DISP_ENABLE;
+        return 0;
+    }
+
+    /**
+     * Returns a new, unconnected card of the same type to render snapshots on.
+     * @return render copy
+     */
+    protected DefaultVGACard createRenderer() {
+        return new DefaultVGACard(true);
+    }
+
+    /**
+     * Copies everything the display is drawn from into <code>target</code>: the registers, the palette,
+     * and the video RAM pages written since the last copy. Subclasses with extra display state copy
+     * it too.
+     * @param target render copy
+     * @param all <code>true</code> to copy all of video RAM and force a full redraw
+     */
+    protected void copyDisplayState(DefaultVGACard target, boolean all) {
+        System.arraycopy(sequencerRegister, 0, target.sequencerRegister, 0, sequencerRegister.length);
+        System.arraycopy(graphicsRegister, 0, target.graphicsRegister, 0, graphicsRegister.length);
+        System.arraycopy(attributeRegister, 0, target.attributeRegister, 0, attributeRegister.length);
+        System.arraycopy(crtRegister, 0, target.crtRegister, 0, crtRegister.length);
+        System.arraycopy(palette, 0, target.palette, 0, palette.length);
+        System.arraycopy(vbeRegs, 0, target.vbeRegs, 0, vbeRegs.length);
+        target.attributeRegisterIndex = attributeRegisterIndex;
+        target.vbeStartAddress = vbeStartAddress;
+        target.vbeLineOffset = vbeLineOffset;
+        target.frameCount = frameCount;
+        target.frameTime = timeSource.getEmulatedNanos();
+
+        target.planeUpdated |= planeUpdated;
+        planeUpdated = 0;
+
+        ioRegion.copyPages(target.ioRegion, all);
+        if (all) {
+            target.glyphCache = null;
+            target.graphicMode = -1;
+            target.lastWidth = target.lastHeight = -1;
+        }
+    }
+
+    private class FrameCallback implements TimerResponsive {
+
+        @Override
+        public void callback() {
+            snapshotFrame();
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_VGA_FRAME;
+        }
+    }
+
+    /**
+     * Draws the current display state into the back buffer, redrawing only what changed since the
+     * previous call.
+     */
+    protected void updateDisplay() {
+        boolean fullUpdate = false;
+        int detGraphicMode;
+        if ((attributeRegisterIndex & 0x20) == 0)
+            detGraphicMode = GMODE_BLANK;
+        else
+            detGraphicMode = graphicsRegister[GR_INDEX_MISC] & 1;
+
+        if (detGraphicMode != this.graphicMode) {
+            this.graphicMode = detGraphicMode;
+            fullUpdate = true;
         }
 
         switch (graphicMode) {
@@ -1675,13 +2206,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             drawBlank(fullUpdate);
             break;
         }
-
-        updatingScreen = false;
     }
 
     private final void drawText(boolean fullUpdate) {
-        boolean temp = updatePalette16();
-        fullUpdate |= temp;
+        boolean glyphsStale = updatePalette16();
         int[] palette = lastPalette;
 
         /* compute font data address (in plane 2) */
@@ -1690,23 +2218,23 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         int offset = (v >>> 4 & 1 | v << 1 & 6) * 8192 * 4 + 2;
         if (offset != this.fontOffset[0]) {
             this.fontOffset[0] = offset;
-            fullUpdate = true;
+            glyphsStale = true;
         }
 
         offset = (v >>> 5 & 1 | v >>> 1 & 6) * 8192 * 4 + 2;
         if (offset != this.fontOffset[1]) {
             this.fontOffset[1] = offset;
-            fullUpdate = true;
+            glyphsStale = true;
         }
 
         if ((this.planeUpdated & 1 << 2) != 0) {
             /* if the plane 2 was modified since the last display, it
               indicates the font may have been modified */
             this.planeUpdated = 0;
-            fullUpdate = true;
+            glyphsStale = true;
         }
 
-        temp = updateBasicParameters();
+        boolean temp = updateBasicParameters();
         fullUpdate |= temp;
 
         int srcIndex = this.startAddress * 4;
@@ -1734,6 +2262,13 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             /* better than nothing: exit if transient size is too big */
             return;
         }
+        if (height > 0) {
+            /* characters are read from the region directly, so a render copy must cover them first */
+            int textEnd = srcIndex + (height - 1) * lineOffset + width * 4;
+            if (textEnd > VGA_RAM_SIZE)
+                return;
+            ioRegion.getBuffer(textEnd);
+        }
 
         if (width != this.lastWidth || height != this.lastHeight || charWidth != this.lastCW || charHeight != this.lastCH) {
             this.lastScreenWidth = width * charWidth;
@@ -1743,13 +2278,25 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             this.lastHeight = height;
             this.lastCH = charHeight;
             this.lastCW = charWidth;
+            glyphsStale = true;
+        }
+
+        int lineGraphics = attributeRegister[AR_INDEX_ATTR_MODE_CONTROL] & 0x04;
+        if (lineGraphics != this.lastLineGraphics) {
+            this.lastLineGraphics = lineGraphics;
+            glyphsStale = true;
+        }
+
+        if (glyphsStale || glyphCache == null) {
+            clearGlyphCache();
             fullUpdate = true;
         }
 
         int curCursorOffset = (crtRegister[CR_INDEX_CURSOR_LOC_HIGH] << 8 | crtRegister[CR_INDEX_CURSOR_LOC_LOW]) - this.startAddress;
+        boolean curCursorVisible = (frameCount & CURSOR_BLINK_MASK) == 0;
 
         if (curCursorOffset != this.cursorOffset || crtRegister[CR_INDEX_CURSOR_START] != this.cursorStart
-            || crtRegister[CR_INDEX_CURSOR_END] != this.cursorEnd) {
+            || crtRegister[CR_INDEX_CURSOR_END] != this.cursorEnd || curCursorVisible != this.cursorVisible) {
             /* if the cursor position changed, we updated the old and new
               chars */
             if (this.cursorOffset < CH_ATTR_SIZE && this.cursorOffset >= 0)
@@ -1760,147 +2307,142 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             this.cursorOffset = curCursorOffset;
             this.cursorStart = crtRegister[CR_INDEX_CURSOR_START];
             this.cursorEnd = crtRegister[CR_INDEX_CURSOR_END];
+            this.cursorVisible = curCursorVisible;
         }
 
-        int cursorIndex = (this.startAddress + this.cursorOffset) * 4;
-        int lastCharOffset = 0;
-
         switch (charWidth) {
         case 8:
-            for (int charY = 0; charY < height; charY++) {
-                int srcOffset = srcIndex;
-                for (int charX = 0; charX < width; charX++) {
-                    int charShort = 0xffff & ioRegion.getWord(srcOffset);
-                    if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
-                        this.lastChar[lastCharOffset] = charShort;
-
-                        int character = 0xff & charShort;
-                        int characterAttribute = charShort >>> 8;
-
-                        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
-                        int backgroundColor = palette[characterAttribute >>> 4];
-                        int foregroundColor = palette[characterAttribute & 0xf];
-
-                        drawGlyph8(getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 8, lastScreenWidth, glyphOffset,
-                            charHeight, foregroundColor, backgroundColor);
-                        dirtyDisplayRegion(charX * 8, charY * charHeight, 8, charHeight);
-
-                        if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
-                            int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
-                            int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
-                            /* XXX: check that */
-                            if (lineLast > charHeight - 1)
-                                lineLast = charHeight - 1;
-
-                            if (lineLast >= lineStart && lineStart < charHeight) {
-                                int tempHeight = lineLast - lineStart + 1;
-                                drawCursorGlyph8(getDisplayBuffer(), (charY * charHeight + lineStart) * lastScreenWidth + charX * 8,
-                                    lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
-                                dirtyDisplayRegion(charX * 8, charY * charHeight + lineStart, 8, tempHeight);
-                            }
-                        }
-                    }
-                    srcOffset += 4;
-                    lastCharOffset++;
-                }
-                srcIndex += lineOffset;
-            }
-            return;
         case 9:
-            for (int charY = 0; charY < height; charY++) {
-                int srcOffset = srcIndex;
-                for (int charX = 0; charX < width; charX++) {
-                    int charShort = 0xffff & ioRegion.getWord(srcOffset);
-                    if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
-                        this.lastChar[lastCharOffset] = charShort;
-
-                        int character = 0xff & charShort;
-                        int characterAttribute = charShort >>> 8;
-
-                        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
-                        int backgroundColor = palette[characterAttribute >>> 4];
-                        int foregroundColor = palette[characterAttribute & 0xf];
-
-                        boolean dup9 = character >= 0xb0 && character <= 0xdf
-                            && (attributeRegister[AR_INDEX_ATTR_MODE_CONTROL] & 0x04) != 0;
-                        drawGlyph9(getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 9, lastScreenWidth, glyphOffset,
-                            charHeight, foregroundColor, backgroundColor, dup9);
-                        dirtyDisplayRegion(charX * 9, charY * charHeight, 9, charHeight);
-
-                        if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
-                            int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
-                            int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
-                            /* XXX: check that */
-                            if (lineLast > charHeight - 1)
-                                lineLast = charHeight - 1;
-
-                            if (lineLast >= lineStart && lineStart < charHeight) {
-                                int tempHeight = lineLast - lineStart + 1;
-                                drawCursorGlyph9(getDisplayBuffer(), (charY * charHeight + lineStart) * lastScreenWidth + charX * 9,
-                                    lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
-                                dirtyDisplayRegion(charX * 9, charY * charHeight + lineStart, 9, tempHeight);
-                            }
-                        }
-                    }
-                    srcOffset += 4;
-                    lastCharOffset++;
-                }
-                srcIndex += lineOffset;
-            }
-            return;
         case 16:
-            for (int charY = 0; charY < height; charY++) {
-                int srcOffset = srcIndex;
-                for (int charX = 0; charX < width; charX++) {
-                    int charShort = 0xffff & ioRegion.getWord(srcOffset);
-                    if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
-                        this.lastChar[lastCharOffset] = charShort;
-
-                        int character = 0xff & charShort;
-                        int characterAttribute = charShort >>> 8;
-
-                        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
-                        int backgroundColor = palette[characterAttribute >>> 4];
-                        int foregroundColor = palette[characterAttribute & 0xf];
-
-                        drawGlyph16(getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 16, lastScreenWidth, glyphOffset,
-                            charHeight, foregroundColor, backgroundColor);
-                        dirtyDisplayRegion(charX * 16, charY * charHeight, 16, charHeight);
-
-                        if (srcOffset == cursorIndex && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0) {
-                            int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
-                            int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
-                            /* XXX: check that */
-                            if (lineLast > charHeight - 1)
-                                lineLast = charHeight - 1;
-
-                            if (lineLast >= lineStart && lineStart < charHeight) {
-                                int tempHeight = lineLast - lineStart + 1;
-                                drawCursorGlyph16(getDisplayBuffer(), (charY * charHeight + lineStart) * lastScreenWidth + charX * 16,
-                                    lastScreenWidth, tempHeight, foregroundColor, backgroundColor);
-                                dirtyDisplayRegion(charX * 16, charY * charHeight + lineStart, 16, tempHeight);
-                            }
-                        }
-                    }
-                    srcOffset += 4;
-                    lastCharOffset++;
+            break;
+        default:
+            LOGGING.log(Level.WARNING, "Unknown character width {0}", Integer.valueOf(charWidth));
+            return;
+        }
+
+        /* with blinking enabled attribute bit 7 blinks the character instead of brightening the background */
+        boolean blink = (attributeRegister[AR_INDEX_ATTR_MODE_CONTROL] & 0x08) != 0;
+        boolean blinkHidden = (frameCount & CHAR_BLINK_MASK) != 0;
+        boolean drawCursor = this.cursorVisible && (crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0;
+
+        int[] dest = getDisplayBuffer();
+        int cursorIndex = (this.startAddress + this.cursorOffset) * 4;
+        int lastCharOffset = 0;
+
+        for (int charY = 0; charY < height; charY++) {
+            int srcOffset = srcIndex;
+            for (int charX = 0; charX < width; charX++) {
+                int charShort = 0xffff & ioRegion.getWord(srcOffset);
+                if (blink && (charShort & 0x8000) != 0) {
+                    int background = charShort >>> 12 & 7;
+                    if (blinkHidden)
+                        charShort = charShort & 0xff | background << 12 | background << 8;
+                    else
+                        charShort &= 0x7fff;
+                }
+
+                if (fullUpdate || charShort != this.lastChar[lastCharOffset]) {
+                    this.lastChar[lastCharOffset] = charShort;
+
+                    int[] glyph = glyphCache[charShort];
+                    if (glyph == null)
+                        glyph = cacheGlyph(charShort, charWidth, charHeight);
+
+                    int startOffset = charY * charHeight * lastScreenWidth + charX * charWidth;
+                    for (int i = 0, j = startOffset; i < glyph.length; i += charWidth, j += lastScreenWidth)
+                        System.arraycopy(glyph, i, dest, j, charWidth);
+                    dirtyDisplayRegion(charX * charWidth, charY * charHeight, charWidth, charHeight);
+
+                    if (srcOffset == cursorIndex && drawCursor)
+                        drawCursor(dest, startOffset, charX * charWidth, charY * charHeight, charWidth, charHeight,
+                            palette[charShort >>> 8 & 0xf]);
                 }
-                srcIndex += lineOffset;
+                srcOffset += 4;
+                lastCharOffset++;
             }
-            return;
+            srcIndex += lineOffset;
+        }
+    }
+
+    private final void clearGlyphCache() {
+        if (glyphCache == null)
+            glyphCache = new int[1 << 16][];
+        else
+            Arrays.fill(glyphCache, null);
+        glyphCount = 0;
+    }
+
+    /**
+     * Rasterises the glyph for a character and attribute pair at the current font, palette and
+     * character cell size, and caches it for reuse until one of those changes.
+     */
+    private final int[] cacheGlyph(int charShort, int charWidth, int charHeight) {
+        if (glyphCount == MAX_CACHED_GLYPHS)
+            clearGlyphCache();
+
+        int character = 0xff & charShort;
+        int characterAttribute = charShort >>> 8;
+
+        int glyphOffset = fontOffset[characterAttribute >>> 3 & 1] + 32 * 4 * character;
+        int backgroundColor = lastPalette[characterAttribute >>> 4];
+        int foregroundColor = lastPalette[characterAttribute & 0xf];
+
+        int[] glyph = new int[charWidth * charHeight];
+        switch (charWidth) {
+        case 8:
+            drawGlyph8(glyph, 0, charWidth, glyphOffset, charHeight, foregroundColor, backgroundColor);
+            break;
+        case 9:
+            boolean dup9 = character >= 0xb0 && character <= 0xdf && lastLineGraphics != 0;
+            drawGlyph9(glyph, 0, charWidth, glyphOffset, charHeight, foregroundColor, backgroundColor, dup9);
+            break;
         default:
-            LOGGING.log(Level.WARNING, "Unknown character width {0}", Integer.valueOf(charWidth));
+            drawGlyph16(glyph, 0, charWidth, glyphOffset, charHeight, foregroundColor, backgroundColor);
+            break;
+        }
+
+        glyphCache[charShort] = glyph;
+        glyphCount++;
+        return glyph;
+    }
+
+    private final void drawCursor(int[] buffer, int startOffset, int x, int y, int charWidth, int charHeight, int color) {
+        int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
+        int lineLast = crtRegister[CR_INDEX_CURSOR_END] & 0x1f;
+        /* XXX: check that */
+        if (lineLast > charHeight - 1)
+            lineLast = charHeight - 1;
+
+        if (lineLast >= lineStart && lineStart < charHeight) {
+            for (int line = lineStart, i = startOffset + lineStart * lastScreenWidth; line <= lineLast; line++, i += lastScreenWidth)
+                Arrays.fill(buffer, i, i + charWidth, color);
+            dirtyDisplayRegion(x, y + lineStart, charWidth, lineLast - lineStart + 1);
         }
     }
 
+    /**
+     * Converts scanlines of one pixel format. Lines whose video RAM has a dirty page are converted
+     * straight from the video RAM array, and each run of consecutive converted lines is reported as a
+     * single dirty region.
+     */
     abstract class GraphicsUpdater {
         abstract int byteWidth(int width);
 
-        abstract void drawLine(int offset, int width, int y, int dispWidth);
+        /**
+         * Converts one scanline of <code>width</code> source pixels.
+         * @param vram video RAM, at least <code>offset + byteWidth(width)</code> long
+         * @param offset start of the scanline in video RAM
+         * @param width source width in pixels
+         * @param dest display raster
+         * @param index first destination pixel
+         */
+        abstract void drawLine(byte[] vram, int offset, int width, int[] dest, int index);
 
         void updateDisplay(int width, int height, int dispWidth, boolean fullUpdate, int multiScan) {
             int multiRun = multiScan;
             int addr1 = 4 * startAddress;
+            int lineBytes = byteWidth(width);
+            int[] dest = getDisplayBuffer();
 
             int y1 = 0;
             boolean addrMunge1 = (crtRegister[CR_INDEX_CRTC_MODE_CONTROL] & 1) == 0;
@@ -1910,6 +2452,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
             int pageMin = Integer.MAX_VALUE;
             int pageMax = Integer.MIN_VALUE;
+            int spanStart = -1;
 
             for (int y = 0; y < height; y++) {
                 int addr = addr1;
@@ -1925,16 +2468,28 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
                         addr = addr & ~0x8000 | (y1 & 2) << 14;
                 }
 
-                int pageStart = addr >>> PAGE_SHIFT;
-                int pageEnd = addr + byteWidth(width) - 1 >>> PAGE_SHIFT;
-                for (int i = pageStart; i <= pageEnd; i++) {
-                    if (fullUpdate || ioRegion.pageIsDirty(i)) {
-                        pageMin = Math.min(pageMin, pageStart);
-                        pageMax = Math.max(pageMax, pageEnd);
-                        drawLine(addr, width, y, dispWidth);
-                        break;
+                boolean drawn = false;
+                int end = addr + lineBytes;
+                if (end <= VGA_RAM_SIZE) {
+                    int pageStart = addr >>> PAGE_SHIFT;
+                    int pageEnd = end - 1 >>> PAGE_SHIFT;
+                    for (int i = pageStart; i <= pageEnd; i++) {
+                        if (fullUpdate || ioRegion.pageIsDirty(i)) {
+                            pageMin = Math.min(pageMin, pageStart);
+                            pageMax = Math.max(pageMax, pageEnd);
+                            drawLine(ioRegion.getBuffer(end), addr, width, dest, y * dispWidth);
+                            drawn = true;
+                            break;
+                        }
                     }
                 }
+                if (drawn) {
+                    if (spanStart < 0)
+                        spanStart = y;
+                } else if (spanStart >= 0) {
+                    dirtyDisplayRegion(0, spanStart, dispWidth, y - spanStart);
+                    spanStart = -1;
+                }
 
                 if (multiRun == 0) {
                     if ((y1 & mask) == mask)
@@ -1948,12 +2503,25 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
                 if (y == lineCompare)
                     addr1 = 0;
             }
+            if (spanStart >= 0)
+                dirtyDisplayRegion(0, spanStart, dispWidth, height - spanStart);
 
             for (int i = pageMin; i <= pageMax; i++)
                 ioRegion.cleanPage(i);
         }
     }
 
+    private static int doubleWord(byte[] vram, int offset) {
+        return 0xff & vram[offset] | (0xff & vram[offset + 1]) << 8 | (0xff & vram[offset + 2]) << 16 | vram[offset + 3] << 24;
+    }
+
+    /**
+     * Packs one 0RGB display pixel, as <code>rgbToPixel</code> does, for the direct colour converters.
+     */
+    private static int rgb(int red, int green, int blue) {
+        return red << 16 | green << 8 | blue;
+    }
+
     class DrawLine2 extends GraphicsUpdater {
         @Override
         int byteWidth(int width) {
@@ -1961,35 +2529,26 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-            int index = y * dispWidth;
-
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
             int[] palette = lastPalette;
             int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
-            width >>>= 3;
-
-            do {
-                int data = ioRegion.getDoubleWord(offset);
-                data &= planeMask;
-
-                int v = expand2[data & 0xff];
-                v |= expand2[data >>> 16 & 0xff] << 2;
-                dest[index++] = palette[v >>> 12];
-                dest[index++] = palette[v >>> 8 & 0xf];
-                dest[index++] = palette[v >>> 4 & 0xf];
-                dest[index++] = palette[v >>> 0 & 0xf];
 
-                v = expand2[data >>> 8 & 0xff];
-                v |= expand2[data >>> 24 & 0xff] << 2;
-                dest[index++] = palette[v >>> 12];
-                dest[index++] = palette[v >>> 8 & 0xf];
-                dest[index++] = palette[v >>> 4 & 0xf];
-                dest[index++] = palette[v >>> 0 & 0xf];
-                offset += 4;
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+            for (int end = offset + (width >>> 3) * 4; offset < end; offset += 4) {
+                int data = doubleWord(vram, offset) & planeMask;
+
+                int v = expand2[data & 0xff] | expand2[data >>> 16 & 0xff] << 2;
+                dest[index] = palette[v >>> 12];
+                dest[index + 1] = palette[v >>> 8 & 0xf];
+                dest[index + 2] = palette[v >>> 4 & 0xf];
+                dest[index + 3] = palette[v & 0xf];
+
+                v = expand2[data >>> 8 & 0xff] | expand2[data >>> 24 & 0xff] << 2;
+                dest[index + 4] = palette[v >>> 12];
+                dest[index + 5] = palette[v >>> 8 & 0xf];
+                dest[index + 6] = palette[v >>> 4 & 0xf];
+                dest[index + 7] = palette[v & 0xf];
+                index += 8;
+            }
         }
     }
 
@@ -2000,38 +2559,30 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-            int index = y * dispWidth;
-
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
             int[] palette = lastPalette;
             int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
-            width >>>= 3;
 
-            do {
-                int data = ioRegion.getDoubleWord(offset);
-                data &= planeMask;
-
-                int v = expand2[data & 0xff];
-                v |= expand2[data >>> 16 & 0xff] << 2;
-                dest[index++] = dest[index++] = palette[v >>> 12];
-                dest[index++] = dest[index++] = palette[v >>> 8 & 0xf];
-                dest[index++] = dest[index++] = palette[v >>> 4 & 0xf];
-                dest[index++] = dest[index++] = palette[v >>> 0 & 0xf];
-
-                v = expand2[data >>> 8 & 0xff];
-                v |= expand2[data >>> 24 & 0xff] << 2;
-                dest[index++] = dest[index++] = palette[v >>> 12];
-                dest[index++] = dest[index++] = palette[v >>> 8 & 0xf];
-                dest[index++] = dest[index++] = palette[v >>> 4 & 0xf];
-                dest[index++] = dest[index++] = palette[v >>> 0 & 0xf];
-                offset += 4;
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+            for (int end = offset + (width >>> 3) * 4; offset < end; offset += 4) {
+                int data = doubleWord(vram, offset) & planeMask;
+
+                int v = expand2[data & 0xff] | expand2[data >>> 16 & 0xff] << 2;
+                dest[index] = dest[index + 1] = palette[v >>> 12];
+                dest[index + 2] = dest[index + 3] = palette[v >>> 8 & 0xf];
+                dest[index + 4] = dest[index + 5] = palette[v >>> 4 & 0xf];
+                dest[index + 6] = dest[index + 7] = palette[v & 0xf];
+
+                v = expand2[data >>> 8 & 0xff] | expand2[data >>> 24 & 0xff] << 2;
+                dest[index + 8] = dest[index + 9] = palette[v >>> 12];
+                dest[index + 10] = dest[index + 11] = palette[v >>> 8 & 0xf];
+                dest[index + 12] = dest[index + 13] = palette[v >>> 4 & 0xf];
+                dest[index + 14] = dest[index + 15] = palette[v & 0xf];
+                index += 16;
+            }
         }
     }
 
+    /* a two pixel palette table indexed by a byte of v measured no faster than the nibble lookups */
     class DrawLine4 extends GraphicsUpdater {
         @Override
         int byteWidth(int width) {
@@ -2039,37 +2590,28 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-            int index = y * dispWidth;
-
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
             int[] palette = lastPalette;
-            int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
-            width >>>= 3;
-
-            do {
-                int data = ioRegion.getDoubleWord(offset) & planeMask;
-
-                int v = expand4[data & 0xff];
-                data >>>= 8;
-                v |= expand4[data & 0xff] << 1;
-                data >>>= 8;
-                v |= expand4[data & 0xff] << 2;
-                data >>>= 8;
-                v |= expand4[data & 0xff] << 3;
-
-                dest[index++] = palette[v >>> 28];
-                dest[index++] = palette[v >>> 24 & 0xF];
-                dest[index++] = palette[v >>> 20 & 0xF];
-                dest[index++] = palette[v >>> 16 & 0xF];
-                dest[index++] = palette[v >>> 12 & 0xF];
-                dest[index++] = palette[v >>> 8 & 0xF];
-                dest[index++] = palette[v >>> 4 & 0xF];
-                dest[index++] = palette[v >>> 0 & 0xF];
-                offset += 4;
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+            int planeMask = attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf;
+            int[] plane0 = (planeMask & 1) != 0 ? expand4 : EXPAND_NONE;
+            int[] plane1 = (planeMask & 2) != 0 ? expand4Plane1 : EXPAND_NONE;
+            int[] plane2 = (planeMask & 4) != 0 ? expand4Plane2 : EXPAND_NONE;
+            int[] plane3 = (planeMask & 8) != 0 ? expand4Plane3 : EXPAND_NONE;
+
+            for (int end = offset + (width >>> 3) * 4; offset < end; offset += 4) {
+                int v = plane0[0xff & vram[offset]] | plane1[0xff & vram[offset + 1]] | plane2[0xff & vram[offset + 2]]
+                    | plane3[0xff & vram[offset + 3]];
+
+                dest[index] = palette[v >>> 28];
+                dest[index + 1] = palette[v >>> 24 & 0xf];
+                dest[index + 2] = palette[v >>> 20 & 0xf];
+                dest[index + 3] = palette[v >>> 16 & 0xf];
+                dest[index + 4] = palette[v >>> 12 & 0xf];
+                dest[index + 5] = palette[v >>> 8 & 0xf];
+                dest[index + 6] = palette[v >>> 4 & 0xf];
+                dest[index + 7] = palette[v & 0xf];
+                index += 8;
+            }
         }
     }
 
@@ -2080,38 +2622,35 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-            int index = y * dispWidth;
-
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
             int[] palette = lastPalette;
-            int planeMask = mask16[attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf];
-            width >>>= 3;
-
-            do {
-                int data = ioRegion.getDoubleWord(offset);
-                data &= planeMask;
-
-                int v = expand4[data & 0xff];
-                v |= expand4[data >>> 8 & 0xff] << 1;
-                v |= expand4[data >>> 16 & 0xff] << 2;
-                v |= expand4[data >>> 24 & 0xff] << 3;
-
-                dest[index++] = dest[index++] = palette[v >>> 28];
-                dest[index++] = dest[index++] = palette[v >>> 24 & 0xF];
-                dest[index++] = dest[index++] = palette[v >>> 20 & 0xF];
-                dest[index++] = dest[index++] = palette[v >>> 16 & 0xF];
-                dest[index++] = dest[index++] = palette[v >>> 12 & 0xF];
-                dest[index++] = dest[index++] = palette[v >>> 8 & 0xF];
-                dest[index++] = dest[index++] = palette[v >>> 4 & 0xF];
-                dest[index++] = dest[index++] = palette[v >>> 0 & 0xF];
-                offset += 4;
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+            int planeMask = attributeRegister[AR_INDEX_COLOR_PLANE_ENABLE] & 0xf;
+            int[] plane0 = (planeMask & 1) != 0 ? expand4 : EXPAND_NONE;
+            int[] plane1 = (planeMask & 2) != 0 ? expand4Plane1 : EXPAND_NONE;
+            int[] plane2 = (planeMask & 4) != 0 ? expand4Plane2 : EXPAND_NONE;
+            int[] plane3 = (planeMask & 8) != 0 ? expand4Plane3 : EXPAND_NONE;
+
+            for (int end = offset + (width >>> 3) * 4; offset < end; offset += 4) {
+                int v = plane0[0xff & vram[offset]] | plane1[0xff & vram[offset + 1]] | plane2[0xff & vram[offset + 2]]
+                    | plane3[0xff & vram[offset + 3]];
+
+                dest[index] = dest[index + 1] = palette[v >>> 28];
+                dest[index + 2] = dest[index + 3] = palette[v >>> 24 & 0xf];
+                dest[index + 4] = dest[index + 5] = palette[v >>> 20 & 0xf];
+                dest[index + 6] = dest[index + 7] = palette[v >>> 16 & 0xf];
+                dest[index + 8] = dest[index + 9] = palette[v >>> 12 & 0xf];
+                dest[index + 10] = dest[index + 11] = palette[v >>> 8 & 0xf];
+                dest[index + 12] = dest[index + 13] = palette[v >>> 4 & 0xf];
+                dest[index + 14] = dest[index + 15] = palette[v & 0xf];
+                index += 16;
+            }
         }
     }
 
+    /*
+     * The 256 colour converters look up one pixel at a time: a two pixel table needs 64K entries (512KB),
+     * which misses the cache on every lookup and has to be rebuilt on every palette change.
+     */
     class DrawLine8d2 extends GraphicsUpdater {
         @Override
         int byteWidth(int width) {
@@ -2119,21 +2658,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-            int index = y * dispWidth;
-
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
             int[] palette = lastPalette;
-            width >>>= 1;
-
-            do {
-                int val = palette[0xFF & ioRegion.getByte(offset++)];
-                dest[index++] = val;
-                dest[index++] = val;
-                width--;
-            } while (width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+            for (int end = offset + (width >>> 1); offset < end; offset++, index += 2)
+                dest[index] = dest[index + 1] = palette[0xff & vram[offset]];
         }
     }
 
@@ -2144,18 +2672,10 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-            int index = y * dispWidth;
-
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
             int[] palette = lastPalette;
-            do {
-                dest[index] = palette[0xFF & ioRegion.getByte(offset++)];
-                index++;
-                width--;
-            } while (width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+            for (int end = offset + width; offset < end; offset++, index++)
+                dest[index] = palette[0xff & vram[offset]];
         }
     }
 
@@ -2166,21 +2686,11 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-
-            int i = y * dispWidth;
-            do {
-                int v = 0xffff & ioRegion.getWord(offset);
-                int r = v >>> 7 & 0xf8;
-                int g = v >>> 2 & 0xf8;
-                int b = v << 3 & 0xf8;
-                dest[i] = rgbToPixel(r, g, b);
-                offset += 2;
-                i++;
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
+            for (int end = offset + width * 2; offset < end; offset += 2, index++) {
+                int v = 0xff & vram[offset] | (0xff & vram[offset + 1]) << 8;
+                dest[index] = rgb(v >>> 7 & 0xf8, v >>> 2 & 0xf8, v << 3 & 0xf8);
+            }
         }
     }
 
@@ -2191,21 +2701,11 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-
-            int i = y * dispWidth;
-            do {
-                int v = 0xffff & ioRegion.getWord(offset);
-                int r = v >>> 8 & 0xf8;
-                int g = v >>> 3 & 0xfc;
-                int b = v << 3 & 0xf8;
-                dest[i] = rgbToPixel(r, g, b);
-                offset += 2;
-                i++;
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
+            for (int end = offset + width * 2; offset < end; offset += 2, index++) {
+                int v = 0xff & vram[offset] | (0xff & vram[offset + 1]) << 8;
+                dest[index] = rgb(v >>> 8 & 0xf8, v >>> 3 & 0xfc, v << 3 & 0xf8);
+            }
         }
     }
 
@@ -2216,43 +2716,40 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-
-            int i = y * dispWidth;
-            do {
-                int b = 0xFF & ioRegion.getByte(offset++);
-                int g = 0xFF & ioRegion.getByte(offset++);
-                int r = 0xFF & ioRegion.getByte(offset++);
-
-                dest[i++] = rgbToPixel(r, g, b);
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
+            for (int end = offset + width * 3; offset < end; offset += 3, index++)
+                dest[index] = rgb(0xff & vram[offset + 2], 0xff & vram[offset + 1], 0xff & vram[offset]);
         }
     }
 
+    /**
+     * 32 bpp pixels are little endian 0RGB already, so aligned scanlines are bulk copied through an int
+     * view of video RAM and only have the unused top byte cleared.
+     */
     class DrawLine32 extends GraphicsUpdater {
+        private byte[] viewed;
+        private IntBuffer view;
+
         @Override
         int byteWidth(int width) {
             return width * 4;
         }
 
         @Override
-        void drawLine(int offset, int width, int y, int dispWidth) {
-            int[] dest = getDisplayBuffer();
-
-            int i = y * dispWidth;
-            do {
-                int b = 0xff & ioRegion.getByte(offset++);
-                int g = 0xff & ioRegion.getByte(offset++);
-                int r = 0xff & ioRegion.getByte(offset++);
-                offset++;
-
-                dest[i++] = rgbToPixel(r, g, b);
-            } while (--width != 0);
-
-            dirtyDisplayRegion(0, y, dispWidth, 1);
+        void drawLine(byte[] vram, int offset, int width, int[] dest, int index) {
+            if ((offset & 3) != 0) {
+                for (int end = offset + width * 4; offset < end; offset += 4, index++)
+                    dest[index] = rgb(0xff & vram[offset + 2], 0xff & vram[offset + 1], 0xff & vram[offset]);
+                return;
+            }
+            if (vram != viewed) {
+                view = ByteBuffer.wrap(vram).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                viewed = vram;
+            }
+            view.position(offset >>> 2);
+            view.get(dest, index, width);
+            for (int end = index + width; index < end; index++)
+                dest[index] &= 0xffffff;
         }
     }
 
@@ -2301,11 +2798,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             } else
                 graphicUpdater = VGA_DRAW_LINE2;
         } else {
-            int bpp = 0;
-            if ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0)
-                bpp = vbeRegs[VBE_DISPI_INDEX_BPP];
-
-            switch (bpp) {
+            switch (getBitsPerPixel()) {
             default:
             case 0:
                 temp = updatePalette256();
@@ -2390,18 +2883,8 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
     }
 
     private final boolean updateBasicParameters() {
-        int curStartAddress, curLineOffset;
-        if ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0) {
-            curLineOffset = this.vbeLineOffset;
-            curStartAddress = this.vbeStartAddress;
-        } else {
-            /* compute curLineOffset in bytes */
-            curLineOffset = crtRegister[CR_INDEX_OFFSET];
-            curLineOffset <<= 3;
-
-            /* starting address */
-            curStartAddress = crtRegister[CR_INDEX_START_ADDR_LOW] | crtRegister[CR_INDEX_START_ADDR_HIGH] << 8;
-        }
+        int curLineOffset = getLineOffset();
+        int curStartAddress = getStartAddress();
 
         /* line compare */
         int curLineCompare = crtRegister[CR_INDEX_LINE_COMPARE] | (crtRegister[CR_INDEX_OVERFLOW] & 0x10) << 4
@@ -2417,6 +2900,64 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         return false;
     }
 
+    /**
+     * Returns the distance in bytes between the starts of successive scanlines.
+     * @return current line offset
+     */
+    protected int getLineOffset() {
+        if ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0)
+            return vbeLineOffset;
+        return crtRegister[CR_INDEX_OFFSET] << 3;
+    }
+
+    /**
+     * Returns the display start address in units of 4 bytes.
+     * @return current start address
+     */
+    protected int getStartAddress() {
+        if ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0)
+            return vbeStartAddress;
+        return crtRegister[CR_INDEX_START_ADDR_LOW] | crtRegister[CR_INDEX_START_ADDR_HIGH] << 8;
+    }
+
+    /**
+     * Returns the packed pixel depth of the current graphics mode, or 0 for a standard VGA mode.
+     * @return bits per pixel
+     */
+    protected int getBitsPerPixel() {
+        if ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) != 0)
+            return vbeRegs[VBE_DISPI_INDEX_BPP];
+        return 0;
+    }
+
+    /**
+     * Returns the memory mapped at 0xa0000 to 0xbffff.
+     * @return legacy VGA memory window
+     */
+    protected Memory getLowMemoryRegion() {
+        return lowIORegion;
+    }
+
+    /**
+     * Returns the video RAM backing both the legacy window and the linear frame buffer.
+     * @return video RAM
+     */
+    protected final VGARAMIORegion getVideoRAM() {
+        return ioRegion;
+    }
+
+    protected final int getSequencerRegister(int index) {
+        return sequencerRegister[index];
+    }
+
+    protected final int getGraphicsRegister(int index) {
+        return graphicsRegister[index];
+    }
+
+    protected final int getCRTRegister(int index) {
+        return crtRegister[index];
+    }
+
     private static final int c6to8(int v) {
         v &= 0x3f;
         int b = v & 1;
@@ -2497,64 +3038,6 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         }
     }
 
-    private final void drawCursorGlyph8(int[] buffer, int startOffset, int scanSize, int charHeight, int foregroundColor,
-        int backgroundColor) {
-        int xorColor = backgroundColor ^ foregroundColor;
-        int glyphOffset = 0;
-        scanSize -= 8;
-
-        do {
-            int fontData = cursorGlyph[glyphOffset];
-            for (int i = 7; i >= 0; i--) {
-                int pixel = -(fontData >>> i & 1) & xorColor ^ backgroundColor;
-                buffer[startOffset++] = pixel;
-            }
-            glyphOffset += 4;
-            startOffset += scanSize;
-        } while (--charHeight != 0);
-    }
-
-    private final void drawCursorGlyph16(int[] buffer, int startOffset, int scanSize, int charHeight, int foregroundColor,
-        int backgroundColor) {
-        int glyphOffset = 0;
-        int xorColor = backgroundColor ^ foregroundColor;
-        scanSize -= 16;
-
-        do {
-            int rawData = cursorGlyph[glyphOffset];
-            int fontData = expand4to8[rawData >>> 4 & 0x0f];
-            for (int i = 7; i >= 0; i--) {
-                int pixel = -(fontData >>> i & 1) & xorColor ^ backgroundColor;
-                buffer[startOffset++] = pixel;
-            }
-            fontData = expand4to8[rawData & 0x0f];
-            for (int i = 7; i >= 0; i--) {
-                int pixel = -(fontData >>> i & 1) & xorColor ^ backgroundColor;
-                buffer[startOffset++] = pixel;
-            }
-            glyphOffset += 4;
-            startOffset += scanSize;
-        } while (--charHeight != 0);
-    }
-
-    private final void drawCursorGlyph9(int[] buffer, int startOffset, int scanSize, int charHeight, int foregroundColor,
-        int backgroundColor) {
-        int glyphOffset = 0;
-        int xorColor = backgroundColor ^ foregroundColor;
-        scanSize -= 9;
-
-        do {
-            int fontData = cursorGlyph[glyphOffset];
-            for (int i = 7; i >= 0; i--) {
-                int pixel = -(fontData >>> i & 1) & xorColor ^ backgroundColor;
-                buffer[startOffset++] = pixel;
-            }
-            buffer[startOffset++] = buffer[startOffset - 2];
-            glyphOffset++;
-            startOffset += scanSize;
-        } while (--charHeight != 0);
-    }
-
     @Override
     public boolean initialised() {
         return ioportRegistered && pciRegistered && memoryRegistered;
@@ -2582,7 +3065,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
         dacCache = new int[3];
         palette = new int[768];
 
-        ioRegion = new VGARAMIORegion();
+        ioRegion = new VGARAMIORegion(renderCopy ? RENDER_VGA_RAM_SIZE : VGA_RAM_SIZE);
         vbeRegs = new int[VBE_DISPI_INDEX_NB + 1];
 
         fontOffset = new int[2];
@@ -2594,6 +3077,7 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
 
         vbeRegs[VBE_DISPI_INDEX_ID] = VBE_DISPI_ID0;
         vbeBankMask = (VGA_RAM_SIZE >>> 16) - 1;
+        snapshotAll = true;
 
         super.reset();
     }
@@ -2614,9 +3098,11 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             ioportRegistered = true;
         }
         if (component instanceof PhysicalAddressSpace && component.updated()) {
-            ((PhysicalAddressSpace)component).mapMemoryRegion(lowIORegion, 0xa0000, 0x20000);
+            ((PhysicalAddressSpace)component).mapMemoryRegion(getLowMemoryRegion(), 0xa0000, 0x20000);
             memoryRegistered = true;
         }
+        if (component instanceof Clock && component.updated())
+            startFrameTimer((Clock)component);
     }
 
     @Override
@@ -2630,34 +3116,52 @@ public class DefaultVGACard extends AbstractPCIDevice implements VGACard {
             ioportRegistered = true;
         }
         if (component instanceof PhysicalAddressSpace && component.initialised()) {
-            ((PhysicalAddressSpace)component).mapMemoryRegion(lowIORegion, 0xa0000, 0x20000);
+            ((PhysicalAddressSpace)component).mapMemoryRegion(getLowMemoryRegion(), 0xa0000, 0x20000);
             memoryRegistered = true;
         }
+        if (component instanceof Clock && component.initialised())
+            startFrameTimer((Clock)component);
+    }
+
+    private void startFrameTimer(Clock clock) {
+        if (frameTimer != null)
+            return;
+        timeSource = clock;
+        updateCrtTiming();
+        frameOrigin = timeSource.getEmulatedNanos();
+        frameTimer = timeSource.newTimer(new FrameCallback());
+        frameTimer.setExpiry(frameOrigin + framePeriod * retraceStart / totalLines);
     }
 
     @Override
     public void setMonitor(Monitor monitor) {
-        this.monitor = monitor;
+        display.setMonitor(monitor);
+        if (renderer == null) {
+            DefaultVGACard copy = createRenderer();
+            copy.display = display;
+            snapshotAll = true;
+            renderer = copy;
+        }
     }
 
     @Override
-    public void paintOnMonitor(Graphics2D g) {
-        Dimension s = monitor.getSize();
+    public void addFrameListener(FrameListener listener) {
+        display.addFrameListener(listener);
+    }
 
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        g.drawImage(buffer, 0, 0, s.width, s.height, 0, 0, width, height, null);
+    @Override
+    public void removeFrameListener(FrameListener listener) {
+        display.removeFrameListener(listener);
     }
 
     @Override
-    public void prepareUpdate() {
-        xmin = width;
-        xmax = 0;
-        ymin = height;
-        ymax = 0;
+    public void paintOnMonitor(Graphics2D g) {
+        display.paint(g);
     }
 
     @Override
     public String toString() {
-        return "VGA Card [Mode: " + lastScreenWidth + " x " + lastScreenHeight + "]";
+        Dimension size = display.getSize();
+        return "VGA Card [Mode: " + size.width + " x " + size.height + "]";
     }
 }
@@ -0,0 +1,263 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.pci.peripheral;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jpc.emulator.FrameListener;
+import org.jpc.emulator.Monitor;
+import org.jpc.j2se.Option;
+
+/**
+ * A pair of raster images shared between a VGA card and its render copy. Frames are drawn into the
+ * back image while the front image is painted, and <code>publish</code> swaps the two by a volatile
+ * write so the painting thread never needs a lock.
+ * <p>
+ * When the monitor is a whole multiple of the display size, painting goes through a cached copy
+ * enlarged by pixel replication, and only the regions published since the last paint are enlarged
+ * again. Other sizes, and <code>-smooth-display</code>, fall back to letting Java2D scale the image.
+ */
+final class DisplayBuffers {
+    private final BufferedImage[] images = new BufferedImage[2];
+    private final int[][] pixels = new int[2][];
+    private int back;
+    private volatile BufferedImage front;
+
+    private int width, height;
+    private int xmin, xmax, ymin, ymax;
+    private Monitor monitor;
+    private final List<FrameListener> listeners = new CopyOnWriteArrayList<FrameListener>();
+
+    private final boolean smooth = Option.smoothDisplay.isSet();
+    private BufferedImage scaled;
+    private int[] scaledPixels;
+    private int scaledX0, scaledY0, scaledX1, scaledY1;
+
+    void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    Monitor getMonitor() {
+        return monitor;
+    }
+
+    void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            images[i].setAccelerationPriority(1);
+            pixels[i] = ((DataBufferInt)images[i].getRaster().getDataBuffer()).getData();
+        }
+        back = 0;
+        /* the old front image stays on screen until the first frame at the new size is published */
+        if (front == null)
+            front = images[1];
+        xmin = 0;
+        xmax = width;
+        ymin = 0;
+        ymax = height;
+        addRescaleRegion(0, 0, width, height);
+        if (monitor != null)
+            monitor.resizeDisplay(width, height);
+    }
+
+    void addFrameListener(FrameListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeFrameListener(FrameListener listener) {
+        listeners.remove(listener);
+    }
+
+    int[] getBackBuffer() {
+        return pixels[back];
+    }
+
+    BufferedImage getFrontImage() {
+        return front;
+    }
+
+    Dimension getSize() {
+        return new Dimension(width, height);
+    }
+
+    void beginFrame() {
+        xmin = width;
+        xmax = 0;
+        ymin = height;
+        ymax = 0;
+    }
+
+    void dirty(int x, int y, int w, int h) {
+        xmin = Math.min(x, xmin);
+        xmax = Math.max(x + w, xmax);
+        ymin = Math.min(y, ymin);
+        ymax = Math.max(y + h, ymax);
+    }
+
+    /**
+     * Makes the back image visible and brings the new back image up to date with it, so that the
+     * next frame again only has to draw what changed. Frame listeners are then handed the published
+     * image.
+     * @param time emulated time at which the frame was snapshotted
+     * @return <code>true</code> if anything was drawn since <code>beginFrame</code>
+     */
+    boolean publish(long time) {
+        int x0 = Math.max(xmin, 0);
+        int x1 = Math.min(xmax, width);
+        int y0 = Math.max(ymin, 0);
+        int y1 = Math.min(ymax, height);
+        if (x0 >= x1 || y0 >= y1)
+            return false;
+
+        int published = back;
+        front = images[published];
+        back ^= 1;
+
+        int[] src = pixels[published];
+        int[] dest = pixels[back];
+        for (int y = y0, offset = y0 * width + x0; y < y1; y++, offset += width)
+            System.arraycopy(src, offset, dest, offset, x1 - x0);
+        /* only after the swap, so a paint that misses this region sees it again next time */
+        addRescaleRegion(x0, y0, x1, y1);
+
+        for (FrameListener listener : listeners)
+            listener.frameRendered(src, width, height, x0, y0, x1 - x0, y1 - y0, time);
+        return true;
+    }
+
+    private synchronized void addRescaleRegion(int x0, int y0, int x1, int y1) {
+        if (scaledX0 < scaledX1) {
+            scaledX0 = Math.min(x0, scaledX0);
+            scaledY0 = Math.min(y0, scaledY0);
+            scaledX1 = Math.max(x1, scaledX1);
+            scaledY1 = Math.max(y1, scaledY1);
+        } else {
+            scaledX0 = x0;
+            scaledY0 = y0;
+            scaledX1 = x1;
+            scaledY1 = y1;
+        }
+    }
+
+    /**
+     * Takes the region published since the previous call, as x0, y0, x1, y1.
+     */
+    private synchronized int[] takeRescaleRegion() {
+        int[] region = new int[] {scaledX0, scaledY0, scaledX1, scaledY1};
+        scaledX0 = scaledX1 = 0;
+        return region;
+    }
+
+    void paint(Graphics2D g) {
+        if (monitor == null)
+            return;
+        /* taken before reading front, so nothing published after the read can be lost */
+        int[] region = takeRescaleRegion();
+        BufferedImage image = front;
+        if (image == null)
+            return;
+        Dimension s = monitor.getSize();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int factorX = s.width / w;
+        int factorY = s.height / h;
+
+        if (smooth || factorX == 0 || factorY == 0 || factorX * w != s.width || factorY * h != s.height) {
+            /* the region taken above is lost to the enlarged image, so it is rebuilt whole if used again */
+            dropScaled();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, smooth ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.drawImage(image, 0, 0, s.width, s.height, 0, 0, w, h, null);
+            return;
+        }
+        if (factorX == 1 && factorY == 1) {
+            dropScaled();
+            g.drawImage(image, 0, 0, null);
+            return;
+        }
+
+        if (scaled == null || scaled.getWidth() != s.width || scaled.getHeight() != s.height) {
+            scaled = new BufferedImage(s.width, s.height, BufferedImage.TYPE_INT_RGB);
+            scaledPixels = ((DataBufferInt)scaled.getRaster().getDataBuffer()).getData();
+            region = new int[] {0, 0, w, h};
+        }
+        int[] src = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        int x0 = Math.max(region[0], 0);
+        int y0 = Math.max(region[1], 0);
+        int x1 = Math.min(region[2], w);
+        int y1 = Math.min(region[3], h);
+        if (x0 < x1 && y0 < y1)
+            enlarge(src, w, x0, y0, x1, y1, scaledPixels, s.width, factorX, factorY);
+        g.drawImage(scaled, 0, 0, null);
+    }
+
+    private void dropScaled() {
+        scaled = null;
+        scaledPixels = null;
+    }
+
+    /**
+     * Nearest-neighbour enlargement of one region by whole factors: each source row is widened
+     * once, and the copies below it are plain array copies of the widened row.
+     */
+    private static void enlarge(int[] src, int srcWidth, int x0, int y0, int x1, int y1, int[] dest, int destWidth, int factorX, int factorY) {
+        int rowLength = (x1 - x0) * factorX;
+        for (int y = y0; y < y1; y++) {
+            int rowStart = y * factorY * destWidth + x0 * factorX;
+            int d = rowStart;
+            if (factorX == 1) {
+                System.arraycopy(src, y * srcWidth + x0, dest, rowStart, rowLength);
+            } else if (factorX == 2) {
+                for (int s = y * srcWidth + x0, end = s + x1 - x0; s < end; s++) {
+                    int pixel = src[s];
+                    dest[d++] = pixel;
+                    dest[d++] = pixel;
+                }
+            } else {
+                for (int s = y * srcWidth + x0, end = s + x1 - x0; s < end; s++) {
+                    int pixel = src[s];
+                    for (int i = 0; i < factorX; i++)
+                        dest[d++] = pixel;
+                }
+            }
+            for (int i = 1; i < factorY; i++)
+                System.arraycopy(dest, rowStart, dest, rowStart + i * destWidth, rowLength);
+        }
+    }
+}
@@ -44,6 +44,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jpc.emulator.AbstractHardwareComponent;
+import org.jpc.emulator.motherboard.BlockIODevice;
 import org.jpc.emulator.motherboard.IOPortHandler;
 import org.jpc.emulator.pci.AbstractPCIDevice;
 import org.jpc.emulator.pci.IOPortIORegion;
@@ -320,7 +321,7 @@ public class EthernetCard extends AbstractPCIDevice {
             return null;
     }
 
-    class EthernetIORegion extends AbstractHardwareComponent implements IOPortIORegion {
+    class EthernetIORegion extends AbstractHardwareComponent implements IOPortIORegion, BlockIODevice {
 
         private int address;
 
@@ -476,6 +477,52 @@ public class EthernetCard extends AbstractPCIDevice {
             }
         }
 
+        // string I/O on the asic data port, one packet at a time
+        @Override
+        public int ioPortReadBlock16(int address, byte[] buffer, int offset, int count) {
+            if (address - this.getAddress() != 0x10)
+                return 0;
+            for (int i = 0; i < count; i++) {
+                short data = EthernetCard.this.asicIOPortReadWord(address);
+                buffer[offset++] = (byte)data;
+                buffer[offset++] = (byte)(data >>> 8);
+            }
+            return count;
+        }
+
+        @Override
+        public int ioPortReadBlock32(int address, byte[] buffer, int offset, int count) {
+            if (address - this.getAddress() != 0x10)
+                return 0;
+            for (int i = 0; i < count; i++) {
+                int data = EthernetCard.this.asicIOPortReadLong(address);
+                buffer[offset++] = (byte)data;
+                buffer[offset++] = (byte)(data >>> 8);
+                buffer[offset++] = (byte)(data >>> 16);
+                buffer[offset++] = (byte)(data >>> 24);
+            }
+            return count;
+        }
+
+        @Override
+        public int ioPortWriteBlock16(int address, byte[] buffer, int offset, int count) {
+            if (address - this.getAddress() != 0x10)
+                return 0;
+            for (int i = 0; i < count; i++, offset += 2)
+                EthernetCard.this.asicIOPortWriteWord(address, (short)(0xff & buffer[offset] | (0xff & buffer[offset + 1]) << 8));
+            return count;
+        }
+
+        @Override
+        public int ioPortWriteBlock32(int address, byte[] buffer, int offset, int count) {
+            if (address - this.getAddress() != 0x10)
+                return 0;
+            for (int i = 0; i < count; i++, offset += 4)
+                EthernetCard.this.asicIOPortWriteLong(address, 0xff & buffer[offset] | (0xff & buffer[offset + 1]) << 8
+                    | (0xff & buffer[offset + 2]) << 16 | (0xff & buffer[offset + 3]) << 24);
+            return count;
+        }
+
         @Override
         public int[] ioPortsRequested() {
             int addr = this.getAddress();
@@ -36,19 +36,28 @@ package org.jpc.emulator.pci.peripheral;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jpc.emulator.AbstractHardwareComponent;
 import org.jpc.emulator.Hibernatable;
+import org.jpc.emulator.Timer;
+import org.jpc.emulator.TimerResponsive;
 import org.jpc.emulator.block.BlockDevice;
-import org.jpc.emulator.motherboard.IODevice;
+import org.jpc.emulator.motherboard.BindableIODevice;
+import org.jpc.emulator.motherboard.BlockIODevice;
+import org.jpc.emulator.motherboard.IOPort;
 import org.jpc.emulator.motherboard.InterruptController;
+import org.jpc.support.Clock;
 
 /**
  * @author Chris Dennis
  */
-class IDEChannel extends AbstractHardwareComponent implements IODevice {
+class IDEChannel extends AbstractHardwareComponent implements BindableIODevice, BlockIODevice {
 
     private static final Logger LOGGING = Logger.getLogger(IDEChannel.class.getName());
     private IDEState[] devices;
@@ -56,6 +65,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
     private int ioBase, ioBaseTwo, irq;
     private InterruptController irqDevice;
     private int nextDriveSerial;
+    private Clock clock;
+    private IDEIOWorker ioWorker;
     public static final String CDLABEL = "CDROM";//"JPC CD-ROM"
 
     @Override
@@ -162,6 +173,34 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         devices[1].setDrive(drives[1]);
     }
 
+    /**
+     * Moves hard disk sector transfers onto the given worker thread, with read completion signalled
+     * through timers on <code>clock</code>. Transfers are synchronous while either is null.
+     * @param clock time source for completion timers
+     * @param worker thread performing the transfers
+     */
+    void setAsynchronousIO(Clock clock, IDEIOWorker worker) {
+        for (IDEState device : devices) {
+            device.finishTransfer();
+            device.flushWrites();
+        }
+        this.clock = clock;
+        this.ioWorker = worker;
+    }
+
+    /**
+     * Drops any read in flight, waits for posted writes and returns to synchronous transfers, so
+     * that the worker can be shut down.
+     */
+    void stopAsynchronousIO() {
+        for (IDEState device : devices) {
+            device.abandonTransfer();
+            device.flushWrites();
+        }
+        clock = null;
+        ioWorker = null;
+    }
+
     @Override
     public void ioPortWrite8(int address, int data) {
         if (address == ioBaseTwo) {
@@ -234,6 +273,60 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         }
     }
 
+    private final IOPort dataPort16 = new IOPort() {
+        @Override
+        public int read(int address) {
+            return readDataWord();
+        }
+
+        @Override
+        public void write(int address, int data) {
+            writeDataWord(data);
+        }
+    };
+
+    private final IOPort dataPort32 = new IOPort() {
+        @Override
+        public int read(int address) {
+            return readDataLong();
+        }
+
+        @Override
+        public void write(int address, int data) {
+            writeDataLong(data);
+        }
+    };
+
+    @Override
+    public IOPort getIOPort(int address, int width) {
+        int offset = address - ioBase;
+        if (width == 16 && (offset == 0 || offset == 1))
+            return dataPort16;
+        if (width == 32 && offset >= 0 && offset <= 3)
+            return dataPort32;
+        return null;
+    }
+
+    @Override
+    public int ioPortReadBlock16(int address, byte[] buffer, int offset, int count) {
+        return address - ioBase == 0 ? readDataBlock(buffer, offset, count, 2) : 0;
+    }
+
+    @Override
+    public int ioPortReadBlock32(int address, byte[] buffer, int offset, int count) {
+        return address - ioBase == 0 ? readDataBlock(buffer, offset, count, 4) : 0;
+    }
+
+    @Override
+    public int ioPortWriteBlock16(int address, byte[] buffer, int offset, int count) {
+        return address - ioBase == 0 ? writeDataBlock(buffer, offset, count, 2) : 0;
+    }
+
+    @Override
+    public int ioPortWriteBlock32(int address, byte[] buffer, int offset, int count) {
+        return address - ioBase == 0 ? writeDataBlock(buffer, offset, count, 4) : 0;
+    }
+
     @Override
     public int[] ioPortsRequested() {
         if (ioBaseTwo == 0) {
@@ -247,6 +340,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         /* common for both drives */
         if ((devices[0].command & IDEState.IDE_CMD_RESET) == 0 && (data & IDEState.IDE_CMD_RESET) != 0) {
             /* reset low to high */
+            devices[0].abandonTransfer();
+            devices[1].abandonTransfer();
             devices[0].status = (byte)(IDEState.BUSY_STAT | IDEState.SEEK_STAT);
             devices[0].error = 0x01;
             devices[1].status = (byte)(IDEState.BUSY_STAT | IDEState.SEEK_STAT);
@@ -333,6 +428,8 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             if (currentDevice != devices[0] && currentDevice.drive == null) {
                 break;
             }
+            /* a new command retires any transfer still in flight */
+            currentDevice.finishTransfer();
             switch (data) {
             case IDEState.WIN_IDENTIFY:
                 if (currentDevice.drive != null && !currentDevice.isCDROM) {
@@ -510,6 +607,11 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             case IDEState.WIN_FLUSH_CACHE:
             case IDEState.WIN_FLUSH_CACHE_EXT:
                 if (currentDevice.drive != null) {
+                    if (!currentDevice.flushCache()) {
+                        currentDevice.abortCommand();
+                        currentDevice.setIRQ();
+                        break;
+                    }
                     LOGGING.log(Level.INFO, "Should flush {0}", currentDevice.drive);
                 }
                 currentDevice.status = IDEState.READY_STAT;
@@ -673,6 +775,43 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         }
     }
 
+    /* equivalent to repeated readDataWord/readDataLong, but copies whole runs of the buffer at once */
+    private int readDataBlock(byte[] buffer, int offset, int count, int size) {
+        int done = 0;
+        while (done < count) {
+            IDEState device = currentDevice;
+            int n = Math.min(count - done, (device.dataBufferEnd - device.dataBufferOffset) / size);
+            if (n <= 0)
+                break;
+            System.arraycopy(device.dataBuffer, device.dataBufferOffset, buffer, offset, n * size);
+            device.dataBufferOffset += n * size;
+            offset += n * size;
+            done += n;
+            if (device.dataBufferOffset >= device.dataBufferEnd) {
+                device.endTransfer(device.endTransferFunction);
+            }
+        }
+        return done;
+    }
+
+    private int writeDataBlock(byte[] buffer, int offset, int count, int size) {
+        int done = 0;
+        while (done < count) {
+            IDEState device = currentDevice;
+            int n = Math.min(count - done, (device.dataBufferEnd - device.dataBufferOffset) / size);
+            if (n <= 0)
+                break;
+            System.arraycopy(buffer, offset, device.dataBuffer, device.dataBufferOffset, n * size);
+            device.dataBufferOffset += n * size;
+            offset += n * size;
+            done += n;
+            if (device.dataBufferOffset >= device.dataBufferEnd) {
+                device.endTransfer(device.endTransferFunction);
+            }
+        }
+        return done;
+    }
+
     private void clearHob() {
         /* any write clears HOB high bit of device control register */
         devices[0].select &= ~(1 << 7);
@@ -1050,6 +1189,12 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         public int cdSectorSize;
         public BlockDevice drive;
         public BMDMAIORegion bmdma;
+        private IDEIOWorker.Transfer pendingTransfer;
+        private final List<IDEIOWorker.Transfer> postedWrites = new ArrayList<IDEIOWorker.Transfer>();
+        private boolean postedWriteFailed;
+        private int[] pendingRegions;
+        private byte[] dmaBuffer;
+        private Timer transferTimer;
 
         public IDEState(BlockDevice drive) {
             this.drive = drive;
@@ -1070,11 +1215,15 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         }
 
         public void setDrive(BlockDevice drive) {
+            finishTransfer();
+            flushWrites();
             this.drive = drive;
         }
 
         @Override
         public void saveState(DataOutput output) throws IOException {
+            finishTransfer();
+            flushWrites();
             output.writeInt(cylinders);
             output.writeInt(heads);
             output.writeInt(sectors);
@@ -1271,22 +1420,89 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
 
         public void sectorWriteDMA() {
             status = READY_STAT | SEEK_STAT | DRQ_STAT;
-            int n = nSector;
-            if (n > MAX_MULT_SECTORS) {
-                n = MAX_MULT_SECTORS;
-            }
-            ioBufferIndex = 0;
-            ioBufferSize = n * 512;
             dmaStart(IDF_WRITE_DMA_CB);
         }
 
         public void sectorReadDMA() {
             status = READY_STAT | SEEK_STAT | DRQ_STAT;
-            ioBufferIndex = 0;
-            ioBufferSize = 0;
             dmaStart(IDF_READ_DMA_CB);
         }
 
+        /**
+         * Performs a bus master hard disk transfer over the regions of a descriptor table with a single
+         * block device access, then ends the bus master transfer.
+         * @param write <code>true</code> to transfer from memory to the drive
+         * @param regions address and byte count pairs of the descriptor table
+         */
+        void sectorDMA(boolean write, int[] regions) {
+            long sectorNumber = getSector();
+            int byteCount = BMDMAIORegion.getByteCount(regions);
+            int n = (int)Math.min(nSector, (byteCount + 511L) / 512);
+            if (write) {
+                if (isAsynchronous()) {
+                    IDEIOWorker.Transfer transfer = new IDEIOWorker.Transfer(drive, sectorNumber, n, true);
+                    bmdma.gather(regions, transfer.buffer, transfer.buffer.length);
+                    postWrite(transfer);
+                } else {
+                    byte[] buffer = getDMABuffer(n);
+                    int length = Math.min(byteCount, 512 * n);
+                    bmdma.gather(regions, buffer, length);
+                    /* a table ending mid sector must not write what the reused buffer last held */
+                    Arrays.fill(buffer, length, 512 * n, (byte)0);
+                    if (drive.write(sectorNumber, buffer, n) < 0) {
+                        sectorError(true);
+                        return;
+                    }
+                }
+                sectorDMADone(sectorNumber, n);
+            } else if (isAsynchronous()) {
+                startRead(new IDEIOWorker.Transfer(drive, sectorNumber, n, false), regions);
+            } else {
+                byte[] buffer = getDMABuffer(n);
+                if (drive.read(sectorNumber, buffer, n) < 0) {
+                    sectorError(true);
+                    return;
+                }
+                bmdma.scatter(regions, buffer, 512 * n);
+                sectorDMADone(sectorNumber, n);
+            }
+        }
+
+        private void sectorDMADone(long sectorNumber, int n) {
+            setSector(sectorNumber + n);
+            nSector -= n;
+            if (nSector == 0) {
+                status = READY_STAT | SEEK_STAT;
+                setIRQ();
+            }
+            bmdma.endTransfer();
+        }
+
+        /**
+         * Ends a hard disk transfer the drive could not complete as an aborted command.
+         * @param dma <code>true</code> if the transfer was a bus master transfer
+         */
+        private void sectorError(boolean dma) {
+            abortCommand();
+            if (dma) {
+                bmdma.endTransfer();
+            } else {
+                transferStop();
+            }
+            setIRQ();
+        }
+
+        private byte[] getDMABuffer(int sectors) {
+            /* only keep buffers up to the largest non LBA48 transfer */
+            if (sectors > 256) {
+                return new byte[512 * sectors];
+            }
+            if (dmaBuffer == null || dmaBuffer.length < 512 * sectors) {
+                dmaBuffer = new byte[512 * 256];
+            }
+            return dmaBuffer;
+        }
+
         public void sectorWrite() {
             status = READY_STAT | SEEK_STAT;
             long sectorNumber = getSector();
@@ -1294,7 +1510,14 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             if (n > requiredNumberOfSectors) {
                 n = requiredNumberOfSectors;
             }
-            drive.write(sectorNumber, ioBuffer, n);
+            if (isAsynchronous()) {
+                IDEIOWorker.Transfer transfer = new IDEIOWorker.Transfer(drive, sectorNumber, n, true);
+                System.arraycopy(ioBuffer, 0, transfer.buffer, 0, transfer.buffer.length);
+                postWrite(transfer);
+            } else if (drive.write(sectorNumber, ioBuffer, n) < 0) {
+                sectorError(false);
+                return;
+            }
             nSector -= n;
             if (nSector == 0) {
                 transferStop();
@@ -1319,11 +1542,149 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
                 transferStop();
             } else {
                 n = Math.min(n, requiredNumberOfSectors);
-                drive.read(sectorNumber, ioBuffer, n);
-                transferStart(ioBuffer, 0, 512 * n, ETF_SECTOR_READ);
-                setIRQ();
-                setSector(sectorNumber + n);
-                nSector -= n;
+                if (isAsynchronous()) {
+                    startRead(new IDEIOWorker.Transfer(drive, sectorNumber, n, false), null);
+                    return;
+                }
+                if (drive.read(sectorNumber, ioBuffer, n) < 0) {
+                    sectorError(false);
+                    return;
+                }
+                sectorReadDone(sectorNumber, n);
+            }
+        }
+
+        private void sectorReadDone(long sectorNumber, int n) {
+            transferStart(ioBuffer, 0, 512 * n, ETF_SECTOR_READ);
+            setIRQ();
+            setSector(sectorNumber + n);
+            nSector -= n;
+        }
+
+        private boolean isAsynchronous() {
+            return ioWorker != null && clock != null && !isCDROM;
+        }
+
+        /**
+         * Hands a hard disk read to the I/O worker, leaving the drive busy until the completion timer
+         * fires.
+         * @param transfer read to perform
+         * @param regions descriptor table to scatter the data to, or null for a PIO read
+         */
+        private void startRead(IDEIOWorker.Transfer transfer, int[] regions) {
+            transferStop();
+            status |= BUSY_STAT;
+            pendingTransfer = transfer;
+            pendingRegions = regions;
+            ioWorker.submit(transfer);
+            if (transferTimer == null) {
+                transferTimer = clock.newTimer(new TransferTimer());
+            }
+            transferTimer.setExpiry(clock.getEmulatedNanos() + ioWorker.getLatency(transfer.count));
+        }
+
+        /**
+         * Completes the transfer in flight now, waiting for the worker if necessary.
+         */
+        void finishTransfer() {
+            IDEIOWorker.Transfer transfer = pendingTransfer;
+            if (transfer == null) {
+                return;
+            }
+            transferTimer.disable();
+            int result = transfer.await();
+            int[] regions = pendingRegions;
+            pendingTransfer = null;
+            pendingRegions = null;
+            status &= ~BUSY_STAT;
+            if (result < 0) {
+                sectorError(regions != null);
+            } else if (regions != null) {
+                bmdma.scatter(regions, transfer.buffer, transfer.buffer.length);
+                sectorDMADone(transfer.sector, transfer.count);
+            } else {
+                System.arraycopy(transfer.buffer, 0, ioBuffer, 0, transfer.buffer.length);
+                sectorReadDone(transfer.sector, transfer.count);
+            }
+        }
+
+        /**
+         * Queues a hard disk write on the I/O worker so that the command can complete at once, as on a
+         * drive with its write cache enabled. Later reads are queued behind the write so they always
+         * see its data. A write that fails is reported by the next cache flush.
+         * @param transfer write to perform, with its buffer already filled
+         */
+        private void postWrite(IDEIOWorker.Transfer transfer) {
+            for (Iterator<IDEIOWorker.Transfer> i = postedWrites.iterator(); i.hasNext();) {
+                IDEIOWorker.Transfer posted = i.next();
+                if (!posted.isDone()) {
+                    break;
+                }
+                if (posted.await() < 0) {
+                    postedWriteFailed = true;
+                }
+                i.remove();
+            }
+            postedWrites.add(transfer);
+            ioWorker.submit(transfer);
+        }
+
+        /**
+         * Waits until every posted write has reached the drive.
+         */
+        void flushWrites() {
+            for (IDEIOWorker.Transfer posted : postedWrites) {
+                if (posted.await() < 0) {
+                    postedWriteFailed = true;
+                }
+            }
+            postedWrites.clear();
+        }
+
+        /**
+         * Waits for every posted write as a cache flush command.
+         * @return <code>false</code> if any write posted since the last cache flush failed
+         */
+        boolean flushCache() {
+            flushWrites();
+            boolean failed = postedWriteFailed;
+            postedWriteFailed = false;
+            return !failed;
+        }
+
+        /**
+         * Drops the read in flight without signalling its completion to the guest.
+         */
+        void abandonTransfer() {
+            IDEIOWorker.Transfer transfer = pendingTransfer;
+            if (transfer == null) {
+                return;
+            }
+            transferTimer.disable();
+            transfer.await();
+            pendingTransfer = null;
+            pendingRegions = null;
+        }
+
+        private class TransferTimer implements TimerResponsive {
+
+            @Override
+            public void callback() {
+                IDEIOWorker.Transfer transfer = pendingTransfer;
+                if (transfer == null) {
+                    return;
+                }
+                long delay = ioWorker.getRetryDelay(transfer);
+                if (delay > 0) {
+                    transferTimer.setExpiry(clock.getEmulatedNanos() + delay);
+                } else {
+                    finishTransfer();
+                }
+            }
+
+            @Override
+            public int getType() {
+                return TYPE_IDE_TRANSFER;
             }
         }
 
@@ -1473,6 +1834,7 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
         }
 
         public void reset() {
+            abandonTransfer();
             multSectors = MAX_MULT_SECTORS;
             select = (byte)0xa0;
             status = READY_STAT;
@@ -1894,39 +2256,6 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             }
         }
 
-        private int readDMACallback(int address, int size) {
-            int originalSize = size;
-            packetTransferSize = size;
-            while (size > 0) {
-                if (packetTransferSize <= 0)
-                    break;
-                int length = BlockDevice.SECTOR_SIZE - ioBufferIndex;
-                if (length <= 0) {
-                    ioBufferIndex = 0;
-                    length = BlockDevice.SECTOR_SIZE;
-                }
-                if (length > size)
-                    length = size;
-                int start = nSector;
-                sectorRead();
-                int end = nSector;
-                bmdma.writeMemory(address, ioBuffer, ioBufferIndex, 512 * (start - end));
-                packetTransferSize -= length;
-                ioBufferIndex += length;
-                size -= length;
-                address += length;
-            }
-
-            if (packetTransferSize <= 0) {
-                status = READY_STAT | SEEK_STAT;
-                nSector = nSector & ~0x7;
-                setIRQ();
-                return 0;
-            }
-
-            return originalSize - size;
-        }
-
         private int atapiCommandReadDMACallback(int address, int size) {
             System.out.println("CD DMA callback read");
             int originalSize = size;
@@ -2069,19 +2398,13 @@ class IDEChannel extends AbstractHardwareComponent implements IODevice {
             return bufferOffset;
         }
 
-        private void hdReadSector(long sector, byte[] buffer, int sectorSize) {
-            drive.read(sector, buffer, 1);
-            System.out.println("DMA reading sector: " + sector);
-        }
-
         private void cdReadSector(int lba, byte[] buffer, int sectorSize) {
             switch (sectorSize) {
             case 2048:
                 drive.read((0xffffffffL & lba) << 2, buffer, 4);
                 break;
             case 2352:
-                drive.read((0xffffffffL & lba) << 2, buffer, 4);
-                System.arraycopy(buffer, 0, buffer, 16, 2048);
+                drive.read((0xffffffffL & lba) << 2, buffer, 16, 4);
 
                 /* sync bytes */
                 buffer[0] = 0x00;
@@ -0,0 +1,170 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.emulator.pci.peripheral;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.block.BlockDevice;
+import org.jpc.j2se.Option;
+
+/**
+ * Performs IDE sector transfers on a host thread, so that a slow image file or remote block device
+ * stalls only the drive and not the emulated processor.
+ * <p>
+ * Completion is delivered on the emulation thread by a timer on the emulated clock. The timer is
+ * set for a nominal drive latency; if the transfer has not finished by then it is polled again
+ * later, except in deterministic mode where the emulation thread waits for it at the nominal
+ * expiry so that the guest always sees the same completion time.
+ */
+class IDEIOWorker {
+    private static final Logger LOGGING = Logger.getLogger(IDEIOWorker.class.getName());
+
+    private static final long COMMAND_NANOS = 20000;
+    private static final long SECTOR_NANOS = 2000;
+    private static final long POLL_NANOS = 50000;
+
+    private final ThreadPoolExecutor executor;
+    private final boolean waitAtExpiry;
+
+    IDEIOWorker() {
+        executor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "IDE I/O");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        waitAtExpiry = Option.deterministic.isSet();
+    }
+
+    /**
+     * Queues a transfer, running it on the caller's thread if the worker has been shut down.
+     * @param transfer transfer to perform
+     */
+    void submit(Transfer transfer) {
+        try {
+            executor.execute(transfer);
+        } catch (RejectedExecutionException e) {
+            transfer.run();
+        }
+    }
+
+    /**
+     * Returns the emulated time in nanoseconds between issuing a transfer and signalling it complete.
+     * @param sectors number of sectors transferred
+     * @return nominal latency in nanoseconds
+     */
+    long getLatency(int sectors) {
+        return COMMAND_NANOS + sectors * SECTOR_NANOS;
+    }
+
+    /**
+     * Returns the emulated time in nanoseconds after which an unfinished transfer is checked again, or
+     * 0 if the transfer must be waited for now.
+     * @param transfer transfer whose timer has expired
+     * @return delay until the next check
+     */
+    long getRetryDelay(Transfer transfer) {
+        if (waitAtExpiry || transfer.isDone())
+            return 0;
+        return POLL_NANOS;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A read or write of whole sectors between a block device and a private buffer.
+     */
+    static class Transfer implements Runnable {
+        final BlockDevice drive;
+        final long sector;
+        final int count;
+        final boolean write;
+        final byte[] buffer;
+        private int result;
+        private boolean done;
+
+        Transfer(BlockDevice drive, long sector, int count, boolean write) {
+            this.drive = drive;
+            this.sector = sector;
+            this.count = count;
+            this.write = write;
+            buffer = new byte[count * BlockDevice.SECTOR_SIZE];
+        }
+
+        @Override
+        public void run() {
+            int r;
+            try {
+                r = write ? drive.write(sector, buffer, count) : drive.read(sector, buffer, count);
+            } catch (RuntimeException e) {
+                LOGGING.log(Level.WARNING, "IDE transfer failed", e);
+                r = -1;
+            }
+            synchronized (this) {
+                result = r;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits for this transfer to finish.
+         * @return value returned by the block device
+         */
+        synchronized int await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return result;
+        }
+    }
+}
@@ -49,6 +49,8 @@ import org.jpc.emulator.pci.IORegion;
 import org.jpc.emulator.pci.PCIBus;
 import org.jpc.emulator.pci.PCIDevice;
 import org.jpc.emulator.pci.PCIISABridge;
+import org.jpc.j2se.Option;
+import org.jpc.support.Clock;
 import org.jpc.support.DriveSet;
 
 /**
@@ -58,6 +60,8 @@ public class PIIX3IDEInterface extends AbstractPCIDevice {
     private static final Logger LOGGING = Logger.getLogger(PIIX3IDEInterface.class.getName());
 
     private InterruptController irqDevice;
+    private Clock clock;
+    private IDEIOWorker ioWorker;
     private IDEChannel[] channels;
     private boolean drivesUpdated;
 
@@ -155,6 +159,7 @@ public class PIIX3IDEInterface extends AbstractPCIDevice {
 
     @Override
     public void reset() {
+        close();
         devfnSet = false;
         ioportRegistered = false;
         pciRegistered = false;
@@ -176,6 +181,7 @@ public class PIIX3IDEInterface extends AbstractPCIDevice {
         bmdmaRegions[0] = new BMDMAIORegion(bmdmaRegions[1]);
 
         irqDevice = null;
+        clock = null;
         drives = null;
 
         super.reset();
@@ -183,6 +189,31 @@ public class PIIX3IDEInterface extends AbstractPCIDevice {
 
     private boolean devfnSet;
 
+    /**
+     * Waits for outstanding hard disk writes and stops the I/O worker thread.
+     */
+    public void close() {
+        if (ioWorker == null)
+            return;
+        for (IDEChannel channel : channels) {
+            if (channel != null)
+                channel.stopAsynchronousIO();
+        }
+        ioWorker.shutdown();
+        ioWorker = null;
+    }
+
+    private void configureAsynchronousIO() {
+        if (clock == null || !Option.ideAsync.isSet())
+            return;
+        if (ioWorker == null)
+            ioWorker = new IDEIOWorker();
+        for (IDEChannel channel : channels) {
+            if (channel != null)
+                channel.setAsynchronousIO(clock, ioWorker);
+        }
+    }
+
     @Override
     public boolean updated() {
         return ioportRegistered && pciRegistered && dmaRegistered && irqDevice.updated() && drivesUpdated;
@@ -190,11 +221,17 @@ public class PIIX3IDEInterface extends AbstractPCIDevice {
 
     @Override
     public void updateComponent(HardwareComponent component) {
+        if (component instanceof Clock && component.updated()) {
+            clock = (Clock)component;
+            configureAsynchronousIO();
+        }
+
         if (component instanceof IOPortHandler && irqDevice.updated() && drivesUpdated) {
             channels[0].setDrives(new BlockDevice[] { drives[0], drives[1] });
             channels[1].setDrives(new BlockDevice[] { drives[2], drives[3] });
             ((IOPortHandler)component).registerIOPortCapable(channels[0]);
             ((IOPortHandler)component).registerIOPortCapable(channels[1]);
+            configureAsynchronousIO();
             ioportRegistered = true;
         }
 
@@ -227,12 +264,18 @@ public class PIIX3IDEInterface extends AbstractPCIDevice {
         if (component instanceof InterruptController && component.initialised())
             irqDevice = (InterruptController)component;
 
+        if (component instanceof Clock && component.initialised()) {
+            clock = (Clock)component;
+            configureAsynchronousIO();
+        }
+
         if (component instanceof IOPortHandler && component.initialised() && irqDevice != null && drives != null) {
             //Run IDEChannel Constructors
             channels[0] = new IDEChannel(14, irqDevice, 0x1f0, 0x3f6, new BlockDevice[] { drives[0], drives[1] }, bmdmaRegions[0]);
             channels[1] = new IDEChannel(15, irqDevice, 0x170, 0x376, new BlockDevice[] { drives[2], drives[3] }, bmdmaRegions[1]);
             ((IOPortHandler)component).registerIOPortCapable(channels[0]);
             ((IOPortHandler)component).registerIOPortCapable(channels[1]);
+            configureAsynchronousIO();
             ioportRegistered = true;
         }
 
@@ -163,6 +163,7 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
     private boolean ioportRegistered;
 
     private InterruptController irqDevice;
+    private volatile Runnable inputListener;
     private Processor cpu;
     private PhysicalAddressSpace physicalAddressSpace;
     private LinearAddressSpace linearAddressSpace;
@@ -763,6 +764,7 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
                 putKeyboardEvent((byte)0x9d);
                 putKeyboardEvent((byte)0xc5);
             }
+            inputQueued();
             return;
         default:
             synchronized (queue) {
@@ -770,6 +772,7 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
                     putKeyboardEvent((byte)0xe0);
                 putKeyboardEvent((byte)(scancode & 0x7f));
             }
+            inputQueued();
         }
     }
 
@@ -779,6 +782,7 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
                 putKeyboardEvent((byte)0xe0);
             putKeyboardEvent((byte)(scancode | 0x80));
         }
+        inputQueued();
     }
 
     private void putKeyboardEvent(byte keycode) {
@@ -804,6 +808,22 @@ public class Keyboard extends AbstractHardwareComponent implements IODevice {
                         break;
                 }
         }
+        inputQueued();
+    }
+
+    /**
+     * Sets a callback run on the host thread after each key or mouse event has been queued,
+     * for example to resume a machine that is idling in a halt.
+     * @param listener callback, or <code>null</code> for none
+     */
+    public void setInputListener(Runnable listener) {
+        inputListener = listener;
+    }
+
+    private void inputQueued() {
+        Runnable listener = inputListener;
+        if (listener != null)
+            listener.run();
     }
 
     @Override
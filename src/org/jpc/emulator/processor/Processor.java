@@ -3840,8 +3840,8 @@ public class Processor implements HardwareComponent {
                 return true;
             }
 
-            if (!Option.useBochs.isSet() || bochsInPitInt || interruptController.getMasterIRR() != 1)
-                if ((interruptFlags & IFLAGS_HARDWARE_INTERRUPT) != 0) {
+            if ((interruptFlags & IFLAGS_HARDWARE_INTERRUPT) != 0)
+                if (!Option.useBochs.isSet() || bochsInPitInt || interruptController.getMasterIRR() != 1) {
                     interruptFlags &= ~IFLAGS_HARDWARE_INTERRUPT;
                     int vector = interruptController.cpuGetInterrupt();
                     handleRealModeInterrupt(vector);
@@ -3871,8 +3871,8 @@ public class Processor implements HardwareComponent {
                 lastPMVector = -1;
                 return true;
             }
-            if (!Option.useBochs.isSet() || bochsInPitInt || interruptController.getMasterIRR() != 1)
-                if ((interruptFlags & IFLAGS_HARDWARE_INTERRUPT) != 0) {
+            if ((interruptFlags & IFLAGS_HARDWARE_INTERRUPT) != 0)
+                if (!Option.useBochs.isSet() || bochsInPitInt || interruptController.getMasterIRR() != 1) {
                     interruptFlags &= ~IFLAGS_HARDWARE_INTERRUPT;
                     int vec = interruptController.cpuGetInterrupt();
                     if (USEBOCHS && vec != interruptController.getIRQ0Vector() && vec != interruptController.getSpuriousVector()
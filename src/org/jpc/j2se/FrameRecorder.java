@@ -0,0 +1,327 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.j2se;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.jpc.emulator.FrameListener;
+import org.jpc.emulator.pci.VGACard;
+
+/**
+ * Records the emulated display at a fixed rate in emulated time, without holding up emulation or
+ * rendering.
+ * <p>
+ * The rendering thread copies a published frame into a free slot of a small ring of preallocated
+ * frames and moves on. A background thread encodes and writes the frames in order and hands the slots
+ * back. If no slot is free because the encoder has fallen behind, the frame is dropped and counted. A
+ * frame is only published when the display changes, so nothing is recorded while it stands still.
+ * <p>
+ * Frames can be written as a sequence of PNG files into a directory, named after the capture interval
+ * they fall in, or as a video file of frame deltas. A video file starts with the int
+ * <code>MAGIC</code>, a short version and an int capture rate in frames per second. Each frame
+ * follows as a long emulated time in nanoseconds, short display width and height, the short
+ * <code>x, y, w, h</code> of the rectangle that changed since the previous frame, one byte encoding
+ * and the pixels of that rectangle in row order. With encoding <code>ENCODING_RAW</code> each pixel is
+ * three bytes of red, green and blue. With <code>ENCODING_RLE</code> pixels come as runs of a repeat
+ * count less one byte followed by the three colour bytes. The first frame, and the first after the display size changes, covers the whole
+ * display.
+ */
+public class FrameRecorder implements FrameListener, Runnable {
+    private static final Logger LOGGING = Logger.getLogger(FrameRecorder.class.getName());
+
+    public static final int MAGIC = 0x4a504356; // "JPCV"
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_RLE = 1;
+    private static final int VERSION = 1;
+    private static final int MAX_RUN = 256;
+
+    public enum Format {
+        PNG, RAW, RLE
+    }
+
+    private final VGACard vgaCard;
+    private final File target;
+    private final Format format;
+    private final int framesPerSecond;
+    private final long interval;
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> full;
+    private final Slot end = new Slot();
+    private final HeadlessRenderer renderer;
+    private Thread encoder;
+
+    private long nextCapture;
+    private volatile int captured, dropped;
+
+    private DataOutputStream out;
+    private int[] previous;
+    private int previousWidth, previousHeight;
+    private byte[] encoded = new byte[0];
+
+    /**
+     * Creates a recorder of the display of <code>vgaCard</code>.
+     * @param vgaCard card whose frames are recorded
+     * @param target directory for a PNG sequence, otherwise the video file
+     * @param format how frames are written
+     * @param framesPerSecond capture rate in emulated time, at most the frame rate of the card
+     * @param bufferedFrames number of frames that may wait for the encoder before frames are dropped
+     * @param render <code>true</code> if no monitor renders frames for this machine, in which case the
+     * recorder runs its own render thread
+     */
+    public FrameRecorder(VGACard vgaCard, File target, Format format, int framesPerSecond, int bufferedFrames, boolean render) {
+        if (framesPerSecond <= 0 || bufferedFrames <= 0)
+            throw new IllegalArgumentException("Frame rate and buffer size must be positive");
+        this.vgaCard = vgaCard;
+        this.target = target;
+        this.format = format;
+        this.framesPerSecond = framesPerSecond;
+        interval = 1000000000L / framesPerSecond;
+        free = new ArrayBlockingQueue<Slot>(bufferedFrames);
+        full = new ArrayBlockingQueue<Slot>(bufferedFrames + 1);
+        for (int i = 0; i < bufferedFrames; i++)
+            free.add(new Slot());
+        renderer = render ? new HeadlessRenderer(vgaCard) : null;
+    }
+
+    public void start() throws IOException {
+        if (format == Format.PNG) {
+            if (!target.isDirectory() && !target.mkdirs())
+                throw new IOException("Unable to create directory " + target);
+        } else {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(framesPerSecond);
+        }
+        encoder = new Thread(this, "Frame Recorder");
+        encoder.start();
+        vgaCard.addFrameListener(this);
+        if (renderer != null)
+            renderer.start();
+        LOGGING.log(Level.INFO, "Recording display to {0}", target);
+    }
+
+    /**
+     * Stops capturing, and returns once every frame already captured has been written.
+     */
+    public void stop() {
+        vgaCard.removeFrameListener(this);
+        if (renderer != null)
+            renderer.stop();
+        if (encoder == null)
+            return;
+        full.add(end);
+        try {
+            encoder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        encoder = null;
+        LOGGING.log(Level.INFO, "Recorded {0} frames to {1}, dropped {2}", new Object[] {captured, target, dropped});
+    }
+
+    public int getCapturedFrames() {
+        return captured;
+    }
+
+    public int getDroppedFrames() {
+        return dropped;
+    }
+
+    @Override
+    public void frameRendered(int[] pixels, int width, int height, int x, int y, int w, int h, long time) {
+        if (time < nextCapture)
+            return;
+        nextCapture = (time / interval + 1) * interval;
+
+        Slot slot = free.poll();
+        if (slot == null) {
+            dropped++;
+            return;
+        }
+        slot.set(pixels, width, height, time);
+        full.add(slot);
+        captured++;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Slot slot = full.take();
+                if (slot == end)
+                    break;
+                try {
+                    if (out != null)
+                        write(slot);
+                    else
+                        ImageIO.write(slot.image, "png", new File(target, String.format("frame%08d.png", slot.time / interval)));
+                } finally {
+                    free.add(slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGING.log(Level.WARNING, "Frame recorder interrupted", e);
+        } catch (IOException e) {
+            LOGGING.log(Level.WARNING, "Frame recording to " + target + " failed", e);
+            vgaCard.removeFrameListener(this);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOGGING.log(Level.WARNING, "Exception closing " + target, e);
+                }
+            }
+        }
+    }
+
+    private void write(Slot slot) throws IOException {
+        int width = slot.width;
+        int height = slot.height;
+        int[] pixels = slot.pixels;
+        int x0 = 0, y0 = 0, x1 = width, y1 = height;
+        if (previous != null && previousWidth == width && previousHeight == height) {
+            /* bound the changes by the first and last changed rows, then the columns within them */
+            while (y0 < y1 && rowEquals(pixels, previous, y0 * width, width))
+                y0++;
+            if (y0 == y1)
+                return;
+            while (rowEquals(pixels, previous, (y1 - 1) * width, width))
+                y1--;
+            x0 = width;
+            x1 = 0;
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                int left = 0;
+                while (left < x0 && pixels[row + left] == previous[row + left])
+                    left++;
+                x0 = left;
+                int right = width;
+                while (right > x1 && pixels[row + right - 1] == previous[row + right - 1])
+                    right--;
+                x1 = right;
+            }
+        }
+
+        int w = x1 - x0;
+        int h = y1 - y0;
+        out.writeLong(slot.time);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeShort(x0);
+        out.writeShort(y0);
+        out.writeShort(w);
+        out.writeShort(h);
+        out.writeByte(format == Format.RAW ? ENCODING_RAW : ENCODING_RLE);
+
+        if (encoded.length < w * h * 4)
+            encoded = new byte[w * h * 4];
+        int length = 0;
+        if (format == Format.RAW) {
+            for (int y = y0; y < y1; y++)
+                for (int i = y * width + x0, rowEnd = i + w; i < rowEnd; i++)
+                    length = putColour(pixels[i], length);
+        } else {
+            int run = 0;
+            int colour = 0;
+            for (int y = y0; y < y1; y++) {
+                for (int i = y * width + x0, rowEnd = i + w; i < rowEnd; i++) {
+                    int p = pixels[i] & 0xffffff;
+                    if (run > 0 && (p != colour || run == MAX_RUN)) {
+                        encoded[length++] = (byte)(run - 1);
+                        length = putColour(colour, length);
+                        run = 0;
+                    }
+                    colour = p;
+                    run++;
+                }
+            }
+            encoded[length++] = (byte)(run - 1);
+            length = putColour(colour, length);
+        }
+        out.write(encoded, 0, length);
+
+        if (previous == null || previous.length != pixels.length)
+            previous = new int[pixels.length];
+        for (int y = y0; y < y1; y++)
+            System.arraycopy(pixels, y * width + x0, previous, y * width + x0, w);
+        previousWidth = width;
+        previousHeight = height;
+    }
+
+    private int putColour(int colour, int offset) {
+        encoded[offset++] = (byte)(colour >> 16);
+        encoded[offset++] = (byte)(colour >> 8);
+        encoded[offset++] = (byte)colour;
+        return offset;
+    }
+
+    private static boolean rowEquals(int[] a, int[] b, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++)
+            if (a[i] != b[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * One frame of the ring, reallocated only when the display size changes.
+     */
+    private static final class Slot {
+        BufferedImage image;
+        int[] pixels;
+        int width, height;
+        long time;
+
+        void set(int[] source, int width, int height, long time) {
+            if (image == null || this.width != width || this.height != height) {
+                image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+                this.width = width;
+                this.height = height;
+            }
+            System.arraycopy(source, 0, pixels, 0, width * height);
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.j2se;
+
+import java.awt.Dimension;
+
+import org.jpc.emulator.Monitor;
+import org.jpc.emulator.pci.VGACard;
+
+/**
+ * Renders the frames of a VGA card that has no on screen monitor, for consumers that only listen for
+ * published frames.
+ */
+final class HeadlessRenderer implements Runnable {
+    private final VGACard vgaCard;
+    private volatile boolean running;
+
+    HeadlessRenderer(VGACard vgaCard) {
+        this.vgaCard = vgaCard;
+    }
+
+    void start() {
+        running = true;
+        /* frames are only snapshotted once the card has a monitor */
+        vgaCard.setMonitor(new Monitor() {
+            @Override
+            public Dimension getSize() {
+                return vgaCard.getDisplaySize();
+            }
+
+            @Override
+            public void resizeDisplay(int width, int height) {
+            }
+        });
+        Thread t = new Thread(this, "Headless Frame Renderer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                vgaCard.renderFrame(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -81,7 +81,7 @@ import org.jpc.emulator.block.FloppyBlockDevice;
 import org.jpc.emulator.block.HDBlockDevice;
 import org.jpc.emulator.block.TreeBlockDevice;
 import org.jpc.emulator.block.backing.ArrayBackedSeekableIODevice;
-import org.jpc.emulator.block.backing.FileBackedSeekableIODevice;
+import org.jpc.emulator.block.backing.FileChannelSeekableIODevice;
 import org.jpc.emulator.block.backing.SeekableIODevice;
 import org.jpc.emulator.pci.VGACard;
 import org.jpc.emulator.pci.peripheral.EthernetCard;
@@ -428,7 +428,7 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
 
         private void change(File image) {
             try {
-                change(new FileBackedSeekableIODevice(image.getAbsolutePath()));
+                change(new FileChannelSeekableIODevice(image.getAbsolutePath()));
             } catch (IOException e) {
                 LOGGING.log(Level.INFO, "Exception changing floppy disk.", e);
             }
@@ -498,7 +498,7 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
 
         private void changeFile(File image) {
             try {
-                SeekableIODevice ioDevice = new FileBackedSeekableIODevice(image.getAbsolutePath());
+                SeekableIODevice ioDevice = new FileChannelSeekableIODevice(image.getAbsolutePath());
                 change(new HDBlockDevice(ioDevice));
             } catch (IOException e) {
                 LOGGING.log(Level.INFO, "Exception changing floppy disk.", e);
@@ -640,6 +640,33 @@ public class JPCApplication extends PCMonitorFrame implements PCControl {
             EthernetCard card = (EthernetCard)pc.getComponent(EthernetCard.class);
             card.setOutputDevice(hub);
         }
+        if (Option.vnc.isSet())
+            new VNCServer(pc, Option.vnc.value(), Option.noScreen.isSet()).start();
+        if (Option.record.isSet()) {
+            String path = Option.record.value();
+            FrameRecorder.Format format = FrameRecorder.Format.RLE;
+            int colon = path.indexOf(':');
+            if (colon > 1) {
+                String prefix = path.substring(0, colon);
+                try {
+                    format = FrameRecorder.Format.valueOf(prefix.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown recording format " + prefix + ", expected png, raw or rle");
+                    Option.printHelp();
+                    System.exit(1);
+                }
+                path = path.substring(colon + 1);
+            }
+            final FrameRecorder recorder = new FrameRecorder((VGACard)pc.getComponent(VGACard.class), new File(path), format,
+                Option.recordFps.intValue(25), 16, Option.noScreen.isSet() && !Option.vnc.isSet());
+            recorder.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    recorder.stop();
+                }
+            });
+        }
         final JPCApplication app = new JPCApplication(args, pc);
 
         app.setBounds(100, 100, MONITOR_WIDTH + 20, MONITOR_HEIGHT + 70);
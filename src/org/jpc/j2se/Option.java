@@ -72,12 +72,19 @@ public abstract class Option {
 
     // required for deterministic execution
     public static final Switch deterministic = createSwitch("deterministic");
+    public static final Switch maxSpeed = createSwitch("max-speed");
     public static final Opt startTime = opt("start-time");
     public static final Switch noScreen = createSwitch("no-screen");
+    public static final Opt vnc = opt("vnc");
+    public static final Opt record = opt("record");
+    public static final Opt recordFps = opt("record-fps");
+    public static final Switch smoothDisplay = createSwitch("smooth-display");
 
     public static final Opt ss = opt("ss");
     public static final Opt ram = opt("ram");
     public static final Opt ips = opt("ips");
+    public static final Switch ipsAdaptive = createSwitch("ips-adaptive");
+    public static final Opt ipsCap = opt("ips-cap");
     public static final Opt cpulevel = opt("cpulevel");
     public static final Opt timeslowdown = opt("time-slowdown");
     public static final Switch singlesteptime = createSwitch("single-step-time");
@@ -92,6 +99,10 @@ public abstract class Option {
     public static final Opt cdrom = opt("cdrom");
     public static final Opt bios = opt("bios");
     public static final Switch ethernet = createSwitch("ethernet");
+    public static final Opt vga = opt("vga");
+    public static final Switch ideAsync = createSwitch("ide-async");
+    public static final Opt diskCache = opt("disk-cache");
+    public static final Opt netCache = opt("net-cache");
 
     public static final Switch sound = createSwitch("sound");
     public static final Opt sounddevice = opt("sounddevice");
@@ -125,11 +136,28 @@ public abstract class Option {
         System.out.println("-fda $file - floppy image file");
         System.out.println("-hda $file - hard disk image file");
         System.out.println("-hda dir:$dir - directory to mount as a FAT32 hard disk");
+        System.out.println("-hda mmap:$file - hard disk image file accessed through a memory mapping (images up to 4GB)");
+        System.out.println(
+            "-hda overlay:$overlay[,$base] - copy-on-write overlay file on a shared base image, created on $base if it does not exist");
+        System.out.println("-hda qcow2:$file - sparse qcow2 hard disk image file");
+        System.out.println("-hda compressed:$file - read-only compressed image file made with tools.CompressImage");
+        System.out.println("-ide-async - perform hard disk transfers on a separate thread while the virtual machine keeps running");
+        System.out.println("-disk-cache $megabytes - size of a read cache with sequential read-ahead in front of each hard disk and CD-ROM image");
+        System.out.println("-net-cache $dir - directory where chunks of net: images are kept between runs (defaults to the temporary directory)");
+        System.out.println("-vga $card - display adapter, std (default) or cirrus (CL-GD5446 with 2D acceleration)");
+        System.out.println("-vnc [$host:]$port - serve the display and take keyboard and mouse input over VNC (no password, listens on 127.0.0.1 unless $host is given)");
+        System.out.println("-record [png:|raw:|rle:]$path - record the display in the background as PNG files in directory $path, or as a video file of raw or run-length encoded frame deltas (default rle)");
+        System.out.println("-record-fps $number - frames per emulated second to record, up to the display refresh rate (default 25)");
+        System.out.println("-smooth-display - scale the display to any window size with bilinear filtering instead of whole-pixel nearest-neighbour steps");
         System.out.println("-ss $file - snapshot file to load");
         System.out.println("-ram $megabytes - the amount RAM the virtual machine should have");
         System.out.println(
             "-ips $number - number of emulated instructions per emulated second - a larger value will cause a slower apparent time in the VM");
+        System.out.println(
+            "-ips-adaptive - in real time mode, track the measured instruction rate of this host instead of a fixed ips");
+        System.out.println("-ips-cap $number - with -ips-adaptive, the highest instruction rate the virtual machine will see");
         System.out.println("-cpulevel $number - 4 = 486, 5 = Pentium, 6 = Pentium Pro");
+        System.out.println("-max-speed - run as fast as the host allows, emulated time follows the instruction count and halts never sleep");
         System.out.println();
         System.out.println("-sound - enable sound");
         System.out.println();
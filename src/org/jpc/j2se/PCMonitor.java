@@ -46,6 +46,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Locale;
 
+import org.jpc.emulator.FrameListener;
 import org.jpc.emulator.Monitor;
 import org.jpc.emulator.PC;
 import org.jpc.emulator.pci.VGACard;
@@ -54,7 +55,7 @@ import org.jpc.emulator.peripheral.Keyboard;
 /**
  * @author Rhys Newman
  */
-public class PCMonitor extends KeyHandlingPanel implements Monitor {
+public class PCMonitor extends KeyHandlingPanel implements Monitor, FrameListener {
     private Keyboard keyboard;
     private VGACard vgaCard;
     private Updater updater;
@@ -63,6 +64,7 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
     private double scaleX = 1.0;
     private double scaleY = 1.0;
     private boolean ignoreResize = false;
+    private int dirtyX0, dirtyY0, dirtyX1, dirtyY1;
 
     private volatile boolean clearBackground;
 
@@ -80,6 +82,7 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
 
         vgaCard = (VGACard)pc.getComponent(VGACard.class);
         vgaCard.setMonitor(this);
+        vgaCard.addFrameListener(this);
         vgaCard.resizeDisplay(720, 480);
         keyboard = (Keyboard)pc.getComponent(Keyboard.class);
         setInputMap(WHEN_FOCUSED, null);
@@ -178,14 +181,10 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
         public void run() {
             while (running) {
                 try {
-                    Thread.sleep(20);
+                    if (vgaCard.renderFrame(100))
+                        repaintDirtyRegion();
                 } catch (InterruptedException e) {
                 }
-
-                vgaCard.prepareUpdate();
-                vgaCard.updateDisplay();
-
-                repaint();
             }
         }
 
@@ -198,6 +197,42 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
         }
     }
 
+    @Override
+    public void frameRendered(int[] pixels, int width, int height, int x, int y, int w, int h, long time) {
+        if (dirtyX0 < dirtyX1) {
+            dirtyX0 = Math.min(x, dirtyX0);
+            dirtyY0 = Math.min(y, dirtyY0);
+            dirtyX1 = Math.max(x + w, dirtyX1);
+            dirtyY1 = Math.max(y + h, dirtyY1);
+        } else {
+            dirtyX0 = x;
+            dirtyY0 = y;
+            dirtyX1 = x + w;
+            dirtyY1 = y + h;
+        }
+    }
+
+    /**
+     * Repaints the part of the monitor covering the frames published since the last call, widened
+     * by a display pixel on each side for the filtered scaling of <code>-smooth-display</code>.
+     */
+    private void repaintDirtyRegion() {
+        if (dirtyX0 >= dirtyX1) {
+            repaint();
+            return;
+        }
+        Dimension s = getSize();
+        Dimension display = vgaCard.getDisplaySize();
+        double sx = s.width / (double)display.width;
+        double sy = s.height / (double)display.height;
+        int x0 = (int)Math.floor((dirtyX0 - 1) * sx);
+        int y0 = (int)Math.floor((dirtyY0 - 1) * sy);
+        int x1 = (int)Math.ceil((dirtyX1 + 1) * sx);
+        int y1 = (int)Math.ceil((dirtyY1 + 1) * sy);
+        dirtyX0 = dirtyX1 = 0;
+        repaint(x0, y0, x1 - x0, y1 - y0);
+    }
+
     @Override
     public void resizeDisplay(int width, int height) {
         resizeDisplayCommon((int)(width * scaleX), (int)(height * scaleY));
@@ -218,13 +253,15 @@ public class PCMonitor extends KeyHandlingPanel implements Monitor {
         Dimension display = vgaCard.getDisplaySize();
         double displayWidth = display.width;
         double displayHeight = display.height;
+        /* whole factors keep painting on the cached pixel-replicated image */
+        boolean whole = !Option.smoothDisplay.isSet();
         if (width > displayWidth) {
-            scaleX = width / displayWidth;
+            scaleX = whole ? Math.floor(width / displayWidth) : width / displayWidth;
         } else {
             scaleX = 1.0;
         }
         if (height > displayHeight) {
-            scaleY = height / displayHeight;
+            scaleY = whole ? Math.floor(height / displayHeight) : height / displayHeight;
         } else {
             scaleY = 1.0;
         }
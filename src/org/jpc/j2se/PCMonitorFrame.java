@@ -47,6 +47,7 @@ import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -112,6 +113,17 @@ public class PCMonitorFrame extends JFrame implements Runnable {
                 reset();
             }
         });
+        final VirtualClock clock = (VirtualClock)pc.getComponent(VirtualClock.class);
+        if (clock != null) {
+            final JCheckBoxMenuItem maxSpeed = new JCheckBoxMenuItem("Max Speed", clock.isMaxSpeed());
+            maxSpeed.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    clock.setMaxSpeed(maxSpeed.isSelected());
+                }
+            });
+            file.add(maxSpeed);
+        }
         file.addSeparator();
         file.add("Save Configuration").addActionListener(new ActionListener() {
             @Override
@@ -0,0 +1,428 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including contact information) can be found at:
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.j2se;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.PC;
+import org.jpc.emulator.peripheral.Keyboard;
+import org.jpc.support.ArgProcessor;
+
+/**
+ * Runs many <code>PC</code> instances over a fixed pool of worker threads.
+ * <p>
+ * Each machine runs for a time slice (bounded both in instructions and in
+ * host time) and is then put back at the tail of the run queue, so machines
+ * are served round robin. Halts do not sleep the worker: the owning
+ * <code>VirtualClock</code> defers the sleep and the machine is parked until
+ * it is due, leaving the worker free for other machines.
+ */
+public class PCScheduler {
+    private static final Logger LOGGING = Logger.getLogger(PCScheduler.class.getName());
+
+    public static final long DEFAULT_SLICE_INSTRUCTIONS = 2000000;
+    public static final long DEFAULT_SLICE_NANOS = 10000000L; // 10 milli-seconds
+    private static final long MAX_PARK_NANOS = 100000000L; // same cap as a halt in VirtualClock
+    private static final long QUOTA_WINDOW_NANOS = 1000000000L;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timers;
+    private final List<Machine> machines = Collections.synchronizedList(new ArrayList<Machine>());
+    private final int threads;
+    private volatile long sliceInstructions = DEFAULT_SLICE_INSTRUCTIONS;
+    private volatile long sliceNanos = DEFAULT_SLICE_NANOS;
+
+    /**
+     * Constructs a scheduler with the given number of worker threads.
+     * @param threads number of host threads shared by all machines
+     */
+    public PCScheduler(int threads) {
+        this.threads = threads;
+        workers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("PC Worker"));
+        timers = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("PC Scheduler Timer"));
+    }
+
+    public int getThreadCount() {
+        return threads;
+    }
+
+    /**
+     * Sets the upper bounds of a single time slice.
+     * @param instructions maximum x86 instructions per slice
+     * @param nanos maximum host nanoseconds per slice
+     */
+    public void setSliceLength(long instructions, long nanos) {
+        sliceInstructions = instructions;
+        sliceNanos = nanos;
+    }
+
+    /**
+     * Adds a machine without an instruction quota and starts running it.
+     * @param pc machine to run, must be driven by a <code>VirtualClock</code>
+     * @return handle used to control and monitor the machine
+     */
+    public Machine add(PC pc) {
+        return add(pc, 0);
+    }
+
+    /**
+     * Adds a machine and starts running it.
+     * @param pc machine to run, must be driven by a <code>VirtualClock</code>
+     * @param quotaIPS maximum host-rate x86 instructions per second, or 0 for no limit
+     * @return handle used to control and monitor the machine
+     */
+    public Machine add(PC pc, long quotaIPS) {
+        VirtualClock clock = (VirtualClock)pc.getComponent(VirtualClock.class);
+        if (clock == null)
+            throw new IllegalArgumentException("PC is not driven by a VirtualClock");
+        final Machine m = new Machine(pc, clock, quotaIPS);
+        machines.add(m);
+        Keyboard keyboard = (Keyboard)pc.getComponent(Keyboard.class);
+        if (keyboard != null)
+            keyboard.setInputListener(new Runnable() {
+                @Override
+                public void run() {
+                    m.wake();
+                }
+            });
+        clock.setDeferSleeps(true);
+        pc.start();
+        m.state.set(Machine.QUEUED);
+        workers.execute(m);
+        return m;
+    }
+
+    /**
+     * Stops a machine and removes it from this scheduler. A slice in progress is
+     * allowed to finish first.
+     * @param m machine to remove
+     */
+    public void remove(Machine m) {
+        machines.remove(m);
+        Keyboard keyboard = (Keyboard)m.pc.getComponent(Keyboard.class);
+        if (keyboard != null)
+            keyboard.setInputListener(null);
+        m.stopRequested = true;
+        m.wake();
+    }
+
+    public List<Machine> getMachines() {
+        synchronized (machines) {
+            return new ArrayList<Machine>(machines);
+        }
+    }
+
+    /**
+     * Stops all machines and the worker threads.
+     */
+    public void shutdown() {
+        for (Machine m : getMachines())
+            remove(m);
+        timers.shutdown();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A single emulated machine as seen by the scheduler, along with its
+     * throughput counters.
+     */
+    public class Machine implements Runnable {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int PARKED = 2;
+        private static final int STOPPED = 3;
+
+        private final PC pc;
+        private final VirtualClock clock;
+        private final AtomicInteger state = new AtomicInteger(STOPPED);
+        private volatile ScheduledFuture<?> wakeup;
+        private volatile boolean wakeRequested;
+        private volatile boolean stopRequested;
+        private volatile long quotaIPS;
+
+        private volatile long instructions;
+        private volatile long slices;
+        private volatile long runNanos;
+        private volatile long parkedNanos;
+        private volatile long parks;
+        private volatile long throttles;
+
+        private long windowStart;
+        private long windowInstructions;
+
+        Machine(PC pc, VirtualClock clock, long quotaIPS) {
+            this.pc = pc;
+            this.clock = clock;
+            this.quotaIPS = quotaIPS;
+            windowStart = System.nanoTime();
+        }
+
+        public PC getPC() {
+            return pc;
+        }
+
+        public void setQuotaIPS(long quotaIPS) {
+            this.quotaIPS = quotaIPS;
+        }
+
+        public long getQuotaIPS() {
+            return quotaIPS;
+        }
+
+        public long getInstructions() {
+            return instructions;
+        }
+
+        public long getSlices() {
+            return slices;
+        }
+
+        public long getRunNanos() {
+            return runNanos;
+        }
+
+        public long getParkedNanos() {
+            return parkedNanos;
+        }
+
+        public long getParks() {
+            return parks;
+        }
+
+        public long getThrottles() {
+            return throttles;
+        }
+
+        public boolean isParked() {
+            return state.get() == PARKED;
+        }
+
+        public boolean isStopped() {
+            return state.get() == STOPPED;
+        }
+
+        /**
+         * Requeues this machine immediately if it is parked, for example after
+         * host input has raised an interrupt.
+         */
+        public void wake() {
+            /* seen by a park that has not yet set PARKED, see park() */
+            wakeRequested = true;
+            if (state.compareAndSet(PARKED, QUEUED)) {
+                ScheduledFuture<?> w = wakeup;
+                if (w != null)
+                    w.cancel(false);
+                requeue();
+            }
+        }
+
+        private void requeue() {
+            try {
+                workers.execute(this);
+            } catch (RuntimeException e) {
+                state.set(STOPPED);
+                pc.stop();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING))
+                return;
+            wakeRequested = false;
+            if (stopRequested) {
+                stopMachine();
+                return;
+            }
+            long start = System.nanoTime();
+            long deadline = start + sliceNanos;
+            long executed = 0;
+            long owed = 0;
+            try {
+                while (executed < sliceInstructions) {
+                    executed += pc.execute();
+                    if (clock.hasDeferredSleep()) {
+                        owed = clock.takeDeferredSleepNanos();
+                        break;
+                    }
+                    if (System.nanoTime() - deadline >= 0)
+                        break;
+                }
+            } catch (Throwable e) {
+                /* an Error must not leave the machine RUNNING, where nothing would requeue or stop it */
+                LOGGING.log(Level.WARNING, "PC failed, removing from scheduler", e);
+                machines.remove(this);
+                stopMachine();
+                return;
+            }
+            long end = System.nanoTime();
+            instructions += executed;
+            runNanos += end - start;
+            slices++;
+
+            if (stopRequested) {
+                stopMachine();
+                return;
+            }
+
+            long throttle = 0;
+            if (quotaIPS > 0) {
+                if (end - windowStart >= QUOTA_WINDOW_NANOS) {
+                    windowStart = end;
+                    windowInstructions = 0;
+                }
+                windowInstructions += executed;
+                if (windowInstructions >= quotaIPS) {
+                    throttle = windowStart + QUOTA_WINDOW_NANOS - end;
+                    throttles++;
+                }
+            }
+
+            long park = Math.min(Math.max(owed, throttle), MAX_PARK_NANOS);
+            if (park > 0)
+                park(park);
+            else {
+                state.set(QUEUED);
+                requeue();
+            }
+        }
+
+        private void park(long nanos) {
+            parks++;
+            parkedNanos += nanos;
+            try {
+                wakeup = timers.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        wake();
+                    }
+                }, nanos, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                state.set(STOPPED);
+                pc.stop();
+                return;
+            }
+            state.set(PARKED);
+            /* a wake, or the timer itself, that arrived before PARKED was set would otherwise be lost */
+            if (wakeRequested)
+                wake();
+        }
+
+        private void stopMachine() {
+            state.set(STOPPED);
+            pc.stop();
+            clock.setDeferSleeps(false);
+        }
+
+        @Override
+        public String toString() {
+            double seconds = runNanos / 1000000000.0;
+            return String.format("PC %08x: %d instructions in %d slices, %.1f MIPS while running, %d parks, %d throttles",
+                System.identityHashCode(pc), instructions, slices, seconds > 0 ? instructions / seconds / 1000000 : 0.0, parks,
+                throttles);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private static String[] readArgs(String file) throws IOException {
+        StringBuilder b = new StringBuilder();
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = r.readLine()) != null)
+                b.append(line).append(' ');
+        } finally {
+            r.close();
+        }
+        return b.toString().trim().split("\\s+");
+    }
+
+    /**
+     * Runs one headless machine per argument file and periodically logs their counters.
+     * <p>
+     * Usage: <code>PCScheduler threads file...</code> where each file holds the drive and boot
+     * arguments of one machine, and optionally <code>-vnc [host:]port</code> to watch it.
+     * @param args thread count followed by machine argument files
+     * @throws Exception if a machine cannot be created
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: PCScheduler threads file...");
+            return;
+        }
+        PCScheduler scheduler = new PCScheduler(Integer.parseInt(args[0]));
+        for (int i = 1; i < args.length; i++) {
+            String[] machineArgs = readArgs(args[i]);
+            PC pc = new PC(new VirtualClock(), machineArgs);
+            String vnc = ArgProcessor.findVariable(machineArgs, "vnc", null);
+            if (vnc != null)
+                new VNCServer(pc, vnc, true).start();
+            scheduler.add(pc);
+        }
+        while (!scheduler.getMachines().isEmpty()) {
+            Thread.sleep(10000);
+            for (Machine m : scheduler.getMachines())
+                LOGGING.log(Level.INFO, m.toString());
+        }
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,687 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.j2se;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes framebuffer rectangles for one RFB client in its pixel format, with the raw, RRE, hextile
+ * or ZRLE encoding. Rectangles are gathered into an internal buffer that is handed to the socket in
+ * a single write per update.
+ */
+final class RFBEncoder {
+    static final int RAW = 0;
+    static final int RRE = 2;
+    static final int HEXTILE = 5;
+    static final int ZRLE = 16;
+    static final int DESKTOP_SIZE = -223;
+
+    private static final int HEXTILE_RAW = 1;
+    private static final int HEXTILE_BACKGROUND = 2;
+    private static final int HEXTILE_FOREGROUND = 4;
+    private static final int HEXTILE_SUBRECTS = 8;
+    private static final int HEXTILE_COLOURED = 16;
+
+    private static final int ZRLE_TILE = 64;
+    private static final int ZRLE_MAX_PALETTE = 127;
+
+    /*
+     * Each ZRLE rectangle has to end on a byte boundary of the zlib stream, which takes a sync flush.
+     * Deflater only has one from Java 7, so it is looked up at run time; without it the stream is
+     * written as stored (uncompressed) deflate blocks, which are byte aligned by construction.
+     */
+    private static final Method SYNC_DEFLATE;
+    private static final Integer SYNC_FLUSH;
+    static {
+        Method deflate;
+        Integer flush;
+        try {
+            deflate = Deflater.class.getMethod("deflate", byte[].class, Integer.TYPE, Integer.TYPE, Integer.TYPE);
+            flush = (Integer)Deflater.class.getField("SYNC_FLUSH").get(null);
+        } catch (Exception e) {
+            deflate = null;
+            flush = null;
+        }
+        SYNC_DEFLATE = deflate;
+        SYNC_FLUSH = flush;
+    }
+
+    private int bytesPerPixel;
+    private boolean bigEndian;
+    private int redMax, greenMax, blueMax;
+    private int redShift, greenShift, blueShift;
+    private boolean identity;
+    private int cpixelShift;
+    private int cpixelBytes;
+
+    private final Buffer out = new Buffer();
+    private final Buffer zrle = new Buffer();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] deflated = new byte[64 * 1024];
+    private boolean zlibHeaderSent;
+
+    private int[] scratch = new int[0];
+    private int[] subrects = new int[0];
+    private int subrectCount;
+    private final int[] paletteKeys = new int[256];
+    private final int[] paletteIndex = new int[256];
+    private final int[] palette = new int[ZRLE_MAX_PALETTE];
+    private int paletteSize;
+
+    RFBEncoder() {
+        setPixelFormat(32, false, 255, 255, 255, 16, 8, 0);
+    }
+
+    /**
+     * Writes the 16 byte server pixel format: 32 bit little-endian 0RGB, as held in the frame.
+     */
+    static void writeServerPixelFormat(Buffer b) {
+        b.u8(32);
+        b.u8(24);
+        b.u8(0);
+        b.u8(1);
+        b.u16(255);
+        b.u16(255);
+        b.u16(255);
+        b.u8(16);
+        b.u8(8);
+        b.u8(0);
+        b.u8(0);
+        b.u8(0);
+        b.u8(0);
+    }
+
+    /**
+     * Returns <code>true</code> if a SetPixelFormat message body is a true colour format this encoder
+     * can produce.
+     */
+    static boolean isSupported(byte[] format) {
+        int bpp = 0xff & format[0];
+        return format[3] != 0 && (bpp == 8 || bpp == 16 || bpp == 32);
+    }
+
+    /**
+     * Selects the client pixel format from a supported SetPixelFormat message body.
+     */
+    void setPixelFormat(byte[] format) {
+        setPixelFormat(0xff & format[0], format[2] != 0, u16(format, 4), u16(format, 6), u16(format, 8), 0xff & format[10],
+            0xff & format[11], 0xff & format[12]);
+    }
+
+    private static int u16(byte[] b, int offset) {
+        return (0xff & b[offset]) << 8 | 0xff & b[offset + 1];
+    }
+
+    private void setPixelFormat(int bpp, boolean bigEndian, int redMax, int greenMax, int blueMax, int redShift, int greenShift,
+        int blueShift) {
+        this.bytesPerPixel = bpp / 8;
+        this.bigEndian = bigEndian;
+        this.redMax = redMax;
+        this.greenMax = greenMax;
+        this.blueMax = blueMax;
+        this.redShift = redShift;
+        this.greenShift = greenShift;
+        this.blueShift = blueShift;
+        identity = redMax == 255 && greenMax == 255 && blueMax == 255 && redShift == 16 && greenShift == 8 && blueShift == 0;
+
+        /* ZRLE drops the unused byte of 32 bit pixels whose colour fits in the low or high three bytes */
+        long used = (long)redMax << redShift | (long)greenMax << greenShift | (long)blueMax << blueShift;
+        cpixelBytes = bytesPerPixel;
+        cpixelShift = 0;
+        if (bpp == 32 && (used & ~0xffffffL) == 0)
+            cpixelBytes = 3;
+        else if (bpp == 32 && (used & 0xff) == 0) {
+            cpixelBytes = 3;
+            cpixelShift = 8;
+        }
+    }
+
+    Buffer buffer() {
+        return out;
+    }
+
+    void end() {
+        deflater.end();
+    }
+
+    /**
+     * Appends one rectangle of 0RGB pixels, <code>w</code> per row, with the given encoding. RRE and
+     * hextile rectangles that would come out larger than raw ones are sent raw.
+     */
+    void encode(int encoding, int[] pixels, int x, int y, int w, int h) {
+        int count = w * h;
+        if (scratch.length < count)
+            scratch = new int[count];
+        int[] px = scratch;
+        for (int i = 0; i < count; i++)
+            px[i] = convert(pixels[i]);
+
+        switch (encoding) {
+        case RRE:
+            if (encodeRRE(px, x, y, w, h))
+                return;
+            break;
+        case HEXTILE:
+            header(x, y, w, h, HEXTILE);
+            encodeHextile(px, w, h);
+            return;
+        case ZRLE:
+            header(x, y, w, h, ZRLE);
+            encodeZRLE(px, w, h);
+            return;
+        }
+        header(x, y, w, h, RAW);
+        for (int i = 0; i < count; i++)
+            pixel(out, px[i]);
+    }
+
+    void desktopSize(int width, int height) {
+        header(0, 0, width, height, DESKTOP_SIZE);
+    }
+
+    private void header(int x, int y, int w, int h, int encoding) {
+        out.u16(x);
+        out.u16(y);
+        out.u16(w);
+        out.u16(h);
+        out.u32(encoding);
+    }
+
+    private int convert(int rgb) {
+        if (identity)
+            return rgb & 0xffffff;
+        int r = (rgb >>> 16 & 0xff) * redMax / 255;
+        int g = (rgb >>> 8 & 0xff) * greenMax / 255;
+        int b = (rgb & 0xff) * blueMax / 255;
+        return r << redShift | g << greenShift | b << blueShift;
+    }
+
+    private void pixel(Buffer b, int v) {
+        switch (bytesPerPixel) {
+        case 1:
+            b.u8(v);
+            break;
+        case 2:
+            if (bigEndian)
+                b.u16(v);
+            else
+                b.u16le(v);
+            break;
+        default:
+            if (bigEndian)
+                b.u32(v);
+            else
+                b.u32le(v);
+        }
+    }
+
+    private void cpixel(Buffer b, int v) {
+        if (cpixelBytes != 3) {
+            pixel(b, v);
+            return;
+        }
+        v >>>= cpixelShift;
+        if (bigEndian) {
+            b.u8(v >>> 16);
+            b.u8(v >>> 8);
+            b.u8(v);
+        } else {
+            b.u8(v);
+            b.u8(v >>> 8);
+            b.u8(v >>> 16);
+        }
+    }
+
+    /**
+     * Covers every pixel of a <code>w</code> by <code>h</code> block at <code>offset</code> in
+     * <code>px</code> that differs from <code>background</code> with single colour rectangles, each
+     * grown rightwards and then downwards. Covered pixels are overwritten with the background.
+     * @return <code>false</code> if more than <code>limit</code> rectangles would be needed
+     */
+    private boolean findSubrects(int[] px, int offset, int scan, int w, int h, int background, int limit) {
+        subrectCount = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0, row = offset + y * scan; x < w; x++) {
+                int c = px[row + x];
+                if (c == background)
+                    continue;
+                if (subrectCount == limit)
+                    return false;
+
+                int x1 = x + 1;
+                while (x1 < w && px[row + x1] == c)
+                    x1++;
+                int y1 = y + 1;
+                grow: for (; y1 < h; y1++) {
+                    for (int i = offset + y1 * scan + x, end = i + x1 - x; i < end; i++)
+                        if (px[i] != c)
+                            break grow;
+                }
+                for (int j = y; j < y1; j++)
+                    for (int i = offset + j * scan + x, end = i + x1 - x; i < end; i++)
+                        px[i] = background;
+
+                if (subrects.length < (subrectCount + 1) * 5) {
+                    int[] grown = new int[Math.max(64, subrects.length * 2)];
+                    System.arraycopy(subrects, 0, grown, 0, subrects.length);
+                    subrects = grown;
+                }
+                int k = subrectCount++ * 5;
+                subrects[k] = x;
+                subrects[k + 1] = y;
+                subrects[k + 2] = x1 - x;
+                subrects[k + 3] = y1 - y;
+                subrects[k + 4] = c;
+                x = x1 - 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the most frequent of the first few distinct colours in a block, a cheap stand-in for the
+     * true background.
+     */
+    private static int dominantColour(int[] px, int offset, int scan, int w, int h) {
+        int first = px[offset];
+        int second = first;
+        int firstCount = 0, secondCount = 0;
+        for (int y = 0; y < h; y++)
+            for (int i = offset + y * scan, end = i + w; i < end; i++) {
+                int c = px[i];
+                if (c == first)
+                    firstCount++;
+                else if (secondCount == 0 || c == second) {
+                    second = c;
+                    secondCount++;
+                }
+            }
+        return secondCount > firstCount ? second : first;
+    }
+
+    private boolean encodeRRE(int[] px, int x, int y, int w, int h) {
+        int rawSize = w * h * bytesPerPixel;
+        int background = dominantColour(px, 0, w, w, h);
+        int limit = (rawSize - 4 - bytesPerPixel) / (bytesPerPixel + 8);
+        int[] copy = new int[w * h];
+        System.arraycopy(px, 0, copy, 0, copy.length);
+        if (!findSubrects(copy, 0, w, w, h, background, Math.max(limit, 0)))
+            return false;
+
+        header(x, y, w, h, RRE);
+        out.u32(subrectCount);
+        pixel(out, background);
+        for (int i = 0, k = 0; i < subrectCount; i++, k += 5) {
+            pixel(out, subrects[k + 4]);
+            out.u16(subrects[k]);
+            out.u16(subrects[k + 1]);
+            out.u16(subrects[k + 2]);
+            out.u16(subrects[k + 3]);
+        }
+        return true;
+    }
+
+    private void encodeHextile(int[] px, int w, int h) {
+        boolean backgroundValid = false, foregroundValid = false;
+        int lastBackground = 0, lastForeground = 0;
+        int[] tile = new int[256];
+
+        for (int ty = 0; ty < h; ty += 16) {
+            int th = Math.min(16, h - ty);
+            for (int tx = 0; tx < w; tx += 16) {
+                int tw = Math.min(16, w - tx);
+                for (int j = 0; j < th; j++)
+                    System.arraycopy(px, (ty + j) * w + tx, tile, j * tw, tw);
+
+                int background = dominantColour(tile, 0, tw, tw, th);
+                int rawSize = tw * th * bytesPerPixel;
+                /* every subrectangle costs at least two bytes, so anything past this is larger than raw */
+                boolean fits = findSubrects(tile, 0, tw, tw, th, background, Math.min(255, rawSize / 2));
+
+                boolean coloured = false;
+                for (int i = 1; fits && i < subrectCount; i++)
+                    if (subrects[i * 5 + 4] != subrects[4])
+                        coloured = true;
+                int size = (coloured ? bytesPerPixel + 2 : 2) * subrectCount;
+                if (!fits || size > rawSize) {
+                    out.u8(HEXTILE_RAW);
+                    for (int j = 0; j < th; j++)
+                        for (int i = (ty + j) * w + tx, end = i + tw; i < end; i++)
+                            pixel(out, px[i]);
+                    backgroundValid = foregroundValid = false;
+                    continue;
+                }
+
+                int mask = 0;
+                if (!backgroundValid || background != lastBackground)
+                    mask |= HEXTILE_BACKGROUND;
+                if (subrectCount > 0) {
+                    mask |= HEXTILE_SUBRECTS;
+                    if (coloured)
+                        mask |= HEXTILE_COLOURED;
+                    else if (!foregroundValid || subrects[4] != lastForeground)
+                        mask |= HEXTILE_FOREGROUND;
+                }
+                out.u8(mask);
+                if ((mask & HEXTILE_BACKGROUND) != 0)
+                    pixel(out, background);
+                if ((mask & HEXTILE_FOREGROUND) != 0)
+                    pixel(out, subrects[4]);
+                if (subrectCount > 0) {
+                    out.u8(subrectCount);
+                    for (int i = 0, k = 0; i < subrectCount; i++, k += 5) {
+                        if (coloured)
+                            pixel(out, subrects[k + 4]);
+                        out.u8(subrects[k] << 4 | subrects[k + 1]);
+                        out.u8(subrects[k + 2] - 1 << 4 | subrects[k + 3] - 1);
+                    }
+                }
+
+                backgroundValid = true;
+                lastBackground = background;
+                if (coloured)
+                    foregroundValid = false;
+                else if (subrectCount > 0) {
+                    foregroundValid = true;
+                    lastForeground = subrects[4];
+                }
+            }
+        }
+    }
+
+    private int paletteLookup(int c) {
+        int slot = (c ^ c >>> 8 ^ c >>> 16) & 0xff;
+        while (true) {
+            int index = paletteIndex[slot];
+            if (index == 0) {
+                if (paletteSize == ZRLE_MAX_PALETTE)
+                    return -1;
+                palette[paletteSize] = c;
+                paletteKeys[slot] = c;
+                paletteIndex[slot] = ++paletteSize;
+                return paletteSize - 1;
+            }
+            if (paletteKeys[slot] == c)
+                return index - 1;
+            slot = slot + 1 & 0xff;
+        }
+    }
+
+    private static int runLengthBytes(int length) {
+        return (length - 1) / 255 + 1;
+    }
+
+    private void runLength(Buffer b, int length) {
+        length--;
+        while (length >= 255) {
+            b.u8(255);
+            length -= 255;
+        }
+        b.u8(length);
+    }
+
+    private void encodeZRLE(int[] px, int w, int h) {
+        zrle.reset();
+        for (int ty = 0; ty < h; ty += ZRLE_TILE) {
+            int th = Math.min(ZRLE_TILE, h - ty);
+            for (int tx = 0; tx < w; tx += ZRLE_TILE)
+                encodeZRLETile(px, ty * w + tx, w, Math.min(ZRLE_TILE, w - tx), th);
+        }
+
+        if (SYNC_DEFLATE == null) {
+            storeZRLE();
+            return;
+        }
+
+        deflater.setInput(zrle.data, 0, zrle.length);
+        int length = 0;
+        while (true) {
+            if (length == deflated.length) {
+                byte[] grown = new byte[deflated.length * 2];
+                System.arraycopy(deflated, 0, grown, 0, length);
+                deflated = grown;
+            }
+            length += syncDeflate(length);
+            if (length < deflated.length)
+                break;
+        }
+        out.u32(length);
+        out.write(deflated, 0, length);
+    }
+
+    private int syncDeflate(int offset) {
+        try {
+            return ((Integer)SYNC_DEFLATE.invoke(deflater, deflated, Integer.valueOf(offset), Integer.valueOf(deflated.length - offset),
+                SYNC_FLUSH)).intValue();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Appends the ZRLE data as stored deflate blocks of at most 65535 bytes, preceded by the zlib
+     * header in the first rectangle of the connection.
+     */
+    private void storeZRLE() {
+        int length = zrle.length;
+        int blocks = (length + 0xfffe) / 0xffff;
+        out.u32((zlibHeaderSent ? 0 : 2) + blocks * 5 + length);
+        if (!zlibHeaderSent) {
+            out.u8(0x78);
+            out.u8(0x01);
+            zlibHeaderSent = true;
+        }
+        for (int i = 0; i < length;) {
+            int n = Math.min(0xffff, length - i);
+            out.u8(0);
+            out.u16le(n);
+            out.u16le(~n);
+            out.write(zrle.data, i, n);
+            i += n;
+        }
+    }
+
+    private void encodeZRLETile(int[] px, int offset, int scan, int w, int h) {
+        Arrays.fill(paletteIndex, 0);
+        paletteSize = 0;
+
+        int plainRunBytes = 0, paletteRunBytes = 0;
+        int previous = px[offset], length = 0;
+        boolean paletteFull = false;
+        for (int y = 0; y < h; y++)
+            for (int i = offset + y * scan, end = i + w; i < end; i++) {
+                int c = px[i];
+                if (!paletteFull && paletteLookup(c) < 0)
+                    paletteFull = true;
+                if (c == previous && length > 0) {
+                    length++;
+                    continue;
+                }
+                if (length > 0) {
+                    plainRunBytes += cpixelBytes + runLengthBytes(length);
+                    paletteRunBytes += length == 1 ? 1 : 1 + runLengthBytes(length);
+                }
+                previous = c;
+                length = 1;
+            }
+        plainRunBytes += cpixelBytes + runLengthBytes(length);
+        paletteRunBytes += length == 1 ? 1 : 1 + runLengthBytes(length);
+
+        if (!paletteFull && paletteSize == 1) {
+            zrle.u8(1);
+            cpixel(zrle, palette[0]);
+            return;
+        }
+
+        int best = w * h * cpixelBytes;
+        int choice = 0;
+        if (plainRunBytes < best) {
+            best = plainRunBytes;
+            choice = 128;
+        }
+        if (!paletteFull) {
+            int paletteBytes = paletteSize * cpixelBytes;
+            if (paletteBytes + paletteRunBytes < best) {
+                best = paletteBytes + paletteRunBytes;
+                choice = 128 + paletteSize;
+            }
+            if (paletteSize <= 16) {
+                int bits = paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : 4;
+                int packed = paletteBytes + h * ((w * bits + 7) / 8);
+                if (packed < best)
+                    choice = paletteSize;
+            }
+        }
+
+        zrle.u8(choice);
+        if (choice == 0) {
+            for (int y = 0; y < h; y++)
+                for (int i = offset + y * scan, end = i + w; i < end; i++)
+                    cpixel(zrle, px[i]);
+        } else if (choice == 128) {
+            writeRuns(px, offset, scan, w, h, false);
+        } else {
+            for (int i = 0; i < paletteSize; i++)
+                cpixel(zrle, palette[i]);
+            if (choice > 128) {
+                writeRuns(px, offset, scan, w, h, true);
+            } else {
+                int bits = paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : 4;
+                for (int y = 0; y < h; y++) {
+                    int acc = 0, filled = 0;
+                    for (int i = offset + y * scan, end = i + w; i < end; i++) {
+                        acc = acc << bits | paletteLookup(px[i]);
+                        filled += bits;
+                        if (filled == 8) {
+                            zrle.u8(acc);
+                            acc = filled = 0;
+                        }
+                    }
+                    if (filled > 0)
+                        zrle.u8(acc << 8 - filled);
+                }
+            }
+        }
+    }
+
+    private void writeRuns(int[] px, int offset, int scan, int w, int h, boolean indexed) {
+        int previous = px[offset], length = 0;
+        for (int y = 0; y < h; y++)
+            for (int i = offset + y * scan, end = i + w; i < end; i++) {
+                int c = px[i];
+                if (c == previous && length > 0) {
+                    length++;
+                    continue;
+                }
+                if (length > 0)
+                    writeRun(previous, length, indexed);
+                previous = c;
+                length = 1;
+            }
+        writeRun(previous, length, indexed);
+    }
+
+    private void writeRun(int c, int length, boolean indexed) {
+        if (!indexed) {
+            cpixel(zrle, c);
+            runLength(zrle, length);
+        } else if (length == 1) {
+            zrle.u8(paletteLookup(c));
+        } else {
+            zrle.u8(128 | paletteLookup(c));
+            runLength(zrle, length);
+        }
+    }
+
+    /**
+     * A growable big-endian byte buffer.
+     */
+    static final class Buffer {
+        byte[] data = new byte[64 * 1024];
+        int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        private void ensure(int n) {
+            if (length + n > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + n)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+
+        void u8(int v) {
+            ensure(1);
+            data[length++] = (byte)v;
+        }
+
+        void u16(int v) {
+            ensure(2);
+            data[length++] = (byte)(v >>> 8);
+            data[length++] = (byte)v;
+        }
+
+        void u16le(int v) {
+            ensure(2);
+            data[length++] = (byte)v;
+            data[length++] = (byte)(v >>> 8);
+        }
+
+        void u32(int v) {
+            ensure(4);
+            data[length++] = (byte)(v >>> 24);
+            data[length++] = (byte)(v >>> 16);
+            data[length++] = (byte)(v >>> 8);
+            data[length++] = (byte)v;
+        }
+
+        void u32le(int v) {
+            ensure(4);
+            data[length++] = (byte)v;
+            data[length++] = (byte)(v >>> 8);
+            data[length++] = (byte)(v >>> 16);
+            data[length++] = (byte)(v >>> 24);
+        }
+
+        void write(byte[] b, int offset, int n) {
+            ensure(n);
+            System.arraycopy(b, offset, data, length, n);
+            length += n;
+        }
+    }
+}
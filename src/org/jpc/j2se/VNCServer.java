@@ -0,0 +1,613 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package org.jpc.j2se;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.FrameListener;
+import org.jpc.emulator.PC;
+import org.jpc.emulator.pci.VGACard;
+import org.jpc.emulator.peripheral.Keyboard;
+
+/**
+ * Serves the emulated display to any number of VNC viewers over the RFB protocol (versions 3.3 to
+ * 3.8, no authentication).
+ * <p>
+ * Published frames are split into 16 pixel square tiles once, on the rendering thread. A tile whose
+ * content changed is copied into a new array and unchanged tiles are shared with the previous frame,
+ * so each session finds what it still has to send by comparing tile references. Sessions encode on
+ * their own threads and always pick up the newest frame, so a slow viewer skips frames rather than
+ * queueing them, and after an update that took a long time to write it waits as long again before the
+ * next. Keyboard and pointer events go straight to the emulated keyboard controller.
+ */
+public class VNCServer implements FrameListener, Runnable {
+    private static final Logger LOGGING = Logger.getLogger(VNCServer.class.getName());
+
+    private static final int TILE = 16;
+    private static final int MAX_BACKOFF_MILLIS = 500;
+
+    private static final int SET_PIXEL_FORMAT = 0;
+    private static final int SET_ENCODINGS = 2;
+    private static final int FRAMEBUFFER_UPDATE_REQUEST = 3;
+    private static final int KEY_EVENT = 4;
+    private static final int POINTER_EVENT = 5;
+    private static final int CLIENT_CUT_TEXT = 6;
+
+    /* set 1 scancodes of the printable ASCII keysyms on a US keyboard, 0x80 marks E0 prefixed keys */
+    private static final int[] ASCII_SCANCODES = new int[128];
+    private static final int[] FUNCTION_SCANCODES = new int[256];
+    static {
+        String[] rows = { "1234567890-=", "!@#$%^&*()_+", "qwertyuiop[]", "QWERTYUIOP{}", "asdfghjkl;'`", "ASDFGHJKL:\"~",
+            "\\zxcvbnm,./", "|ZXCVBNM<>?" };
+        int[] firsts = { 0x02, 0x02, 0x10, 0x10, 0x1e, 0x1e, 0x2b, 0x2b };
+        for (int i = 0; i < rows.length; i++)
+            for (int j = 0; j < rows[i].length(); j++)
+                ASCII_SCANCODES[rows[i].charAt(j)] = firsts[i] + j;
+        ASCII_SCANCODES[' '] = 0x39;
+
+        int[] keys = { 0x08, 0x0e, 0x09, 0x0f, 0x0d, 0x1c, 0x13, 0xff, 0x14, 0x46, 0x1b, 0x01, 0x50, 0xc7, 0x51, 0xcb, 0x52, 0xc8, 0x53,
+            0xcd, 0x54, 0xd0, 0x55, 0xc9, 0x56, 0xd1, 0x57, 0xcf, 0x61, 0xb7, 0x63, 0xd2, 0x67, 0xdd, 0x7f, 0x45, 0x8d, 0x9c, 0x95, 0x47,
+            0x96, 0x4b, 0x97, 0x48, 0x98, 0x4d, 0x99, 0x50, 0x9a, 0x49, 0x9b, 0x51, 0x9c, 0x4f, 0x9e, 0x52, 0x9f, 0x53, 0xaa, 0x37, 0xab,
+            0x4e, 0xad, 0x4a, 0xae, 0x53, 0xaf, 0xb5, 0xb0, 0x52, 0xb1, 0x4f, 0xb2, 0x50, 0xb3, 0x51, 0xb4, 0x4b, 0xb5, 0x4c, 0xb6, 0x4d,
+            0xb7, 0x47, 0xb8, 0x48, 0xb9, 0x49, 0xbe, 0x3b, 0xbf, 0x3c, 0xc0, 0x3d, 0xc1, 0x3e, 0xc2, 0x3f, 0xc3, 0x40, 0xc4, 0x41, 0xc5,
+            0x42, 0xc6, 0x43, 0xc7, 0x44, 0xc8, 0x57, 0xc9, 0x58, 0xe1, 0x2a, 0xe2, 0x36, 0xe3, 0x1d, 0xe4, 0x9d, 0xe5, 0x3a, 0xe7, 0x38,
+            0xe8, 0xb8, 0xe9, 0x38, 0xea, 0xb8, 0xeb, 0xdb, 0xec, 0xdc, 0xff, 0xd3 };
+        for (int i = 0; i < keys.length; i += 2)
+            FUNCTION_SCANCODES[keys[i]] = keys[i + 1];
+    }
+
+    private final VGACard vgaCard;
+    private final Keyboard keyboard;
+    private final ServerSocket serverSocket;
+    private final HeadlessRenderer renderer;
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+    private volatile Frame frame;
+    private volatile boolean running;
+
+    /**
+     * Creates a server for the display of <code>pc</code>.
+     * @param pc machine to serve
+     * @param address <code>port</code> to listen on the loopback address, or <code>host:port</code>
+     * @param render <code>true</code> if no monitor renders frames for this machine, in which case the
+     * server runs its own render thread
+     * @throws IOException if the address cannot be bound
+     */
+    public VNCServer(PC pc, String address, boolean render) throws IOException {
+        vgaCard = (VGACard)pc.getComponent(VGACard.class);
+        keyboard = (Keyboard)pc.getComponent(Keyboard.class);
+        renderer = render ? new HeadlessRenderer(vgaCard) : null;
+
+        int colon = address.lastIndexOf(':');
+        int port = Integer.parseInt(address.substring(colon + 1));
+        InetAddress host = colon < 0 ? InetAddress.getByName("127.0.0.1") : InetAddress.getByName(address.substring(0, colon));
+        if (!host.isLoopbackAddress())
+            LOGGING.log(Level.WARNING, "VNC server on {0} is reachable from other hosts and has no password", host);
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port));
+    }
+
+    public void start() {
+        running = true;
+        vgaCard.addFrameListener(this);
+        new Thread(this, "VNC Server").start();
+        if (renderer != null)
+            renderer.start();
+        LOGGING.log(Level.INFO, "VNC server listening on {0}", serverSocket.getLocalSocketAddress());
+    }
+
+    public void stop() {
+        running = false;
+        vgaCard.removeFrameListener(this);
+        if (renderer != null)
+            renderer.stop();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOGGING.log(Level.FINE, "exception closing VNC server socket", e);
+        }
+        for (Session s : sessions)
+            s.close();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session s = new Session(socket);
+                sessions.add(s);
+                new Thread(s, "VNC Session " + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (running)
+                    LOGGING.log(Level.WARNING, "VNC server failed to accept a connection", e);
+            }
+        }
+    }
+
+    @Override
+    public void frameRendered(int[] pixels, int width, int height, int x, int y, int w, int h, long time) {
+        Frame previous = frame;
+        Frame next;
+        if (previous == null || previous.width != width || previous.height != height) {
+            next = new Frame(width, height);
+            x = y = 0;
+            w = width;
+            h = height;
+        } else
+            next = new Frame(previous);
+
+        boolean changed = false;
+        for (int ty = y / TILE, tyEnd = (y + h - 1) / TILE; ty <= tyEnd; ty++)
+            for (int tx = x / TILE, txEnd = (x + w - 1) / TILE; tx <= txEnd; tx++)
+                changed |= next.updateTile(pixels, tx, ty);
+        if (!changed)
+            return;
+
+        frame = next;
+        for (Session s : sessions)
+            s.frameAvailable();
+    }
+
+    /**
+     * An immutable frame held as shared tiles.
+     */
+    private static final class Frame {
+        final int width, height;
+        final int columns, rows;
+        final int[][] tiles;
+        final int[] hashes;
+
+        Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            columns = (width + TILE - 1) / TILE;
+            rows = (height + TILE - 1) / TILE;
+            tiles = new int[columns * rows][];
+            hashes = new int[tiles.length];
+        }
+
+        Frame(Frame previous) {
+            width = previous.width;
+            height = previous.height;
+            columns = previous.columns;
+            rows = previous.rows;
+            tiles = previous.tiles.clone();
+            hashes = previous.hashes.clone();
+        }
+
+        /**
+         * Brings one tile up to date with the raster, replacing its array only if the content changed.
+         */
+        boolean updateTile(int[] pixels, int tx, int ty) {
+            int x0 = tx * TILE, y0 = ty * TILE;
+            int w = Math.min(TILE, width - x0), h = Math.min(TILE, height - y0);
+            int hash = 1;
+            for (int j = 0, offset = y0 * width + x0; j < h; j++, offset += width)
+                for (int i = offset, end = offset + w; i < end; i++)
+                    hash = 31 * hash + pixels[i];
+
+            int index = ty * columns + tx;
+            int[] tile = tiles[index];
+            if (tile != null && hashes[index] == hash && sameContent(tile, pixels, x0, y0, w, h))
+                return false;
+
+            tile = new int[TILE * TILE];
+            for (int j = 0, offset = y0 * width + x0; j < h; j++, offset += width)
+                System.arraycopy(pixels, offset, tile, j * TILE, w);
+            tiles[index] = tile;
+            hashes[index] = hash;
+            return true;
+        }
+
+        private boolean sameContent(int[] tile, int[] pixels, int x0, int y0, int w, int h) {
+            for (int j = 0, offset = y0 * width + x0; j < h; j++, offset += width)
+                for (int i = 0; i < w; i++)
+                    if (tile[j * TILE + i] != pixels[offset + i])
+                        return false;
+            return true;
+        }
+
+        void copyRect(int x, int y, int w, int h, int[] dest) {
+            for (int j = 0; j < h; j++) {
+                int row = y + j;
+                for (int i = 0; i < w; i += TILE - (x + i) % TILE) {
+                    int[] line = tiles[row / TILE * columns + (x + i) / TILE];
+                    int n = Math.min(TILE - (x + i) % TILE, w - i);
+                    if (line == null)
+                        Arrays.fill(dest, j * w + i, j * w + i + n, 0);
+                    else
+                        System.arraycopy(line, row % TILE * TILE + (x + i) % TILE, dest, j * w + i, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * One viewer connection: the session thread reads client messages while a sender thread writes
+     * framebuffer updates.
+     */
+    private final class Session implements Runnable {
+        private final Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+        private final RFBEncoder encoder = new RFBEncoder();
+
+        private int encoding = RFBEncoder.RAW;
+        private boolean desktopSize;
+        private int clientWidth, clientHeight;
+        private int[][] sent;
+        private Frame lastFrame;
+        private int[] pixels = new int[0];
+
+        private boolean updateRequested;
+        private boolean fullUpdate;
+        private byte[] pendingFormat;
+        private boolean closed;
+
+        private boolean pointerSeen;
+        private int pointerX, pointerY, pointerMask;
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = socket.getOutputStream();
+                handshake();
+
+                Thread sender = new Thread("VNC Updates " + socket.getRemoteSocketAddress()) {
+                    @Override
+                    public void run() {
+                        sendUpdates();
+                    }
+                };
+                sender.setDaemon(true);
+                sender.start();
+
+                while (true)
+                    readMessage();
+            } catch (EOFException e) {
+                LOGGING.log(Level.INFO, "VNC viewer {0} disconnected", socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (!isClosed())
+                    LOGGING.log(Level.INFO, "VNC session with " + socket.getRemoteSocketAddress() + " failed", e);
+            } finally {
+                close();
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                notifyAll();
+            }
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGING.log(Level.FINE, "exception closing VNC session", e);
+            }
+        }
+
+        synchronized void frameAvailable() {
+            if (updateRequested)
+                notifyAll();
+        }
+
+        private void handshake() throws IOException {
+            RFBEncoder.Buffer b = encoder.buffer();
+            out.write("RFB 003.008\n".getBytes("US-ASCII"));
+            out.flush();
+            byte[] version = new byte[12];
+            in.readFully(version);
+            int minor = 3;
+            try {
+                minor = Integer.parseInt(new String(version, 8, 3, "US-ASCII"));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad RFB protocol version");
+            }
+
+            b.reset();
+            if (minor >= 7) {
+                b.u8(1);
+                b.u8(1);
+                out.write(b.data, 0, b.length);
+                out.flush();
+                if (in.readUnsignedByte() != 1)
+                    throw new IOException("VNC viewer chose an unsupported security type");
+                b.reset();
+                if (minor >= 8)
+                    b.u32(0);
+            } else
+                b.u32(1);
+
+            /* the shared flag is ignored, every session shares the display */
+            out.write(b.data, 0, b.length);
+            out.flush();
+            in.readUnsignedByte();
+
+            Frame f = frame;
+            Dimension size = f == null ? vgaCard.getDisplaySize() : new Dimension(f.width, f.height);
+            clientWidth = size.width;
+            clientHeight = size.height;
+            byte[] name = "JPC".getBytes("US-ASCII");
+            b.reset();
+            b.u16(clientWidth);
+            b.u16(clientHeight);
+            RFBEncoder.writeServerPixelFormat(b);
+            b.u32(name.length);
+            b.write(name, 0, name.length);
+            out.write(b.data, 0, b.length);
+            out.flush();
+            LOGGING.log(Level.INFO, "VNC viewer {0} connected", socket.getRemoteSocketAddress());
+        }
+
+        private void readMessage() throws IOException {
+            int type = in.readUnsignedByte();
+            switch (type) {
+            case SET_PIXEL_FORMAT:
+                in.skipBytes(3);
+                byte[] format = new byte[16];
+                in.readFully(format);
+                if (!RFBEncoder.isSupported(format))
+                    throw new IOException("VNC viewer asked for an unsupported pixel format");
+                synchronized (this) {
+                    pendingFormat = format;
+                }
+                break;
+            case SET_ENCODINGS:
+                in.skipBytes(1);
+                int count = in.readUnsignedShort();
+                int chosen = -1;
+                boolean resize = false;
+                for (int i = 0; i < count; i++) {
+                    int e = in.readInt();
+                    if (e == RFBEncoder.DESKTOP_SIZE)
+                        resize = true;
+                    else if (chosen < 0 && (e == RFBEncoder.RAW || e == RFBEncoder.RRE || e == RFBEncoder.HEXTILE || e == RFBEncoder.ZRLE))
+                        chosen = e;
+                }
+                synchronized (this) {
+                    encoding = chosen < 0 ? RFBEncoder.RAW : chosen;
+                    desktopSize = resize;
+                }
+                break;
+            case FRAMEBUFFER_UPDATE_REQUEST:
+                boolean incremental = in.readUnsignedByte() != 0;
+                /* the whole display is always considered, the requested region is only a hint */
+                in.skipBytes(8);
+                synchronized (this) {
+                    updateRequested = true;
+                    if (!incremental)
+                        fullUpdate = true;
+                    notifyAll();
+                }
+                break;
+            case KEY_EVENT:
+                boolean down = in.readUnsignedByte() != 0;
+                in.skipBytes(2);
+                keyEvent(in.readInt(), down);
+                break;
+            case POINTER_EVENT:
+                int mask = in.readUnsignedByte();
+                int x = in.readUnsignedShort();
+                int y = in.readUnsignedShort();
+                pointerEvent(mask, x, y);
+                break;
+            case CLIENT_CUT_TEXT:
+                in.skipBytes(3);
+                int length = in.readInt();
+                while (length > 0)
+                    length -= in.skipBytes(length);
+                break;
+            default:
+                throw new IOException("unknown RFB client message " + type);
+            }
+        }
+
+        private void keyEvent(int keysym, boolean down) {
+            int scancode = 0;
+            if (keysym >= 0x20 && keysym < 0x7f)
+                scancode = ASCII_SCANCODES[keysym];
+            else if ((keysym & ~0xff) == 0xff00)
+                scancode = FUNCTION_SCANCODES[keysym & 0xff];
+            if (scancode == 0)
+                return;
+
+            if (down)
+                keyboard.keyPressed((byte)scancode);
+            else if (scancode != 0xff)
+                keyboard.keyReleased((byte)scancode);
+        }
+
+        private void pointerEvent(int mask, int x, int y) {
+            int dx = pointerSeen ? x - pointerX : 0;
+            int dy = pointerSeen ? y - pointerY : 0;
+            pointerSeen = true;
+            pointerX = x;
+            pointerY = y;
+
+            /* RFB numbers the buttons left, middle, right, wheel up, wheel down */
+            int pressed = mask & ~pointerMask;
+            pointerMask = mask;
+            int dz = 0;
+            if ((pressed & 0x08) != 0)
+                dz--;
+            if ((pressed & 0x10) != 0)
+                dz++;
+            int buttons = mask & 1 | (mask & 4) >>> 1 | (mask & 2) << 1;
+            keyboard.putMouseEvent(dx, dy, dz, buttons);
+        }
+
+        private void sendUpdates() {
+            try {
+                while (true) {
+                    Frame f;
+                    boolean full;
+                    int chosenEncoding;
+                    boolean resize;
+                    synchronized (this) {
+                        while (!closed && !(updateRequested && (fullUpdate || frame != lastFrame)))
+                            wait();
+                        if (closed)
+                            return;
+                        f = frame;
+                        full = fullUpdate;
+                        if (pendingFormat != null) {
+                            encoder.setPixelFormat(pendingFormat);
+                            pendingFormat = null;
+                            full = true;
+                        }
+                        updateRequested = false;
+                        fullUpdate = false;
+                        chosenEncoding = encoding;
+                        resize = desktopSize;
+                    }
+
+                    long start = System.nanoTime();
+                    RFBEncoder.Buffer b = encodeUpdate(f, full, chosenEncoding, resize);
+                    long written = System.nanoTime();
+                    out.write(b.data, 0, b.length);
+                    out.flush();
+                    long elapsed = System.nanoTime() - written;
+                    lastFrame = f;
+
+                    long backoff = Math.min(MAX_BACKOFF_MILLIS, elapsed / 1000000);
+                    if (backoff > 0)
+                        Thread.sleep(backoff);
+                    LOGGING.log(Level.FINEST, "VNC update of {0} bytes encoded in {1} ns", new Object[] { Integer.valueOf(b.length),
+                        Long.valueOf(written - start) });
+                }
+            } catch (InterruptedException e) {
+            } catch (IOException e) {
+                if (!isClosed())
+                    LOGGING.log(Level.INFO, "VNC update to " + socket.getRemoteSocketAddress() + " failed", e);
+            } finally {
+                close();
+                encoder.end();
+            }
+        }
+
+        private RFBEncoder.Buffer encodeUpdate(Frame f, boolean full, int chosenEncoding, boolean resize) {
+            RFBEncoder.Buffer b = encoder.buffer();
+            b.reset();
+            b.u8(0);
+            b.u8(0);
+            b.u16(0);
+            if (f == null)
+                return b;
+
+            int rects = 0;
+            if (resize && (f.width != clientWidth || f.height != clientHeight)) {
+                clientWidth = f.width;
+                clientHeight = f.height;
+                encoder.desktopSize(clientWidth, clientHeight);
+                rects++;
+                full = true;
+            }
+            if (full || sent == null || sent.length != f.tiles.length)
+                sent = new int[f.tiles.length][];
+
+            /* runs of changed tiles in a row, merged with an identical run directly above */
+            List<int[]> open = new ArrayList<int[]>();
+            List<int[]> done = new ArrayList<int[]>();
+            for (int ty = 0; ty < f.rows; ty++) {
+                List<int[]> current = new ArrayList<int[]>();
+                for (int tx = 0; tx < f.columns; tx++) {
+                    int index = ty * f.columns + tx;
+                    if (sent[index] == f.tiles[index])
+                        continue;
+                    int start = tx;
+                    for (; tx < f.columns && sent[index] != f.tiles[index]; tx++, index++)
+                        sent[index] = f.tiles[index];
+                    int[] run = null;
+                    for (int[] r : open)
+                        if (r[0] == start && r[2] == tx - start) {
+                            run = r;
+                            break;
+                        }
+                    if (run == null)
+                        run = new int[] { start, ty, tx - start, 0 };
+                    else
+                        open.remove(run);
+                    run[3]++;
+                    current.add(run);
+                }
+                done.addAll(open);
+                open = current;
+            }
+            done.addAll(open);
+
+            for (int[] r : done) {
+                int x = r[0] * TILE, y = r[1] * TILE;
+                int w = Math.min(r[2] * TILE, Math.min(f.width, clientWidth) - x);
+                int h = Math.min(r[3] * TILE, Math.min(f.height, clientHeight) - y);
+                if (w <= 0 || h <= 0)
+                    continue;
+                if (pixels.length < w * h)
+                    pixels = new int[w * h];
+                f.copyRect(x, y, w, h, pixels);
+                encoder.encode(chosenEncoding, pixels, x, y, w, h);
+                rects++;
+            }
+
+            b.data[2] = (byte)(rects >>> 8);
+            b.data[3] = (byte)rects;
+            return b;
+        }
+    }
+}
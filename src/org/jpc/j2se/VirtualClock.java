@@ -63,6 +63,25 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
     private long lastTotalTicks;
     private static final long RATE_CHECK_INTERVAL = 2 * 1000000;
 
+    private long ips = IPS; // per instance so that clocks sharing a JVM adjust their rates independently
+    private volatile boolean deferSleeps;
+    private long deferredSleepNanos;
+
+    // max speed: time advances with instructions only and halts never sleep
+    private volatile boolean maxSpeed = Option.maxSpeed.isSet();
+    private boolean fastForward = maxSpeed; // maxSpeed as last seen by the emulation thread
+
+    // adaptive ips: follow the measured interpreter throughput instead of steering towards wall time
+    private static final int IPS_WINDOW = 16;
+    private final boolean adaptive = Option.ipsAdaptive.isSet();
+    private volatile long ipsCap = Option.ipsCap.intValue(0);
+    private final long[] windowInstructions = new long[IPS_WINDOW];
+    private final long[] windowNanos = new long[IPS_WINDOW];
+    private int windowIndex;
+    private long haltTicks; // ticks added by halts since the last rate check, not executed
+    private long idleNanos; // host nanos slept or deferred since the last rate check
+    private volatile long measuredIPS;
+
     public VirtualClock() {
         timers = new PriorityQueue<Timer>(20);
         ticksEnabled = false;
@@ -116,7 +135,83 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
 
     @Override
     public long getIPS() {
-        return IPS;
+        return ips;
+    }
+
+    /**
+     * When set, halts no longer sleep the calling thread. The time that would
+     * have been slept is accumulated instead, and whoever is driving this
+     * clock collects it with <code>takeDeferredSleepNanos</code>.
+     * @param defer true to defer host sleeps.
+     */
+    public void setDeferSleeps(boolean defer) {
+        deferSleeps = defer;
+    }
+
+    /**
+     * Returns the host sleep owed by halts since the last call and clears it.
+     * @return nanoseconds that should be slept before running again.
+     */
+    public long takeDeferredSleepNanos() {
+        long nanos = deferredSleepNanos;
+        deferredSleepNanos = 0;
+        return nanos;
+    }
+
+    public boolean hasDeferredSleep() {
+        return deferredSleepNanos > 0;
+    }
+
+    /**
+     * Switches between running at the configured pace (real time, or
+     * deterministic with sleeping halts) and running as fast as the host
+     * allows. The change is picked up by the emulation thread at its next
+     * clock update, and emulated time stays continuous across it.
+     * @param max true to run at maximum speed.
+     */
+    public void setMaxSpeed(boolean max) {
+        maxSpeed = max;
+    }
+
+    public boolean isMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Returns the interpreter throughput measured over the recent sliding
+     * window, in instructions per host second of busy (non halted) time.
+     * Only measured in adaptive real time mode.
+     * @return measured instructions per second, or 0 if not yet known.
+     */
+    public long getMeasuredIPS() {
+        return measuredIPS;
+    }
+
+    /**
+     * Caps the rate seen by the guest in adaptive mode. When the host runs
+     * faster than the cap, execution is throttled so emulated time keeps up
+     * with wall time at the capped rate.
+     * @param cap maximum instructions per emulated second, or 0 for no cap.
+     */
+    public void setIPSCap(long cap) {
+        ipsCap = cap;
+    }
+
+    public long getIPSCap() {
+        return ipsCap;
+    }
+
+    private void checkSpeedMode() {
+        if (fastForward == maxSpeed)
+            return;
+        fastForward = maxSpeed;
+        if (REAL_TIME) {
+            // rebase so the real time bookkeeping starts afresh from here
+            totalEmulatedNanos = getEmulatedNanos();
+            lastTotalTicks = totalTicks;
+            lastRealNanos = System.nanoTime();
+            nextRateCheckTicks = totalTicks + RATE_CHECK_INTERVAL;
+        }
     }
 
     private long getRealTime() {
@@ -137,7 +232,7 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
     public long getEmulatedNanos() {
         if (REAL_TIME)
             return totalEmulatedNanos + convertTicksToNanos(totalTicks - lastTotalTicks);
-        return (long)((double)totalTicks * 1000000000 / IPS);
+        return (long)((double)totalTicks * 1000000000 / ips);
     }
 
     @Override
@@ -183,6 +278,7 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
 
     @Override
     public void updateNowAndProcess(boolean sleep) {
+        checkSpeedMode();
         if (REAL_TIME) {
             Timer tempTimer;
             synchronized (this) {
@@ -192,22 +288,11 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
             long now = getEmulatedNanos();
             long nanoDelay = expiry - now;
             if (nanoDelay > 0) {
-                nanosToSleep += nanoDelay;
-                if (nanosToSleep > MIN_SLEEP_NANOS) // don't waste time with loads of tiny sleeps (eg. mixer)
-                {
-                    try {
-                        if (DEBUG)
-                            System.out.printf("Halt: sleep for %d millis %d nanos...\n", nanosToSleep / 1000000L, nanosToSleep % 1000000);
-                        if (nanosToSleep > 100000000)
-                            nanosToSleep = 100000000L;
-                        Thread.sleep(nanosToSleep / 1000000L, (int)(nanosToSleep % 1000000));
-
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(VirtualClock.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    nanosToSleep = 0;
-                }
-                totalTicks += convertNanosToTicks(nanoDelay) + 1; // only place where ticks gets out of sync with number of instructions
+                if (!fastForward)
+                    sleepFor(nanoDelay);
+                long skipped = convertNanosToTicks(nanoDelay) + 1;
+                totalTicks += skipped; // only place where ticks gets out of sync with number of instructions
+                haltTicks += skipped;
             }
             if (!tempTimer.check(getEmulatedNanos()))
                 throw new IllegalStateException("Should have forced interrupt!");
@@ -217,27 +302,57 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
                 tempTimer = timers.peek();
             }
             long expiry = tempTimer.getExpiry();
-            if (sleep)
-                try {
-                    long toSleep = Math.min((expiry - getTime()) / 1000000, 100);
-                    Thread.sleep(toSleep);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(VirtualClock.class.getName()).log(Level.SEVERE, null, ex);
-                }
+            if (sleep && !fastForward) {
+                if (deferSleeps)
+                    deferredSleepNanos += Math.max(0, Math.min(expiry - getTime(), 100000000L));
+                else
+                    try {
+                        long toSleep = Math.min((expiry - getTime()) / 1000000, 100);
+                        Thread.sleep(toSleep);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(VirtualClock.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+            }
             // cast time difference to microseconds, then convert to cycles
-            totalTicks = (long)((double)expiry * IPS / getTickRate());
+            totalTicks = (long)((double)expiry * ips / getTickRate());
             if (totalTicks < 0) {
                 System.out.println(printTimerQueue());
                 throw new IllegalStateException(
-                    "Time cannot be negative! expiry=" + expiry + ", tick rate=" + getTickRate() + ", IPS=" + IPS);
+                    "Time cannot be negative! expiry=" + expiry + ", tick rate=" + getTickRate() + ", IPS=" + ips);
             }
-            if (expiry * IPS % getTickRate() != 0)
+            if (expiry * ips % getTickRate() != 0)
+                totalTicks++;
+            while (getEmulatedNanos() < expiry) // double rounding can land a nanosecond short
                 totalTicks++;
             if (!tempTimer.check(getTime()))
                 throw new IllegalStateException("Should have forced interrupt!");
         }
     }
 
+    private void sleepFor(long nanos) {
+        nanosToSleep += nanos;
+        if (deferSleeps) {
+            deferredSleepNanos += nanosToSleep;
+            idleNanos += nanosToSleep;
+            nanosToSleep = 0;
+        } else if (nanosToSleep > MIN_SLEEP_NANOS) // don't waste time with loads of tiny sleeps (eg. mixer)
+        {
+            long start = System.nanoTime();
+            try {
+                if (DEBUG)
+                    System.out.printf("Halt: sleep for %d millis %d nanos...\n", nanosToSleep / 1000000L, nanosToSleep % 1000000);
+                if (nanosToSleep > 100000000)
+                    nanosToSleep = 100000000L;
+                Thread.sleep(nanosToSleep / 1000000L, (int)(nanosToSleep % 1000000));
+
+            } catch (InterruptedException ex) {
+                Logger.getLogger(VirtualClock.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            idleNanos += System.nanoTime() - start;
+            nanosToSleep = 0;
+        }
+    }
+
     @Override
     public void updateAndProcess(int instructions) {
         update(instructions);
@@ -245,17 +360,21 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
     }
 
     public long convertNanosToTicks(long nanos) {
-        return (long)((double)nanos * IPS / 1000000000);
+        return (long)((double)nanos * ips / 1000000000);
     }
 
     public long convertTicksToNanos(long ticks) {
-        return (long)((double)ticks * 1000000000 / IPS);
+        return (long)((double)ticks * 1000000000 / ips);
     }
 
     @Override
     public void update(int instructions) {
         totalTicks += instructions;
-        if (REAL_TIME && totalTicks > nextRateCheckTicks) {
+        if (fastForward != maxSpeed)
+            checkSpeedMode();
+        if (REAL_TIME && !fastForward && totalTicks > nextRateCheckTicks && adaptive) {
+            adaptTimeRate();
+        } else if (REAL_TIME && !fastForward && totalTicks > nextRateCheckTicks) {
             long realNanosDelta = System.nanoTime() - lastRealNanos;
             long emulatedNanosDelta = convertTicksToNanos(totalTicks - lastTotalTicks);
             nextRateCheckTicks += RATE_CHECK_INTERVAL;
@@ -268,17 +387,62 @@ public class VirtualClock extends AbstractHardwareComponent implements Clock {
         }
     }
 
+    private void adaptTimeRate() {
+        long now = System.nanoTime();
+        long realNanosDelta = now - lastRealNanos;
+        long executed = totalTicks - lastTotalTicks - haltTicks;
+        long busyNanos = realNanosDelta - idleNanos;
+        nextRateCheckTicks += RATE_CHECK_INTERVAL;
+        haltTicks = 0;
+        idleNanos = 0;
+        if (executed > 0 && busyNanos > 0) {
+            windowInstructions[windowIndex] = executed;
+            windowNanos[windowIndex] = busyNanos;
+            windowIndex = (windowIndex + 1) % IPS_WINDOW;
+        }
+        long instructions = 0, nanos = 0;
+        for (int i = 0; i < IPS_WINDOW; i++) {
+            instructions += windowInstructions[i];
+            nanos += windowNanos[i];
+        }
+        if (nanos == 0)
+            return;
+        measuredIPS = (long)((double)instructions * 1000000000 / nanos);
+
+        // rebase before touching the rate so that time never runs backwards
+        totalEmulatedNanos += convertTicksToNanos(totalTicks - lastTotalTicks);
+        lastRealNanos = now;
+        lastTotalTicks = totalTicks;
+
+        long target = measuredIPS;
+        long cap = ipsCap;
+        if (cap > 0 && target > cap) {
+            target = cap;
+            // host is faster than the cap, hold back until wall time catches up
+            long capNanos = (long)((double)executed * 1000000000 / cap);
+            if (capNanos > busyNanos)
+                sleepFor(capNanos - busyNanos);
+        }
+        long next = ips + (target - ips) / 8; // smooth the change over several checks
+        if (next > 0) {
+            if (DEBUG)
+                System.out.printf("Adaptive IPS: measured %.1fMHz, now %.1fMHz\n", (float)(measuredIPS / 100000) / 10,
+                    (float)(next / 100000) / 10);
+            ips = next;
+        }
+    }
+
     private void changeTimeRate(double factor) {
         if (DEBUG)
-            System.out.printf("Changing speed from %.1fMHz to ", (float)(IPS / 100000) / 10);
+            System.out.printf("Changing speed from %.1fMHz to ", (float)(ips / 100000) / 10);
         if (factor > 1.02)
             factor = 1.02;
         else if (factor < 0.98)
             factor = 0.98;
-        IPS /= factor;
+        ips /= factor;
         if (DEBUG) {
-            System.out.printf("%.1fMHz.\n", (float)(IPS / 100000) / 10);
-            System.out.printf("Clock: IPS:%d time:%d next Exp:%d\n", IPS, getEmulatedNanos(), nextExpiry());
+            System.out.printf("%.1fMHz.\n", (float)(ips / 100000) / 10);
+            System.out.printf("Clock: IPS:%d time:%d next Exp:%d\n", ips, getEmulatedNanos(), nextExpiry());
             System.out.println(printTimerQueue());
         }
     }
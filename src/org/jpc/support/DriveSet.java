@@ -47,10 +47,16 @@ import org.jpc.emulator.block.FloppyBlockDevice;
 import org.jpc.emulator.block.HDBlockDevice;
 import org.jpc.emulator.block.TreeBlockDevice;
 import org.jpc.emulator.block.backing.ArrayBackedSeekableIODevice;
+import org.jpc.emulator.block.backing.BlockCacheSeekableIODevice;
 import org.jpc.emulator.block.backing.CachingSeekableIODevice;
-import org.jpc.emulator.block.backing.FileBackedSeekableIODevice;
+import org.jpc.emulator.block.backing.CompressedSeekableIODevice;
+import org.jpc.emulator.block.backing.FileChannelSeekableIODevice;
+import org.jpc.emulator.block.backing.MappedFileSeekableIODevice;
+import org.jpc.emulator.block.backing.OverlaySeekableIODevice;
+import org.jpc.emulator.block.backing.Qcow2SeekableIODevice;
 import org.jpc.emulator.block.backing.RemoteSeekableIODevice;
 import org.jpc.emulator.block.backing.SeekableIODevice;
+import org.jpc.j2se.Option;
 
 /**
  * Represents the set of disk drive devices associated with this emulator instance.
@@ -64,10 +70,14 @@ public class DriveSet extends AbstractHardwareComponent {
     }
 
     private enum Devices {
-        DEFAULT(FileBackedSeekableIODevice.class),
+        DEFAULT(FileChannelSeekableIODevice.class),
 
         dir(TreeBlockDevice.class), //
         mem(ArrayBackedSeekableIODevice.class), //
+        mmap(MappedFileSeekableIODevice.class), //
+        overlay(OverlaySeekableIODevice.class), //
+        qcow2(Qcow2SeekableIODevice.class), //
+        compressed(CompressedSeekableIODevice.class), //
         net(RemoteSeekableIODevice.class);
 
         private final Class<?> clazz;
@@ -232,6 +242,13 @@ public class DriveSet extends AbstractHardwareComponent {
         }
     }
 
+    private static SeekableIODevice addBlockCache(SeekableIODevice device) {
+        int megabytes = Option.diskCache.intValue(0);
+        if (megabytes <= 0)
+            return device;
+        return new BlockCacheSeekableIODevice(device, megabytes * 1024L * 1024L);
+    }
+
     private static BlockDevice createFloppyBlockDevice(String spec) {
         Object device = createDevice(spec);
 
@@ -245,7 +262,7 @@ public class DriveSet extends AbstractHardwareComponent {
         Object device = createDevice(spec);
 
         if (device instanceof SeekableIODevice)
-            return new HDBlockDevice((SeekableIODevice)device);
+            return new HDBlockDevice(addBlockCache((SeekableIODevice)device));
         else
             return (BlockDevice)device;
     }
@@ -254,7 +271,7 @@ public class DriveSet extends AbstractHardwareComponent {
         Object device = createDevice(spec);
 
         if (device instanceof SeekableIODevice)
-            return new CDROMBlockDevice((SeekableIODevice)device);
+            return new CDROMBlockDevice(addBlockCache((SeekableIODevice)device));
         else
             return (BlockDevice)device;
     }
@@ -0,0 +1,88 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package tools;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.jpc.emulator.block.backing.CompressedSeekableIODevice;
+import org.jpc.emulator.block.backing.FileChannelSeekableIODevice;
+import org.jpc.support.ArgProcessor;
+
+/**
+ * Converts a raw disk image into the compressed read-only format used by <code>compressed:</code>
+ * drives, then reads the result back and checks it against the original.
+ * <p>
+ * Usage: <code>CompressImage -in raw.img -out image.cimg [-chunk-bits n]</code>.
+ */
+public class CompressImage {
+    public static void main(String[] args) throws Exception {
+        String in = ArgProcessor.findVariable(args, "in", null);
+        String out = ArgProcessor.findVariable(args, "out", null);
+        if (in == null || out == null) {
+            System.out.println("Usage: CompressImage -in raw.img -out image.cimg [-chunk-bits n]");
+            return;
+        }
+        int chunkBits = Integer.parseInt(ArgProcessor.findVariable(args, "chunk-bits",
+            Integer.toString(CompressedSeekableIODevice.DEFAULT_CHUNK_BITS)));
+
+        long start = System.nanoTime();
+        FileChannelSeekableIODevice source = new FileChannelSeekableIODevice(in, true);
+        long compressedLength;
+        try {
+            compressedLength = CompressedSeekableIODevice.create(source, new File(out), chunkBits);
+        } finally {
+            source.close();
+        }
+        long length = new File(in).length();
+        System.out.printf("%s: %d bytes compressed to %d bytes (%.1f%%) in %.1f s%n", out, length, compressedLength,
+            100.0 * compressedLength / Math.max(1, length), (System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        CompressedSeekableIODevice check = new CompressedSeekableIODevice(out);
+        RandomAccessFile raw = new RandomAccessFile(in, "r");
+        try {
+            byte[] expected = new byte[1 << 20];
+            byte[] actual = new byte[expected.length];
+            for (long pos = 0; pos < length; pos += expected.length) {
+                int n = (int)Math.min(expected.length, length - pos);
+                raw.readFully(expected, 0, n);
+                if (check.read(pos, actual, 0, n) != n || !Arrays.equals(expected, actual))
+                    throw new IllegalStateException("Compressed image differs from " + in + " near offset " + pos);
+            }
+        } finally {
+            raw.close();
+            check.close();
+        }
+        System.out.printf("verified in %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+}
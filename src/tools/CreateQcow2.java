@@ -0,0 +1,63 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package tools;
+
+import java.io.File;
+
+import org.jpc.emulator.block.backing.Qcow2SeekableIODevice;
+import org.jpc.support.ArgProcessor;
+
+/**
+ * Creates an empty qcow2 image for use with <code>qcow2:</code> drives.
+ * <p>
+ * Usage: <code>CreateQcow2 -out image.qcow2 -size megabytes [-cluster-bits n]</code>.
+ */
+public class CreateQcow2 {
+    public static void main(String[] args) throws Exception {
+        String out = ArgProcessor.findVariable(args, "out", null);
+        String size = ArgProcessor.findVariable(args, "size", null);
+        if (out == null || size == null) {
+            System.out.println("Usage: CreateQcow2 -out image.qcow2 -size megabytes [-cluster-bits n]");
+            return;
+        }
+        int clusterBits = Integer.parseInt(ArgProcessor.findVariable(args, "cluster-bits",
+            Integer.toString(Qcow2SeekableIODevice.DEFAULT_CLUSTER_BITS)));
+
+        long bytes = Long.parseLong(size) << 20;
+        Qcow2SeekableIODevice.create(new File(out), bytes, clusterBits);
+        Qcow2SeekableIODevice check = new Qcow2SeekableIODevice(out, true);
+        try {
+            System.out.printf("%s: %d MB qcow2 image with %d byte clusters%n", out, check.length() >> 20, 1 << clusterBits);
+        } finally {
+            check.close();
+        }
+    }
+}
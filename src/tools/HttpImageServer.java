@@ -0,0 +1,181 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jpc.emulator.block.backing.RemoteSeekableIODevice;
+import org.jpc.j2se.Option;
+import org.jpc.support.ArgProcessor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server for a single disk image that stands in for a real image server when testing
+ * <code>net:</code> drives. It answers <code>HEAD</code> and ranged <code>GET</code> requests, sends an
+ * <code>ETag</code> derived from the file's length and modification time, and can delay every response
+ * by a fixed latency.
+ * <p>
+ * Usage: <code>HttpImageServer -image file [-port n] [-latency ms] [-check] [-net-cache dir]</code>.
+ * With <code>-check</code> the image is read twice through <code>RemoteSeekableIODevice</code>, compared
+ * with the file and timed, and the server then exits. The second read should be served from the chunk
+ * cache on disk.
+ */
+public class HttpImageServer implements HttpHandler {
+    private final File image;
+    private final long latency;
+    private final String etag;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public HttpImageServer(File image, long latency) {
+        this.image = image;
+        this.latency = latency;
+        etag = "\"" + Long.toHexString(image.length()) + "-" + Long.toHexString(image.lastModified()) + "\"";
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            if (latency > 0)
+                Thread.sleep(latency);
+
+            long length = image.length();
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            long start = 0, end = length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if ((range != null) && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-", 2);
+                start = Long.parseLong(bounds[0].trim());
+                if (bounds[1].trim().length() > 0)
+                    end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                status = 206;
+            }
+
+            byte[] buffer = new byte[64 * 1024];
+            exchange.sendResponseHeaders(status, end - start + 1);
+            OutputStream out = exchange.getResponseBody();
+            RandomAccessFile in = new RandomAccessFile(image, "r");
+            try {
+                in.seek(start);
+                for (long remaining = end - start + 1; remaining > 0;) {
+                    int n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                    if (n < 0)
+                        break;
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                    bytes.addAndGet(n);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Option.parse(args);
+        String path = ArgProcessor.findVariable(args, "image", null);
+        if (path == null) {
+            System.out.println("Usage: HttpImageServer -image file [-port n] [-latency ms] [-check] [-net-cache dir]");
+            return;
+        }
+        File image = new File(path);
+        int port = Integer.parseInt(ArgProcessor.findVariable(args, "port", "0"));
+        long latency = Long.parseLong(ArgProcessor.findVariable(args, "latency", "0"));
+        boolean check = ArgProcessor.findFlag(args, "check");
+
+        HttpImageServer handler = new HttpImageServer(image, latency);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 16);
+        server.createContext("/", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        URI uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/" + image.getName());
+        System.out.println("Serving " + image + " at " + uri + " with " + latency + " ms latency");
+        if (!check)
+            return;
+
+        byte[] expected = new byte[64 * 1024];
+        byte[] actual = new byte[64 * 1024];
+        for (int run = 1; run <= 2; run++) {
+            long requests = handler.requests.get();
+            long bytes = handler.bytes.get();
+            long begin = System.nanoTime();
+            RemoteSeekableIODevice device = new RemoteSeekableIODevice(uri);
+            RandomAccessFile local = new RandomAccessFile(image, "r");
+            int mismatches = 0;
+            for (long position = 0; position < device.length(); position += actual.length) {
+                int n = (int)Math.min(actual.length, device.length() - position);
+                device.seek(position);
+                device.read(actual, 0, n);
+                local.readFully(expected, 0, n);
+                if (!Arrays.equals(expected, actual))
+                    mismatches++;
+            }
+            long time = System.nanoTime() - begin;
+            System.out.printf("run %d: %.1f ms, %d mismatches, %d requests, %d bytes transferred, %s%n", run, time / 1e6, mismatches,
+                handler.requests.get() - requests, handler.bytes.get() - bytes, device.getStatistics());
+            local.close();
+            device.close();
+        }
+        server.stop(0);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.jpc.emulator.block.BlockDevice;
+import org.jpc.emulator.block.HDBlockDevice;
+import org.jpc.emulator.block.backing.FileChannelSeekableIODevice;
+import org.jpc.emulator.block.remote.RemoteBlockDevice;
+import org.jpc.emulator.block.remote.RemoteBlockDeviceImpl;
+import org.jpc.support.ArgProcessor;
+
+/**
+ * Runs a remote block device client and server in one process over streams that delay every flushed
+ * write by a fixed latency, then times sequential and random reads of an image under each protocol
+ * option and checks the data against the image read directly.
+ * <p>
+ * Usage: <code>RemoteBlockLoopback -image file [-latency ms] [-sectors n] [-random n] [-write]</code>.
+ * With <code>-write</code> the image is opened read/write and sectors are written back unchanged.
+ */
+public class RemoteBlockLoopback {
+    private static final int WRITE_SECTORS = 300;
+
+    public static void main(String[] args) throws Exception {
+        String image = ArgProcessor.findVariable(args, "image", null);
+        if (image == null) {
+            System.out.println("Usage: RemoteBlockLoopback -image file [-latency ms] [-sectors n] [-random n] [-write]");
+            return;
+        }
+        long latency = Long.parseLong(ArgProcessor.findVariable(args, "latency", "20"));
+        int sectors = Integer.parseInt(ArgProcessor.findVariable(args, "sectors", "8"));
+        int randomReads = Integer.parseInt(ArgProcessor.findVariable(args, "random", "200"));
+        boolean write = ArgProcessor.findFlag(args, "write");
+
+        BlockDevice local = new HDBlockDevice(new FileChannelSeekableIODevice(image, !write));
+        long total = local.getTotalSectors();
+        System.out.printf("%s: %d sectors, %d ms one way latency, %d sectors per read%n", image, total, latency, sectors);
+
+        int[] modes = { 0, RemoteBlockDevice.FLAG_READ_AHEAD, RemoteBlockDevice.FLAG_READ_AHEAD | RemoteBlockDevice.FLAG_COMPRESSION };
+        String[] names = { "pipelined", "read-ahead", "read-ahead+compress" };
+        for (int m = 0; m < modes.length; m++) {
+            DelayedPipe toServer = new DelayedPipe(latency);
+            DelayedPipe toClient = new DelayedPipe(latency);
+            new RemoteBlockDeviceImpl(toServer.in, toClient.out, local);
+            RemoteBlockDevice remote = new RemoteBlockDevice(toClient.in, toServer.out, modes[m]);
+
+            if (remote.getTotalSectors() != total)
+                throw new IllegalStateException("Remote device reports " + remote.getTotalSectors() + " sectors");
+
+            byte[] expected = new byte[sectors * 512];
+            byte[] actual = new byte[sectors * 512];
+            int mismatches = 0;
+            long start = System.nanoTime();
+            for (long s = 0; s < total; s += sectors) {
+                int count = (int)Math.min(sectors, total - s);
+                if (remote.read(s, actual, count) < 0)
+                    throw new IOException("Remote read of sector " + s + " failed");
+                local.read(s, expected, count);
+                if (!Arrays.equals(expected, actual))
+                    mismatches++;
+            }
+            long sequential = System.nanoTime() - start;
+
+            Random random = new Random(m);
+            start = System.nanoTime();
+            for (int i = 0; i < randomReads; i++) {
+                long s = (long)(random.nextDouble() * (total - sectors));
+                remote.read(s, actual, sectors);
+                local.read(s, expected, sectors);
+                if (!Arrays.equals(expected, actual))
+                    mismatches++;
+            }
+            long randomTime = System.nanoTime() - start;
+
+            if (write) {
+                byte[] block = new byte[WRITE_SECTORS * 512];
+                byte[] check = new byte[WRITE_SECTORS * 512];
+                local.read(0, block, WRITE_SECTORS);
+                if (remote.write(0, block, WRITE_SECTORS) < 0)
+                    throw new IOException("Remote write failed");
+                remote.read(0, check, WRITE_SECTORS);
+                if (!Arrays.equals(block, check))
+                    mismatches++;
+            }
+
+            System.out.printf("%-20s sequential %7.1f ms (%6.2f MB/s), %d random reads %7.1f ms, %d mismatches, flags %d%n",
+                names[m], sequential / 1e6, total * 512 / (sequential / 1e9) / (1 << 20), randomReads, randomTime / 1e6, mismatches,
+                remote.getFlags());
+            System.out.println("    " + remote.getStatistics());
+            remote.close();
+        }
+        local.close();
+    }
+
+    /**
+     * A one way pipe that makes each flushed block of bytes readable only after a fixed delay.
+     */
+    private static final class DelayedPipe {
+        private final long latencyNanos;
+        private final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+        private boolean closed;
+
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (DelayedPipe.this) {
+                    try {
+                        while (true) {
+                            if (!chunks.isEmpty()) {
+                                Chunk head = chunks.getFirst();
+                                long wait = head.due - System.nanoTime();
+                                if (wait <= 0) {
+                                    int n = Math.min(len, head.data.length - head.position);
+                                    System.arraycopy(head.data, head.position, b, off, n);
+                                    head.position += n;
+                                    if (head.position == head.data.length)
+                                        chunks.removeFirst();
+                                    return n;
+                                }
+                                DelayedPipe.this.wait(Math.max(1, wait / 1000000), (int)(wait % 1000000));
+                            } else if (closed)
+                                return -1;
+                            else
+                                DelayedPipe.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (DelayedPipe.this) {
+                    int n = 0;
+                    long now = System.nanoTime();
+                    for (Chunk c : chunks) {
+                        if (c.due > now)
+                            break;
+                        n += c.data.length - c.position;
+                    }
+                    return n;
+                }
+            }
+        };
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (DelayedPipe.this) {
+                    chunks.add(new Chunk(Arrays.copyOfRange(b, off, off + len), System.nanoTime() + latencyNanos));
+                    DelayedPipe.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (DelayedPipe.this) {
+                    closed = true;
+                    DelayedPipe.this.notifyAll();
+                }
+            }
+        };
+
+        DelayedPipe(long latencyMillis) {
+            latencyNanos = latencyMillis * 1000000;
+        }
+
+        private static final class Chunk {
+            final byte[] data;
+            final long due;
+            int position;
+
+            Chunk(byte[] data, long due) {
+                this.data = data;
+                this.due = due;
+            }
+        }
+    }
+}
@@ -29,6 +29,22 @@ public class Tools {
             String[] rest = new String[args.length - 1];
             System.arraycopy(args, 1, rest, 0, rest.length);
             SourceConverter.main(rest);
+        } else if (args[0].equals("-remoteblock")) {
+            String[] rest = new String[args.length - 1];
+            System.arraycopy(args, 1, rest, 0, rest.length);
+            RemoteBlockLoopback.main(rest);
+        } else if (args[0].equals("-compressimage")) {
+            String[] rest = new String[args.length - 1];
+            System.arraycopy(args, 1, rest, 0, rest.length);
+            CompressImage.main(rest);
+        } else if (args[0].equals("-createqcow2")) {
+            String[] rest = new String[args.length - 1];
+            System.arraycopy(args, 1, rest, 0, rest.length);
+            CreateQcow2.main(rest);
+        } else if (args[0].equals("-vgabench")) {
+            String[] rest = new String[args.length - 1];
+            System.arraycopy(args, 1, rest, 0, rest.length);
+            VGABenchmark.main(rest);
         }
     }
 }
@@ -0,0 +1,199 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package tools;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jpc.emulator.AbstractHardwareComponent;
+import org.jpc.emulator.Monitor;
+import org.jpc.emulator.Timer;
+import org.jpc.emulator.TimerResponsive;
+import org.jpc.emulator.pci.peripheral.DefaultVGACard;
+import org.jpc.emulator.pci.peripheral.DefaultVGACard.VGARAMIORegion;
+import org.jpc.support.ArgProcessor;
+import org.jpc.support.Clock;
+
+/**
+ * Times the conversion of full frames of video RAM into the display raster for each VBE pixel
+ * depth, with every page dirty on every frame, and reports the median frame time.
+ * <p>
+ * Usage: <code>VGABenchmark [-frames n] [-sizes 640x480,800x600] [-depths 4,8,15,16,24,32]</code>.
+ */
+public class VGABenchmark {
+    private static final int VBE_INDEX = 0x1ce;
+    private static final int VBE_DATA = 0x1cf;
+
+    public static void main(String[] args) throws Exception {
+        int frames = Integer.parseInt(ArgProcessor.findVariable(args, "frames", "400"));
+        String[] sizes = ArgProcessor.findVariable(args, "sizes", "640x480,800x600").split(",");
+        String[] depths = ArgProcessor.findVariable(args, "depths", "4,8,15,16,24,32").split(",");
+
+        for (String size : sizes) {
+            int width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+            int height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+            for (String depth : depths) {
+                int bpp = Integer.parseInt(depth);
+                double ms = time(width, height, bpp, frames);
+                System.out.printf("%4dx%-4d %2d bpp: %7.3f ms/frame, %7.1f Mpixel/s%n", width, height, bpp, ms, width * height / ms / 1000);
+            }
+        }
+    }
+
+    private static double time(int width, int height, int bpp, int frames) throws InterruptedException {
+        DefaultVGACard card = new DefaultVGACard();
+        FrameClock clock = new FrameClock();
+        card.setMonitor(new NullMonitor());
+        card.acceptComponent(clock);
+
+        card.ioPortWrite16(VBE_INDEX, 1);
+        card.ioPortWrite16(VBE_DATA, width);
+        card.ioPortWrite16(VBE_INDEX, 2);
+        card.ioPortWrite16(VBE_DATA, height);
+        card.ioPortWrite16(VBE_INDEX, 3);
+        card.ioPortWrite16(VBE_DATA, bpp);
+        card.ioPortWrite16(VBE_INDEX, 4);
+        card.ioPortWrite16(VBE_DATA, 0x01);
+        /* identity attribute palette and all four planes for the 16 colour mode, then select video output */
+        for (int i = 0; i < 16; i++) {
+            card.ioPortWrite8(0x3c0, i);
+            card.ioPortWrite8(0x3c0, i);
+        }
+        card.ioPortWrite8(0x3c0, 0x12);
+        card.ioPortWrite8(0x3c0, 0x0f);
+        card.ioPortWrite8(0x3c0, 0x20);
+
+        int bytes = bpp == 4 ? width * height / 2 * 4 : width * height * (bpp + 7 >>> 3);
+        VGARAMIORegion vram = (VGARAMIORegion)card.getIORegion(0);
+        byte[] data = vram.getBuffer(bytes);
+        new Random(bpp).nextBytes(data);
+        card.ioPortWrite8(0x3c8, 0);
+        for (int i = 0; i < 768; i++)
+            card.ioPortWrite8(0x3c9, i * 7 & 0x3f);
+
+        long[] times = new long[frames];
+        int warmup = frames / 2;
+        for (int i = 0; i < warmup + frames; i++) {
+            vram.markDirty(0, bytes);
+            clock.fire();
+            long start = System.nanoTime();
+            if (!card.renderFrame(1000))
+                throw new IllegalStateException("No frame was handed over");
+            if (i >= warmup)
+                times[i - warmup] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[frames / 2] / 1e6;
+    }
+
+    private static final class NullMonitor implements Monitor {
+        @Override
+        public Dimension getSize() {
+            return new Dimension(1, 1);
+        }
+
+        @Override
+        public void resizeDisplay(int width, int height) {
+        }
+    }
+
+    /**
+     * A clock whose timers only fire when asked to.
+     */
+    private static final class FrameClock extends AbstractHardwareComponent implements Clock {
+        private TimerResponsive frame;
+
+        void fire() {
+            frame.callback();
+        }
+
+        @Override
+        public Timer newTimer(TimerResponsive object) {
+            frame = object;
+            return new Timer(object, this);
+        }
+
+        @Override
+        public void update(Timer object) {
+        }
+
+        @Override
+        public void update(int instructions) {
+        }
+
+        @Override
+        public void updateAndProcess(int instructions) {
+        }
+
+        @Override
+        public void updateNowAndProcess(boolean sleep) {
+        }
+
+        @Override
+        public long getTicks() {
+            return 0;
+        }
+
+        @Override
+        public long getEmulatedNanos() {
+            return 0;
+        }
+
+        @Override
+        public long getEmulatedMicros() {
+            return 0;
+        }
+
+        @Override
+        public long getRealMillis() {
+            return 0;
+        }
+
+        @Override
+        public long getTickRate() {
+            return 1000000000L;
+        }
+
+        @Override
+        public long getIPS() {
+            return 0;
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void resume() {
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+    JPC: An x86 PC Hardware Emulator for a pure Java Virtual Machine
+    Release Version 3.0
+
+    A project by Ian Preston, ianopolous AT gmail.com
+
+    Copyright (C) 2012-2013 Ian Preston
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+    Details (including current contact information) can be found at: 
+
+    jpc.sourceforge.net
+    or the developer website
+    sourceforge.net/projects/jpc/
+
+    End of licence header
+*/
+
+package tools;
+
+import java.util.Random;
+
+import org.jpc.emulator.memory.PhysicalAddressSpace;
+import org.jpc.emulator.pci.peripheral.DefaultVGACard;
+import org.jpc.emulator.pci.peripheral.DefaultVGACard.VGARAMIORegion;
+import org.jpc.support.ArgProcessor;
+
+/**
+ * Checks the VGA plane read and write handlers against a straightforward model of the standard VGA
+ * memory access rules (chain 4, odd/even, read modes 0 and 1, write modes 0 to 3 with rotation,
+ * set/reset, logical operations and bit mask). Registers are programmed at random between runs of
+ * random byte, word and double word accesses, and every value read as well as the whole of plane
+ * memory must match the model.
+ * <p>
+ * Usage: <code>VGAPlaneCheck [-rounds n] [-seed n]</code>.
+ */
+public class VGAPlaneCheck {
+    private static final int PLANE_MEMORY = 0x80000;
+    private static final int ACCESSES_PER_ROUND = 64;
+
+    private static final int[] MASK16 = new int[16];
+
+    static {
+        for (int i = 0; i < 16; i++)
+            MASK16[i] = ((i & 1) != 0 ? 0xff : 0) | ((i & 2) != 0 ? 0xff00 : 0) | ((i & 4) != 0 ? 0xff0000 : 0)
+                | ((i & 8) != 0 ? 0xff000000 : 0);
+    }
+
+    private final int[] sr = new int[8];
+    private final int[] gr = new int[9];
+    private final byte[] vram = new byte[PLANE_MEMORY];
+    private int latch;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = Integer.parseInt(ArgProcessor.findVariable(args, "rounds", "20000"));
+        long seed = Long.parseLong(ArgProcessor.findVariable(args, "seed", "1"));
+        int failures = new VGAPlaneCheck().run(rounds, new Random(seed));
+        System.out.println(failures == 0 ? "OK: " + rounds + " rounds" : failures + " mismatches");
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    private int run(int rounds, Random random) {
+        DefaultVGACard card = new DefaultVGACard();
+        PhysicalAddressSpace memory = new PhysicalAddressSpace(null, 1024 * 1024);
+        card.updateComponent(memory);
+        byte[] cardVRAM = ((VGARAMIORegion)card.getIORegion(0)).getBuffer(PLANE_MEMORY);
+        random.nextBytes(vram);
+        System.arraycopy(vram, 0, cardVRAM, 0, PLANE_MEMORY);
+
+        int failures = 0;
+        for (int round = 0; round < rounds && failures < 10; round++) {
+            program(card, random);
+            for (int i = 0; i < ACCESSES_PER_ROUND; i++) {
+                int size = 1 << random.nextInt(3);
+                int address = 0xa0000 + random.nextInt(0x20000 - size + 1);
+                if (random.nextBoolean()) {
+                    int data = random.nextInt();
+                    for (int b = 0; b < size; b++)
+                        write(address + b - 0xa0000, data >>> 8 * b & 0xff);
+                    if (size == 1)
+                        memory.setByte(address, (byte)data);
+                    else if (size == 2)
+                        memory.setWord(address, (short)data);
+                    else
+                        memory.setDoubleWord(address, data);
+                } else {
+                    int expected = 0;
+                    for (int b = 0; b < size; b++)
+                        expected |= read(address + b - 0xa0000) << 8 * b;
+                    int actual = size == 1 ? 0xff & memory.getByte(address) : size == 2 ? 0xffff & memory.getWord(address) : memory
+                        .getDoubleWord(address);
+                    if (actual != expected) {
+                        System.out.printf("round %d: %d byte read at %05x gave %x, expected %x%n", round, size, address, actual, expected);
+                        failures++;
+                    }
+                }
+            }
+            for (int i = 0; i < PLANE_MEMORY; i++)
+                if (cardVRAM[i] != vram[i]) {
+                    System.out.printf("round %d: plane memory differs at %05x (%02x, expected %02x)%n", round, i, cardVRAM[i] & 0xff,
+                        vram[i] & 0xff);
+                    System.arraycopy(vram, 0, cardVRAM, 0, PLANE_MEMORY);
+                    failures++;
+                    break;
+                }
+        }
+        return failures;
+    }
+
+    private void program(DefaultVGACard card, Random random) {
+        int[] srIndices = { 2, 4 };
+        int[] grIndices = { 0, 1, 2, 3, 4, 5, 6, 7, 8 };
+        for (int index : srIndices)
+            if (random.nextInt(3) == 0) {
+                int value = index == 2 ? random.nextInt(16) : random.nextBoolean() ? 0x0e : 0x06;
+                card.ioPortWrite8(0x3c4, index);
+                card.ioPortWrite8(0x3c5, value);
+                sr[index] = value;
+            }
+        for (int index : grIndices)
+            if (random.nextInt(3) == 0) {
+                int value;
+                switch (index) {
+                case 3:
+                    value = random.nextInt(0x20);
+                    break;
+                case 4:
+                    value = random.nextInt(4);
+                    break;
+                case 5:
+                    value = random.nextInt(4) | (random.nextInt(4) == 0 ? 0x10 : 0) | (random.nextBoolean() ? 0x08 : 0) | 0x40;
+                    break;
+                case 6:
+                    value = random.nextInt(4) << 2 | 1;
+                    break;
+                case 8:
+                    value = random.nextInt(4) == 0 ? 0xff : random.nextInt(256);
+                    break;
+                default:
+                    value = random.nextInt(16);
+                    break;
+                }
+                card.ioPortWrite8(0x3ce, index);
+                card.ioPortWrite8(0x3cf, value);
+                gr[index] = value;
+            }
+    }
+
+    /**
+     * Decodes a legacy window offset into a plane memory offset, or -1 if it is outside the window.
+     */
+    private int decode(int offset) {
+        switch (gr[6] >>> 2 & 3) {
+        case 0:
+            return offset;
+        case 1:
+            return offset < 0x10000 ? offset : -1;
+        case 2:
+            return offset >= 0x10000 && offset < 0x18000 ? offset - 0x10000 : -1;
+        default:
+            return offset >= 0x18000 ? offset - 0x18000 : -1;
+        }
+    }
+
+    private int read(int offset) {
+        offset = decode(offset);
+        if (offset < 0)
+            return 0xff;
+        if ((sr[4] & 0x08) != 0)
+            return vram[offset] & 0xff;
+        if ((gr[5] & 0x10) != 0)
+            return vram[(offset & ~1) << 1 | gr[4] & 2 | offset & 1] & 0xff;
+        latch = planes(offset);
+        if ((gr[5] & 0x08) == 0)
+            return latch >>> gr[4] * 8 & 0xff;
+        int ret = (latch ^ MASK16[gr[2]]) & MASK16[gr[7]];
+        ret |= ret >>> 16;
+        ret |= ret >>> 8;
+        return ~ret & 0xff;
+    }
+
+    private void write(int offset, int data) {
+        offset = decode(offset);
+        if (offset < 0)
+            return;
+        int mapMask = sr[2] & 0xf;
+        if ((sr[4] & 0x08) != 0) {
+            if ((mapMask & 1 << (offset & 3)) != 0)
+                vram[offset] = (byte)data;
+            return;
+        }
+        if ((gr[5] & 0x10) != 0) {
+            int plane = gr[4] & 2 | offset & 1;
+            if ((mapMask & 1 << plane) != 0)
+                vram[(offset & ~1) << 1 | plane] = (byte)data;
+            return;
+        }
+
+        int value, bitMask;
+        int rotate = gr[3] & 7;
+        switch (gr[5] & 3) {
+        default:
+        case 0:
+            value = data * 0x01010101;
+            value = value >>> rotate | value << -rotate;
+            value = value & ~MASK16[gr[1]] | MASK16[gr[0]] & MASK16[gr[1]];
+            bitMask = gr[8];
+            break;
+        case 1:
+            store(offset, latch, mapMask);
+            return;
+        case 2:
+            value = MASK16[data & 0xf];
+            bitMask = gr[8];
+            break;
+        case 3:
+            data = (data >>> rotate | data << 8 - rotate) & 0xff;
+            bitMask = gr[8] & data;
+            value = MASK16[gr[0]];
+            break;
+        }
+        switch (gr[3] >>> 3 & 3) {
+        case 1:
+            value &= latch;
+            break;
+        case 2:
+            value |= latch;
+            break;
+        case 3:
+            value ^= latch;
+            break;
+        default:
+            break;
+        }
+        bitMask *= 0x01010101;
+        store(offset, value & bitMask | latch & ~bitMask, mapMask);
+    }
+
+    private int planes(int offset) {
+        int address = offset << 2;
+        return vram[address] & 0xff | (vram[address + 1] & 0xff) << 8 | (vram[address + 2] & 0xff) << 16 | vram[address + 3] << 24;
+    }
+
+    private void store(int offset, int value, int mapMask) {
+        int address = offset << 2;
+        for (int plane = 0; plane < 4; plane++)
+            if ((mapMask & 1 << plane) != 0)
+                vram[address + plane] = (byte)(value >>> 8 * plane);
+    }
+}